@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2007 IBM Corporation and others
+ * Copyright (c) 2007, 2011 IBM Corporation and others
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -24,6 +24,9 @@ public class AllTests {
 		suite.addTestSuite(ConfigurationPluginTest.class);
 		suite.addTestSuite(ConfigurationListenerTest.class);
 		suite.addTestSuite(ConfigurationEventAdapterTest.class);
+		suite.addTestSuite(JournalPersistenceTest.class);
+		suite.addTestSuite(ConfigurationIndexTest.class);
+		suite.addTestSuite(ParallelTaskQueueTest.class);
 		return suite;
 	}
 
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.cm.test;
+
+import java.util.*;
+import junit.framework.TestCase;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/*
+ * The index only selects the candidates of listConfigurations; the result must
+ * be the same as matching the filter against every configuration.
+ */
+public class ConfigurationIndexTest extends TestCase {
+
+	private static final String FACTORY_PID = "index.test";
+	private static final String OTHER_FACTORY_PID = "index.test.other";
+
+	private ConfigurationAdmin cm;
+	private ServiceReference reference;
+	private final List configs = new ArrayList();
+
+	public ConfigurationIndexTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		System.setProperty("equinox.cm.index.keys", "Name, count");
+		Activator.getBundle("org.eclipse.equinox.cm").start();
+		reference = Activator.getBundleContext().getServiceReference(ConfigurationAdmin.class.getName());
+		cm = (ConfigurationAdmin) Activator.getBundleContext().getService(reference);
+	}
+
+	protected void tearDown() throws Exception {
+		for (Iterator it = configs.iterator(); it.hasNext();)
+			((Configuration) it.next()).delete();
+		configs.clear();
+		Activator.getBundleContext().ungetService(reference);
+		Activator.getBundle("org.eclipse.equinox.cm").stop();
+		System.getProperties().remove("equinox.cm.index.keys");
+	}
+
+	private Configuration create(String factoryPid, String key, Object value) throws Exception {
+		Configuration config = cm.createFactoryConfiguration(factoryPid, null);
+		configs.add(config);
+		Dictionary dict = new Hashtable();
+		if (key != null)
+			dict.put(key, value);
+		config.update(dict);
+		return config;
+	}
+
+	private Set list(String filter) throws Exception {
+		Set pids = new HashSet();
+		Configuration[] result = cm.listConfigurations(filter);
+		if (result != null)
+			for (int i = 0; i < result.length; i++)
+				pids.add(result[i].getPid());
+		return pids;
+	}
+
+	private static Set pids(Configuration[] configs) {
+		Set pids = new HashSet();
+		for (int i = 0; i < configs.length; i++)
+			pids.add(configs[i].getPid());
+		return pids;
+	}
+
+	public void testAndEqualityAndPresence() throws Exception {
+		Configuration a = create(FACTORY_PID, "Name", "a");
+		Configuration b = create(FACTORY_PID, "Name", "b");
+		Configuration none = create(FACTORY_PID, null, null);
+		Configuration other = create(OTHER_FACTORY_PID, "Name", "a");
+
+		assertEquals(pids(new Configuration[] {a}), list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=a))"));
+		assertEquals(pids(new Configuration[] {a, other}), list("(&(Name=a)(service.factoryPid=*))"));
+		assertEquals(pids(new Configuration[] {a, b}), list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=*))"));
+		assertEquals(pids(new Configuration[] {a, b, none}), list("(service.factoryPid=" + FACTORY_PID + ")"));
+		// clauses the index does not plan are matched by the filter
+		assertEquals(pids(new Configuration[] {b}), list("(&(service.factoryPid=" + FACTORY_PID + ")(!(Name=a))(Name=*))"));
+		assertEquals(pids(new Configuration[] {b}), list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=b*))"));
+		assertEquals(pids(new Configuration[] {a, other}), list("(|(Name=a)(Name=x))"));
+	}
+
+	public void testCaseInsensitiveKeys() throws Exception {
+		Configuration a = create(FACTORY_PID, "NAME", "a");
+		Configuration b = create(FACTORY_PID, "name", "b");
+
+		assertEquals(pids(new Configuration[] {a}), list("(&(SERVICE.FACTORYPID=" + FACTORY_PID + ")(Name=a))"));
+		assertEquals(pids(new Configuration[] {b}), list("(&(service.factorypid=" + FACTORY_PID + ")(nAmE=b))"));
+		assertEquals(pids(new Configuration[] {a, b}), list("(&(Service.FactoryPid=" + FACTORY_PID + ")(NAME=*))"));
+		// values are not case insensitive
+		assertTrue(list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=A))").isEmpty());
+	}
+
+	public void testNonStringValues() throws Exception {
+		Configuration integer = create(FACTORY_PID, "count", new Integer(5));
+		Configuration string = create(FACTORY_PID, "count", "5");
+		Configuration six = create(FACTORY_PID, "count", new Integer(6));
+		Configuration array = create(FACTORY_PID, "Name", new String[] {"x", "y"});
+		Configuration vector = create(FACTORY_PID, "Name", new Vector(Arrays.asList(new String[] {"y", "z"})));
+
+		// non-string values are candidates of every equality clause and matched by the filter
+		assertEquals(pids(new Configuration[] {integer, string}), list("(&(service.factoryPid=" + FACTORY_PID + ")(count=5))"));
+		assertEquals(pids(new Configuration[] {integer, string, six}), list("(&(service.factoryPid=" + FACTORY_PID + ")(count=*))"));
+		assertEquals(pids(new Configuration[] {six}), list("(&(service.factoryPid=" + FACTORY_PID + ")(count>=6))"));
+		// arrays and collections of strings are indexed by each element
+		assertEquals(pids(new Configuration[] {array}), list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=x))"));
+		assertEquals(pids(new Configuration[] {array, vector}), list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=y))"));
+		assertEquals(pids(new Configuration[] {vector}), list("(Name=z)"));
+	}
+
+	public void testUpdateAndDelete() throws Exception {
+		Configuration a = create(FACTORY_PID, "Name", "a");
+		Dictionary dict = new Hashtable();
+		dict.put("Name", "b");
+		a.update(dict);
+		assertTrue(list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=a))").isEmpty());
+		assertEquals(pids(new Configuration[] {a}), list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=b))"));
+
+		configs.remove(a);
+		a.delete();
+		assertTrue(list("(&(service.factoryPid=" + FACTORY_PID + ")(Name=b))").isEmpty());
+	}
+}
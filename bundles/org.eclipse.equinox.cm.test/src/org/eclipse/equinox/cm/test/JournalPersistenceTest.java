@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.cm.test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import junit.framework.TestCase;
+import org.eclipse.equinox.internal.cm.JournalPersistence;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+public class JournalPersistenceTest extends TestCase {
+
+	private File directory;
+	private File journalFile;
+	private final List errors = new ArrayList();
+	private final LogService log = new LogService() {
+		public void log(int level, String message) {
+			errors.add(message);
+		}
+
+		public void log(int level, String message, Throwable exception) {
+			errors.add(message);
+		}
+
+		public void log(ServiceReference sr, int level, String message) {
+			errors.add(message);
+		}
+
+		public void log(ServiceReference sr, int level, String message, Throwable exception) {
+			errors.add(message);
+		}
+	};
+
+	public JournalPersistenceTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		directory = Activator.getBundleContext().getDataFile("journal");
+		delete(directory);
+		journalFile = new File(directory, "journal");
+	}
+
+	protected void tearDown() throws Exception {
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (int i = 0; i < children.length; i++)
+				delete(children[i]);
+		file.delete();
+	}
+
+	private static Dictionary createProperties(String pid, Object value) {
+		Dictionary properties = new Hashtable();
+		properties.put(Constants.SERVICE_PID, pid);
+		properties.put("value", value);
+		return properties;
+	}
+
+	private JournalPersistence open() {
+		JournalPersistence persistence = new JournalPersistence(log, directory);
+		persistence.load();
+		return persistence;
+	}
+
+	private Map reload() {
+		JournalPersistence persistence = new JournalPersistence(log, directory);
+		try {
+			Dictionary[] dictionaries = persistence.load();
+			Map result = new HashMap();
+			for (int i = 0; i < dictionaries.length; i++)
+				result.put(dictionaries[i].get(Constants.SERVICE_PID), dictionaries[i].get("value"));
+			return result;
+		} finally {
+			persistence.close();
+		}
+	}
+
+	/*
+	 * A record is the payload length, the CRC32 of the payload and the payload:
+	 * the record type, the pid and, for a save, the serialized dictionary.
+	 */
+	public void testRecordFormat() throws Exception {
+		JournalPersistence persistence = open();
+		persistence.save("a", createProperties("a", "x"));
+		persistence.delete("a");
+		persistence.close();
+
+		DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+		try {
+			long length = 0;
+			for (int i = 0; i < 2; i++) {
+				int payloadLength = in.readInt();
+				long checksum = in.readLong();
+				byte[] payload = new byte[payloadLength];
+				in.readFully(payload);
+				length += 12 + payloadLength;
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				assertEquals("Wrong checksum of record " + i, crc.getValue(), checksum);
+
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				assertEquals("Wrong type of record " + i, i == 0 ? 1 : 2, record.readByte());
+				assertEquals("Wrong pid of record " + i, "a", record.readUTF());
+				if (i == 0) {
+					Dictionary properties = (Dictionary) new ObjectInputStream(record).readObject();
+					assertEquals("x", properties.get("value"));
+				} else {
+					assertEquals("Delete record has a dictionary", 0, record.available());
+				}
+			}
+			assertEquals("Journal has more than two records", journalFile.length(), length);
+		} finally {
+			in.close();
+		}
+		assertTrue("Deleted configuration was loaded", reload().isEmpty());
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	/*
+	 * Replay stops at an incomplete or damaged last record and the journal is then
+	 * compacted, so the records saved afterwards are not appended to the damage.
+	 */
+	public void testTornTailReplay() throws Exception {
+		JournalPersistence persistence = open();
+		persistence.save("a", createProperties("a", "x"));
+		persistence.save("b", createProperties("b", "y"));
+		persistence.close();
+
+		// a crash while the second record was written
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		try {
+			file.setLength(journalFile.length() - 5);
+		} finally {
+			file.close();
+		}
+		Map state = reload();
+		assertEquals("x", state.get("a"));
+		assertFalse("Incomplete record was replayed", state.containsKey("b"));
+		assertEquals("Journal was not compacted", 0, journalFile.length());
+
+		persistence = open();
+		persistence.save("b", createProperties("b", "y"));
+		persistence.close();
+		assertEquals("y", reload().get("b"));
+
+		// a damaged record with a complete length
+		persistence = open();
+		persistence.save("c", createProperties("c", "z"));
+		persistence.close();
+		file = new RandomAccessFile(journalFile, "rw");
+		try {
+			file.seek(file.length() - 1);
+			int last = file.read();
+			file.seek(file.length() - 1);
+			file.write(last ^ 0xff);
+		} finally {
+			file.close();
+		}
+		state = reload();
+		assertEquals("x", state.get("a"));
+		assertEquals("y", state.get("b"));
+		assertFalse("Damaged record was replayed", state.containsKey("c"));
+	}
+
+	/*
+	 * Once the journal is larger than the snapshot and 1 MB the configurations
+	 * are written to a new snapshot and the journal is emptied.
+	 */
+	public void testCompaction() throws Exception {
+		byte[] value = new byte[256 * 1024];
+		JournalPersistence persistence = open();
+		for (int i = 0; i < 8; i++) {
+			value[0] = (byte) i;
+			persistence.save("a", createProperties("a", value));
+		}
+		persistence.delete("b");
+		persistence.close();
+
+		assertTrue("Journal was not compacted: " + journalFile.length(), journalFile.length() < 1024 * 1024);
+		byte[] loaded = (byte[]) reload().get("a");
+		assertNotNull("Configuration was lost by compaction", loaded);
+		assertEquals("Compacted configuration is not the latest", 7, loaded[0]);
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	public void testSaveAfterClose() throws Exception {
+		JournalPersistence persistence = open();
+		persistence.close();
+		try {
+			persistence.save("a", createProperties("a", "x"));
+			fail("Saved to a closed journal");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue("Closed journal was written", reload().isEmpty());
+	}
+}
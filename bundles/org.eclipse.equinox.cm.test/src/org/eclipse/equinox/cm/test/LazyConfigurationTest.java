@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.cm.test;
+
+import java.util.*;
+import junit.framework.TestCase;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/*
+ * With equinox.cm.lazy the saved dictionaries are softly referenced; they must
+ * read the same after they were collected and loaded again from the store.
+ */
+public class LazyConfigurationTest extends TestCase {
+
+	private static final int CONFIGS = 20;
+
+	private ConfigurationAdmin cm;
+	private ServiceReference reference;
+	private final List configs = new ArrayList();
+
+	public LazyConfigurationTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		System.setProperty("equinox.cm.lazy", "true");
+		start();
+	}
+
+	protected void tearDown() throws Exception {
+		for (Iterator it = configs.iterator(); it.hasNext();)
+			cm.getConfiguration((String) it.next()).delete();
+		configs.clear();
+		stop();
+		System.getProperties().remove("equinox.cm.lazy");
+	}
+
+	private void start() throws Exception {
+		Activator.getBundle("org.eclipse.equinox.cm").start();
+		reference = Activator.getBundleContext().getServiceReference(ConfigurationAdmin.class.getName());
+		cm = (ConfigurationAdmin) Activator.getBundleContext().getService(reference);
+	}
+
+	private void stop() throws Exception {
+		Activator.getBundleContext().ungetService(reference);
+		Activator.getBundle("org.eclipse.equinox.cm").stop();
+	}
+
+	/*
+	 * Soft references are cleared before an OutOfMemoryError is thrown.
+	 */
+	private static void releaseSoftReferences() {
+		List chunks = new ArrayList();
+		int size = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+		while (size > 1024) {
+			try {
+				chunks.add(new byte[size]);
+			} catch (OutOfMemoryError e) {
+				size /= 2;
+			}
+		}
+		chunks.clear();
+	}
+
+	private void createConfigurations() throws Exception {
+		for (int i = 0; i < CONFIGS; i++) {
+			Configuration config = cm.getConfiguration("lazy.test." + i, null);
+			configs.add(config.getPid());
+			Dictionary dict = new Hashtable();
+			dict.put("index", new Integer(i));
+			dict.put("name", "config " + i);
+			config.update(dict);
+		}
+	}
+
+	private void checkConfigurations() throws Exception {
+		for (int i = 0; i < CONFIGS; i++) {
+			Dictionary dict = cm.getConfiguration("lazy.test." + i, null).getProperties();
+			assertNotNull("Configuration " + i + " was lost", dict);
+			assertEquals(new Integer(i), dict.get("index"));
+			assertEquals("config " + i, dict.get("name"));
+		}
+	}
+
+	public void testReloadAfterRelease() throws Exception {
+		createConfigurations();
+		releaseSoftReferences();
+		checkConfigurations();
+
+		// the configurations read at startup are released as well
+		stop();
+		start();
+		releaseSoftReferences();
+		checkConfigurations();
+	}
+
+	public void testListAfterRelease() throws Exception {
+		createConfigurations();
+		releaseSoftReferences();
+		// neither clause is indexed, so every dictionary is read again to match it
+		Configuration[] result = cm.listConfigurations("(&(name=config*)(index>=" + (CONFIGS - 5) + "))");
+		assertNotNull(result);
+		assertEquals(5, result.length);
+		for (int i = 0; i < result.length; i++)
+			assertTrue(((Integer) result[i].getProperties().get("index")).intValue() >= CONFIGS - 5);
+	}
+
+	public void testUpdateAndDeleteAfterRelease() throws Exception {
+		createConfigurations();
+		releaseSoftReferences();
+
+		Configuration config = cm.getConfiguration("lazy.test.0", null);
+		Dictionary dict = config.getProperties();
+		dict.put("name", "updated");
+		config.update(dict);
+		releaseSoftReferences();
+		assertEquals("updated", cm.getConfiguration("lazy.test.0", null).getProperties().get("name"));
+
+		configs.remove(config.getPid());
+		config.delete();
+		stop();
+		start();
+		assertNull("Deleted configuration was loaded", cm.listConfigurations("(service.pid=lazy.test.0)"));
+		assertNotNull(cm.getConfiguration("lazy.test.1", null).getProperties());
+	}
+}
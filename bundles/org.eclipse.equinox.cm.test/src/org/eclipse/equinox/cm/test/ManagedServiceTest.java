@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2007, 2010 IBM Corporation and others
+ * Copyright (c) 2007, 2011 IBM Corporation and others
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -10,9 +10,11 @@
  *******************************************************************************/
 package org.eclipse.equinox.cm.test;
 
+import java.io.IOException;
 import java.util.Dictionary;
 import java.util.Properties;
 import junit.framework.TestCase;
+import org.eclipse.equinox.internal.cm.ParallelTaskQueue;
 import org.osgi.framework.*;
 import org.osgi.service.cm.*;
 
@@ -172,4 +174,72 @@ public class ManagedServiceTest extends TestCase {
 		}
 		reg.unregister();
 	}
+
+	/*
+	 * A ManagedService registered while another thread creates and updates its
+	 * configuration must receive the configuration.
+	 */
+	public void testRegisterWhileUpdating() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			final String pid = "test.concurrent." + i;
+			final Dictionary[] received = new Dictionary[1];
+			final IOException[] failure = new IOException[1];
+			ManagedService ms = new ManagedService() {
+
+				public void updated(Dictionary properties) throws ConfigurationException {
+					synchronized (lock) {
+						if (properties != null) {
+							received[0] = properties;
+							lock.notify();
+						}
+					}
+				}
+			};
+
+			Thread updater = new Thread() {
+				public void run() {
+					try {
+						Configuration config = cm.getConfiguration(pid);
+						Properties props = new Properties();
+						props.put("testkey", "testvalue");
+						config.update(props);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			};
+
+			Dictionary dict = new Properties();
+			dict.put(Constants.SERVICE_PID, pid);
+			updater.start();
+			ServiceRegistration reg = Activator.getBundleContext().registerService(ManagedService.class.getName(), ms, dict);
+			try {
+				updater.join();
+				if (failure[0] != null)
+					throw failure[0];
+				synchronized (lock) {
+					if (received[0] == null)
+						lock.wait(5000);
+					assertNotNull("should have updated " + pid, received[0]);
+					assertEquals("testvalue", received[0].get("testkey"));
+				}
+			} finally {
+				reg.unregister();
+				cm.getConfiguration(pid).delete();
+			}
+		}
+	}
+
+	public void testUpdateQueueStatistics() throws Exception {
+		ServiceReference[] refs = Activator.getBundleContext().getServiceReferences(ParallelTaskQueue.class.getName(), "(" + Constants.SERVICE_DESCRIPTION + "=ManagedService Update Queue)");
+		assertNotNull("Update queue is not registered", refs);
+		assertEquals(1, refs.length);
+		ParallelTaskQueue queue = (ParallelTaskQueue) Activator.getBundleContext().getService(refs[0]);
+		try {
+			assertEquals("ManagedService Update Queue", queue.getName());
+			assertEquals(0, queue.getDropCount());
+		} finally {
+			Activator.getBundleContext().ungetService(refs[0]);
+		}
+	}
 }
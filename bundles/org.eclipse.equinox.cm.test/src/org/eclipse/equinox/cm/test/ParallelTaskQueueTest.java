@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.cm.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.eclipse.equinox.internal.cm.ParallelTaskQueue;
+import org.eclipse.equinox.internal.cm.SerializedTaskQueue;
+
+public class ParallelTaskQueueTest extends TestCase {
+
+	private static final int LANES = 4;
+	private static final int TASKS = 200;
+
+	private final Object lock = new Object();
+	private boolean released;
+	private int finishedLanes;
+
+	public ParallelTaskQueueTest(String name) {
+		super(name);
+	}
+
+	private Runnable record(final List order, final int value) {
+		return new Runnable() {
+			public void run() {
+				synchronized (order) {
+					order.add(new Integer(value));
+				}
+			}
+		};
+	}
+
+	private Runnable block() {
+		return new Runnable() {
+			public void run() {
+				synchronized (lock) {
+					while (!released) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		};
+	}
+
+	private Runnable finish() {
+		return new Runnable() {
+			public void run() {
+				synchronized (lock) {
+					finishedLanes++;
+					lock.notifyAll();
+				}
+			}
+		};
+	}
+
+	private void release() {
+		synchronized (lock) {
+			released = true;
+			lock.notifyAll();
+		}
+	}
+
+	private void awaitFinished(int lanes) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		synchronized (lock) {
+			while (finishedLanes < lanes) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0)
+					fail("Only " + finishedLanes + " of " + lanes + " lanes finished");
+				lock.wait(wait);
+			}
+		}
+	}
+
+	private static void assertOrdered(List order, int count) {
+		assertEquals("Tasks are missing", count, order.size());
+		for (int i = 0; i < count; i++)
+			assertEquals("Tasks ran out of order", i, ((Integer) order.get(i)).intValue());
+	}
+
+	/*
+	 * The tasks of each lane run in the order they were queued although the lanes
+	 * run in parallel.
+	 */
+	public void testOrderInLane() throws Exception {
+		ParallelTaskQueue queue = new ParallelTaskQueue("Test Queue", 0, SerializedTaskQueue.POLICY_BLOCK);
+		Object[] lanes = new Object[LANES];
+		List[] orders = new List[LANES];
+		for (int i = 0; i < LANES; i++) {
+			lanes[i] = new Object();
+			orders[i] = new ArrayList();
+		}
+		// interleave the lanes so each of them is busy while the others are queued
+		for (int task = 0; task < TASKS; task++)
+			for (int i = 0; i < LANES; i++)
+				queue.put(lanes[i], null, record(orders[i], task));
+		for (int i = 0; i < LANES; i++)
+			queue.put(lanes[i], null, finish());
+
+		awaitFinished(LANES);
+		for (int i = 0; i < LANES; i++)
+			synchronized (orders[i]) {
+				assertOrdered(orders[i], TASKS);
+			}
+		assertEquals(LANES * (TASKS + 1), queue.getTaskCount());
+	}
+
+	/*
+	 * A blocked task only delays its own lane.
+	 */
+	public void testBlockedLane() throws Exception {
+		ParallelTaskQueue queue = new ParallelTaskQueue("Test Queue", 0, SerializedTaskQueue.POLICY_BLOCK);
+		Object blockedLane = new Object();
+		Object lane = new Object();
+		List blockedOrder = new ArrayList();
+		List order = new ArrayList();
+		try {
+			queue.put(blockedLane, null, block());
+			for (int task = 0; task < TASKS; task++) {
+				queue.put(blockedLane, null, record(blockedOrder, task));
+				queue.put(lane, null, record(order, task));
+			}
+			queue.put(lane, null, finish());
+			awaitFinished(1);
+			synchronized (order) {
+				assertOrdered(order, TASKS);
+			}
+			synchronized (blockedOrder) {
+				assertTrue("Task of a blocked lane ran", blockedOrder.isEmpty());
+			}
+		} finally {
+			release();
+		}
+		queue.put(blockedLane, null, finish());
+		awaitFinished(2);
+		synchronized (blockedOrder) {
+			assertOrdered(blockedOrder, TASKS);
+		}
+	}
+
+	/*
+	 * A queued task is replaced by a later task with the same key; the tasks which
+	 * run keep their order and the last one always runs.
+	 */
+	public void testCoalesce() throws Exception {
+		ParallelTaskQueue queue = new ParallelTaskQueue("Test Queue", 0, SerializedTaskQueue.POLICY_BLOCK);
+		Object lane = new Object();
+		Object key = new Object();
+		List order = new ArrayList();
+		try {
+			queue.put(lane, null, block());
+			for (int task = 0; task < TASKS; task++)
+				queue.put(lane, key, record(order, task));
+		} finally {
+			release();
+		}
+		queue.put(lane, null, finish());
+		awaitFinished(1);
+		synchronized (order) {
+			assertEquals("Queued tasks were not replaced", 1, order.size());
+			assertEquals("Last task did not run", TASKS - 1, ((Integer) order.get(0)).intValue());
+		}
+		assertEquals(TASKS - 1, queue.getCoalesceCount());
+		assertEquals(0, queue.getDropCount());
+	}
+
+	/*
+	 * The queue records how long the tasks waited before they ran.
+	 */
+	public void testDelay() throws Exception {
+		ParallelTaskQueue queue = new ParallelTaskQueue("Test Queue", 0, SerializedTaskQueue.POLICY_BLOCK);
+		Object lane = new Object();
+		List order = new ArrayList();
+		try {
+			queue.put(lane, null, block());
+			queue.put(lane, null, record(order, 0));
+			Thread.sleep(100);
+		} finally {
+			release();
+		}
+		queue.put(lane, null, finish());
+		awaitFinished(1);
+		assertEquals(3, queue.getTaskCount());
+		assertTrue("Delay was not recorded", queue.getMaxDelay() >= 100);
+		assertTrue(queue.getMeanDelay() <= queue.getMaxDelay());
+		assertEquals(1, queue.getLaneCount());
+	}
+
+	/*
+	 * The tasks dropped from a full lane are counted by the queue.
+	 */
+	public void testDropCount() throws Exception {
+		ParallelTaskQueue queue = new ParallelTaskQueue("Test Queue", 1, SerializedTaskQueue.POLICY_DROP_NEWEST);
+		Object lane = new Object();
+		List order = new ArrayList();
+		try {
+			queue.put(lane, null, block());
+			// at most one task fits while the lane is blocked
+			for (int task = 0; task < TASKS; task++)
+				queue.put(lane, null, record(order, task));
+		} finally {
+			release();
+		}
+		queue.put(new Object(), null, finish());
+		awaitFinished(1);
+		assertTrue("Dropped tasks were not counted", queue.getDropCount() >= TASKS - 2);
+		assertEquals(0, queue.getCoalesceCount());
+	}
+}
@@ -1,27 +1,37 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2009 IBM Corporation and others
- * All rights reserved. This program and the accompanying materials are made
- * available under the terms of the Eclipse Public License v1.0 which
- * accompanies this distribution, and is available at
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
  * http://www.eclipse.org/legal/epl-v10.html
- ******************************************************************************/
-package org.eclipse.equinox.log.internal;
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.internal.cm;
 
+/**
+ * BasicReadWriteLock lets any number of readers or one writer hold the lock.
+ * Waiting writers take precedence over new readers. The lock is not reentrant.
+ */
 public class BasicReadWriteLock {
 	private int currentReaders = 0;
 	private int writersWaiting = 0;
 	private boolean writing = false;
 
 	public synchronized void readLock() {
+		boolean interrupted = false;
 		while (writing || writersWaiting != 0) {
 			try {
 				wait();
 			} catch (InterruptedException e) {
-				// reset interrupted state but keep waiting
-				Thread.currentThread().interrupt();
+				// keep waiting and reset interrupted state once the lock is held
+				interrupted = true;
 			}
 		}
 		currentReaders++;
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	public synchronized void readUnlock() {
@@ -30,17 +40,20 @@ public class BasicReadWriteLock {
 	}
 
 	public synchronized void writeLock() {
+		boolean interrupted = false;
 		writersWaiting++;
 		while (writing || currentReaders != 0) {
 			try {
 				wait();
 			} catch (InterruptedException e) {
-				// reset interrupted state but keep waiting
-				Thread.currentThread().interrupt();
+				// keep waiting and reset interrupted state once the lock is held
+				interrupted = true;
 			}
 		}
 		writersWaiting--;
 		writing = true;
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	public synchronized void writeUnlock() {
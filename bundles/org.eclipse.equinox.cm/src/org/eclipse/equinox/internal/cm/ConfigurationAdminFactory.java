@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2008 Cognos Incorporated, IBM Corporation and others.
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -12,7 +12,7 @@
 package org.eclipse.equinox.internal.cm;
 
 import java.security.Permission;
-import java.util.Dictionary;
+import java.util.*;
 import org.osgi.framework.*;
 import org.osgi.service.cm.ConfigurationPermission;
 import org.osgi.service.log.LogService;
@@ -24,6 +24,9 @@ import org.osgi.service.log.LogService;
 
 public class ConfigurationAdminFactory implements ServiceFactory, BundleListener {
 
+	static final String PROP_QUEUE_CAPACITY = "equinox.cm.queue.capacity"; //$NON-NLS-1$
+	static final String PROP_QUEUE_POLICY = "equinox.cm.queue.policy"; //$NON-NLS-1$
+
 	private final Permission configurationPermission = new ConfigurationPermission("*", ConfigurationPermission.CONFIGURE); //$NON-NLS-1$
 	private final EventDispatcher eventDispatcher;
 	private final PluginManager pluginManager;
@@ -31,8 +34,12 @@ public class ConfigurationAdminFactory implements ServiceFactory, BundleListener
 	private final ManagedServiceTracker managedServiceTracker;
 	private final ManagedServiceFactoryTracker managedServiceFactoryTracker;
 	private final ConfigurationStore configurationStore;
+	private final BundleContext context;
+	// the registrations of the task queues which make their statistics available
+	private final List queueRegistrations = new ArrayList();
 
 	public ConfigurationAdminFactory(BundleContext context, LogService log) {
+		this.context = context;
 		this.log = log;
 		configurationStore = new ConfigurationStore(this, context);
 		eventDispatcher = new EventDispatcher(context, log);
@@ -41,18 +48,66 @@ public class ConfigurationAdminFactory implements ServiceFactory, BundleListener
 		managedServiceFactoryTracker = new ManagedServiceFactoryTracker(this, configurationStore, context);
 	}
 
+	/**
+	 * Create a task queue bounded by the equinox.cm.queue.capacity and
+	 * equinox.cm.queue.policy framework properties. By default queues are unbounded.
+	 */
+	static SerializedTaskQueue createTaskQueue(BundleContext context, String queueName) {
+		return new SerializedTaskQueue(queueName, getQueueCapacity(context), getQueuePolicy(context));
+	}
+
+	/**
+	 * Create a task queue with a lane per target. The lanes are bounded like the queues
+	 * of {@link #createTaskQueue(BundleContext, String)}.
+	 */
+	static ParallelTaskQueue createParallelTaskQueue(BundleContext context, String queueName) {
+		return new ParallelTaskQueue(queueName, getQueueCapacity(context), getQueuePolicy(context));
+	}
+
+	private static int getQueueCapacity(BundleContext context) {
+		String prop = context.getProperty(PROP_QUEUE_CAPACITY);
+		if (prop != null) {
+			try {
+				return Math.max(0, Integer.parseInt(prop.trim()));
+			} catch (NumberFormatException e) {/*ignore*/
+			}
+		}
+		return 0;
+	}
+
+	private static int getQueuePolicy(BundleContext context) {
+		return SerializedTaskQueue.parsePolicy(context.getProperty(PROP_QUEUE_POLICY), SerializedTaskQueue.POLICY_BLOCK);
+	}
+
 	void start() {
 		eventDispatcher.start();
 		pluginManager.start();
 		managedServiceTracker.open();
 		managedServiceFactoryTracker.open();
+		registerQueue(SerializedTaskQueue.class.getName(), eventDispatcher.getQueue().getName(), eventDispatcher.getQueue());
+		registerQueue(ParallelTaskQueue.class.getName(), managedServiceTracker.getQueue().getName(), managedServiceTracker.getQueue());
+		registerQueue(ParallelTaskQueue.class.getName(), managedServiceFactoryTracker.getQueue().getName(), managedServiceFactoryTracker.getQueue());
+	}
+
+	/*
+	 * The queues are registered under their own class names with the queue name as
+	 * description so that their statistics can be read.
+	 */
+	private void registerQueue(String clazz, String queueName, Object queue) {
+		Dictionary properties = new Hashtable();
+		properties.put(Constants.SERVICE_DESCRIPTION, queueName);
+		queueRegistrations.add(context.registerService(clazz, queue, properties));
 	}
 
 	void stop() {
+		for (Iterator it = queueRegistrations.iterator(); it.hasNext();)
+			((ServiceRegistration) it.next()).unregister();
+		queueRegistrations.clear();
 		managedServiceTracker.close();
 		managedServiceFactoryTracker.close();
 		eventDispatcher.stop();
 		pluginManager.stop();
+		configurationStore.close();
 	}
 
 	public Object getService(Bundle bundle, ServiceRegistration registration) {
@@ -76,6 +131,10 @@ public class ConfigurationAdminFactory implements ServiceFactory, BundleListener
 			sm.checkPermission(configurationPermission);
 	}
 
+	LogService getLog() {
+		return log;
+	}
+
 	void log(int level, String message) {
 		log.log(level, message);
 	}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2010 Cognos Incorporated, IBM Corporation and others.
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -12,16 +12,23 @@
 package org.eclipse.equinox.internal.cm;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Array;
 import java.util.*;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
 import org.osgi.service.cm.*;
+import org.osgi.service.log.LogService;
 
 /**
  * ConfigurationImpl provides the Configuration implementation.
  * The lock and unlock methods are used for synchronization. Operations outside of
  * ConfigurationImpl that expect to have control of the lock should call checkLocked
+ * <p>
+ * When the store is lazy, a saved dictionary is only softly referenced and is read
+ * again from the store when it is needed after being collected. This trades I/O for
+ * memory: every dictionary is still read once at startup to build the index, and listing
+ * configurations with a filter the index cannot narrow reads back every collected dictionary.
  */
 class ConfigurationImpl implements Configuration {
 
@@ -31,7 +38,11 @@ class ConfigurationImpl implements Configuration {
 	private String bundleLocation;
 	private final String factoryPid;
 	private final String pid;
+	/** @GuardedBy this*/
 	private ConfigurationDictionary dictionary;
+	// the saved dictionary when the store is lazy and dictionary is null
+	/** @GuardedBy this*/
+	private SoftReference storedDictionary;
 	/** @GuardedBy this*/
 	private boolean deleted = false;
 	/** @GuardedBy this*/
@@ -56,6 +67,7 @@ class ConfigurationImpl implements Configuration {
 		factoryPid = (String) dictionary.get(ConfigurationAdmin.SERVICE_FACTORYPID);
 		bundleLocation = (String) dictionary.get(ConfigurationAdmin.SERVICE_BUNDLELOCATION);
 		updateDictionary(dictionary);
+		releaseDictionary();
 	}
 
 	protected synchronized void lock() {
@@ -101,8 +113,11 @@ class ConfigurationImpl implements Configuration {
 	protected boolean bind(Bundle bundle) {
 		try {
 			lock();
-			if (boundBundle == null && (bundleLocation == null || bundleLocation.equals(bundle.getLocation())))
+			if (boundBundle == null && (bundleLocation == null || bundleLocation.equals(bundle.getLocation()))) {
 				boundBundle = bundle;
+				if (bundleLocation == null)
+					configurationStore.reindex(this);
+			}
 			return (boundBundle == bundle);
 		} finally {
 			unlock();
@@ -112,8 +127,11 @@ class ConfigurationImpl implements Configuration {
 	protected void unbind(Bundle bundle) {
 		try {
 			lock();
-			if (boundBundle == bundle)
+			if (boundBundle == bundle) {
 				boundBundle = null;
+				if (bundleLocation == null)
+					configurationStore.reindex(this);
+			}
 		} finally {
 			unlock();
 		}
@@ -191,10 +209,17 @@ class ConfigurationImpl implements Configuration {
 		try {
 			lock();
 			checkDeleted();
-			if (dictionary == null)
+			ConfigurationDictionary current;
+			try {
+				current = getDictionary();
+			} catch (IOException e) {
+				configurationAdminFactory.log(LogService.LOG_ERROR, "{Configuration Admin - pid = " + pid + "} could not be restored.", e); //$NON-NLS-1$ //$NON-NLS-2$
+				return null;
+			}
+			if (current == null)
 				return null;
 
-			Dictionary copy = dictionary.copy();
+			Dictionary copy = current.copy();
 			copy.put(Constants.SERVICE_PID, pid);
 			if (factoryPid != null)
 				copy.put(ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid);
@@ -229,6 +254,7 @@ class ConfigurationImpl implements Configuration {
 			configurationAdminFactory.checkConfigurationPermission();
 			this.bundleLocation = bundleLocation;
 			boundBundle = null; // always reset the boundBundle when setBundleLocation is called
+			configurationStore.reindex(this);
 		} finally {
 			unlock();
 		}
@@ -238,9 +264,11 @@ class ConfigurationImpl implements Configuration {
 		try {
 			lock();
 			checkDeleted();
-			if (dictionary == null)
+			if (getDictionary() == null)
 				dictionary = new ConfigurationDictionary();
+			configurationStore.reindex(this);
 			configurationStore.saveConfiguration(pid, this);
+			releaseDictionary();
 			configurationAdminFactory.notifyConfigurationUpdated(this, factoryPid != null);
 		} finally {
 			unlock();
@@ -252,7 +280,9 @@ class ConfigurationImpl implements Configuration {
 			lock();
 			checkDeleted();
 			updateDictionary(properties);
+			configurationStore.reindex(this);
 			configurationStore.saveConfiguration(pid, this);
+			releaseDictionary();
 			configurationAdminFactory.notifyConfigurationUpdated(this, factoryPid != null);
 			configurationAdminFactory.dispatchEvent(ConfigurationEvent.CM_UPDATED, factoryPid, pid);
 		} finally {
@@ -260,7 +290,42 @@ class ConfigurationImpl implements Configuration {
 		}
 	}
 
+	/*
+	 * @GuardedBy this
+	 */
+	private ConfigurationDictionary getDictionary() throws IOException {
+		if (dictionary != null || storedDictionary == null)
+			return dictionary;
+
+		ConfigurationDictionary stored = (ConfigurationDictionary) storedDictionary.get();
+		if (stored == null) {
+			Dictionary properties = configurationStore.loadConfiguration(pid);
+			if (properties == null)
+				throw new IOException("Configuration not found in the store."); //$NON-NLS-1$
+			stored = copyDictionary(properties);
+			storedDictionary = new SoftReference(stored);
+		}
+		return stored;
+	}
+
+	/**
+	 * Let the collector reclaim a saved dictionary if the store can read it again.
+	 * 
+	 * @GuardedBy this
+	 */
+	private void releaseDictionary() {
+		if (dictionary != null && configurationStore.isLazy()) {
+			storedDictionary = new SoftReference(dictionary);
+			dictionary = null;
+		}
+	}
+
 	private void updateDictionary(Dictionary properties) {
+		dictionary = copyDictionary(properties);
+		storedDictionary = null;
+	}
+
+	private static ConfigurationDictionary copyDictionary(Dictionary properties) {
 		ConfigurationDictionary newDictionary = new ConfigurationDictionary();
 		Enumeration keys = properties.keys();
 		while (keys.hasMoreElements()) {
@@ -282,8 +347,7 @@ class ConfigurationImpl implements Configuration {
 		newDictionary.remove(Constants.SERVICE_PID);
 		newDictionary.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
 		newDictionary.remove(ConfigurationAdmin.SERVICE_BUNDLELOCATION);
-
-		dictionary = newDictionary;
+		return newDictionary;
 	}
 
 	public boolean equals(Object obj) {
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.internal.cm;
+
+import java.util.*;
+
+/**
+ * ConfigurationIndex maps the values of selected configuration properties to the
+ * configurations which have them, so a filter can be matched against a few candidate
+ * configurations instead of all of them.
+ * <p>
+ * A filter is planned by looking at its top level clauses. Equality clauses without
+ * wildcards and presence clauses on an indexed property each select a set of
+ * configurations which contains every match; the smallest set becomes the candidates.
+ * The filter must still be matched against each candidate. Only string values are
+ * indexed; a configuration with any other value for an indexed property is a candidate
+ * for every equality clause on that property.
+ * <p>
+ * Property keys are case insensitive. This class is not thread safe.
+ */
+class ConfigurationIndex {
+	private static final Object[] NO_POSTINGS = new Object[0];
+
+	// Map of lower case key -> PropertyIndex
+	private final Map propertyIndexes = new HashMap();
+	// Map of ConfigurationImpl -> Object[] of PropertyIndex, value pairs; a null value stands for the unindexed set
+	private final Map postings = new HashMap();
+
+	/**
+	 * @param keys the keys of the indexed properties
+	 */
+	public ConfigurationIndex(String[] keys) {
+		for (int i = 0; i < keys.length; i++)
+			propertyIndexes.put(keys[i].toLowerCase(), new PropertyIndex());
+	}
+
+	/**
+	 * Index a configuration, replacing any previous entries for it.
+	 *
+	 * @param config the configuration
+	 * @param properties the properties of the configuration; null to only remove the configuration
+	 */
+	public void add(ConfigurationImpl config, Dictionary properties) {
+		remove(config);
+		if (properties == null)
+			return;
+
+		List configPostings = new ArrayList();
+		for (Enumeration keys = properties.keys(); keys.hasMoreElements();) {
+			Object key = keys.nextElement();
+			if (!(key instanceof String))
+				continue;
+			PropertyIndex index = (PropertyIndex) propertyIndexes.get(((String) key).toLowerCase());
+			if (index != null)
+				index.add(config, properties.get(key), configPostings);
+		}
+		if (!configPostings.isEmpty())
+			postings.put(config, configPostings.toArray());
+	}
+
+	/**
+	 * Remove the entries of a configuration.
+	 *
+	 * @param config the configuration
+	 */
+	public void remove(ConfigurationImpl config) {
+		Object[] configPostings = (Object[]) postings.remove(config);
+		if (configPostings == null)
+			configPostings = NO_POSTINGS;
+		for (int i = 0; i < configPostings.length; i += 2)
+			((PropertyIndex) configPostings[i]).remove(config, configPostings[i + 1]);
+	}
+
+	/**
+	 * Return configurations which include all configurations matching a filter.
+	 *
+	 * @param filter the filter string
+	 * @return the candidates, or null if the index cannot narrow down the configurations
+	 */
+	public Collection getCandidates(String filter) {
+		List clauses = new ArrayList();
+		if (!parseClauses(filter, clauses))
+			return null;
+
+		Collection best = null;
+		int bestSize = Integer.MAX_VALUE;
+		for (Iterator it = clauses.iterator(); it.hasNext() && bestSize > 0;) {
+			String[] clause = (String[]) it.next();
+			PropertyIndex index = (PropertyIndex) propertyIndexes.get(clause[0].toLowerCase());
+			if (index == null)
+				continue;
+			int size = index.size(clause[1]);
+			if (size < bestSize) {
+				bestSize = size;
+				best = index.get(clause[1]);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Collect the equality and presence clauses at the top level of a filter as
+	 * key, value pairs; the value is null for presence.
+	 *
+	 * @return false if the filter cannot be parsed
+	 */
+	static boolean parseClauses(String filter, List clauses) {
+		int length = filter.length();
+		if (length < 3 || filter.charAt(0) != '(' || filter.charAt(length - 1) != ')')
+			return false;
+		if (filter.charAt(1) != '&')
+			return parseClause(filter, 1, length - 1, clauses);
+
+		int start = 2;
+		while (start < length - 1) {
+			if (filter.charAt(start) != '(')
+				return false;
+			int end = findClose(filter, start);
+			if (end < 0)
+				return false;
+			// clauses which are not simple are ignored; matching the filter handles them
+			parseClause(filter, start + 1, end, clauses);
+			start = end + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index of the parenthesis closing the one at start, or -1
+	 */
+	private static int findClose(String filter, int start) {
+		int depth = 0;
+		for (int i = start; i < filter.length(); i++) {
+			char c = filter.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '(')
+				depth++;
+			else if (c == ')' && --depth == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean parseClause(String filter, int start, int end, List clauses) {
+		int equals = filter.indexOf('=', start);
+		if (equals < 0 || equals >= end)
+			return false;
+		String key = filter.substring(start, equals).trim();
+		if (key.length() == 0 || "&|!()~<>".indexOf(key.charAt(0)) >= 0) //$NON-NLS-1$
+			return false;
+		char last = key.charAt(key.length() - 1);
+		if (last == '~' || last == '<' || last == '>')
+			return false;
+
+		if (equals + 2 == end && filter.charAt(equals + 1) == '*') {
+			clauses.add(new String[] {key, null});
+			return true;
+		}
+
+		StringBuffer value = new StringBuffer(end - equals - 1);
+		for (int i = equals + 1; i < end; i++) {
+			char c = filter.charAt(i);
+			if (c == '*')
+				return false; // substring
+			if (c == '\\' && i + 1 < end)
+				c = filter.charAt(++i);
+			value.append(c);
+		}
+		// leave values with surrounding white space to the filter
+		if (value.length() == 0 || Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1)))
+			return false;
+		clauses.add(new String[] {key, value.toString()});
+		return true;
+	}
+
+	/**
+	 * The configurations with an indexed property.
+	 */
+	private static class PropertyIndex {
+		// Map of String value -> Set of ConfigurationImpl
+		private final Map values = new HashMap();
+		// the configurations with values which are not strings
+		private final Set unindexed = new HashSet();
+		// the configurations with the property
+		private final Set present = new HashSet();
+
+		void add(ConfigurationImpl config, Object value, List configPostings) {
+			present.add(config);
+			if (value instanceof String) {
+				addValue(config, value, configPostings);
+				return;
+			}
+			Collection collection = null;
+			if (value instanceof String[])
+				collection = Arrays.asList((String[]) value);
+			else if (value instanceof Collection)
+				collection = (Collection) value;
+			if (collection != null) {
+				for (Iterator it = collection.iterator(); it.hasNext();) {
+					Object element = it.next();
+					if (!(element instanceof String)) {
+						collection = null;
+						break;
+					}
+				}
+			}
+			if (collection == null) {
+				unindexed.add(config);
+				configPostings.add(this);
+				configPostings.add(null);
+				return;
+			}
+			for (Iterator it = collection.iterator(); it.hasNext();)
+				addValue(config, it.next(), configPostings);
+			if (collection.isEmpty()) {
+				// only present
+				configPostings.add(this);
+				configPostings.add(null);
+			}
+		}
+
+		private void addValue(ConfigurationImpl config, Object value, List configPostings) {
+			Set configs = (Set) values.get(value);
+			if (configs == null) {
+				configs = new HashSet();
+				values.put(value, configs);
+			}
+			if (configs.add(config)) {
+				configPostings.add(this);
+				configPostings.add(value);
+			}
+		}
+
+		void remove(ConfigurationImpl config, Object value) {
+			present.remove(config);
+			if (value == null) {
+				unindexed.remove(config);
+				return;
+			}
+			Set configs = (Set) values.get(value);
+			if (configs != null) {
+				configs.remove(config);
+				if (configs.isEmpty())
+					values.remove(value);
+			}
+		}
+
+		int size(String value) {
+			if (value == null)
+				return present.size();
+			Set configs = (Set) values.get(value);
+			return (configs == null ? 0 : configs.size()) + unindexed.size();
+		}
+
+		Collection get(String value) {
+			if (value == null)
+				return present;
+			Set configs = (Set) values.get(value);
+			if (unindexed.isEmpty())
+				return configs == null ? Collections.EMPTY_SET : configs;
+			if (configs == null)
+				return unindexed;
+			List result = new ArrayList(configs.size() + unindexed.size());
+			result.addAll(configs);
+			result.addAll(unindexed);
+			return result;
+		}
+	}
+}
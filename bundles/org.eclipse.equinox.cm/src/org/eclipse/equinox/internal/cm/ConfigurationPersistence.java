@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.internal.cm;
+
+import java.io.IOException;
+import java.util.Dictionary;
+
+/**
+ * ConfigurationPersistence stores the configuration dictionaries of a ConfigurationStore.
+ * Each dictionary includes the service.pid property which identifies it.
+ */
+interface ConfigurationPersistence {
+
+	/**
+	 * Read the stored configurations. Configurations which cannot be read are logged and discarded.
+	 * 
+	 * @return the stored configuration dictionaries
+	 */
+	Dictionary[] load();
+
+	/**
+	 * Read a stored configuration.
+	 * 
+	 * @return the configuration dictionary or null if none is stored for the pid
+	 */
+	Dictionary load(String pid) throws IOException;
+
+	/**
+	 * Store a configuration, replacing any stored configuration with the same pid.
+	 * The configuration is on disk when this method returns.
+	 */
+	void save(String pid, Dictionary properties) throws IOException;
+
+	/**
+	 * Remove a stored configuration.
+	 */
+	void delete(String pid);
+
+	/**
+	 * Release the resources of the store. The store is not used afterwards.
+	 */
+	void close();
+}
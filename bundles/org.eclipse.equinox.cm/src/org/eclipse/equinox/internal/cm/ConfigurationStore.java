@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2008 Cognos Incorporated, IBM Corporation and others.
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -14,89 +14,150 @@ package org.eclipse.equinox.internal.cm;
 import java.io.*;
 import java.security.*;
 import java.util.*;
-import org.eclipse.equinox.internal.cm.reliablefile.*;
 import org.osgi.framework.*;
-import org.osgi.service.log.LogService;
+import org.osgi.service.cm.ConfigurationAdmin;
 
 /**
- * ConfigurationStore manages all active configurations along with persistence. The current
- * implementation uses a filestore and serialization of the configuration dictionaries to files
- * identified by their pid. Persistence details are in the constructor, saveConfiguration, and
- * deleteConfiguration and can be factored out separately if required.
+ * ConfigurationStore manages all active configurations along with persistence. The configuration
+ * dictionaries are persisted by a {@link ConfigurationPersistence}. By default each dictionary is
+ * serialized to a file identified by its pid; setting the equinox.cm.store framework property
+ * to journal keeps them in a snapshot and an append-only journal instead.
+ * <p>
+ * The configurations are guarded by a read/write lock. It is never held while a configuration
+ * is locked by the store, but a configuration holding its own lock may take it to update the
+ * {@link ConfigurationIndex} used to list configurations. Besides the service.pid,
+ * service.factoryPid and service.bundleLocation properties, the properties named in the
+ * comma separated equinox.cm.index.keys framework property are indexed.
+ * <p>
+ * Configurations are only created while holding the monitor of the store. The managed service
+ * trackers hold it while they look up the configuration of a service and track the service, so
+ * a service registered while its configuration is created and updated receives the update.
+ * <p>
+ * Setting the equinox.cm.lazy framework property to true with the default store keeps only
+ * the configurations and their index resident; the dictionaries are softly referenced and
+ * read again from their files when needed. This only saves memory while the dictionaries are
+ * rarely used: startup still reads every pid file to build the index, and listing configurations
+ * with a filter the index cannot narrow reads every collected dictionary again. The journal store
+ * does not support this.
  */
 class ConfigurationStore {
 
+	static final String PROP_STORE = "equinox.cm.store"; //$NON-NLS-1$
+	static final String PROP_INDEX_KEYS = "equinox.cm.index.keys"; //$NON-NLS-1$
+	static final String PROP_LAZY = "equinox.cm.lazy"; //$NON-NLS-1$
+	private static final String STORE_JOURNAL = "journal"; //$NON-NLS-1$
+
 	private final ConfigurationAdminFactory configurationAdminFactory;
 	private static final String STORE_DIR = "store"; //$NON-NLS-1$
-	private static final String PID_EXT = ".pid"; //$NON-NLS-1$
+	private static final String JOURNAL_DIR = "journal"; //$NON-NLS-1$
+	private final BasicReadWriteLock lock = new BasicReadWriteLock();
+	/* @GuardedBy lock */
 	private final Map configurations = new HashMap();
+	// Map of factory pid -> Set of ConfigurationImpl
+	/* @GuardedBy lock */
+	private final Map factoryConfigurations = new HashMap();
+	/* @GuardedBy lock */
+	private final ConfigurationIndex index;
+	/* @GuardedBy lock */
 	private int createdPidCount = 0;
-	private final File store;
+	// Map of pid -> Integer number of removals of the pid which are not yet persisted
+	/* @GuardedBy deletions */
+	private final Map deletions = new HashMap();
+	private final ConfigurationPersistence persistence;
+	private final boolean lazy;
 
 	public ConfigurationStore(ConfigurationAdminFactory configurationAdminFactory, BundleContext context) {
 		this.configurationAdminFactory = configurationAdminFactory;
-		store = context.getDataFile(STORE_DIR);
-		if (store == null)
+		index = new ConfigurationIndex(getIndexKeys(context));
+		File store = context.getDataFile(STORE_DIR);
+		if (store == null) {
+			persistence = null;
+			lazy = false;
 			return; // no persistent store
+		}
 
-		store.mkdir();
-		File[] configurationFiles = store.listFiles();
-		for (int i = 0; i < configurationFiles.length; ++i) {
-			String configurationFileName = configurationFiles[i].getName();
-			if (!configurationFileName.endsWith(PID_EXT))
-				continue;
+		Dictionary[] dictionaries;
+		PidFilePersistence pidFilePersistence = new PidFilePersistence(configurationAdminFactory, store);
+		String storeType = context.getProperty(PROP_STORE);
+		if (storeType != null && STORE_JOURNAL.equalsIgnoreCase(storeType.trim())) {
+			JournalPersistence journalPersistence = new JournalPersistence(configurationAdminFactory.getLog(), context.getDataFile(JOURNAL_DIR));
+			// the first time the journal is used it takes over the configurations of the pid files
+			dictionaries = journalPersistence.load(pidFilePersistence);
+			persistence = journalPersistence;
+			lazy = false;
+		} else {
+			dictionaries = pidFilePersistence.load();
+			persistence = pidFilePersistence;
+			lazy = Boolean.valueOf(context.getProperty(PROP_LAZY)).booleanValue();
+		}
+		for (int i = 0; i < dictionaries.length; ++i) {
+			ConfigurationImpl config = new ConfigurationImpl(configurationAdminFactory, this, dictionaries[i]);
+			addConfiguration(config, config.getPid(false), config.getFactoryPid(false));
+			index.add(config, config.getAllProperties());
+		}
+	}
 
-			InputStream ris = null;
-			ObjectInputStream ois = null;
-			boolean deleteFile = false;
-			try {
-				ris = new ReliableFileInputStream(configurationFiles[i]);
-				ois = new ObjectInputStream(ris);
-				Dictionary dictionary = (Dictionary) ois.readObject();
-				ConfigurationImpl config = new ConfigurationImpl(configurationAdminFactory, this, dictionary);
-				configurations.put(config.getPid(), config);
-			} catch (IOException e) {
-				String message = e.getMessage();
-				String pid = configurationFileName.substring(0, configurationFileName.length() - 4);
-				String errorMessage = "{Configuration Admin - pid = " + pid + "} could not be restored." + ((message == null) ? "" : " " + message); //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-				configurationAdminFactory.log(LogService.LOG_ERROR, errorMessage);
-				deleteFile = true;
-			} catch (ClassNotFoundException e) {
-				configurationAdminFactory.log(LogService.LOG_ERROR, e.getMessage());
-			} finally {
-				if (ois != null) {
-					try {
-						ois.close();
-					} catch (IOException e) {
-						// ignore 
-					}
-				}
-				if (ris != null) {
-					try {
-						ris.close();
-					} catch (IOException e) {
-						// ignore 
-					}
-				}
+	private static String[] getIndexKeys(BundleContext context) {
+		List keys = new ArrayList();
+		keys.add(Constants.SERVICE_PID);
+		keys.add(ConfigurationAdmin.SERVICE_FACTORYPID);
+		keys.add(ConfigurationAdmin.SERVICE_BUNDLELOCATION);
+		String prop = context.getProperty(PROP_INDEX_KEYS);
+		if (prop != null) {
+			StringTokenizer tokens = new StringTokenizer(prop, ","); //$NON-NLS-1$
+			while (tokens.hasMoreTokens()) {
+				String key = tokens.nextToken().trim();
+				if (key.length() > 0)
+					keys.add(key);
 			}
-			if (deleteFile) {
-				ReliableFile.delete(configurationFiles[i]);
-				configurationFiles[i].delete();
+		}
+		return (String[]) keys.toArray(new String[keys.size()]);
+	}
+
+	/*
+	 * @GuardedBy lock
+	 */
+	private void addConfiguration(ConfigurationImpl config, String pid, String factoryPid) {
+		configurations.put(pid, config);
+		if (factoryPid != null) {
+			Set configs = (Set) factoryConfigurations.get(factoryPid);
+			if (configs == null) {
+				configs = new HashSet();
+				factoryConfigurations.put(factoryPid, configs);
 			}
+			configs.add(config);
+		}
+	}
+
+	/**
+	 * Update the index entries of a configuration after its properties or location changed.
+	 * The configuration must be locked by the caller.
+	 */
+	void reindex(ConfigurationImpl config) {
+		config.checkLocked();
+		Dictionary properties = config.getAllProperties();
+		String pid = config.getPid(false);
+		lock.writeLock();
+		try {
+			// a deleted configuration must not be indexed again
+			if (configurations.get(pid) == config)
+				index.add(config, properties);
+		} finally {
+			lock.writeUnlock();
 		}
 	}
 
-	public void saveConfiguration(String pid, ConfigurationImpl config) throws IOException {
-		if (store == null)
+	public void saveConfiguration(final String pid, ConfigurationImpl config) throws IOException {
+		if (persistence == null)
 			return; // no persistent store
 
 		config.checkLocked();
-		final File configFile = new File(store, pid + PID_EXT);
 		final Dictionary configProperties = config.getAllProperties();
+		awaitDeletion(pid);
 		try {
 			AccessController.doPrivileged(new PrivilegedExceptionAction() {
 				public Object run() throws Exception {
-					writeConfigurationFile(configFile, configProperties);
+					persistence.save(pid, configProperties);
 					return null;
 				}
 			});
@@ -105,97 +166,191 @@ class ConfigurationStore {
 		}
 	}
 
-	void writeConfigurationFile(File configFile, Dictionary configProperties) throws IOException {
-		OutputStream ros = null;
-		ObjectOutputStream oos = null;
+	public void removeConfiguration(final String pid) {
+		ConfigurationImpl config = findConfiguration(pid);
+		if (config == null)
+			return;
+		// the configuration locks itself; get the factory pid before taking the store lock
+		String factoryPid = config.getFactoryPid(false);
+		lock.writeLock();
 		try {
-			configFile.createNewFile();
-			ros = new ReliableFileOutputStream(configFile);
-			oos = new ObjectOutputStream(ros);
-			oos.writeObject(configProperties);
+			if (configurations.get(pid) != config)
+				return;
+			configurations.remove(pid);
+			index.remove(config);
+			if (factoryPid != null) {
+				Set configs = (Set) factoryConfigurations.get(factoryPid);
+				configs.remove(config);
+				if (configs.isEmpty())
+					factoryConfigurations.remove(factoryPid);
+			}
+			if (persistence == null)
+				return; // no persistent store
+			// a new configuration with the pid is not saved until the deletion is persisted
+			synchronized (deletions) {
+				Integer count = (Integer) deletions.get(pid);
+				deletions.put(pid, new Integer(count == null ? 1 : count.intValue() + 1));
+			}
 		} finally {
-			if (oos != null) {
-				try {
-					oos.close();
-				} catch (IOException e) {
-					// ignore 
+			lock.writeUnlock();
+		}
+
+		// the persistent store may sync; do not hold the lock
+		try {
+			AccessController.doPrivileged(new PrivilegedAction() {
+				public Object run() {
+					persistence.delete(pid);
+					return null;
 				}
+			});
+		} finally {
+			synchronized (deletions) {
+				int count = ((Integer) deletions.remove(pid)).intValue() - 1;
+				if (count > 0)
+					deletions.put(pid, new Integer(count));
+				deletions.notifyAll();
 			}
-			if (ros != null) {
+		}
+	}
+
+	/**
+	 * Wait until the removals of a pid are persisted.
+	 */
+	private void awaitDeletion(String pid) {
+		boolean interrupted = false;
+		synchronized (deletions) {
+			while (deletions.containsKey(pid)) {
 				try {
-					ros.close();
-				} catch (IOException e) {
-					// ignore 
+					deletions.wait();
+				} catch (InterruptedException e) {
+					// keep waiting and reset interrupted state once the removal is persisted
+					interrupted = true;
 				}
 			}
 		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
-	public synchronized void removeConfiguration(String pid) {
-		configurations.remove(pid);
-		if (store == null)
-			return; // no persistent store
-		final File configFile = new File(store, pid + PID_EXT);
-		AccessController.doPrivileged(new PrivilegedAction() {
-			public Object run() {
-				deleteConfigurationFile(configFile);
-				return null;
-			}
-		});
+	/**
+	 * @return true if configurations only softly reference their saved dictionaries
+	 */
+	boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Read the saved dictionary of a configuration from the persistent store.
+	 *
+	 * @return the dictionary or null if none is saved
+	 */
+	Dictionary loadConfiguration(final String pid) throws IOException {
+		if (persistence == null)
+			return null; // no persistent store
+		awaitDeletion(pid);
+		try {
+			return (Dictionary) AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws Exception {
+					return persistence.load(pid);
+				}
+			});
+		} catch (PrivilegedActionException e) {
+			throw (IOException) e.getException();
+		}
 	}
 
-	void deleteConfigurationFile(File configFile) {
-		ReliableFile.delete(configFile);
-		configFile.delete();
+	void close() {
+		if (persistence != null)
+			persistence.close();
 	}
 
-	public synchronized ConfigurationImpl getConfiguration(String pid, String location) {
-		ConfigurationImpl config = (ConfigurationImpl) configurations.get(pid);
-		if (config == null) {
-			config = new ConfigurationImpl(configurationAdminFactory, this, null, pid, location);
-			configurations.put(pid, config);
+	public ConfigurationImpl getConfiguration(String pid, String location) {
+		ConfigurationImpl config = findConfiguration(pid);
+		if (config != null)
+			return config;
+
+		synchronized (this) {
+			lock.writeLock();
+			try {
+				config = (ConfigurationImpl) configurations.get(pid);
+				if (config == null) {
+					config = new ConfigurationImpl(configurationAdminFactory, this, null, pid, location);
+					addConfiguration(config, pid, null);
+				}
+				return config;
+			} finally {
+				lock.writeUnlock();
+			}
 		}
-		return config;
 	}
 
-	public synchronized ConfigurationImpl createFactoryConfiguration(String factoryPid, String location) {
-		String pid = factoryPid + "-" + new Date().getTime() + "-" + createdPidCount++; //$NON-NLS-1$ //$NON-NLS-2$
-		ConfigurationImpl config = new ConfigurationImpl(configurationAdminFactory, this, factoryPid, pid, location);
-		configurations.put(pid, config);
-		return config;
+	public ConfigurationImpl createFactoryConfiguration(String factoryPid, String location) {
+		synchronized (this) {
+			lock.writeLock();
+			try {
+				String pid = factoryPid + "-" + new Date().getTime() + "-" + createdPidCount++; //$NON-NLS-1$ //$NON-NLS-2$
+				ConfigurationImpl config = new ConfigurationImpl(configurationAdminFactory, this, factoryPid, pid, location);
+				addConfiguration(config, pid, factoryPid);
+				return config;
+			} finally {
+				lock.writeUnlock();
+			}
+		}
 	}
 
-	public synchronized ConfigurationImpl findConfiguration(String pid) {
-		return (ConfigurationImpl) configurations.get(pid);
+	public ConfigurationImpl findConfiguration(String pid) {
+		lock.readLock();
+		try {
+			return (ConfigurationImpl) configurations.get(pid);
+		} finally {
+			lock.readUnlock();
+		}
 	}
 
-	public synchronized ConfigurationImpl[] getFactoryConfigurations(String factoryPid) {
-		List resultList = new ArrayList();
-		for (Iterator it = configurations.values().iterator(); it.hasNext();) {
-			ConfigurationImpl config = (ConfigurationImpl) it.next();
-			String otherFactoryPid = config.getFactoryPid();
-			if (otherFactoryPid != null && otherFactoryPid.equals(factoryPid))
-				resultList.add(config);
+	public ConfigurationImpl[] getFactoryConfigurations(String factoryPid) {
+		lock.readLock();
+		try {
+			Set configs = (Set) factoryConfigurations.get(factoryPid);
+			if (configs == null)
+				return new ConfigurationImpl[0];
+			return (ConfigurationImpl[]) configs.toArray(new ConfigurationImpl[configs.size()]);
+		} finally {
+			lock.readUnlock();
 		}
-		return (ConfigurationImpl[]) resultList.toArray(new ConfigurationImpl[0]);
 	}
 
-	public synchronized ConfigurationImpl[] listConfigurations(Filter filter) {
+	public ConfigurationImpl[] listConfigurations(Filter filter) {
+		ConfigurationImpl[] candidates;
+		lock.readLock();
+		try {
+			Collection configs = index.getCandidates(filter.toString());
+			if (configs == null)
+				configs = configurations.values();
+			candidates = (ConfigurationImpl[]) configs.toArray(new ConfigurationImpl[configs.size()]);
+		} finally {
+			lock.readUnlock();
+		}
+
+		// match without holding the lock; the configurations lock themselves to copy their properties
 		List resultList = new ArrayList();
-		for (Iterator it = configurations.values().iterator(); it.hasNext();) {
-			ConfigurationImpl config = (ConfigurationImpl) it.next();
-			Dictionary properties = config.getAllProperties();
+		for (int i = 0; i < candidates.length; i++) {
+			Dictionary properties = candidates[i].getAllProperties();
 			if (properties != null && filter.match(properties))
-				resultList.add(config);
+				resultList.add(candidates[i]);
 		}
 		int size = resultList.size();
 		return size == 0 ? null : (ConfigurationImpl[]) resultList.toArray(new ConfigurationImpl[size]);
 	}
 
-	public synchronized void unbindConfigurations(Bundle bundle) {
-		for (Iterator it = configurations.values().iterator(); it.hasNext();) {
-			ConfigurationImpl config = (ConfigurationImpl) it.next();
-			config.unbind(bundle);
+	public void unbindConfigurations(Bundle bundle) {
+		ConfigurationImpl[] configs;
+		lock.readLock();
+		try {
+			configs = (ConfigurationImpl[]) configurations.values().toArray(new ConfigurationImpl[configurations.size()]);
+		} finally {
+			lock.readUnlock();
 		}
+		for (int i = 0; i < configs.length; i++)
+			configs[i].unbind(bundle);
 	}
 }
\ No newline at end of file
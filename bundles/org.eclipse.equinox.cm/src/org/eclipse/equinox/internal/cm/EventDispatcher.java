@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2008 Cognos Incorporated, IBM Corporation and others.
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -26,13 +26,14 @@ import org.osgi.util.tracker.ServiceTracker;
 
 public class EventDispatcher {
 	final ServiceTracker tracker;
-	private final SerializedTaskQueue queue = new SerializedTaskQueue("ConfigurationListener Event Queue"); //$NON-NLS-1$
+	private final SerializedTaskQueue queue;
 	/** @GuardedBy this */
 	private ServiceReference configAdminReference;
 	final LogService log;
 
 	public EventDispatcher(BundleContext context, LogService log) {
 		this.log = log;
+		queue = ConfigurationAdminFactory.createTaskQueue(context, "ConfigurationListener Event Queue"); //$NON-NLS-1$
 		tracker = new ServiceTracker(context, ConfigurationListener.class.getName(), null);
 	}
 
@@ -40,6 +41,10 @@ public class EventDispatcher {
 		tracker.open();
 	}
 
+	SerializedTaskQueue getQueue() {
+		return queue;
+	}
+
 	public void stop() {
 		tracker.close();
 		synchronized (this) {
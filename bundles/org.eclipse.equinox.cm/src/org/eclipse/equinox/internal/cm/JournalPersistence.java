@@ -0,0 +1,505 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.internal.cm;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import org.eclipse.equinox.internal.cm.reliablefile.*;
+import org.osgi.framework.Constants;
+import org.osgi.service.log.LogService;
+
+/**
+ * JournalPersistence keeps all configurations in a snapshot file and appends every
+ * change to a journal file. Both are read sequentially at startup, the snapshot
+ * first. When the journal has grown larger than the snapshot it is compacted:
+ * the current configurations are written to a new snapshot and the journal is emptied.
+ * <p>
+ * Changes are group committed. A saving thread appends its record to a pending
+ * buffer; if no commit is in progress it becomes the committer and writes and
+ * syncs everything pending, otherwise it waits for the commit which includes its
+ * record. While one commit syncs, the records of other threads accumulate for the next.
+ * <p>
+ * A journal record is the payload length, a CRC32 of the payload and the payload:
+ * the record type, the pid and, for a save, the serialized dictionary. Replay
+ * stops at the first incomplete or damaged record, which can only be the last
+ * record written before a crash, and the journal is then compacted. The snapshot
+ * is a reliable file so it is replaced atomically.
+ * <p>
+ * The journal stream and the lengths are only used by the thread holding the
+ * commit; reading the files does not change them.
+ */
+public class JournalPersistence implements ConfigurationPersistence {
+	private static final String SNAPSHOT_FILE = "snapshot"; //$NON-NLS-1$
+	private static final String JOURNAL_FILE = "journal"; //$NON-NLS-1$
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final byte RECORD_SAVE = 1;
+	private static final byte RECORD_DELETE = 2;
+	// the journal is not compacted while it is smaller than this
+	private static final long MIN_COMPACT_LENGTH = 1024 * 1024;
+
+	private final LogService log;
+	private final File snapshotFile;
+	private final File journalFile;
+
+	// used by the thread holding the commit, see beginCommit()
+	private FileOutputStream journal;
+	private long journalLength;
+	private long snapshotLength;
+	private boolean needsCompaction;
+
+	/* @GuardedBy this */
+	private Batch pending = new Batch();
+	/* @GuardedBy this */
+	private boolean committing;
+	/* @GuardedBy this */
+	private boolean closed;
+
+	/**
+	 * @param log the log service for errors
+	 * @param directory the directory of the snapshot and journal files
+	 */
+	public JournalPersistence(LogService log, File directory) {
+		this.log = log;
+		directory.mkdir();
+		snapshotFile = new File(directory, SNAPSHOT_FILE);
+		journalFile = new File(directory, JOURNAL_FILE);
+	}
+
+	/**
+	 * Read the snapshot and replay the journal. If neither exists the configurations
+	 * of the given persistence are imported.
+	 *
+	 * @param previous the persistence to import from; may be null
+	 */
+	public Dictionary[] load(ConfigurationPersistence previous) {
+		if (previous != null && !ReliableFile.exists(snapshotFile) && !journalFile.exists()) {
+			Dictionary[] dictionaries = previous.load();
+			Map state = new HashMap();
+			for (int i = 0; i < dictionaries.length; i++) {
+				try {
+					state.put(dictionaries[i].get(Constants.SERVICE_PID), serialize(dictionaries[i]));
+				} catch (IOException e) {
+					log.log(LogService.LOG_ERROR, e.getMessage(), e);
+				}
+			}
+			return load(state, 0, 0, true);
+		}
+		return load();
+	}
+
+	public Dictionary[] load() {
+		Map state = new HashMap();
+		long storedSnapshotLength = 0;
+		long storedJournalLength = 0;
+		boolean damaged = false;
+		try {
+			storedSnapshotLength = readSnapshot(state);
+		} catch (IOException e) {
+			log.log(LogService.LOG_ERROR, "{Configuration Admin} could not read the snapshot " + snapshotFile, e); //$NON-NLS-1$
+		}
+		try {
+			storedJournalLength = readJournal(state);
+			// replay stopped before the end at an incomplete or damaged record
+			damaged = storedJournalLength < journalFile.length();
+		} catch (IOException e) {
+			log.log(LogService.LOG_ERROR, "{Configuration Admin} could not read the journal " + journalFile, e); //$NON-NLS-1$
+			damaged = true;
+		}
+		return load(state, storedSnapshotLength, storedJournalLength, damaged);
+	}
+
+	/**
+	 * Deserialize the configurations and open the journal for appending, compacting
+	 * it first if it is damaged or too large.
+	 */
+	private Dictionary[] load(Map state, long storedSnapshotLength, long storedJournalLength, boolean damaged) {
+		List dictionaries = new ArrayList(state.size());
+		for (Iterator it = state.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry) it.next();
+			try {
+				dictionaries.add(deserialize((byte[]) entry.getValue()));
+			} catch (Exception e) {
+				String message = e.getMessage();
+				String errorMessage = "{Configuration Admin - pid = " + entry.getKey() + "} could not be restored." + ((message == null) ? "" : " " + message); //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				log.log(LogService.LOG_ERROR, errorMessage);
+				if (e instanceof IOException) {
+					it.remove();
+					damaged = true;
+				}
+			}
+		}
+
+		try {
+			beginCommit();
+		} catch (IOException e) {
+			return new Dictionary[0];
+		}
+		try {
+			snapshotLength = storedSnapshotLength;
+			journalLength = storedJournalLength;
+			needsCompaction = damaged;
+			if (needsCompaction || journalLength > Math.max(MIN_COMPACT_LENGTH, snapshotLength))
+				compact(state);
+			else {
+				closeJournal();
+				journal = new FileOutputStream(journalFile, true);
+			}
+		} catch (IOException e) {
+			log.log(LogService.LOG_ERROR, "{Configuration Admin} could not open the journal " + journalFile, e); //$NON-NLS-1$
+		} finally {
+			endCommit();
+		}
+		return (Dictionary[]) dictionaries.toArray(new Dictionary[dictionaries.size()]);
+	}
+
+	/**
+	 * Read a configuration by replaying the snapshot and the journal, which is slow.
+	 * The lazy configuration store does not use this persistence. No commit runs
+	 * while the files are read, so a compaction cannot come in between.
+	 */
+	public Dictionary load(String pid) throws IOException {
+		byte[] bytes;
+		beginCommit();
+		try {
+			bytes = (byte[]) readState().get(pid);
+		} finally {
+			endCommit();
+		}
+		if (bytes == null)
+			return null;
+		try {
+			return deserialize(bytes);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	public void save(String pid, Dictionary properties) throws IOException {
+		commit(createRecord(RECORD_SAVE, pid, serialize(properties)));
+	}
+
+	public void delete(String pid) {
+		try {
+			commit(createRecord(RECORD_DELETE, pid, null));
+		} catch (IOException e) {
+			log.log(LogService.LOG_ERROR, "{Configuration Admin - pid = " + pid + "} could not be deleted.", e); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	public void close() {
+		FileOutputStream stream;
+		synchronized (this) {
+			closed = true;
+			boolean interrupted = false;
+			while (committing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			// no commit can start once closed is set
+			stream = journal;
+			journal = null;
+		}
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Wait until no commit is in progress and hold the commit. The committer fields
+	 * may be used until endCommit() is called.
+	 *
+	 * @throws IOException if the store is closed
+	 */
+	private synchronized void beginCommit() throws IOException {
+		boolean interrupted = false;
+		try {
+			while (committing && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		if (closed)
+			throw new IOException("The configuration store is closed."); //$NON-NLS-1$
+		committing = true;
+	}
+
+	private synchronized void endCommit() {
+		committing = false;
+		notifyAll();
+	}
+
+	private void commit(byte[] record) throws IOException {
+		Batch batch;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("The configuration store is closed."); //$NON-NLS-1$
+			batch = pending;
+			batch.records.write(record, 0, record.length);
+			boolean interrupted = false;
+			try {
+				while (committing && !batch.done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// the record is already pending; it must be committed before returning
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+			if (batch.done) {
+				// another thread committed the batch with this record
+				if (batch.error != null)
+					throw batch.error;
+				return;
+			}
+			if (closed) {
+				// closed while waiting; the batch is never written
+				batch.done = true;
+				batch.error = new IOException("The configuration store is closed."); //$NON-NLS-1$
+				if (pending == batch)
+					pending = new Batch();
+				notifyAll();
+				throw batch.error;
+			}
+			committing = true;
+			pending = new Batch();
+		}
+
+		IOException error = null;
+		try {
+			write(batch.records.toByteArray());
+		} catch (IOException e) {
+			error = e;
+			// the journal may end with a partial record now
+			needsCompaction = true;
+		}
+
+		synchronized (this) {
+			committing = false;
+			batch.done = true;
+			batch.error = error;
+			notifyAll();
+		}
+		if (error != null)
+			throw error;
+	}
+
+	private void write(byte[] batch) throws IOException {
+		if (journal == null || needsCompaction)
+			compact(readState());
+
+		journal.write(batch);
+		journal.getFD().sync();
+		journalLength += batch.length;
+		if (journalLength > Math.max(MIN_COMPACT_LENGTH, snapshotLength))
+			compact(readState());
+	}
+
+	private Map readState() throws IOException {
+		Map state = new HashMap();
+		readSnapshot(state);
+		readJournal(state);
+		return state;
+	}
+
+	/**
+	 * Replace the snapshot with the given configurations and empty the journal. Replaying
+	 * the old journal over the new snapshot gives the same configurations, so a crash
+	 * before the journal is emptied loses nothing.
+	 */
+	private void compact(Map state) throws IOException {
+		closeJournal();
+		snapshotLength = writeSnapshot(state);
+		journal = new FileOutputStream(journalFile, false);
+		journalLength = 0;
+		needsCompaction = false;
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal != null) {
+			FileOutputStream stream = journal;
+			journal = null;
+			stream.close();
+		}
+	}
+
+	/**
+	 * Add the configurations in the snapshot to the state.
+	 *
+	 * @return the length of the serialized configurations
+	 */
+	private long readSnapshot(Map state) throws IOException {
+		long length = 0;
+		if (!ReliableFile.exists(snapshotFile))
+			return length;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new ReliableFileInputStream(snapshotFile)));
+		try {
+			int version = in.readInt();
+			if (version != SNAPSHOT_VERSION)
+				throw new IOException("Unknown snapshot version: " + version); //$NON-NLS-1$
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String pid = in.readUTF();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				state.put(pid, bytes);
+				length += bytes.length;
+			}
+		} finally {
+			in.close();
+		}
+		return length;
+	}
+
+	/**
+	 * Replace the snapshot with the given configurations.
+	 *
+	 * @return the length of the serialized configurations
+	 */
+	private long writeSnapshot(Map state) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new ReliableFileOutputStream(snapshotFile)));
+		long length = 0;
+		try {
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(state.size());
+			for (Iterator it = state.entrySet().iterator(); it.hasNext();) {
+				Map.Entry entry = (Map.Entry) it.next();
+				byte[] bytes = (byte[]) entry.getValue();
+				out.writeUTF((String) entry.getKey());
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				length += bytes.length;
+			}
+		} finally {
+			out.close();
+		}
+		return length;
+	}
+
+	/**
+	 * Apply the journal records to the state. Replay stops at the first incomplete
+	 * or damaged record.
+	 *
+	 * @return the length of the valid records; less than the length of the file if replay stopped early
+	 */
+	private long readJournal(Map state) throws IOException {
+		if (!journalFile.exists())
+			return 0;
+
+		long length = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				byte[] payload;
+				long checksum;
+				try {
+					int payloadLength = in.readInt();
+					checksum = in.readLong();
+					if (payloadLength < 0 || payloadLength > journalFile.length() - length)
+						break;
+					payload = new byte[payloadLength];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					// the last record is incomplete if anything was read
+					break;
+				}
+				crc.reset();
+				crc.update(payload);
+				if (crc.getValue() != checksum)
+					break;
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = record.readByte();
+				String pid = record.readUTF();
+				if (type == RECORD_SAVE) {
+					byte[] bytes = new byte[record.available()];
+					record.readFully(bytes);
+					state.put(pid, bytes);
+				} else {
+					state.remove(pid);
+				}
+				length += 12 + payload.length;
+			}
+		} finally {
+			in.close();
+		}
+		return length;
+	}
+
+	private static byte[] createRecord(byte type, String pid, byte[] bytes) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeByte(type);
+		payload.writeUTF(pid);
+		if (bytes != null)
+			payload.write(bytes);
+		payload.close();
+		byte[] data = payloadBytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(data.length + 12);
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeInt(data.length);
+		record.writeLong(crc.getValue());
+		record.write(data);
+		record.close();
+		return recordBytes.toByteArray();
+	}
+
+	private static byte[] serialize(Dictionary properties) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(properties);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Dictionary deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (Dictionary) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The records committed together.
+	 */
+	private static class Batch {
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		/* @GuardedBy JournalPersistence.this */
+		boolean done;
+		/* @GuardedBy JournalPersistence.this */
+		IOException error;
+	}
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2008 Cognos Incorporated, IBM Corporation and others.
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -31,12 +31,17 @@ class ManagedServiceFactoryTracker extends ServiceTracker {
 	private final Map managedServiceFactories = new HashMap();
 	private final Map managedServiceFactoryReferences = new HashMap();
 
-	private final SerializedTaskQueue queue = new SerializedTaskQueue("ManagedServiceFactory Update Queue"); //$NON-NLS-1$
+	private final ParallelTaskQueue queue;
 
 	public ManagedServiceFactoryTracker(ConfigurationAdminFactory configurationAdminFactory, ConfigurationStore configurationStore, BundleContext context) {
 		super(context, ManagedServiceFactory.class.getName(), null);
 		this.configurationAdminFactory = configurationAdminFactory;
 		this.configurationStore = configurationStore;
+		queue = ConfigurationAdminFactory.createParallelTaskQueue(context, "ManagedServiceFactory Update Queue"); //$NON-NLS-1$
+	}
+
+	ParallelTaskQueue getQueue() {
+		return queue;
 	}
 
 	protected void notifyDeleted(ConfigurationImpl config) {
@@ -172,7 +177,7 @@ class ManagedServiceFactoryTracker extends ServiceTracker {
 	}
 
 	private void asynchDeleted(final ManagedServiceFactory service, final String pid) {
-		queue.put(new Runnable() {
+		queue.put(service, pid, new Runnable() {
 			public void run() {
 				try {
 					service.deleted(pid);
@@ -184,7 +189,8 @@ class ManagedServiceFactoryTracker extends ServiceTracker {
 	}
 
 	private void asynchUpdated(final ManagedServiceFactory service, final String pid, final Dictionary properties) {
-		queue.put(new Runnable() {
+		// each factory has its own lane; a later update or delete of the same pid may replace this one if it has not run yet
+		queue.put(service, pid, new Runnable() {
 			public void run() {
 				try {
 					service.updated(pid, properties);
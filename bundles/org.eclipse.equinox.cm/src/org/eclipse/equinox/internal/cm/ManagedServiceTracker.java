@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2008 Cognos Incorporated, IBM Corporation and others.
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -30,12 +30,17 @@ class ManagedServiceTracker extends ServiceTracker {
 	private final Map managedServices = new HashMap();
 	private final Map managedServiceReferences = new HashMap();
 
-	private final SerializedTaskQueue queue = new SerializedTaskQueue("ManagedService Update Queue"); //$NON-NLS-1$
+	private final ParallelTaskQueue queue;
 
 	public ManagedServiceTracker(ConfigurationAdminFactory configurationAdminFactory, ConfigurationStore configurationStore, BundleContext context) {
 		super(context, ManagedService.class.getName(), null);
 		this.configurationAdminFactory = configurationAdminFactory;
 		this.configurationStore = configurationStore;
+		queue = ConfigurationAdminFactory.createParallelTaskQueue(context, "ManagedService Update Queue"); //$NON-NLS-1$
+	}
+
+	ParallelTaskQueue getQueue() {
+		return queue;
 	}
 
 	protected void notifyDeleted(ConfigurationImpl config) {
@@ -175,7 +180,8 @@ class ManagedServiceTracker extends ServiceTracker {
 	}
 
 	private void asynchUpdated(final ManagedService service, final Dictionary properties) {
-		queue.put(new Runnable() {
+		// each service has its own lane; a later update of the service may replace this one if it has not run yet
+		queue.put(service, service, new Runnable() {
 			public void run() {
 				try {
 					service.updated(properties);
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.internal.cm;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ParallelTaskQueue runs tasks in lanes. The tasks of a lane run in order, one at a time,
+ * while different lanes run in parallel, so a slow task only delays its own lane. Each lane
+ * is a {@link SerializedTaskQueue}; a lane is dropped once it is empty and its lane object
+ * is no longer referenced.
+ * <p>
+ * With the default policy a queued task is replaced by a newer task with the same key in
+ * the same lane. The queue counts the tasks which its lanes dropped or replaced, including
+ * those of lanes which were dropped since, and records how long the tasks waited before
+ * they ran.
+ */
+public class ParallelTaskQueue {
+	private final String queueName;
+	private final int capacity;
+	private final int policy;
+	// Map of lane object -> SerializedTaskQueue
+	/* @GuardedBy this */
+	private final Map lanes = new WeakHashMap();
+	/* @GuardedBy this */
+	private long dropCount;
+	/* @GuardedBy this */
+	private long coalesceCount;
+	/* @GuardedBy this */
+	private long taskCount;
+	/* @GuardedBy this */
+	private long totalDelay;
+	/* @GuardedBy this */
+	private long maxDelay;
+
+	/**
+	 * @param queueName the name of the lanes
+	 * @param capacity the maximum number of queued tasks in a lane; 0 for no limit
+	 * @param policy the policy which applies when a lane is full; POLICY_BLOCK is replaced by POLICY_COALESCE
+	 */
+	public ParallelTaskQueue(String queueName, int capacity, int policy) {
+		this.queueName = queueName;
+		this.capacity = capacity;
+		this.policy = (policy == SerializedTaskQueue.POLICY_BLOCK) ? SerializedTaskQueue.POLICY_COALESCE : policy;
+	}
+
+	/**
+	 * Queue a task in a lane.
+	 *
+	 * @param lane the lane, usually the target of the task
+	 * @param key identifies tasks in the lane which may replace each other; null if the task must not be replaced
+	 * @param task the task
+	 */
+	public void put(Object lane, Object key, Runnable task) {
+		SerializedTaskQueue queue;
+		synchronized (this) {
+			queue = (SerializedTaskQueue) lanes.get(lane);
+			if (queue == null) {
+				queue = new Lane();
+				lanes.put(lane, queue);
+			}
+		}
+		// a full lane may block; do not hold the lock
+		queue.put(key, new TimedTask(task));
+	}
+
+	synchronized void taskStarted(long delay) {
+		taskCount++;
+		totalDelay += delay;
+		if (delay > maxDelay)
+			maxDelay = delay;
+	}
+
+	synchronized void laneDropped() {
+		dropCount++;
+	}
+
+	synchronized void laneCoalesced() {
+		coalesceCount++;
+	}
+
+	/**
+	 * @return the number of tasks dropped because their lane was full
+	 */
+	public synchronized long getDropCount() {
+		return dropCount;
+	}
+
+	/**
+	 * @return the number of tasks which replaced a queued task with the same key
+	 */
+	public synchronized long getCoalesceCount() {
+		return coalesceCount;
+	}
+
+	/**
+	 * @return the number of tasks which have run
+	 */
+	public synchronized long getTaskCount() {
+		return taskCount;
+	}
+
+	/**
+	 * @return the mean time in milliseconds tasks waited before they ran
+	 */
+	public synchronized long getMeanDelay() {
+		return taskCount == 0 ? 0 : totalDelay / taskCount;
+	}
+
+	/**
+	 * @return the longest time in milliseconds a task waited before it ran
+	 */
+	public synchronized long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * @return the number of lanes
+	 */
+	public synchronized int getLaneCount() {
+		return lanes.size();
+	}
+
+	/**
+	 * @return the name of the lanes
+	 */
+	public String getName() {
+		return queueName;
+	}
+
+	private class TimedTask implements Runnable {
+		private final Runnable task;
+		private final long queuedTime = System.currentTimeMillis();
+
+		TimedTask(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			taskStarted(System.currentTimeMillis() - queuedTime);
+			task.run();
+		}
+	}
+
+	/*
+	 * A lane reports to the queue while holding its own lock; the queue never
+	 * calls a lane while holding its lock.
+	 */
+	private class Lane extends SerializedTaskQueue {
+		Lane() {
+			super(queueName, capacity, policy);
+		}
+
+		void taskDropped() {
+			super.taskDropped();
+			laneDropped();
+		}
+
+		void taskCoalesced() {
+			super.taskCoalesced();
+			laneCoalesced();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2005, 2011 Cognos Incorporated, IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Cognos Incorporated - initial API and implementation
+ *     IBM Corporation - bug fixes and enhancements
+ *******************************************************************************/
+package org.eclipse.equinox.internal.cm;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.equinox.internal.cm.reliablefile.*;
+import org.osgi.service.log.LogService;
+
+/**
+ * PidFilePersistence serializes each configuration dictionary to its own reliable file
+ * named after the pid.
+ */
+class PidFilePersistence implements ConfigurationPersistence {
+	private static final String PID_EXT = ".pid"; //$NON-NLS-1$
+
+	private final ConfigurationAdminFactory configurationAdminFactory;
+	private final File store;
+
+	public PidFilePersistence(ConfigurationAdminFactory configurationAdminFactory, File store) {
+		this.configurationAdminFactory = configurationAdminFactory;
+		this.store = store;
+		store.mkdir();
+	}
+
+	public Dictionary[] load() {
+		List dictionaries = new ArrayList();
+		File[] configurationFiles = store.listFiles();
+		if (configurationFiles == null)
+			return new Dictionary[0];
+		for (int i = 0; i < configurationFiles.length; ++i) {
+			String configurationFileName = configurationFiles[i].getName();
+			if (!configurationFileName.endsWith(PID_EXT))
+				continue;
+
+			boolean deleteFile = false;
+			try {
+				dictionaries.add(readConfigurationFile(configurationFiles[i]));
+			} catch (IOException e) {
+				String message = e.getMessage();
+				String pid = configurationFileName.substring(0, configurationFileName.length() - 4);
+				String errorMessage = "{Configuration Admin - pid = " + pid + "} could not be restored." + ((message == null) ? "" : " " + message); //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				configurationAdminFactory.log(LogService.LOG_ERROR, errorMessage);
+				deleteFile = true;
+			} catch (ClassNotFoundException e) {
+				configurationAdminFactory.log(LogService.LOG_ERROR, e.getMessage());
+			}
+			if (deleteFile) {
+				ReliableFile.delete(configurationFiles[i]);
+				configurationFiles[i].delete();
+			}
+		}
+		return (Dictionary[]) dictionaries.toArray(new Dictionary[dictionaries.size()]);
+	}
+
+	public Dictionary load(String pid) throws IOException {
+		File configFile = new File(store, pid + PID_EXT);
+		if (!ReliableFile.exists(configFile))
+			return null;
+		try {
+			return readConfigurationFile(configFile);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private Dictionary readConfigurationFile(File configFile) throws IOException, ClassNotFoundException {
+		InputStream ris = null;
+		ObjectInputStream ois = null;
+		try {
+			ris = new ReliableFileInputStream(configFile);
+			ois = new ObjectInputStream(ris);
+			return (Dictionary) ois.readObject();
+		} finally {
+			if (ois != null) {
+				try {
+					ois.close();
+				} catch (IOException e) {
+					// ignore 
+				}
+			}
+			if (ris != null) {
+				try {
+					ris.close();
+				} catch (IOException e) {
+					// ignore 
+				}
+			}
+		}
+	}
+
+	public void save(String pid, Dictionary properties) throws IOException {
+		File configFile = new File(store, pid + PID_EXT);
+		OutputStream ros = null;
+		ObjectOutputStream oos = null;
+		try {
+			configFile.createNewFile();
+			ros = new ReliableFileOutputStream(configFile);
+			oos = new ObjectOutputStream(ros);
+			oos.writeObject(properties);
+		} finally {
+			if (oos != null) {
+				try {
+					oos.close();
+				} catch (IOException e) {
+					// ignore 
+				}
+			}
+			if (ros != null) {
+				try {
+					ros.close();
+				} catch (IOException e) {
+					// ignore 
+				}
+			}
+		}
+	}
+
+	public void delete(String pid) {
+		File configFile = new File(store, pid + PID_EXT);
+		ReliableFile.delete(configFile);
+		configFile.delete();
+	}
+
+	public void close() {
+		// nothing to release
+	}
+}
@@ -1,61 +1,258 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2008 Cognos Incorporated
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
  * http://www.eclipse.org/legal/epl-v10.html
- * 
+ *
  * Contributors:
  *     Cognos Incorporated - initial API and implementation
+ *     IBM Corporation - bounded queue and shared worker threads
  *******************************************************************************/
 package org.eclipse.equinox.internal.cm;
 
-import java.util.LinkedList;
+import java.util.*;
 
 /**
  * SerializedTaskQueue is a utility class that will allow asynchronous but serialized execution of tasks
+ * <p>
+ * The tasks of all queues run on threads of a shared {@link WorkerPool}. A queue
+ * may be bounded, in which case its policy decides what happens to a task put
+ * into a full queue. The queue counts the tasks which were dropped or replaced.
  */
 public class SerializedTaskQueue {
 
-	private static final int MAX_WAIT = 5000;
+	/** The task waits until the queue has room. */
+	public static final int POLICY_BLOCK = 0;
+	/** The oldest queued task is dropped to make room. */
+	public static final int POLICY_DROP_OLDEST = 1;
+	/** The new task is dropped. */
+	public static final int POLICY_DROP_NEWEST = 2;
+	/** A queued task with the same key is replaced by the new task; otherwise the task waits until the queue has room. */
+	public static final int POLICY_COALESCE = 3;
+
+	private static final String[] POLICY_NAMES = {"block", "drop-oldest", "drop-newest", "coalesce"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	private static final WorkerPool workerPool = new WorkerPool("Configuration Admin Worker"); //$NON-NLS-1$
+
 	private final LinkedList tasks = new LinkedList();
-	private Thread thread;
+	// Map of key -> Task for the queued tasks with a key; only used by POLICY_COALESCE
+	private final Map keyedTasks;
 	private final String queueName;
+	private final int capacity;
+	private final int policy;
+	private boolean scheduled;
+	// the thread running a task of this queue
+	private Thread runner;
+	private int waiters;
+	private long dropCount;
+	private long coalesceCount;
 
 	public SerializedTaskQueue(String queueName) {
+		this(queueName, 0, POLICY_BLOCK);
+	}
+
+	/**
+	 * @param queueName the name of the queue
+	 * @param capacity the maximum number of queued tasks; 0 for no limit
+	 * @param policy the policy which applies when the queue is full
+	 */
+	public SerializedTaskQueue(String queueName, int capacity, int policy) {
 		this.queueName = queueName;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.keyedTasks = (policy == POLICY_COALESCE) ? new HashMap() : null;
 	}
 
-	public synchronized void put(Runnable newTask) {
-		tasks.add(newTask);
-		if (thread == null) {
-			thread = new Thread(queueName) {
-				public void run() {
-					Runnable task = nextTask(MAX_WAIT);
-					while (task != null) {
-						task.run();
-						task = nextTask(MAX_WAIT);
+	/**
+	 * Return the policy with the given name.
+	 *
+	 * @param name one of block, drop-oldest, drop-newest or coalesce
+	 * @param defaultPolicy the policy to return if the name is null or unknown
+	 * @return the policy
+	 */
+	public static int parsePolicy(String name, int defaultPolicy) {
+		if (name != null) {
+			name = name.trim();
+			for (int i = 0; i < POLICY_NAMES.length; i++) {
+				if (POLICY_NAMES[i].equalsIgnoreCase(name))
+					return i;
+			}
+		}
+		return defaultPolicy;
+	}
+
+	public void put(Runnable newTask) {
+		put(null, newTask);
+	}
+
+	/**
+	 * Queue a task.
+	 *
+	 * @param key identifies tasks which may replace each other under POLICY_COALESCE; null if the task must not be replaced
+	 * @param newTask the task
+	 */
+	public synchronized void put(Object key, Runnable newTask) {
+		if (keyedTasks != null && key != null) {
+			Task queued = (Task) keyedTasks.get(key);
+			if (queued != null) {
+				queued.runnable = newTask;
+				taskCoalesced();
+				return;
+			}
+		}
+
+		if (capacity > 0 && tasks.size() >= capacity) {
+			switch (policy) {
+				case POLICY_DROP_NEWEST :
+					taskDropped();
+					return;
+				case POLICY_DROP_OLDEST :
+					removeTask((Task) tasks.getFirst());
+					taskDropped();
+					break;
+				default :
+					// a task putting another task into its own queue would wait forever
+					if (Thread.currentThread() != runner) {
+						boolean interrupted = false;
+						waiters++;
+						try {
+							while (tasks.size() >= capacity) {
+								try {
+									wait();
+								} catch (InterruptedException e) {
+									// keep waiting; the interrupted state is reset once the task is queued
+									interrupted = true;
+								}
+							}
+						} finally {
+							waiters--;
+							if (interrupted)
+								Thread.currentThread().interrupt();
+						}
+						// a task with the same key may have been queued while waiting
+						if (keyedTasks != null && key != null && keyedTasks.containsKey(key)) {
+							((Task) keyedTasks.get(key)).runnable = newTask;
+							taskCoalesced();
+							return;
+						}
 					}
-				}
-			};
-			thread.start();
-		} else
-			notify();
+			}
+		}
+
+		Task task = new Task(key, newTask);
+		tasks.add(task);
+		if (keyedTasks != null && key != null)
+			keyedTasks.put(key, task);
+
+		if (!scheduled)
+			schedule();
 	}
 
-	synchronized Runnable nextTask(int maxWait) {
-		if (tasks.isEmpty()) {
-			try {
-				wait(maxWait);
-			} catch (InterruptedException e) {
-				// ignore -- we control the stack here and do not need to propagate it.
+	/*
+	 * @GuardedBy this
+	 */
+	private void schedule() {
+		scheduled = true;
+		workerPool.execute(new Runnable() {
+			public void run() {
+				runTasks();
 			}
+		});
+	}
+
+	/*
+	 * @GuardedBy this
+	 */
+	private void removeTask(Task task) {
+		tasks.remove(task);
+		if (keyedTasks != null && task.key != null)
+			keyedTasks.remove(task.key);
+		if (waiters > 0)
+			notifyAll();
+	}
 
-			if (tasks.isEmpty()) {
-				thread = null;
-				return null;
+	/*
+	 * @GuardedBy this
+	 */
+	void taskDropped() {
+		dropCount++;
+	}
+
+	/*
+	 * @GuardedBy this
+	 */
+	void taskCoalesced() {
+		coalesceCount++;
+	}
+
+	synchronized Runnable nextTask() {
+		if (tasks.isEmpty()) {
+			scheduled = false;
+			runner = null;
+			return null;
+		}
+		Task task = (Task) tasks.getFirst();
+		removeTask(task);
+		runner = Thread.currentThread();
+		return task.runnable;
+	}
+
+	void runTasks() {
+		Thread.currentThread().setName(queueName);
+		Runnable task = nextTask();
+		try {
+			while (task != null) {
+				task.run();
+				task = nextTask();
 			}
+		} finally {
+			if (task != null) {
+				// the task threw; continue with the remaining tasks on another worker
+				synchronized (this) {
+					runner = null;
+					scheduled = false;
+					if (!tasks.isEmpty())
+						schedule();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of queued tasks
+	 */
+	public synchronized int size() {
+		return tasks.size();
+	}
+
+	/**
+	 * @return the number of tasks dropped because the queue was full
+	 */
+	public synchronized long getDropCount() {
+		return dropCount;
+	}
+
+	/**
+	 * @return the number of tasks which replaced a queued task with the same key
+	 */
+	public synchronized long getCoalesceCount() {
+		return coalesceCount;
+	}
+
+	/**
+	 * @return the name of the queue
+	 */
+	public String getName() {
+		return queueName;
+	}
+
+	private static class Task {
+		final Object key;
+		Runnable runnable;
+
+		Task(Object key, Runnable runnable) {
+			this.key = key;
+			this.runnable = runnable;
 		}
-		return (Runnable) tasks.removeFirst();
 	}
 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2003, 2008 IBM Corporation and others.
+ * Copyright (c) 2003, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -22,7 +22,13 @@ import org.eclipse.equinox.internal.cm.Activator;
 /**
  * ReliableFile class used by ReliableFileInputStream and ReliableOutputStream.
  * This class encapsulates all the logic for reliable file support.
- *
+ * <p>
+ * Where java.nio is available files of at least osgi.reliableFile.maxInputStreamBuffer
+ * bytes are memory mapped for reading, so validating the checksum and reading the
+ * contents share one mapping, and generations are copied with FileChannel.transferTo.
+ * Smaller files are read through a buffer, which is cheaper than setting up a mapping.
+ * This is off by default on Windows where a mapped file cannot be deleted or renamed
+ * until the mapping is collected.
  */
 public class ReliableFile {
 	/**
@@ -76,6 +82,11 @@ public class ReliableFile {
 	 *see org.eclipse.core.runtime.internal.adaptor.BasicLocation#PROP_OSGI_LOCKING
 	 */
 	public static final String PROP_OSGI_LOCKING = "osgi.locking"; //$NON-NLS-1$
+	/**
+	 * Set to <code>true</code> or <code>false</code> to enable or disable reading through memory mappings.
+	 * Only files of at least {@link #PROP_MAX_BUFFER} bytes are mapped.
+	 */
+	public static final String PROP_NIO = "equinox.cm.reliableFile.nio"; //$NON-NLS-1$
 
 	private static final int FILETYPE_VALID = 0;
 	private static final int FILETYPE_CORRUPT = 1;
@@ -88,6 +99,7 @@ public class ReliableFile {
 	private static final int maxInputStreamBuffer;
 	private static final int defaultMaxGenerations;
 	private static final boolean fileSharing;
+	private static final boolean useNIO;
 	//our cache of the last looked up generations for a file
 	private static File lastGenerationFile = null;
 	private static int[] lastGenerations = null;
@@ -122,6 +134,20 @@ public class ReliableFile {
 			}
 		}
 		fileSharing = tmpFileSharing;
+
+		boolean tmpUseNIO = false;
+		try {
+			Class.forName("java.nio.channels.FileChannel"); //$NON-NLS-1$
+			prop = Activator.getProperty(PROP_NIO);
+			if (prop != null) {
+				tmpUseNIO = Boolean.valueOf(prop).booleanValue();
+			} else {
+				String os = System.getProperty("os.name"); //$NON-NLS-1$
+				tmpUseNIO = os == null || !os.startsWith("Windows"); //$NON-NLS-1$
+			}
+		} catch (ClassNotFoundException e) {/*ignore*/
+		}
+		useNIO = tmpUseNIO;
 	}
 
 	/** File object for original reference file */
@@ -269,13 +295,22 @@ public class ReliableFile {
 				long timeStamp = file.lastModified();
 				if (info == null || timeStamp != info.timeStamp) {
 					try {
-						is = new FileInputStream(file);
-						if (is.available() < maxInputStreamBuffer)
-							is = new BufferedInputStream(is);
+						if (useNIO && file.length() >= maxInputStreamBuffer) {
+							is = ReliableFileNIO.open(file);
+						} else {
+							is = new FileInputStream(file);
+							if (is.available() < maxInputStreamBuffer)
+								is = new BufferedInputStream(is);
+						}
 						Checksum cksum = getChecksumCalculator();
 						int filetype = getStreamType(is, cksum);
 						info = new CacheInfo(filetype, cksum, timeStamp);
 						cacheFiles.put(file, info);
+						if (!is.markSupported()) {
+							// the stream has been read to the end; open the file again when it is used
+							is.close();
+							is = null;
+						}
 					} catch (IOException e) {/*ignore*/
 					}
 				}
@@ -288,7 +323,7 @@ public class ReliableFile {
 					inputFile = file;
 					if (is != null)
 						return is;
-					return new FileInputStream(file);
+					return openFile(file);
 				}
 				throw new IOException("ReliableFile is corrupt"); //$NON-NLS-1$
 			}
@@ -303,7 +338,7 @@ public class ReliableFile {
 					inputFile = file;
 					if (is != null)
 						return is;
-					return new FileInputStream(file);
+					return openFile(file);
 
 				case FILETYPE_NOSIGNATURE :
 					if (textFile == null) {
@@ -320,11 +355,17 @@ public class ReliableFile {
 			inputFile = textFile;
 			if (textIS != null)
 				return textIS;
-			return new FileInputStream(textFile);
+			return openFile(textFile);
 		}
 		throw new IOException("ReliableFile is corrupt"); //$NON-NLS-1$
 	}
 
+	private static InputStream openFile(File file) throws IOException {
+		if (useNIO && file.length() >= maxInputStreamBuffer)
+			return ReliableFileNIO.open(file);
+		return new FileInputStream(file);
+	}
+
 	/**
 	 * Returns an OutputStream object for writing the target file.
 	 * 
@@ -358,12 +399,22 @@ public class ReliableFile {
 		try {
 			CacheInfo info = (CacheInfo) cacheFiles.get(inputFile);
 			appendChecksum = info.checksum;
-			OutputStream os = new FileOutputStream(tmpFile);
-			if (info.filetype == FILETYPE_NOSIGNATURE) {
-				cp(is, os, 0);
-			} else {
-				cp(is, os, 16); // don't copy checksum signature
+			int truncateSize = (info.filetype == FILETYPE_NOSIGNATURE) ? 0 : 16; // don't copy checksum signature
+			if (useNIO) {
+				FileOutputStream os = new FileOutputStream(tmpFile);
+				try {
+					ReliableFileNIO.copy(inputFile, Math.max(0, inputFile.length() - truncateSize), os);
+				} catch (IOException e) {
+					os.close();
+					throw e;
+				} finally {
+					is.close();
+				}
+				outputFile = tmpFile;
+				return os;
 			}
+			OutputStream os = new FileOutputStream(tmpFile);
+			cp(is, os, truncateSize);
 			outputFile = tmpFile;
 			return os;
 		} finally {
@@ -762,6 +813,10 @@ public class ReliableFile {
 
 			int pos = 0;
 			byte data[] = new byte[BUF_SIZE];
+			if (useNIO && is instanceof ReliableFileNIO.MappedInputStream) {
+				((ReliableFileNIO.MappedInputStream) is).update(crc, len);
+				pos = len;
+			}
 
 			while (pos < len) {
 				int read = data.length;
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.cm.reliablefile;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * ReliableFileNIO reads reliable files through memory mappings and copies them with
+ * FileChannel.transferTo. ReliableFile only uses this class when java.nio is available,
+ * and only maps files too large to be read through a buffer.
+ */
+class ReliableFileNIO {
+	private static final int BUF_SIZE = 8192;
+	// Checksum.update(ByteBuffer) where available; it avoids copying the mapped bytes
+	private static final Method updateByteBuffer;
+
+	static {
+		Method method = null;
+		try {
+			method = java.util.zip.CRC32.class.getMethod("update", new Class[] {ByteBuffer.class}); //$NON-NLS-1$
+		} catch (NoSuchMethodException e) {
+			// copy through a byte array instead
+		}
+		updateByteBuffer = method;
+	}
+
+	/**
+	 * Map a file for reading.
+	 *
+	 * @return a stream over the mapped file which supports mark and reset
+	 */
+	static InputStream open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		try {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Copy the start of a file to the end of an output stream.
+	 *
+	 * @param from the file to copy
+	 * @param length the number of bytes to copy
+	 * @param to the output stream
+	 */
+	static void copy(File from, long length, FileOutputStream to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileChannel source = in.getChannel();
+			FileChannel target = to.getChannel();
+			long position = 0;
+			while (position < length) {
+				long count = source.transferTo(position, length - position, target);
+				if (count <= 0)
+					throw new IOException("Unable to read entire file."); //$NON-NLS-1$
+				position += count;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static class MappedInputStream extends InputStream {
+		private ByteBuffer buffer;
+		private int mark;
+
+		MappedInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Update a checksum with the next bytes of the stream.
+		 *
+		 * @param checksum the checksum
+		 * @param length the number of bytes
+		 * @throws IOException if the stream has fewer bytes
+		 */
+		void update(Checksum checksum, int length) throws IOException {
+			if (length > buffer.remaining())
+				throw new IOException("Unable to read entire file."); //$NON-NLS-1$
+			if (updateByteBuffer != null && checksum instanceof java.util.zip.CRC32) {
+				ByteBuffer slice = buffer.slice();
+				slice.limit(length);
+				try {
+					updateByteBuffer.invoke(checksum, new Object[] {slice});
+					buffer.position(buffer.position() + length);
+					return;
+				} catch (Exception e) {
+					// fall back to copying
+				}
+			}
+			byte[] data = new byte[Math.min(length, BUF_SIZE)];
+			while (length > 0) {
+				int count = Math.min(length, data.length);
+				buffer.get(data, 0, count);
+				checksum.update(data, 0, count);
+				length -= count;
+			}
+		}
+
+		public int read() throws IOException {
+			if (!buffer.hasRemaining())
+				return -1;
+			return buffer.get() & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			int count = Math.min(len, buffer.remaining());
+			if (count == 0)
+				return -1;
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		public long skip(long n) throws IOException {
+			int count = (int) Math.min(Math.max(n, 0), buffer.remaining());
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		public int available() throws IOException {
+			return buffer.remaining();
+		}
+
+		public boolean markSupported() {
+			return true;
+		}
+
+		public void mark(int readlimit) {
+			mark = buffer.position();
+		}
+
+		public void reset() throws IOException {
+			buffer.position(mark);
+		}
+
+		public void close() throws IOException {
+			// leave the buffer to the collector which unmaps it
+			buffer = ByteBuffer.allocate(0);
+		}
+	}
+}
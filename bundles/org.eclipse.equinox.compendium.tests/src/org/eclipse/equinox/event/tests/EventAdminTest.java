@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 IBM Corporation and others
+ * Copyright (c) 2008, 2011 IBM Corporation and others
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -10,10 +10,10 @@
  *******************************************************************************/
 package org.eclipse.equinox.event.tests;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.*;
 import junit.framework.TestCase;
 import org.eclipse.equinox.compendium.tests.Activator;
+import org.eclipse.equinox.internal.event.*;
 import org.osgi.framework.*;
 import org.osgi.service.event.*;
 
@@ -32,6 +32,41 @@ public class EventAdminTest extends TestCase {
 		Activator.getBundle(Activator.BUNDLE_EVENT).stop();
 	}
 
+	/*
+	 * Restarts the event bundle with the given framework properties set, so
+	 * that EventAdmin reads them when it is activated again. The properties
+	 * are cleared once EventAdmin has been activated.
+	 */
+	private void restartEventAdmin(String[] keys, String[] values) throws Exception {
+		Activator.getBundleContext().ungetService(eventAdminReference);
+		Activator.getBundle(Activator.BUNDLE_EVENT).stop();
+		for (int i = 0; i < keys.length; i++)
+			System.setProperty(keys[i], values[i]);
+		try {
+			Activator.getBundle(Activator.BUNDLE_EVENT).start();
+			eventAdminReference = Activator.getBundleContext().getServiceReference(EventAdmin.class.getName());
+			eventAdmin = (EventAdmin) Activator.getBundleContext().getService(eventAdminReference);
+		} finally {
+			for (int i = 0; i < keys.length; i++)
+				System.getProperties().remove(keys[i]);
+		}
+	}
+
+	private EventHandlerStatistics getHandlerStatistics(ServiceRegistration registration) {
+		ServiceReference statisticsReference = Activator.getBundleContext().getServiceReference(EventAdminStatistics.class.getName());
+		assertNotNull("No EventAdminStatistics service", statisticsReference); //$NON-NLS-1$
+		try {
+			EventHandlerStatistics[] statistics = ((EventAdminStatistics) Activator.getBundleContext().getService(statisticsReference)).getHandlerStatistics();
+			for (int i = 0; i < statistics.length; i++)
+				if (statistics[i].getReference().equals(registration.getReference()))
+					return statistics[i];
+			fail("No statistics for handler " + registration.getReference()); //$NON-NLS-1$
+			return null;
+		} finally {
+			Activator.getBundleContext().ungetService(statisticsReference);
+		}
+	}
+
 	/*
 	 * Ensures EventAdmin does not deliver an event published on topic "a/b/c" 
 	 * to an EventHandler listening to topic a/b/c/*.
@@ -150,4 +185,272 @@ public class EventAdminTest extends TestCase {
 		assertNotNull("Did not receive event published to topic 'a/b/c/d' while listening to 'a/b/c/*'", handler.lastEvent()); //$NON-NLS-1$
 		handlerRegistration.unregister();
 	}
+
+	/*
+	 * Ensures EventAdmin stops delivering events for a topic once an 
+	 * EventHandler changes its topics, even after an event has already been 
+	 * delivered for that topic.
+	 */
+	public void testEventDeliveryAfterTopicChange() {
+		Dictionary properties = new Hashtable();
+		properties.put(EventConstants.EVENT_TOPIC, "a/b/c"); //$NON-NLS-1$
+		BundleContext bundleContext = Activator.getBundleContext();
+		EventHandlerHelper handler = new EventHandlerHelper();
+		ServiceRegistration handlerRegistration = bundleContext.registerService(EventHandler.class, handler, properties);
+		eventAdmin.sendEvent(new Event("a/b/c", (Dictionary) null)); //$NON-NLS-1$
+		assertNotNull("Did not receive event published to topic 'a/b/c' while listening to 'a/b/c'", handler.clearLastEvent()); //$NON-NLS-1$
+		properties.put(EventConstants.EVENT_TOPIC, "d/e/*"); //$NON-NLS-1$
+		handlerRegistration.setProperties(properties);
+		eventAdmin.sendEvent(new Event("a/b/c", (Dictionary) null)); //$NON-NLS-1$
+		assertNull("Received event published to topic 'a/b/c' while listening to 'd/e/*'", handler.clearLastEvent()); //$NON-NLS-1$
+		eventAdmin.sendEvent(new Event("d/e/f", (Dictionary) null)); //$NON-NLS-1$
+		assertNotNull("Did not receive event published to topic 'd/e/f' while listening to 'd/e/*'", handler.lastEvent()); //$NON-NLS-1$
+		handlerRegistration.unregister();
+	}
+
+	/*
+	 * Ensures EventAdmin delivers events sent and posted to a topic to each 
+	 * of 1, 10 and 100 EventHandlers listening to the topic, including when 
+	 * the same topic is published to repeatedly.
+	 */
+	public void testEventDeliveryToManyHandlers() throws InterruptedException {
+		int[] counts = new int[] {1, 10, 100};
+		for (int i = 0; i < counts.length; i++) {
+			doTestEventDeliveryToManyHandlers(counts[i]);
+		}
+	}
+
+	private void doTestEventDeliveryToManyHandlers(int count) throws InterruptedException {
+		Dictionary properties = new Hashtable();
+		properties.put(EventConstants.EVENT_TOPIC, "a/b/c"); //$NON-NLS-1$
+		BundleContext bundleContext = Activator.getBundleContext();
+		EventHandlerHelper[] handlers = new EventHandlerHelper[count];
+		ServiceRegistration[] registrations = new ServiceRegistration[count];
+		for (int i = 0; i < count; i++) {
+			handlers[i] = new EventHandlerHelper();
+			registrations[i] = bundleContext.registerService(EventHandler.class, handlers[i], properties);
+		}
+		for (int repeat = 0; repeat < 2; repeat++) {
+			eventAdmin.sendEvent(new Event("a/b/c", (Dictionary) null)); //$NON-NLS-1$
+			for (int i = 0; i < count; i++)
+				assertNotNull("Handler " + i + " of " + count + " did not receive sent event", handlers[i].clearLastEvent()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			eventAdmin.postEvent(new Event("a/b/c", (Dictionary) null)); //$NON-NLS-1$
+			for (int i = 0; i < count; i++)
+				assertNotNull("Handler " + i + " of " + count + " did not receive posted event", handlers[i].waitForEvent(5000)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			for (int i = 0; i < count; i++)
+				handlers[i].clearLastEvent();
+		}
+		for (int i = 0; i < count; i++)
+			registrations[i].unregister();
+	}
+
+	/*
+	 * Ensures EventAdmin delivers the events posted by a thread to each 
+	 * EventHandler in the order they were posted.
+	 */
+	public void testPostedEventOrder() throws InterruptedException {
+		doTestPostedEventOrder(4);
+	}
+
+	/*
+	 * Ensures EventAdmin delivers the events posted by a thread to each 
+	 * EventHandler in the order they were posted when the handlers are 
+	 * spread over several delivery lanes. A handler is assigned to lane 
+	 * service.id % lanes, so handlers registered in turn use every lane.
+	 */
+	public void testPostedEventOrderOnLanes() throws Exception {
+		final int lanes = 4;
+		restartEventAdmin(new String[] {"equinox.event.async.threads"}, new String[] {String.valueOf(lanes)}); //$NON-NLS-1$
+		Long[] serviceIds = doTestPostedEventOrder(lanes * 3);
+		Set used = new HashSet();
+		for (int i = 0; i < serviceIds.length; i++)
+			used.add(new Long(serviceIds[i].longValue() % lanes));
+		assertEquals("Handlers were not spread over all lanes", lanes, used.size()); //$NON-NLS-1$
+	}
+
+	/*
+	 * Posts events to the given number of handlers, checks each handler 
+	 * received them in order and unregisters the handlers.
+	 * 
+	 * @return the service ids of the handlers
+	 */
+	private Long[] doTestPostedEventOrder(final int handlerCount) throws InterruptedException {
+		final int eventCount = 1000;
+		Dictionary properties = new Hashtable();
+		properties.put(EventConstants.EVENT_TOPIC, "a/b/*"); //$NON-NLS-1$
+		BundleContext bundleContext = Activator.getBundleContext();
+		final List[] received = new List[handlerCount];
+		ServiceRegistration[] registrations = new ServiceRegistration[handlerCount];
+		for (int i = 0; i < handlerCount; i++) {
+			final List events = new ArrayList();
+			received[i] = events;
+			registrations[i] = bundleContext.registerService(EventHandler.class, new EventHandler() {
+				public void handleEvent(Event event) {
+					synchronized (events) {
+						events.add(event.getProperty("index")); //$NON-NLS-1$
+						events.notifyAll();
+					}
+				}
+			}, properties);
+		}
+		for (int i = 0; i < eventCount; i++) {
+			Dictionary eventProperties = new Hashtable();
+			eventProperties.put("index", new Integer(i)); //$NON-NLS-1$
+			eventAdmin.postEvent(new Event("a/b/" + (i % 3), eventProperties)); //$NON-NLS-1$
+		}
+		for (int i = 0; i < handlerCount; i++) {
+			List events = received[i];
+			synchronized (events) {
+				long end = System.currentTimeMillis() + 5000;
+				while (events.size() < eventCount && System.currentTimeMillis() < end)
+					events.wait(100);
+				assertEquals("Wrong number of events received by handler " + i, eventCount, events.size()); //$NON-NLS-1$
+				for (int j = 0; j < eventCount; j++)
+					assertEquals("Event received out of order by handler " + i, new Integer(j), events.get(j)); //$NON-NLS-1$
+			}
+		}
+		Long[] serviceIds = new Long[handlerCount];
+		for (int i = 0; i < handlerCount; i++) {
+			serviceIds[i] = (Long) registrations[i].getReference().getProperty(Constants.SERVICE_ID);
+			registrations[i].unregister();
+		}
+		return serviceIds;
+	}
+
+	/*
+	 * Ensures the BatchEventAdmin service delivers each event of a batch, 
+	 * sent or posted, to the EventHandlers listening to its topic in order.
+	 */
+	public void testBatchEventDelivery() throws InterruptedException {
+		ServiceReference batchReference = Activator.getBundleContext().getServiceReference(BatchEventAdmin.class.getName());
+		assertNotNull("No BatchEventAdmin service", batchReference); //$NON-NLS-1$
+		BatchEventAdmin batchEventAdmin = (BatchEventAdmin) Activator.getBundleContext().getService(batchReference);
+		try {
+			Dictionary properties = new Hashtable();
+			properties.put(EventConstants.EVENT_TOPIC, "a/b/c"); //$NON-NLS-1$
+			properties.put(EventConstants.EVENT_FILTER, "(index<=7)"); //$NON-NLS-1$
+			final List received = new ArrayList();
+			ServiceRegistration handlerRegistration = Activator.getBundleContext().registerService(EventHandler.class, new EventHandler() {
+				public void handleEvent(Event event) {
+					synchronized (received) {
+						received.add(event.getProperty("index")); //$NON-NLS-1$
+						received.notifyAll();
+					}
+				}
+			}, properties);
+			Event[] events = new Event[10];
+			for (int i = 0; i < events.length; i++) {
+				Dictionary eventProperties = new Hashtable();
+				eventProperties.put("index", new Integer(i)); //$NON-NLS-1$
+				events[i] = new Event((i % 4 == 3) ? "d/e/f" : "a/b/c", eventProperties); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			Object[] expected = new Object[] {new Integer(0), new Integer(1), new Integer(2), new Integer(4), new Integer(5), new Integer(6)};
+
+			batchEventAdmin.sendEvents(events);
+			synchronized (received) {
+				assertEquals("Wrong events received from sent batch", Arrays.asList(expected), received); //$NON-NLS-1$
+				received.clear();
+			}
+
+			batchEventAdmin.postEvents(events);
+			synchronized (received) {
+				long end = System.currentTimeMillis() + 5000;
+				while (received.size() < expected.length && System.currentTimeMillis() < end)
+					received.wait(100);
+				assertEquals("Wrong events received from posted batch", Arrays.asList(expected), received); //$NON-NLS-1$
+			}
+			handlerRegistration.unregister();
+		} finally {
+			Activator.getBundleContext().ungetService(batchReference);
+		}
+	}
+
+	/*
+	 * Ensures EventAdmin applies the filters of EventHandlers, including 
+	 * handlers which share the same filter, to string and non-string event 
+	 * properties.
+	 */
+	public void testEventDeliveryWithFilters() {
+		BundleContext bundleContext = Activator.getBundleContext();
+		String[] filters = new String[] {"(&(a=x)(b=*))", "(&(b=*)(a=x))", "(|(a=y)(!(c=*)))", "(c=1)"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		EventHandlerHelper[] handlers = new EventHandlerHelper[filters.length];
+		ServiceRegistration[] registrations = new ServiceRegistration[filters.length];
+		for (int i = 0; i < filters.length; i++) {
+			Dictionary properties = new Hashtable();
+			properties.put(EventConstants.EVENT_TOPIC, "a/b/c"); //$NON-NLS-1$
+			properties.put(EventConstants.EVENT_FILTER, filters[i]);
+			handlers[i] = new EventHandlerHelper();
+			registrations[i] = bundleContext.registerService(EventHandler.class, handlers[i], properties);
+		}
+
+		Dictionary eventProperties = new Hashtable();
+		eventProperties.put("a", "x"); //$NON-NLS-1$ //$NON-NLS-2$
+		eventProperties.put("b", "z"); //$NON-NLS-1$ //$NON-NLS-2$
+		eventProperties.put("c", new Integer(1)); //$NON-NLS-1$
+		eventAdmin.sendEvent(new Event("a/b/c", eventProperties)); //$NON-NLS-1$
+		assertNotNull("Did not receive event matching " + filters[0], handlers[0].clearLastEvent()); //$NON-NLS-1$
+		assertNotNull("Did not receive event matching " + filters[1], handlers[1].clearLastEvent()); //$NON-NLS-1$
+		assertNull("Received event not matching " + filters[2], handlers[2].clearLastEvent()); //$NON-NLS-1$
+		assertNotNull("Did not receive event matching " + filters[3], handlers[3].clearLastEvent()); //$NON-NLS-1$
+
+		eventProperties = new Hashtable();
+		eventProperties.put("a", "x"); //$NON-NLS-1$ //$NON-NLS-2$
+		eventAdmin.sendEvent(new Event("a/b/c", eventProperties)); //$NON-NLS-1$
+		assertNull("Received event not matching " + filters[0], handlers[0].clearLastEvent()); //$NON-NLS-1$
+		assertNull("Received event not matching " + filters[1], handlers[1].clearLastEvent()); //$NON-NLS-1$
+		assertNotNull("Did not receive event matching " + filters[2], handlers[2].clearLastEvent()); //$NON-NLS-1$
+		assertNull("Received event not matching " + filters[3], handlers[3].clearLastEvent()); //$NON-NLS-1$
+
+		for (int i = 0; i < filters.length; i++)
+			registrations[i].unregister();
+	}
+
+	/*
+	 * Ensures EventAdmin counts the events an EventHandler takes longer than 
+	 * the handler timeout to handle and, when blacklisting is enabled, stops 
+	 * delivering events to that handler but not to the others.
+	 */
+	public void testHandlerTimeoutAndBlacklist() throws Exception {
+		restartEventAdmin(new String[] {"equinox.event.handler.timeout", "equinox.event.handler.blacklist"}, new String[] {"100", "true"}); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		Dictionary properties = new Hashtable();
+		properties.put(EventConstants.EVENT_TOPIC, "a/b/c"); //$NON-NLS-1$
+		BundleContext bundleContext = Activator.getBundleContext();
+		final int[] slowCount = new int[1];
+		ServiceRegistration slowRegistration = bundleContext.registerService(EventHandler.class, new EventHandler() {
+			public void handleEvent(Event event) {
+				synchronized (slowCount) {
+					slowCount[0]++;
+				}
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		}, properties);
+		EventHandlerHelper fast = new EventHandlerHelper();
+		ServiceRegistration fastRegistration = bundleContext.registerService(EventHandler.class, fast, properties);
+
+		eventAdmin.sendEvent(new Event("a/b/c", (Dictionary) null)); //$NON-NLS-1$
+		assertNotNull("Fast handler did not receive first event", fast.clearLastEvent()); //$NON-NLS-1$
+		eventAdmin.sendEvent(new Event("a/b/c", (Dictionary) null)); //$NON-NLS-1$
+		assertNotNull("Fast handler did not receive second event", fast.clearLastEvent()); //$NON-NLS-1$
+		synchronized (slowCount) {
+			assertEquals("Blacklisted handler received an event", 1, slowCount[0]); //$NON-NLS-1$
+		}
+
+		EventHandlerStatistics slow = getHandlerStatistics(slowRegistration);
+		assertEquals("Wrong delivery count of slow handler", 1, slow.getDeliveryCount()); //$NON-NLS-1$
+		assertEquals("Wrong timeout count of slow handler", 1, slow.getTimeoutCount()); //$NON-NLS-1$
+		assertTrue("Wrong max delivery time of slow handler: " + slow.getMaxDeliveryTime(), slow.getMaxDeliveryTime() > 100); //$NON-NLS-1$
+		assertTrue("Slow handler is not blacklisted", slow.isBlacklisted()); //$NON-NLS-1$
+
+		EventHandlerStatistics statistics = getHandlerStatistics(fastRegistration);
+		assertEquals("Wrong delivery count of fast handler", 2, statistics.getDeliveryCount()); //$NON-NLS-1$
+		assertEquals("Wrong timeout count of fast handler", 0, statistics.getTimeoutCount()); //$NON-NLS-1$
+		assertFalse("Fast handler is blacklisted", statistics.isBlacklisted()); //$NON-NLS-1$
+
+		slowRegistration.unregister();
+		fastRegistration.unregister();
+	}
 }
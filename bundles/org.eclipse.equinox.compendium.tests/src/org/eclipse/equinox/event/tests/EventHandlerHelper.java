@@ -22,11 +22,23 @@ public class EventHandlerHelper implements EventHandler {
 		return result;
 	}
 
-	public void handleEvent(Event event) {
+	public synchronized void handleEvent(Event event) {
 		lastEvent = event;
+		notifyAll();
 	}
 
 	public Event lastEvent() {
 		return lastEvent;
 	}
+
+	public synchronized Event waitForEvent(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (lastEvent == null) {
+			long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+			wait(remaining);
+		}
+		return lastEvent;
+	}
 }
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+import org.eclipse.equinox.internal.event.TopicHandlers.HandlerGroup;
+import org.osgi.service.event.Event;
+
+/**
+ * Delivers posted events on a fixed number of dedicated threads, called lanes.
+ * <p>
+ * Each handler is assigned to one lane by its service id and a lane delivers
+ * the events queued to it in the order they were posted. So although handlers
+ * on different lanes receive events in parallel, each handler receives the
+ * events posted by a thread in the order they were posted, as required by the
+ * specification. With a single lane all events are delivered in order on one
+ * thread.
+ * <p>
+ * Each lane holds posted events in a circular array of (handlers, event, run)
+ * entries which only grows when it is full, so posting an event in the steady state
+ * does not allocate. A lane thread is started when the first event is queued
+ * to the lane.
+ */
+class AsyncEventDispatcher {
+	private final Lane[] lanes;
+
+	/**
+	 * @param threadName name of the delivery threads
+	 * @param threadGroup thread group of the delivery threads
+	 * @param laneCount number of delivery threads
+	 */
+	AsyncEventDispatcher(String threadName, ThreadGroup threadGroup, int laneCount) {
+		lanes = new Lane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new Lane(laneCount == 1 ? threadName : threadName + " " + (i + 1), threadGroup, laneCount, i); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Queue the event for delivery to the handlers.
+	 *
+	 * @param topicHandlers The handlers to deliver the event to.
+	 * @param event The event to deliver.
+	 */
+	void post(TopicHandlers topicHandlers, Event event) {
+		if (lanes.length == 1) {
+			lanes[0].post(topicHandlers, event);
+			return;
+		}
+		HandlerGroup[][] laneGroups = topicHandlers.getLaneGroups(lanes.length);
+		for (int i = 0; i < lanes.length; i++) {
+			if (laneGroups[i].length > 0) {
+				lanes[i].post(topicHandlers, event);
+			}
+		}
+	}
+
+	/**
+	 * Queue a batch of events for delivery. The events are added to each lane
+	 * in a single operation. Consecutive events with the same handlers are
+	 * queued as a run which each handler receives before the next handler is
+	 * called.
+	 *
+	 * @param topicHandlers The handlers to deliver each event to; null if the event has no handlers.
+	 * @param events The events to deliver.
+	 */
+	void postAll(TopicHandlers[] topicHandlers, Event[] events) {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].postAll(topicHandlers, events);
+		}
+	}
+
+	/**
+	 * Stop the delivery threads. Events which have not been delivered are discarded.
+	 */
+	void close() {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].close();
+		}
+	}
+
+	/**
+	 * A delivery thread and its queue.
+	 */
+	private static class Lane implements Runnable {
+		private static final int INITIAL_CAPACITY = 64;
+
+		private final String threadName;
+		private final ThreadGroup threadGroup;
+		private final int laneCount;
+		private final int index;
+
+		/* @GuardedBy this */
+		private TopicHandlers[] handlers = new TopicHandlers[INITIAL_CAPACITY];
+		/* @GuardedBy this */
+		private Event[] events = new Event[INITIAL_CAPACITY];
+		// number of entries in the run of events starting at an entry; 0 for the following entries of a run
+		/* @GuardedBy this */
+		private int[] runs = new int[INITIAL_CAPACITY];
+		/* @GuardedBy this */
+		private int head;
+		/* @GuardedBy this */
+		private int count;
+		/* @GuardedBy this */
+		private boolean waiting;
+		/* @GuardedBy this */
+		private Thread thread;
+		/* @GuardedBy this */
+		private boolean closed;
+
+		Lane(String threadName, ThreadGroup threadGroup, int laneCount, int index) {
+			this.threadName = threadName;
+			this.threadGroup = threadGroup;
+			this.laneCount = laneCount;
+			this.index = index;
+		}
+
+		synchronized void post(TopicHandlers topicHandlers, Event event) {
+			if (closed) {
+				return;
+			}
+			if (count == handlers.length) {
+				grow();
+			}
+			int tail = (head + count) & (handlers.length - 1);
+			handlers[tail] = topicHandlers;
+			events[tail] = event;
+			runs[tail] = 1;
+			count++;
+			wakeUp();
+		}
+
+		synchronized void postAll(TopicHandlers[] topicHandlers, Event[] batch) {
+			if (closed) {
+				return;
+			}
+			int runStart = -1;
+			for (int i = 0; i < batch.length; i++) {
+				TopicHandlers current = topicHandlers[i];
+				if ((current == null) || ((laneCount > 1) && (current.getLaneGroups(laneCount)[index].length == 0))) {
+					continue;
+				}
+				if (count == handlers.length) {
+					// grow moves the entries to the start of the array
+					int offset = (runStart - head) & (handlers.length - 1);
+					grow();
+					if (runStart >= 0) {
+						runStart = offset;
+					}
+				}
+				int tail = (head + count) & (handlers.length - 1);
+				handlers[tail] = current;
+				events[tail] = batch[i];
+				if ((runStart >= 0) && (handlers[runStart] == current)) {
+					runs[runStart]++;
+					runs[tail] = 0;
+				} else {
+					runStart = tail;
+					runs[tail] = 1;
+				}
+				count++;
+			}
+			if (runStart >= 0) {
+				wakeUp();
+			}
+		}
+
+		/**
+		 * Start the thread or wake it up after entries have been queued.
+		 * 
+		 * @GuardedBy this
+		 */
+		private void wakeUp() {
+			if (thread == null) {
+				thread = new Thread(threadGroup, this, threadName);
+				thread.setDaemon(true);
+				thread.start();
+			} else if (waiting) {
+				notify();
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			for (int i = 0; i < handlers.length; i++) {
+				handlers[i] = null;
+				events[i] = null;
+				runs[i] = 0;
+			}
+			count = 0;
+			notifyAll();
+		}
+
+		/**
+		 * Double the capacity, keeping the queued entries in order.
+		 *
+		 * @GuardedBy this
+		 */
+		private void grow() {
+			int length = handlers.length;
+			TopicHandlers[] newHandlers = new TopicHandlers[length << 1];
+			Event[] newEvents = new Event[length << 1];
+			int[] newRuns = new int[length << 1];
+			int first = length - head;
+			System.arraycopy(handlers, head, newHandlers, 0, first);
+			System.arraycopy(handlers, 0, newHandlers, first, head);
+			System.arraycopy(events, head, newEvents, 0, first);
+			System.arraycopy(events, 0, newEvents, first, head);
+			System.arraycopy(runs, head, newRuns, 0, first);
+			System.arraycopy(runs, 0, newRuns, first, head);
+			handlers = newHandlers;
+			events = newEvents;
+			runs = newRuns;
+			head = 0;
+		}
+
+		public void run() {
+			// the events of the run being delivered
+			Event[] run = new Event[1];
+			while (true) {
+				TopicHandlers topicHandlers;
+				int length;
+				synchronized (this) {
+					while (count == 0 && !closed) {
+						waiting = true;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// ignore and check again
+						}
+						waiting = false;
+					}
+					if (closed) {
+						thread = null;
+						return;
+					}
+					topicHandlers = handlers[head];
+					length = runs[head];
+					if (length > run.length) {
+						run = new Event[length];
+					}
+					for (int i = 0; i < length; i++) {
+						run[i] = events[head];
+						handlers[head] = null;
+						events[head] = null;
+						runs[head] = 0;
+						head = (head + 1) & (handlers.length - 1);
+					}
+					count -= length;
+				}
+				try {
+					HandlerGroup[] groups = (laneCount == 1) ? topicHandlers.getGroups() : topicHandlers.getLaneGroups(laneCount)[index];
+					if (length == 1) {
+						topicHandlers.deliver(run[0], groups);
+					} else {
+						topicHandlers.deliver(run, 0, length, groups);
+					}
+				} catch (Throwable t) {
+					// EventHandlerWrapper handles exceptions thrown by the handlers; do not let anything else stop the thread
+				}
+				for (int i = 0; i < length; i++) {
+					run[i] = null;
+				}
+			}
+		}
+	}
+}
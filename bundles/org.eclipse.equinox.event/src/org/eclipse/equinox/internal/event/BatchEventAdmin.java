@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+import org.osgi.service.event.Event;
+
+/**
+ * An extension of the Event Admin service for publishing many events at once.
+ * It is registered together with the EventAdmin service.
+ * <p>
+ * Publishing a batch is equivalent to publishing each event in turn, in
+ * order, except that the topic permission check and the handler lookup are
+ * done once for each distinct topic in the batch, and each handler receives
+ * a run of consecutive events on the same topic before the next handler is
+ * called. If the caller lacks permission to publish any of the topics no
+ * event in the batch is published.
+ */
+public interface BatchEventAdmin {
+	/**
+	 * Initiate asynchronous, ordered delivery of the events.
+	 * 
+	 * @param events The events to send to the handlers.
+	 * @throws SecurityException If the caller does not have
+	 *         <code>TopicPermission[topic,PUBLISH]</code> for the topic of an event.
+	 */
+	public void postEvents(Event[] events);
+
+	/**
+	 * Initiate synchronous delivery of the events. This method does not
+	 * return to the caller until delivery of all the events is completed.
+	 * 
+	 * @param events The events to send to the handlers.
+	 * @throws SecurityException If the caller does not have
+	 *         <code>TopicPermission[topic,PUBLISH]</code> for the topic of an event.
+	 */
+	public void sendEvents(Event[] events);
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2005, 2010 IBM Corporation and others.
+ * Copyright (c) 2005, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -11,24 +11,38 @@
 
 package org.eclipse.equinox.internal.event;
 
-import java.security.Permission;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import org.eclipse.osgi.framework.eventmgr.*;
 import org.eclipse.osgi.util.NLS;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.*;
 import org.osgi.service.log.LogService;
 
 /**
- * Implementation of org.osgi.service.event.EventAdmin. EventAdminImpl uses
- * org.eclipse.osgi.framework.eventmgr.EventManager. It is assumed
- * org.eclipse.osgi.framework.eventmgr package is exported by some other bundle.
+ * Implementation of org.osgi.service.event.EventAdmin. Synchronous events are
+ * delivered on the calling thread and asynchronous events are delivered by an
+ * AsyncEventDispatcher using the number of threads given by the
+ * equinox.event.async.threads framework property. Both deliver to the immutable TopicHandlers snapshot
+ * for the event topic so publishing to a topic whose handlers have not changed
+ * does not allocate.
  */
-public class EventAdminImpl implements EventAdmin {
+public class EventAdminImpl implements EventAdmin, BatchEventAdmin {
+	/** Framework property for the number of topics for which the subscribed handlers are cached */
+	static final String PROP_TOPIC_CACHE_SIZE = "equinox.event.topic.cache.size"; //$NON-NLS-1$
+	private static final int DEFAULT_TOPIC_CACHE_SIZE = 1024;
+	/** Framework property for the number of threads which deliver asynchronous events */
+	static final String PROP_ASYNC_THREADS = "equinox.event.async.threads"; //$NON-NLS-1$
+	private static final int DEFAULT_ASYNC_THREADS = 1;
+	/** Framework property for the time in milliseconds a handler may take to handle an event */
+	static final String PROP_HANDLER_TIMEOUT = "equinox.event.handler.timeout"; //$NON-NLS-1$
+	/** Framework property to blacklist handlers which exceed the handler timeout */
+	static final String PROP_HANDLER_BLACKLIST = "equinox.event.handler.blacklist"; //$NON-NLS-1$
+
 	private final LogTracker log;
 	private final EventHandlerTracker handlers;
-	private volatile EventManager eventManager;
+	private final int asyncThreads;
+	private final HandlerWatchdog watchdog;
+	private volatile AsyncEventDispatcher asyncDispatcher;
 
 	/**
 	 * Constructor for EventAdminImpl.
@@ -38,7 +52,11 @@ public class EventAdminImpl implements EventAdmin {
 	EventAdminImpl(BundleContext context) {
 		super();
 		log = new LogTracker(context, System.out);
-		handlers = new EventHandlerTracker(context, log);
+		int timeout = getIntProperty(context, PROP_HANDLER_TIMEOUT, 0);
+		boolean blacklist = Boolean.valueOf(context.getProperty(PROP_HANDLER_BLACKLIST)).booleanValue();
+		handlers = new EventHandlerTracker(context, log, getIntProperty(context, PROP_TOPIC_CACHE_SIZE, DEFAULT_TOPIC_CACHE_SIZE), timeout, blacklist);
+		asyncThreads = getIntProperty(context, PROP_ASYNC_THREADS, DEFAULT_ASYNC_THREADS);
+		watchdog = (timeout > 0) ? new HandlerWatchdog(handlers, timeout) : null;
 	}
 
 	/**
@@ -48,17 +66,23 @@ public class EventAdminImpl implements EventAdmin {
 		log.open();
 		ThreadGroup eventGroup = new ThreadGroup("Equinox Event Admin"); //$NON-NLS-1$
 		eventGroup.setDaemon(true);
-		eventManager = new EventManager(EventAdminMsg.EVENT_ASYNC_THREAD_NAME, eventGroup);
+		asyncDispatcher = new AsyncEventDispatcher(EventAdminMsg.EVENT_ASYNC_THREAD_NAME, eventGroup, asyncThreads);
 		handlers.open();
+		if (watchdog != null) {
+			watchdog.start(EventAdminMsg.EVENT_WATCHDOG_THREAD_NAME, eventGroup);
+		}
 	}
 
 	/**
 	 * This method should be called after unregistering EventAdmin service
 	 */
 	void stop() {
+		if (watchdog != null) {
+			watchdog.stop();
+		}
 		handlers.close();
-		eventManager.close();
-		eventManager = null; // signify we have stopped
+		asyncDispatcher.close();
+		asyncDispatcher = null; // signify we have stopped
 		log.close();
 	}
 
@@ -78,6 +102,31 @@ public class EventAdminImpl implements EventAdmin {
 		dispatchEvent(event, false);
 	}
 
+	/**
+	 * @param events
+	 * @see org.eclipse.equinox.internal.event.BatchEventAdmin#postEvents(org.osgi.service.event.Event[])
+	 */
+	public void postEvents(Event[] events) {
+		dispatchEvents(events, true);
+	}
+
+	/**
+	 * @param events
+	 * @see org.eclipse.equinox.internal.event.BatchEventAdmin#sendEvents(org.osgi.service.event.Event[])
+	 */
+	public void sendEvents(Event[] events) {
+		dispatchEvents(events, false);
+	}
+
+	/**
+	 * Returns the delivery statistics of the registered event handlers.
+	 * 
+	 * @return the statistics of each handler which subscribes to at least one topic
+	 */
+	public EventHandlerStatistics[] getHandlerStatistics() {
+		return handlers.getWrappers();
+	}
+
 	/**
 	 * Internal main method for sendEvent() and postEvent(). Dispatching an
 	 * event to EventHandler. All exceptions are logged except when dealing with
@@ -89,8 +138,8 @@ public class EventAdminImpl implements EventAdmin {
 	 */
 	private void dispatchEvent(Event event, boolean isAsync) {
 		// keep a local copy in case we are stopped in the middle of dispatching
-		EventManager currentManager = eventManager;
-		if (currentManager == null) {
+		AsyncEventDispatcher currentDispatcher = asyncDispatcher;
+		if (currentDispatcher == null) {
 			// EventAdmin is stopped
 			return;
 		}
@@ -110,29 +159,87 @@ public class EventAdminImpl implements EventAdmin {
 			throw e;
 		}
 
-		Set<EventHandlerWrapper> eventHandlers = handlers.getHandlers(topic);
+		TopicHandlers eventHandlers = handlers.getHandlers(topic);
 		// If there are no handlers, then we are done
 		if (eventHandlers.isEmpty()) {
 			return;
 		}
 
-		SecurityManager sm = System.getSecurityManager();
-		Permission perm = (sm == null) ? null : new TopicPermission(topic, TopicPermission.SUBSCRIBE);
-
-		Map<EventHandlerWrapper, Permission> listeners = new CopyOnWriteIdentityMap<EventHandlerWrapper, Permission>();
-		for (EventHandlerWrapper wrapper : eventHandlers)
-			listeners.put(wrapper, perm);
-
-		// Create the listener queue for this event delivery
-		ListenerQueue<EventHandlerWrapper, Permission, Event> listenerQueue = new ListenerQueue<EventHandlerWrapper, Permission, Event>(currentManager);
-		// Add the listeners to the queue and associate them with the event
-		// dispatcher
-		listenerQueue.queueListeners(listeners.entrySet(), handlers);
-		// Deliver the event to the listeners.
+		// Deliver the event to the handlers.
 		if (isAsync) {
-			listenerQueue.dispatchEventAsynchronous(0, event);
+			currentDispatcher.post(eventHandlers, event);
 		} else {
-			listenerQueue.dispatchEventSynchronous(0, event);
+			eventHandlers.deliver(event);
+		}
+	}
+
+	/**
+	 * Internal main method for sendEvents() and postEvents(). The topic
+	 * permission is checked and the handlers are looked up once for each
+	 * distinct topic before any of the events is delivered.
+	 * 
+	 * @param events to be delivered
+	 * @param isAsync must be set to true for asynchronous event delivery, false
+	 *        for synchronous delivery.
+	 */
+	private void dispatchEvents(Event[] events, boolean isAsync) {
+		// keep a local copy in case we are stopped in the middle of dispatching
+		AsyncEventDispatcher currentDispatcher = asyncDispatcher;
+		if (currentDispatcher == null) {
+			// EventAdmin is stopped
+			return;
+		}
+
+		TopicHandlers[] eventHandlers = new TopicHandlers[events.length];
+		Map<String, TopicHandlers> topics = new HashMap<String, TopicHandlers>();
+		boolean empty = true;
+		for (int i = 0; i < events.length; i++) {
+			Event event = events[i];
+			if (event == null) {
+				log.log(LogService.LOG_ERROR, EventAdminMsg.EVENT_NULL_EVENT);
+				// continue from here will result in an NPE below; the spec for EventAdmin does not allow for null here
+			}
+
+			String topic = event.getTopic();
+			TopicHandlers topicHandlers = topics.get(topic);
+			if (topicHandlers == null) {
+				try {
+					checkTopicPermissionPublish(topic);
+				} catch (SecurityException e) {
+					String msg = NLS.bind(EventAdminMsg.EVENT_NO_TOPICPERMISSION_PUBLISH, topic);
+					log.log(LogService.LOG_ERROR, msg);
+					// must throw a security exception here according to the EventAdmin spec
+					throw e;
+				}
+				topicHandlers = handlers.getHandlers(topic);
+				topics.put(topic, topicHandlers);
+			}
+			if (!topicHandlers.isEmpty()) {
+				eventHandlers[i] = topicHandlers;
+				empty = false;
+			}
+		}
+		// If there are no handlers, then we are done
+		if (empty) {
+			return;
+		}
+
+		// Deliver the events to the handlers.
+		if (isAsync) {
+			currentDispatcher.postAll(eventHandlers, events);
+			return;
+		}
+		int start = 0;
+		while (start < events.length) {
+			TopicHandlers topicHandlers = eventHandlers[start];
+			int end = start + 1;
+			while ((end < events.length) && (eventHandlers[end] == topicHandlers)) {
+				end++;
+			}
+			if (topicHandlers != null) {
+				topicHandlers.deliver(events, start, end - start, topicHandlers.getGroups());
+			}
+			start = end;
 		}
 	}
 
@@ -149,4 +256,24 @@ public class EventAdminImpl implements EventAdmin {
 		sm.checkPermission(new TopicPermission(topic, TopicPermission.PUBLISH));
 	}
 
+	/**
+	 * Returns the value of an integer framework property.
+	 * 
+	 * @param context BundleContext
+	 * @param key the property key
+	 * @param defaultValue the value to use if the property is not set or is not a positive integer
+	 * @return the property value
+	 */
+	static int getIntProperty(BundleContext context, String key, int defaultValue) {
+		String value = context.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			int result = Integer.parseInt(value.trim());
+			return result > 0 ? result : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2010 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -22,6 +22,11 @@ public class EventAdminMsg extends NLS {
 	public static String EVENT_DISPATCH_HANDLER_EXCEPTION;
 	public static String EVENT_INVALID_HANDLER_FILTER;
 	public static String EVENT_INVALID_HANDLER_TOPICS;
+	public static String EVENT_WATCHDOG_THREAD_NAME;
+	public static String EVENT_HANDLER_TIMEOUT;
+	public static String EVENT_HANDLER_TIMEOUTS_NOT_LOGGED;
+	public static String EVENT_HANDLER_STALLED;
+	public static String EVENT_HANDLER_BLACKLISTED;
 
 	static {
 		// initialize resource bundles
@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+/**
+ * Access to the delivery statistics of the event handlers. It is registered
+ * together with the EventAdmin service.
+ */
+public interface EventAdminStatistics {
+	/**
+	 * Returns the delivery statistics of the registered event handlers.
+	 * 
+	 * @return The statistics of each handler which subscribes to at least one topic.
+	 */
+	public EventHandlerStatistics[] getHandlerStatistics();
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009 IBM Corporation and others.
+ * Copyright (c) 2009, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -15,7 +15,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 
-public class EventComponent implements EventAdmin {
+public class EventComponent implements EventAdmin, BatchEventAdmin, EventAdminStatistics {
 	private EventRedeliverer eventRedeliverer;
 	private EventAdminImpl eventAdmin;
 
@@ -38,4 +38,16 @@ public class EventComponent implements EventAdmin {
 	public void sendEvent(Event event) {
 		eventAdmin.sendEvent(event);
 	}
+
+	public void postEvents(Event[] events) {
+		eventAdmin.postEvents(events);
+	}
+
+	public void sendEvents(Event[] events) {
+		eventAdmin.sendEvents(events);
+	}
+
+	public EventHandlerStatistics[] getHandlerStatistics() {
+		return eventAdmin.getHandlerStatistics();
+	}
 }
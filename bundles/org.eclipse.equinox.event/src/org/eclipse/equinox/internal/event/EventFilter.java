@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.osgi.framework.Filter;
+import org.osgi.service.event.Event;
+
+/**
+ * An event handler filter compiled for matching events.
+ * <p>
+ * Event.matches(Filter) wraps the event properties in a new dictionary and
+ * the framework filter then matches each operand against it, converting the
+ * filter value to the type of the property value. The common case of an
+ * event filter, presence and equality tests of string properties combined
+ * with and, or and not, is compiled here into a tree which looks the
+ * properties up directly in the event. The operands of an and or or are
+ * ordered so these tests are evaluated first and can short-circuit the rest.
+ * <p>
+ * Anything else, such as substring, approximate or ordering operands or a
+ * property value which is not a string, evaluates to unknown, in which case
+ * the framework filter decides the match. So a compiled filter always gives
+ * the same result as the framework filter.
+ */
+class EventFilter {
+	static final int FALSE = 0;
+	static final int TRUE = 1;
+	static final int UNKNOWN = 2;
+
+	private final Filter filter;
+	private final String key;
+	private final Node root;
+
+	private EventFilter(Filter filter, String key, Node root) {
+		this.filter = filter;
+		this.key = key;
+		this.root = root;
+	}
+
+	/**
+	 * Compile a filter.
+	 *
+	 * @param filter The filter to compile.
+	 * @return The compiled filter.
+	 */
+	static EventFilter compile(Filter filter) {
+		String key = filter.toString();
+		Node root;
+		try {
+			Parser parser = new Parser(key);
+			root = parser.parse();
+			if (parser.pos != key.length()) {
+				root = Unknown.INSTANCE;
+			}
+		} catch (RuntimeException e) {
+			// unexpected syntax; leave it to the framework filter
+			root = Unknown.INSTANCE;
+		}
+		return new EventFilter(filter, key, root);
+	}
+
+	/**
+	 * Return the normalized filter string. Filters with the same key are
+	 * equivalent.
+	 *
+	 * @return The normalized filter string.
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Match the event against the filter.
+	 *
+	 * @param event The event to match.
+	 * @return true if the event matches the filter.
+	 */
+	boolean matches(Event event) {
+		int result = root.evaluate(event);
+		if (result == UNKNOWN) {
+			return event.matches(filter);
+		}
+		return result == TRUE;
+	}
+
+	public String toString() {
+		return key;
+	}
+
+	private static abstract class Node {
+		/**
+		 * @return TRUE, FALSE or UNKNOWN
+		 */
+		abstract int evaluate(Event event);
+
+		/**
+		 * @return the relative cost of evaluating this node; cheaper nodes are evaluated first
+		 */
+		abstract int cost();
+	}
+
+	private static class Unknown extends Node {
+		static final Unknown INSTANCE = new Unknown();
+
+		int evaluate(Event event) {
+			return UNKNOWN;
+		}
+
+		int cost() {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	private static class Present extends Node {
+		private final String attr;
+
+		Present(String attr) {
+			this.attr = attr;
+		}
+
+		int evaluate(Event event) {
+			return (event.getProperty(attr) != null) ? TRUE : FALSE;
+		}
+
+		int cost() {
+			return 1;
+		}
+	}
+
+	private static class Equal extends Node {
+		private final String attr;
+		private final String value;
+
+		Equal(String attr, String value) {
+			this.attr = attr;
+			this.value = value;
+		}
+
+		int evaluate(Event event) {
+			Object property = event.getProperty(attr);
+			if (property == null) {
+				return FALSE;
+			}
+			if (property instanceof String) {
+				return value.equals(property) ? TRUE : FALSE;
+			}
+			// let the framework filter convert the value
+			return UNKNOWN;
+		}
+
+		int cost() {
+			return 2;
+		}
+	}
+
+	private static class Not extends Node {
+		private final Node operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		int evaluate(Event event) {
+			switch (operand.evaluate(event)) {
+				case TRUE :
+					return FALSE;
+				case FALSE :
+					return TRUE;
+				default :
+					return UNKNOWN;
+			}
+		}
+
+		int cost() {
+			return operand.cost();
+		}
+	}
+
+	private static class And extends Node {
+		private final Node[] operands;
+
+		And(Node[] operands) {
+			this.operands = operands;
+		}
+
+		int evaluate(Event event) {
+			int result = TRUE;
+			for (int i = 0; i < operands.length; i++) {
+				int value = operands[i].evaluate(event);
+				if (value == FALSE) {
+					return FALSE;
+				}
+				if (value == UNKNOWN) {
+					result = UNKNOWN;
+				}
+			}
+			return result;
+		}
+
+		int cost() {
+			return sumCost(operands);
+		}
+	}
+
+	private static class Or extends Node {
+		private final Node[] operands;
+
+		Or(Node[] operands) {
+			this.operands = operands;
+		}
+
+		int evaluate(Event event) {
+			int result = FALSE;
+			for (int i = 0; i < operands.length; i++) {
+				int value = operands[i].evaluate(event);
+				if (value == TRUE) {
+					return TRUE;
+				}
+				if (value == UNKNOWN) {
+					result = UNKNOWN;
+				}
+			}
+			return result;
+		}
+
+		int cost() {
+			return sumCost(operands);
+		}
+	}
+
+	private static int sumCost(Node[] operands) {
+		long cost = 0;
+		for (int i = 0; i < operands.length; i++) {
+			cost += operands[i].cost();
+		}
+		return (int) Math.min(cost, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Parses the normalized string form of a filter as returned by Filter.toString().
+	 */
+	private static class Parser {
+		private final String filter;
+		int pos;
+
+		Parser(String filter) {
+			this.filter = filter;
+		}
+
+		Node parse() {
+			expect('(');
+			Node result;
+			switch (filter.charAt(pos)) {
+				case '&' :
+					pos++;
+					result = new And(parseOperands());
+					break;
+				case '|' :
+					pos++;
+					result = new Or(parseOperands());
+					break;
+				case '!' :
+					pos++;
+					result = new Not(parse());
+					break;
+				default :
+					result = parseItem();
+			}
+			expect(')');
+			return result;
+		}
+
+		private Node[] parseOperands() {
+			List<Node> operands = new ArrayList<Node>();
+			while (filter.charAt(pos) == '(') {
+				Node operand = parse();
+				// order the operands by cost; a stable insertion sort as there are few operands
+				int i = operands.size();
+				while ((i > 0) && (operands.get(i - 1).cost() > operand.cost())) {
+					i--;
+				}
+				operands.add(i, operand);
+			}
+			if (operands.isEmpty()) {
+				throw new IllegalArgumentException(filter);
+			}
+			return operands.toArray(new Node[operands.size()]);
+		}
+
+		private Node parseItem() {
+			int start = pos;
+			while ("=<>~()".indexOf(filter.charAt(pos)) < 0) { //$NON-NLS-1$
+				pos++;
+			}
+			String attr = filter.substring(start, pos).trim();
+			if (attr.length() == 0) {
+				throw new IllegalArgumentException(filter);
+			}
+			char op = filter.charAt(pos);
+			if (op != '=') {
+				// approximate or ordering operand
+				pos++;
+				expect('=');
+				skipValue();
+				return Unknown.INSTANCE;
+			}
+			pos++;
+			StringBuffer value = new StringBuffer();
+			boolean wildcard = false;
+			while (true) {
+				char c = filter.charAt(pos);
+				if (c == ')') {
+					break;
+				}
+				if (c == '(') {
+					throw new IllegalArgumentException(filter);
+				}
+				pos++;
+				if (c == '*') {
+					wildcard = true;
+				} else if (c == '\\') {
+					c = filter.charAt(pos++);
+				}
+				value.append(c);
+			}
+			if (!wildcard) {
+				return new Equal(attr, value.toString());
+			}
+			if ((value.length() == 1) && (filter.charAt(pos - 1) == '*') && (filter.charAt(pos - 2) == '=')) {
+				return new Present(attr);
+			}
+			// substring operand
+			return Unknown.INSTANCE;
+		}
+
+		private void skipValue() {
+			while (true) {
+				char c = filter.charAt(pos);
+				if (c == ')') {
+					return;
+				}
+				if (c == '(') {
+					throw new IllegalArgumentException(filter);
+				}
+				pos++;
+				if (c == '\\') {
+					pos++;
+				}
+			}
+		}
+
+		private void expect(char c) {
+			if (filter.charAt(pos) != c) {
+				throw new IllegalArgumentException(filter);
+			}
+			pos++;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Delivery statistics of an EventHandler. The statistics are kept from the
+ * time the handler is registered and are meant for diagnosing handlers
+ * which slow down event delivery.
+ * 
+ * @see EventAdminStatistics
+ */
+public interface EventHandlerStatistics {
+	/**
+	 * @return The reference of the EventHandler.
+	 */
+	public ServiceReference<EventHandler> getReference();
+
+	/**
+	 * @return The number of events delivered to the handler.
+	 */
+	public long getDeliveryCount();
+
+	/**
+	 * @return The mean time, in milliseconds, the handler took to handle an event.
+	 */
+	public long getMeanDeliveryTime();
+
+	/**
+	 * @return The longest time, in milliseconds, the handler took to handle an event.
+	 */
+	public long getMaxDeliveryTime();
+
+	/**
+	 * @return The number of events the handler took longer than the timeout to handle.
+	 */
+	public long getTimeoutCount();
+
+	/**
+	 * @return true if the handler exceeded the timeout and no longer receives events.
+	 */
+	public boolean isBlacklisted();
+}
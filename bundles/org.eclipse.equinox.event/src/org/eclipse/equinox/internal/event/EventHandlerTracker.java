@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2007, 2010 IBM Corporation and others.
+ * Copyright (c) 2007, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -11,39 +11,49 @@
 
 package org.eclipse.equinox.internal.event;
 
-import java.security.Permission;
 import java.util.*;
-import org.eclipse.osgi.framework.eventmgr.EventDispatcher;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
-import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
 
-public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandlerWrapper> implements EventDispatcher<EventHandlerWrapper, Permission, Event> {
+public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandlerWrapper> {
 
 	private final LogService log;
-	//* List<EventHandlerWrapper> of all handlers with topic of "*"
-	private final List<EventHandlerWrapper> globalWildcard;
-	// Map<String,List<EventHandlerWrapper>> key is topic prefix of partial wildcard
-	private final Map<String, List<EventHandlerWrapper>> partialWildcard;
-	// Map<String,List<EventHandlerWrapper>> key is topic name
-	private final Map<String, List<EventHandlerWrapper>> topicName;
+	// Set<EventHandlerWrapper> of all handlers with valid topics
+	private final Set<EventHandlerWrapper> wrappers;
+	private final int cacheSize;
+	private final long timeout;
+	private final boolean blacklist;
+	// the current topic index; replaced whenever the handlers change
+	private volatile TopicTrie trie;
 
-	public EventHandlerTracker(BundleContext context, LogService log) {
+	/**
+	 * Create an EventHandlerTracker.
+	 * 
+	 * @param context Bundle Context of the Event Admin bundle
+	 * @param log LogService object for logging
+	 * @param cacheSize maximum number of topics for which the resolved handlers are cached
+	 * @param timeout time in milliseconds a handler may take to handle an event; 0 for no timeout
+	 * @param blacklist true if handlers are to be blacklisted when they exceed the timeout
+	 */
+	public EventHandlerTracker(BundleContext context, LogService log, int cacheSize, long timeout, boolean blacklist) {
 		super(context, EventHandler.class.getName(), null);
 		this.log = log;
-		globalWildcard = new ArrayList<EventHandlerWrapper>();
-		partialWildcard = new HashMap<String, List<EventHandlerWrapper>>();
-		topicName = new HashMap<String, List<EventHandlerWrapper>>();
+		this.cacheSize = cacheSize;
+		this.timeout = timeout;
+		this.blacklist = blacklist;
+		wrappers = new LinkedHashSet<EventHandlerWrapper>();
+		trie = TopicTrie.build(wrappers, cacheSize);
 	}
 
 	public EventHandlerWrapper addingService(ServiceReference<EventHandler> reference) {
-		EventHandlerWrapper wrapper = new EventHandlerWrapper(reference, context, log);
+		EventHandlerWrapper wrapper = new EventHandlerWrapper(reference, context, log, timeout, blacklist);
 		synchronized (this) {
 			if (wrapper.init()) {
-				bucket(wrapper);
+				wrappers.add(wrapper);
+				rebuild();
 			}
 		}
 		return wrapper;
@@ -51,9 +61,13 @@ public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandl
 
 	public void modifiedService(ServiceReference<EventHandler> reference, EventHandlerWrapper service) {
 		synchronized (this) {
-			unbucket(service);
-			if (service.init()) {
-				bucket(service);
+			wrappers.remove(service);
+			boolean valid = service.init();
+			if (valid) {
+				wrappers.add(service);
+			}
+			rebuild();
+			if (valid) {
 				return;
 			}
 		}
@@ -63,137 +77,41 @@ public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandl
 
 	public void removedService(ServiceReference<EventHandler> reference, EventHandlerWrapper service) {
 		synchronized (this) {
-			unbucket(service);
+			if (wrappers.remove(service)) {
+				rebuild();
+			}
 		}
 		service.flush(); // needs to be called outside sync region
 	}
 
 	/**
-	 * Place the wrapper into the appropriate buckets.
-	 * This is a performance optimization for event delivery.
+	 * Replace the topic index with one built from the current handlers.
+	 * The old index, and the handlers it has cached, is discarded. 
 	 * 
-	 * @param wrapper The wrapper to place in buckets.
 	 * @GuardedBy this
 	 */
-	private void bucket(EventHandlerWrapper wrapper) {
-		final String[] topics = wrapper.getTopics();
-		final int length = (topics == null) ? 0 : topics.length;
-		for (int i = 0; i < length; i++) {
-			String topic = topics[i];
-			// global wildcard
-			if (topic.equals("*")) { //$NON-NLS-1$
-				globalWildcard.add(wrapper);
-			}
-			// partial wildcard
-			else if (topic.endsWith("/*")) { //$NON-NLS-1$
-				String key = topic.substring(0, topic.length() - 2); // Strip off "/*" from the end
-				List<EventHandlerWrapper> wrappers = partialWildcard.get(key);
-				if (wrappers == null) {
-					wrappers = new ArrayList<EventHandlerWrapper>();
-					partialWildcard.put(key, wrappers);
-				}
-				wrappers.add(wrapper);
-			}
-			// simple topic name
-			else {
-				List<EventHandlerWrapper> wrappers = topicName.get(topic);
-				if (wrappers == null) {
-					wrappers = new ArrayList<EventHandlerWrapper>();
-					topicName.put(topic, wrappers);
-				}
-				wrappers.add(wrapper);
-			}
-		}
+	private void rebuild() {
+		trie = TopicTrie.build(wrappers, cacheSize);
 	}
 
 	/**
-	 * Remove the wrapper from the buckets.
+	 * Return the handlers which subscribe to at least one topic.
 	 * 
-	 * @param wrapper The wrapper to remove from the buckets.
-	 * @GuardedBy this
+	 * @return the handlers
 	 */
-	private void unbucket(EventHandlerWrapper wrapper) {
-		final String[] topics = wrapper.getTopics();
-		final int length = (topics == null) ? 0 : topics.length;
-		for (int i = 0; i < length; i++) {
-			String topic = topics[i];
-			// global wilcard
-			if (topic.equals("*")) { //$NON-NLS-1$
-				globalWildcard.remove(wrapper);
-			}
-			// partial wildcard
-			else if (topic.endsWith("/*")) { //$NON-NLS-1$
-				String key = topic.substring(0, topic.length() - 2); // Strip off "/*" from the end
-				List<EventHandlerWrapper> wrappers = partialWildcard.get(key);
-				if (wrappers != null) {
-					wrappers.remove(wrapper);
-					if (wrappers.isEmpty()) {
-						partialWildcard.remove(key);
-					}
-				}
-			}
-			// simple topic name
-			else {
-				List<EventHandlerWrapper> wrappers = topicName.get(topic);
-				if (wrappers != null) {
-					wrappers.remove(wrapper);
-					if (wrappers.isEmpty()) {
-						topicName.remove(topic);
-					}
-				}
-			}
-		}
+	synchronized EventHandlerWrapper[] getWrappers() {
+		return wrappers.toArray(new EventHandlerWrapper[wrappers.size()]);
 	}
 
 	/**
-	 * Return the set of handlers which subscribe to the event topic.
-	 * A set is used to ensure a handler is not called for an event more than once.
+	 * Return the handlers which subscribe to the event topic.
+	 * A handler is present at most once to ensure it is not called for an event more than once.
+	 * This method does not lock.
 	 * 
 	 * @param topic
-	 * @return a set of handlers
-	 */
-	public synchronized Set<EventHandlerWrapper> getHandlers(final String topic) {
-		// Use a set to remove duplicates
-		Set<EventHandlerWrapper> handlers = new HashSet<EventHandlerWrapper>();
-
-		// Add the "*" handlers
-		handlers.addAll(globalWildcard);
-
-		// Add the handlers with partial matches
-		if (partialWildcard.size() > 0) {
-			int index = topic.lastIndexOf('/');
-			while (index >= 0) {
-				String subTopic = topic.substring(0, index);
-				List<EventHandlerWrapper> wrappers = partialWildcard.get(subTopic);
-				if (wrappers != null) {
-					handlers.addAll(wrappers);
-				}
-				// Strip the last level from the topic. For example, org/osgi/framework becomes org/osgi.
-				// Wildcard topics are inserted into the map with the "/*" stripped off.
-				index = subTopic.lastIndexOf('/');
-			}
-		}
-
-		// Add the handlers for matching topic names
-		List<EventHandlerWrapper> wrappers = topicName.get(topic);
-		if (wrappers != null) {
-			handlers.addAll(wrappers);
-		}
-
-		return handlers;
-	}
-
-	/**
-	 * Dispatches Event to EventHandlers
-	 * 
-	 * @param eventListener
-	 * @param listenerObject
-	 * @param eventAction
-	 * @param eventObject
-	 * @see org.eclipse.osgi.framework.eventmgr.EventDispatcher#dispatchEvent(java.lang.Object,
-	 *      java.lang.Object, int, java.lang.Object)
+	 * @return the handlers
 	 */
-	public void dispatchEvent(EventHandlerWrapper eventListener, Permission listenerObject, int eventAction, Event eventObject) {
-		eventListener.handleEvent(eventObject, listenerObject);
+	TopicHandlers getHandlers(final String topic) {
+		return trie.getHandlers(topic);
 	}
 }
@@ -20,16 +20,40 @@ import org.osgi.service.log.LogService;
 
 /**
  * A wrapper for EventHandlers. This class caches property values and 
- * performs final checks before calling the wrapped handler.
+ * performs final checks before calling the wrapped handler. It also
+ * measures how long the handler takes to handle each event and, if the
+ * handler exceeds the timeout, logs it and optionally blacklists it.
+ * The first timeout of a handler is logged and then at most one every
+ * TIMEOUT_LOG_INTERVAL.
  *
  */
-public class EventHandlerWrapper {
+public class EventHandlerWrapper implements EventHandlerStatistics {
+	/** minimum time in milliseconds between logged timeouts of a handler */
+	private static final long TIMEOUT_LOG_INTERVAL = 10000;
+
 	private final ServiceReference<EventHandler> reference;
 	private final LogService log;
 	private final BundleContext context;
+	private final long serviceId;
+	private final long timeout;
+	private final boolean blacklist;
 	private EventHandler handler;
 	private String[] topics;
-	private Filter filter;
+	private volatile EventFilter filter;
+	private volatile boolean blacklisted;
+	// start time of a delivery in progress, 0 if there is none; used by the HandlerWatchdog
+	private volatile long deliveryStart;
+	private volatile Event deliveryEvent;
+	// start time of the last stalled delivery reported by the HandlerWatchdog
+	private long stalledStart;
+	// delivery statistics; guarded by stats
+	private final Object stats = new Object();
+	private long deliveryCount;
+	private long deliveryTime;
+	private long maxDeliveryTime;
+	private long timeoutCount;
+	private long lastTimeoutLogTime;
+	private long unloggedTimeouts;
 
 	/**
 	 * Create an EventHandlerWrapper. 
@@ -37,11 +61,17 @@ public class EventHandlerWrapper {
 	 * @param reference Reference to the EventHandler
 	 * @param context Bundle Context of the Event Admin bundle
 	 * @param log LogService object for logging
+	 * @param timeout time in milliseconds the handler may take to handle an event; 0 for no timeout 
+	 * @param blacklist true if the handler is to be blacklisted when it exceeds the timeout
 	 */
-	public EventHandlerWrapper(ServiceReference<EventHandler> reference, BundleContext context, LogService log) {
+	public EventHandlerWrapper(ServiceReference<EventHandler> reference, BundleContext context, LogService log, long timeout, boolean blacklist) {
 		this.reference = reference;
 		this.context = context;
 		this.log = log;
+		this.timeout = timeout;
+		this.blacklist = blacklist;
+		Object id = reference.getProperty(Constants.SERVICE_ID);
+		this.serviceId = (id instanceof Long) ? ((Long) id).longValue() : 0;
 	}
 
 	/**
@@ -51,7 +81,6 @@ public class EventHandlerWrapper {
 	 */
 	public synchronized boolean init() {
 		topics = null;
-		filter = null;
 
 		// Get topic names
 		Object o = reference.getProperty(EventConstants.EVENT_TOPIC);
@@ -70,18 +99,22 @@ public class EventHandlerWrapper {
 		}
 
 		if (topics == null) {
+			filter = null;
 			return false;
 		}
 
-		// get filter
+		// get filter; the filter is read without locking so only replace it once compiled
 		o = reference.getProperty(EventConstants.EVENT_FILTER);
 		if (o instanceof String) {
 			try {
-				filter = context.createFilter((String) o);
+				filter = EventFilter.compile(context.createFilter((String) o));
 			} catch (InvalidSyntaxException e) {
+				filter = null;
 				log.log(LogService.LOG_ERROR, NLS.bind(EventAdminMsg.EVENT_INVALID_HANDLER_FILTER, o), e);
 				return false;
 			}
+		} else {
+			filter = null;
 		}
 
 		return true;
@@ -113,6 +146,18 @@ public class EventHandlerWrapper {
 		return topics;
 	}
 
+	/**
+	 * Get the asynchronous delivery lane of the wrapped handler. A handler
+	 * is always assigned to the same lane so that the events posted to it
+	 * are delivered in order.
+	 * 
+	 * @param laneCount The number of lanes.
+	 * @return The lane, between 0 and laneCount - 1.
+	 */
+	public int getLane(int laneCount) {
+		return (int) (serviceId % laneCount);
+	}
+
 	/**
 	 * Return the wrapped handler. 
 	 * @return The wrapped handler.
@@ -155,30 +200,31 @@ public class EventHandlerWrapper {
 	}
 
 	/**
-	 * Get the filter object
+	 * Get the compiled filter. Handlers with filters which have the same key
+	 * may share one filter.
 	 * 
-	 * @return The handler's filter
+	 * @return The handler's filter or null if the handler has no filter
 	 */
-	private synchronized Filter getFilter() {
+	EventFilter getFilter() {
 		return filter;
 	}
 
 	/**
 	 * Dispatch event to handler. Perform final tests before actually calling the handler.
+	 * The caller must already have matched the event against the handler's filter.
 	 * 
 	 * @param event The event to dispatch
 	 * @param perm The permission to be checked
 	 */
 	public void handleEvent(Event event, Permission perm) {
-		Bundle bundle = reference.getBundle();
-		// is service unregistered?
-		if (bundle == null) {
+		// has the handler exceeded the timeout?
+		if (blacklisted) {
 			return;
 		}
 
-		// filter match
-		Filter eventFilter = getFilter();
-		if ((eventFilter != null) && !event.matches(eventFilter)) {
+		Bundle bundle = reference.getBundle();
+		// is service unregistered?
+		if (bundle == null) {
 			return;
 		}
 
@@ -193,6 +239,62 @@ public class EventHandlerWrapper {
 			return;
 		}
 
+		deliver(handlerService, event);
+	}
+
+	/**
+	 * Dispatch a run of events on the same topic to the handler. The checks
+	 * which do not depend on the event are performed once for the whole run.
+	 * The caller must already have matched the events against the handler's filter.
+	 * 
+	 * @param events The events to dispatch.
+	 * @param matched Whether each event matched the handler's filter; null if all the events matched.
+	 * @param offset The index of the first event to dispatch.
+	 * @param length The number of events to dispatch.
+	 * @param perm The permission to be checked
+	 */
+	public void handleEvents(Event[] events, boolean[] matched, int offset, int length, Permission perm) {
+		// has the handler exceeded the timeout?
+		if (blacklisted) {
+			return;
+		}
+
+		Bundle bundle = reference.getBundle();
+		// is service unregistered?
+		if (bundle == null) {
+			return;
+		}
+
+		// permission check
+		if ((perm != null) && (!bundle.hasPermission(perm))) {
+			return;
+		}
+
+		EventHandler handlerService = null;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			Event event = events[i];
+			// filter match
+			if ((matched != null) && !matched[i]) {
+				continue;
+			}
+			// get handler service
+			if (handlerService == null) {
+				handlerService = getHandler();
+				if (handlerService == null) {
+					return;
+				}
+			}
+			deliver(handlerService, event);
+			if (blacklisted) {
+				return;
+			}
+		}
+	}
+
+	private void deliver(EventHandler handlerService, Event event) {
+		long start = System.currentTimeMillis();
+		deliveryEvent = event;
+		deliveryStart = start;
 		try {
 			handlerService.handleEvent(event);
 		} catch (Throwable t) {
@@ -205,9 +307,114 @@ public class EventHandlerWrapper {
 			}
 			// log/handle any Throwable thrown by the listener
 			log.log(LogService.LOG_ERROR, NLS.bind(EventAdminMsg.EVENT_DISPATCH_HANDLER_EXCEPTION, event, handlerService), t);
+		} finally {
+			deliveryStart = 0;
+			deliveryEvent = null;
+			delivered(event, start, System.currentTimeMillis() - start);
 		}
 	}
 
+	/**
+	 * Record the time taken to handle an event and check it against the timeout.
+	 * 
+	 * @param event The event that was handled.
+	 * @param start The time, in milliseconds, the handler was called.
+	 * @param time The time, in milliseconds, the handler took. 
+	 */
+	private void delivered(Event event, long start, long time) {
+		boolean timedOut = (timeout > 0) && (time > timeout);
+		String message = null;
+		synchronized (stats) {
+			deliveryCount++;
+			deliveryTime += time;
+			if (time > maxDeliveryTime) {
+				maxDeliveryTime = time;
+			}
+			if (timedOut) {
+				timeoutCount++;
+				long now = start + time;
+				if ((timeoutCount == 1) || (now - lastTimeoutLogTime >= TIMEOUT_LOG_INTERVAL)) {
+					message = NLS.bind(EventAdminMsg.EVENT_HANDLER_TIMEOUT, new Object[] {reference, new Long(time), event, new Long(timeout)});
+					if (unloggedTimeouts > 0) {
+						message += ' ' + NLS.bind(EventAdminMsg.EVENT_HANDLER_TIMEOUTS_NOT_LOGGED, new Long(unloggedTimeouts));
+					}
+					lastTimeoutLogTime = now;
+					unloggedTimeouts = 0;
+				} else {
+					unloggedTimeouts++;
+				}
+			}
+		}
+		if (message != null) {
+			log.log(LogService.LOG_WARNING, message);
+		}
+		if (timedOut) {
+			blacklist();
+		}
+	}
+
+	/**
+	 * Check whether the handler is taking longer than the timeout to handle an event.
+	 * This is called periodically by the HandlerWatchdog to find stalled handlers. 
+	 * 
+	 * @param now The current value of System.currentTimeMillis().
+	 */
+	void checkStalled(long now) {
+		long start = deliveryStart;
+		Event event = deliveryEvent;
+		if ((timeout <= 0) || (start == 0) || (event == null) || (now - start <= timeout)) {
+			return;
+		}
+		if (start == stalledStart) {
+			return; // already reported
+		}
+		stalledStart = start;
+		log.log(LogService.LOG_WARNING, NLS.bind(EventAdminMsg.EVENT_HANDLER_STALLED, new Object[] {reference, event, new Long(now - start)}));
+		blacklist();
+	}
+
+	private void blacklist() {
+		synchronized (stats) {
+			if (!blacklist || blacklisted) {
+				return;
+			}
+			blacklisted = true;
+		}
+		log.log(LogService.LOG_ERROR, NLS.bind(EventAdminMsg.EVENT_HANDLER_BLACKLISTED, reference));
+	}
+
+	public ServiceReference<EventHandler> getReference() {
+		return reference;
+	}
+
+	public long getDeliveryCount() {
+		synchronized (stats) {
+			return deliveryCount;
+		}
+	}
+
+	public long getMeanDeliveryTime() {
+		synchronized (stats) {
+			return (deliveryCount == 0) ? 0 : deliveryTime / deliveryCount;
+		}
+	}
+
+	public long getMaxDeliveryTime() {
+		synchronized (stats) {
+			return maxDeliveryTime;
+		}
+	}
+
+	public long getTimeoutCount() {
+		synchronized (stats) {
+			return timeoutCount;
+		}
+	}
+
+	public boolean isBlacklisted() {
+		return blacklisted;
+	}
+
 	static class LogTopicException extends RuntimeException {
 		private static final long serialVersionUID = -2386940335620739632L;
 
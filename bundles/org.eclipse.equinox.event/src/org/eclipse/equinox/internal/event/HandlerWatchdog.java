@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+/**
+ * Periodically checks the event handlers for a delivery which has taken
+ * longer than the handler timeout and has not yet returned. A stalled
+ * handler would otherwise only be noticed once it returns, which may be
+ * never.
+ */
+class HandlerWatchdog implements Runnable {
+	private final EventHandlerTracker handlers;
+	private final long interval;
+	/* @GuardedBy this */
+	private Thread thread;
+
+	/**
+	 * @param handlers The tracker of the handlers to check.
+	 * @param timeout The handler timeout in milliseconds.
+	 */
+	HandlerWatchdog(EventHandlerTracker handlers, long timeout) {
+		this.handlers = handlers;
+		// check often enough that a stall is reported within 1.5 times the timeout
+		this.interval = Math.max(timeout / 2, 1);
+	}
+
+	synchronized void start(String threadName, ThreadGroup threadGroup) {
+		thread = new Thread(threadGroup, this, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	private synchronized boolean isRunning(Thread current) {
+		return thread == current;
+	}
+
+	public void run() {
+		Thread current = Thread.currentThread();
+		while (isRunning(current)) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				continue; // check if we have been stopped
+			}
+			long now = System.currentTimeMillis();
+			EventHandlerWrapper[] wrappers = handlers.getWrappers();
+			for (int i = 0; i < wrappers.length; i++) {
+				wrappers[i].checkStalled(now);
+			}
+		}
+	}
+}
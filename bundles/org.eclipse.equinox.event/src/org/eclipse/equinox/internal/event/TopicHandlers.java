@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+import java.security.Permission;
+import java.util.*;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.TopicPermission;
+
+/**
+ * An immutable snapshot of the handlers subscribed to a topic. Snapshots
+ * are cached by the {@link TopicTrie} so that publishing to a topic whose
+ * handlers have not changed reuses the same snapshot.
+ * <p>
+ * The handlers are grouped by their filter so that each distinct filter
+ * is matched against an event only once.
+ */
+class TopicHandlers {
+	private static final HandlerGroup[] EMPTY_GROUPS = new HandlerGroup[0];
+
+	private final String topic;
+	private final EventHandlerWrapper[] handlers;
+	private final HandlerGroup[] groups;
+	// created on first use when a security manager is present
+	private volatile Permission permission;
+	// created on first use when events are delivered on more than one lane
+	private volatile HandlerGroup[][] laneGroups;
+
+	TopicHandlers(String topic, EventHandlerWrapper[] handlers) {
+		this.topic = topic;
+		this.handlers = handlers;
+		this.groups = group(handlers);
+	}
+
+	/**
+	 * Group the handlers by the key of their filter.
+	 *
+	 * @param wrappers The handlers to group.
+	 * @return The groups.
+	 */
+	private static HandlerGroup[] group(EventHandlerWrapper[] wrappers) {
+		if (wrappers.length == 0) {
+			return EMPTY_GROUPS;
+		}
+		// Map<String, List<EventHandlerWrapper>> key is the filter key; null for no filter
+		Map<String, List<EventHandlerWrapper>> byFilter = new LinkedHashMap<String, List<EventHandlerWrapper>>();
+		Map<String, EventFilter> filters = new HashMap<String, EventFilter>();
+		for (int i = 0; i < wrappers.length; i++) {
+			EventFilter filter = wrappers[i].getFilter();
+			String key = (filter == null) ? null : filter.getKey();
+			List<EventHandlerWrapper> list = byFilter.get(key);
+			if (list == null) {
+				list = new ArrayList<EventHandlerWrapper>();
+				byFilter.put(key, list);
+				filters.put(key, filter);
+			}
+			list.add(wrappers[i]);
+		}
+		HandlerGroup[] result = new HandlerGroup[byFilter.size()];
+		int i = 0;
+		for (Map.Entry<String, List<EventHandlerWrapper>> entry : byFilter.entrySet()) {
+			List<EventHandlerWrapper> list = entry.getValue();
+			result[i++] = new HandlerGroup(filters.get(entry.getKey()), list.toArray(new EventHandlerWrapper[list.size()]));
+		}
+		return result;
+	}
+
+	/**
+	 * Return the handlers. The returned array must not be modified.
+	 *
+	 * @return the handlers subscribed to the topic
+	 */
+	EventHandlerWrapper[] getHandlers() {
+		return handlers;
+	}
+
+	/**
+	 * Return the handlers grouped by filter. The returned array must not be modified.
+	 *
+	 * @return the handler groups
+	 */
+	HandlerGroup[] getGroups() {
+		return groups;
+	}
+
+	boolean isEmpty() {
+		return handlers.length == 0;
+	}
+
+	/**
+	 * Return the permission a handler must have to receive events on the topic.
+	 *
+	 * @return The SUBSCRIBE TopicPermission or null if there is no security manager.
+	 */
+	Permission getPermission() {
+		if (System.getSecurityManager() == null) {
+			return null;
+		}
+		Permission perm = permission;
+		if (perm == null) {
+			// benign race; TopicPermission is immutable
+			permission = perm = new TopicPermission(topic, TopicPermission.SUBSCRIBE);
+		}
+		return perm;
+	}
+
+	/**
+	 * Return the handler groups of each lane. The returned arrays must not be modified.
+	 *
+	 * @param laneCount The number of lanes. This must be the same on each call.
+	 * @return The handler groups for each lane.
+	 */
+	HandlerGroup[][] getLaneGroups(int laneCount) {
+		HandlerGroup[][] result = laneGroups;
+		if (result != null) {
+			return result;
+		}
+		int[] counts = new int[laneCount];
+		for (int i = 0; i < handlers.length; i++) {
+			counts[handlers[i].getLane(laneCount)]++;
+		}
+		EventHandlerWrapper[][] laneHandlers = new EventHandlerWrapper[laneCount][];
+		for (int lane = 0; lane < laneCount; lane++) {
+			laneHandlers[lane] = new EventHandlerWrapper[counts[lane]];
+			counts[lane] = 0;
+		}
+		for (int i = 0; i < handlers.length; i++) {
+			int lane = handlers[i].getLane(laneCount);
+			laneHandlers[lane][counts[lane]++] = handlers[i];
+		}
+		result = new HandlerGroup[laneCount][];
+		for (int lane = 0; lane < laneCount; lane++) {
+			result[lane] = group(laneHandlers[lane]);
+		}
+		// benign race; the result is always the same
+		laneGroups = result;
+		return result;
+	}
+
+	/**
+	 * Deliver the event to the handlers on the calling thread.
+	 *
+	 * @param event The event to deliver.
+	 */
+	void deliver(Event event) {
+		deliver(event, groups);
+	}
+
+	/**
+	 * Deliver the event to some of the handlers on the calling thread.
+	 *
+	 * @param event The event to deliver.
+	 * @param handlerGroups The handler groups, taken from this snapshot, to deliver to.
+	 */
+	void deliver(Event event, HandlerGroup[] handlerGroups) {
+		Permission perm = getPermission();
+		for (int i = 0; i < handlerGroups.length; i++) {
+			HandlerGroup group = handlerGroups[i];
+			if ((group.filter != null) && !group.filter.matches(event)) {
+				continue;
+			}
+			EventHandlerWrapper[] wrappers = group.wrappers;
+			for (int j = 0; j < wrappers.length; j++) {
+				wrappers[j].handleEvent(event, perm);
+			}
+		}
+	}
+
+	/**
+	 * Deliver a run of events on this topic to some of the handlers on the
+	 * calling thread. Each handler receives all the events in order before
+	 * the next handler is called.
+	 *
+	 * @param events The events to deliver.
+	 * @param offset The index of the first event to deliver.
+	 * @param length The number of events to deliver.
+	 * @param handlerGroups The handler groups, taken from this snapshot, to deliver to.
+	 */
+	void deliver(Event[] events, int offset, int length, HandlerGroup[] handlerGroups) {
+		Permission perm = getPermission();
+		boolean[] matched = null;
+		for (int i = 0; i < handlerGroups.length; i++) {
+			HandlerGroup group = handlerGroups[i];
+			boolean[] groupMatched = null;
+			if (group.filter != null) {
+				if (matched == null) {
+					matched = new boolean[events.length];
+				}
+				for (int j = offset, end = offset + length; j < end; j++) {
+					matched[j] = group.filter.matches(events[j]);
+				}
+				groupMatched = matched;
+			}
+			EventHandlerWrapper[] wrappers = group.wrappers;
+			for (int j = 0; j < wrappers.length; j++) {
+				wrappers[j].handleEvents(events, groupMatched, offset, length, perm);
+			}
+		}
+	}
+
+	/**
+	 * Handlers which share the same filter.
+	 */
+	static class HandlerGroup {
+		// null if the handlers have no filter
+		final EventFilter filter;
+		final EventHandlerWrapper[] wrappers;
+
+		HandlerGroup(EventFilter filter, EventHandlerWrapper[] wrappers) {
+			this.filter = filter;
+			this.wrappers = wrappers;
+		}
+	}
+}
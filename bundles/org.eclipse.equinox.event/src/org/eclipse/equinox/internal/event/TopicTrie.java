@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+
+package org.eclipse.equinox.internal.event;
+
+import java.util.*;
+
+/**
+ * An immutable index of event handlers keyed on the '/' separated segments of
+ * their subscribed topics. A new trie is built by the {@link EventHandlerTracker}
+ * each time the set of handlers changes and is then published to the
+ * dispatching threads which read it without locking.
+ * <p>
+ * Each trie also carries a bounded cache of the {@link TopicHandlers}
+ * resolved for a topic. Since the trie is never modified the cache never needs to be
+ * invalidated; it is discarded together with the trie. The cache map is never modified
+ * either: a miss publishes a copy with the new entry, so a publish which hits the cache
+ * does not lock.
+ */
+class TopicTrie {
+	static final EventHandlerWrapper[] EMPTY = new EventHandlerWrapper[0];
+
+	private final Node root;
+	// Map<String, TopicHandlers> key is the event topic; replaced, never modified, under the lock of the trie
+	private volatile Map<String, TopicHandlers> cache;
+	private final int cacheSize;
+
+	private TopicTrie(Node root, int cacheSize) {
+		this.root = root;
+		this.cacheSize = cacheSize;
+		this.cache = new HashMap<String, TopicHandlers>(1);
+	}
+
+	/**
+	 * Build a new trie for the given handlers.
+	 *
+	 * @param wrappers The handlers to index. The topics of each handler are read once.
+	 * @param cacheSize The maximum number of topics to cache resolved handlers for.
+	 * @return A new trie.
+	 */
+	static TopicTrie build(Collection<EventHandlerWrapper> wrappers, int cacheSize) {
+		Builder root = new Builder();
+		for (EventHandlerWrapper wrapper : wrappers) {
+			final String[] topics = wrapper.getTopics();
+			final int length = (topics == null) ? 0 : topics.length;
+			for (int i = 0; i < length; i++) {
+				String topic = topics[i];
+				// global wildcard
+				if (topic.equals("*")) { //$NON-NLS-1$
+					root.wildcard.add(wrapper);
+				}
+				// partial wildcard
+				else if (topic.endsWith("/*")) { //$NON-NLS-1$
+					root.child(topic, 0, topic.length() - 2).wildcard.add(wrapper); // Strip off "/*" from the end
+				}
+				// simple topic name
+				else {
+					root.child(topic, 0, topic.length()).exact.add(wrapper);
+				}
+			}
+		}
+		return new TopicTrie(root.toNode(), cacheSize);
+	}
+
+	/**
+	 * Return the handlers which subscribe to the event topic. Each handler
+	 * is present at most once. While the handlers do not change, the same
+	 * snapshot is returned for a cached topic.
+	 *
+	 * @param topic The event topic.
+	 * @return The matching handlers.
+	 */
+	TopicHandlers getHandlers(String topic) {
+		TopicHandlers result = cache.get(topic);
+		if (result != null) {
+			return result;
+		}
+		// match outside the lock; the trie itself is immutable
+		result = new TopicHandlers(topic, match(topic));
+		synchronized (this) {
+			Map<String, TopicHandlers> current = cache;
+			TopicHandlers existing = current.get(topic);
+			if (existing != null) {
+				return existing;
+			}
+			if (current.size() < cacheSize) {
+				Map<String, TopicHandlers> copy = new HashMap<String, TopicHandlers>(((current.size() + 1) * 4 + 2) / 3);
+				copy.putAll(current);
+				copy.put(topic, result);
+				cache = copy;
+			}
+		}
+		return result;
+	}
+
+	private EventHandlerWrapper[] match(String topic) {
+		// Use a set to remove duplicates; a handler may subscribe to more than one matching topic
+		Set<EventHandlerWrapper> handlers = null;
+
+		// Add the "*" handlers
+		handlers = addAll(handlers, root.wildcard);
+
+		Node node = root;
+		int start = 0;
+		final int length = topic.length();
+		while (node != null) {
+			int end = topic.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			node = node.get(topic.substring(start, end));
+			if (node == null) {
+				break;
+			}
+			if (end == length) {
+				// Add the handlers for the matching topic name
+				handlers = addAll(handlers, node.exact);
+				break;
+			}
+			// Add the handlers with partial matches; there is at least one more level in the topic
+			handlers = addAll(handlers, node.wildcard);
+			start = end + 1;
+		}
+
+		if (handlers == null) {
+			return EMPTY;
+		}
+		return handlers.toArray(new EventHandlerWrapper[handlers.size()]);
+	}
+
+	private static Set<EventHandlerWrapper> addAll(Set<EventHandlerWrapper> handlers, EventHandlerWrapper[] wrappers) {
+		if (wrappers.length == 0) {
+			return handlers;
+		}
+		if (handlers == null) {
+			handlers = new LinkedHashSet<EventHandlerWrapper>();
+		}
+		for (int i = 0; i < wrappers.length; i++) {
+			handlers.add(wrappers[i]);
+		}
+		return handlers;
+	}
+
+	/**
+	 * A node of the trie. A node is never modified once built.
+	 */
+	private static class Node {
+		// Map<String, Node> key is the next topic segment
+		private final Map<String, Node> children;
+		// handlers with a topic name ending at this node
+		final EventHandlerWrapper[] exact;
+		// handlers with a partial wildcard topic ending at this node
+		final EventHandlerWrapper[] wildcard;
+
+		Node(Map<String, Node> children, EventHandlerWrapper[] exact, EventHandlerWrapper[] wildcard) {
+			this.children = children;
+			this.exact = exact;
+			this.wildcard = wildcard;
+		}
+
+		Node get(String segment) {
+			return children.get(segment);
+		}
+	}
+
+	/**
+	 * A mutable node used while building the trie.
+	 */
+	private static class Builder {
+		// shared by the leaves; never modified
+		private static final Map<String, Node> NO_CHILDREN = new HashMap<String, Node>(1);
+
+		final Map<String, Builder> children = new HashMap<String, Builder>();
+		final List<EventHandlerWrapper> exact = new ArrayList<EventHandlerWrapper>();
+		final List<EventHandlerWrapper> wildcard = new ArrayList<EventHandlerWrapper>();
+
+		/**
+		 * Return the node for topic.substring(start, end), creating nodes as necessary.
+		 */
+		Builder child(String topic, int start, int end) {
+			Builder node = this;
+			while (true) {
+				int index = topic.indexOf('/', start);
+				if ((index < 0) || (index > end)) {
+					index = end;
+				}
+				String segment = topic.substring(start, index);
+				Builder next = node.children.get(segment);
+				if (next == null) {
+					next = new Builder();
+					node.children.put(segment, next);
+				}
+				node = next;
+				if (index == end) {
+					return node;
+				}
+				start = index + 1;
+			}
+		}
+
+		Node toNode() {
+			Map<String, Node> nodes;
+			if (children.isEmpty()) {
+				nodes = NO_CHILDREN;
+			} else {
+				nodes = new HashMap<String, Node>((children.size() * 4 + 2) / 3);
+				for (Map.Entry<String, Builder> entry : children.entrySet()) {
+					nodes.put(entry.getKey(), entry.getValue().toNode());
+				}
+			}
+			return new Node(nodes, toArray(exact), toArray(wildcard));
+		}
+
+		private static EventHandlerWrapper[] toArray(List<EventHandlerWrapper> wrappers) {
+			if (wrappers.isEmpty()) {
+				return EMPTY;
+			}
+			return wrappers.toArray(new EventHandlerWrapper[wrappers.size()]);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.util.*;
+
+/**
+ * An immutable trie of registration aliases keyed by path segment. It finds the
+ * registration whose alias is the longest prefix of a request URI, ending at a
+ * segment boundary, which is the registration the HttpService specification
+ * selects by repeatedly removing the last segment of the URI.
+ * <p>
+ * Lookups neither lock nor allocate. The segments of the URI are matched in place
+ * against per node hash tables using the String hash code of the character range.
+ * A registration change builds a new trie.
+ */
+/* @Immutable */
+public class AliasTrie {
+	public static final AliasTrie EMPTY = new AliasTrie(new Hashtable(0));
+
+	private final Node root;
+
+	/**
+	 * Build a trie.
+	 *
+	 * @param registrations Mapping of alias (String) => Registration. The caller
+	 * must prevent changes while the trie is built.
+	 */
+	public AliasTrie(Hashtable registrations) {
+		root = new Node();
+
+		Enumeration aliases = registrations.keys();
+		while (aliases.hasMoreElements()) {
+			String alias = (String) aliases.nextElement();
+			Registration registration = (Registration) registrations.get(alias);
+
+			if (alias.equals("/")) { //$NON-NLS-1$
+				root.registration = registration;
+				continue;
+			}
+
+			Node node = root;
+			int length = alias.length();
+			int start = 1;
+			while (true) {
+				int end = alias.indexOf('/', start);
+				if (end < 0) {
+					end = length;
+				}
+				node = node.addChild(alias.substring(start, end));
+				if (end == length) {
+					break;
+				}
+				start = end + 1;
+			}
+			node.registration = registration;
+		}
+
+		root.freeze();
+	}
+
+	/**
+	 * Find the registration for a request URI.
+	 *
+	 * @param uri the request URI
+	 * @return the registration whose alias is the longest match, or null.
+	 */
+	public Registration match(String uri) {
+		int length = uri.length();
+		if ((length == 0) || (uri.charAt(0) != '/')) {
+			return (null);
+		}
+
+		Node node = root;
+		Registration registration = root.registration;
+		int start = 1;
+		while (true) {
+			int end = uri.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			node = node.getChild(uri, start, end);
+			if (node == null) {
+				break;
+			}
+			if (node.registration != null) {
+				registration = node.registration;
+			}
+			if (end == length) {
+				break;
+			}
+			start = end + 1;
+		}
+
+		return (registration);
+	}
+
+	private static final class Node {
+		Registration registration;
+
+		/** children by segment while the trie is built */
+		private Hashtable building = new Hashtable(7);
+
+		/** open addressed table of child segments; the length is a power of two */
+		private String[] segments;
+		private int[] hashes;
+		private Node[] children;
+		private int mask;
+
+		Node() {
+			super();
+		}
+
+		Node addChild(String segment) {
+			Node child = (Node) building.get(segment);
+			if (child == null) {
+				child = new Node();
+				building.put(segment, child);
+			}
+			return child;
+		}
+
+		void freeze() {
+			int size = building.size();
+			int capacity = 2;
+			while (capacity < size * 2) {
+				capacity <<= 1;
+			}
+			mask = capacity - 1;
+			segments = new String[capacity];
+			hashes = new int[capacity];
+			children = new Node[capacity];
+
+			Enumeration keys = building.keys();
+			while (keys.hasMoreElements()) {
+				String segment = (String) keys.nextElement();
+				Node child = (Node) building.get(segment);
+				child.freeze();
+
+				int hash = segment.hashCode();
+				int i = spread(hash) & mask;
+				while (segments[i] != null) {
+					i = (i + 1) & mask;
+				}
+				segments[i] = segment;
+				hashes[i] = hash;
+				children[i] = child;
+			}
+
+			building = null;
+		}
+
+		Node getChild(String uri, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + uri.charAt(i);
+			}
+
+			int length = end - start;
+			int i = spread(hash) & mask;
+			String segment;
+			while ((segment = segments[i]) != null) {
+				if ((hashes[i] == hash) && (segment.length() == length) && uri.regionMatches(start, segment, 0, length)) {
+					return children[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return (null);
+		}
+
+		private static int spread(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+	}
+}
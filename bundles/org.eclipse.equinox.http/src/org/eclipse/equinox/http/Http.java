@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2007 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -12,13 +12,14 @@ package org.eclipse.equinox.http;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Hashtable;
 import java.util.Vector;
 import org.eclipse.equinox.http.servlet.HttpSessionImpl;
+import org.eclipse.equinox.http.servlet.HttpSessionStore;
 import org.eclipse.equinox.socket.ServerSocketInterface;
 import org.eclipse.equinox.socket.https.HttpsServerSocket;
 import org.eclipse.osgi.util.NLS;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.log.LogService;
 
 public class Http {
@@ -28,12 +29,48 @@ public class Http {
 
 	protected HttpConfiguration configuration;
 
-	/** Mapping of Session ID (String) => HttpSessionImpl */
-	protected Hashtable sessions;
+	/** The sessions */
+	protected HttpSessionStore sessions;
+
+	protected final static String enviroKeyHttpMaxSessions = "org.eclipse.equinox.http.maxSessions"; //$NON-NLS-1$
+	protected static final int DEFAULT_MAXSESSIONS = 0;
 
 	protected Vector servlets;
 	protected StaticDataReader dataReader;
 
+	/** Cache of registered resources */
+	protected ResourceCache resourceCache;
+
+	protected final static String enviroKeyHttpResourceCacheSize = "org.eclipse.equinox.http.resourceCache.size"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpResourceCacheMaxEntrySize = "org.eclipse.equinox.http.resourceCache.maxEntrySize"; //$NON-NLS-1$
+	protected static final long DEFAULT_RESOURCECACHE_SIZE = 4 * 1024 * 1024;
+	protected static final int DEFAULT_RESOURCECACHE_MAXENTRYSIZE = 256 * 1024;
+
+	/** Size of the output buffer of a response */
+	protected int responseBufferSize;
+
+	protected final static String enviroKeyHttpResponseBufferSize = "org.eclipse.equinox.http.responseBufferSize"; //$NON-NLS-1$
+	protected static final int DEFAULT_RESPONSEBUFFERSIZE = 8192;
+	protected static final int MIN_RESPONSEBUFFERSIZE = 512;
+
+	/** Request metrics; null if requests are not measured */
+	protected HttpMetrics metrics;
+
+	/** alias of the HttpMetricsServlet; null if it is not registered */
+	protected String metricsAlias;
+
+	/** if true the HttpMetricsServlet serves requests from other hosts than the local host */
+	protected boolean metricsAllowRemote;
+
+	protected ServiceRegistration metricsRegistration;
+
+	protected final static String enviroKeyHttpMetrics = "org.eclipse.equinox.http.metrics"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpMetricsAlias = "org.eclipse.equinox.http.metrics.alias"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpSlowRequestTime = "org.eclipse.equinox.http.metrics.slowRequestTime"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpMetricsAllowRemote = "org.eclipse.equinox.http.metrics.allowRemote"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpMetricsLogQuery = "org.eclipse.equinox.http.metrics.logQuery"; //$NON-NLS-1$
+	protected static final long DEFAULT_SLOWREQUESTTIME = 1000;
+
 	HttpSecurityTracker securityTracker;
 
 	protected Http(BundleContext context) throws Exception {
@@ -55,11 +92,127 @@ public class Http {
 
 		servlets = new Vector(15);
 
-		//initialize sessions Hashtable
-		sessions = new Hashtable(15);
+		sessions = createSessionStore();
 
 		//get a MIMETypes object to compute MIMETypes
 		dataReader = new StaticDataReader(this);
+
+		resourceCache = createResourceCache();
+
+		metrics = createMetrics();
+
+		responseBufferSize = DEFAULT_RESPONSEBUFFERSIZE;
+		String property = context.getProperty(enviroKeyHttpResponseBufferSize);
+		if (property != null) {
+			try {
+				responseBufferSize = Math.max(MIN_RESPONSEBUFFERSIZE, Integer.parseInt(property));
+			} catch (NumberFormatException e) {
+				logWarning(enviroKeyHttpResponseBufferSize + " must be a number", e); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Returns the response compression policy.
+	 *
+	 * @return the policy, or null if responses are not compressed.
+	 */
+	public HttpCompression getCompression() {
+		HttpConfiguration config = configuration;
+		return (config == null) ? null : config.compression;
+	}
+
+	/**
+	 * Returns the size of the output buffer of a response. Content which does
+	 * not fit in the buffer is sent before the response is closed.
+	 */
+	public int getResponseBufferSize() {
+		return (responseBufferSize);
+	}
+
+	/**
+	 * Create the resource cache. A size of 0 disables caching.
+	 * <p>
+	 * Added for subclassing purposes
+	 */
+	protected ResourceCache createResourceCache() {
+		long size = DEFAULT_RESOURCECACHE_SIZE;
+		String property = context.getProperty(enviroKeyHttpResourceCacheSize);
+		if (property != null) {
+			try {
+				size = Long.parseLong(property);
+			} catch (NumberFormatException e) {
+				logWarning(enviroKeyHttpResourceCacheSize + " must be a number", e); //$NON-NLS-1$
+			}
+		}
+
+		int maxEntrySize = DEFAULT_RESOURCECACHE_MAXENTRYSIZE;
+		property = context.getProperty(enviroKeyHttpResourceCacheMaxEntrySize);
+		if (property != null) {
+			try {
+				maxEntrySize = Integer.parseInt(property);
+			} catch (NumberFormatException e) {
+				logWarning(enviroKeyHttpResourceCacheMaxEntrySize + " must be a number", e); //$NON-NLS-1$
+			}
+		}
+
+		return new ResourceCache(Math.max(0, size), Math.max(0, maxEntrySize));
+	}
+
+	/**
+	 * Create the request metrics. Requests are only measured if enabled.
+	 * <p>
+	 * Added for subclassing purposes
+	 */
+	protected HttpMetrics createMetrics() {
+		if (!"true".equalsIgnoreCase(context.getProperty(enviroKeyHttpMetrics))) { //$NON-NLS-1$
+			return (null);
+		}
+
+		long slowRequestTime = DEFAULT_SLOWREQUESTTIME;
+		String property = context.getProperty(enviroKeyHttpSlowRequestTime);
+		if (property != null) {
+			try {
+				slowRequestTime = Long.parseLong(property);
+			} catch (NumberFormatException e) {
+				logWarning(enviroKeyHttpSlowRequestTime + " must be a number", e); //$NON-NLS-1$
+			}
+		}
+
+		metricsAlias = context.getProperty(enviroKeyHttpMetricsAlias);
+		metricsAllowRemote = "true".equalsIgnoreCase(context.getProperty(enviroKeyHttpMetricsAllowRemote)); //$NON-NLS-1$
+		/* query strings may carry credentials or personal data */
+		boolean logQuery = "true".equalsIgnoreCase(context.getProperty(enviroKeyHttpMetricsLogQuery)); //$NON-NLS-1$
+
+		return new HttpMetrics(this, Math.max(0, slowRequestTime), logQuery);
+	}
+
+	/**
+	 * Returns the request metrics.
+	 *
+	 * @return the metrics, or null if requests are not measured.
+	 */
+	public HttpMetrics getMetrics() {
+		return (metrics);
+	}
+
+	/**
+	 * Create the session store. A maximum of 0 does not limit the number of sessions.
+	 * <p>
+	 * Added for subclassing purposes
+	 */
+	protected HttpSessionStore createSessionStore() {
+		int maxSessions = DEFAULT_MAXSESSIONS;
+		String property = context.getProperty(enviroKeyHttpMaxSessions);
+		if (property != null) {
+			try {
+				maxSessions = Integer.parseInt(property);
+			} catch (NumberFormatException e) {
+				logWarning(enviroKeyHttpMaxSessions + " must be a number", e); //$NON-NLS-1$
+			}
+		}
+
+		return new HttpSessionStore(this, Math.max(0, maxSessions));
 	}
 
 	protected void start() throws Exception {
@@ -75,6 +228,12 @@ public class Http {
 			throw e;
 		}
 
+		sessions.start();
+
+		if (metrics != null) {
+			metricsRegistration = context.registerService(HttpMetrics.class.getName(), metrics, null);
+		}
+
 		if (Http.DEBUG) {
 			logInfo("Http Service started"); //$NON-NLS-1$
 		}
@@ -90,6 +249,13 @@ public class Http {
 			configuration = null;
 		}
 
+		sessions.close();
+
+		if (metricsRegistration != null) {
+			metricsRegistration.unregister();
+			metricsRegistration = null;
+		}
+
 		if (Http.DEBUG) {
 			logDebug("Http Service stopped"); //$NON-NLS-1$
 		}
@@ -112,11 +278,18 @@ public class Http {
 	 * @param session javax.servlet.http.HttpSession
 	 */
 	public void addSession(HttpSessionImpl session) {
-		sessions.put(session.getId(), session);
+		sessions.add(session);
 	}
 
 	public void removeSession(HttpSessionImpl session) {
-		sessions.remove(session.getId());
+		sessions.remove(session);
+	}
+
+	/**
+	 * Returns the session store.
+	 */
+	public HttpSessionStore getSessionStore() {
+		return (sessions);
 	}
 
 	/**
@@ -126,7 +299,7 @@ public class Http {
 	 * @return Valid session object.
 	 */
 	public HttpSessionImpl getSession(String id) {
-		HttpSessionImpl session = (HttpSessionImpl) sessions.get(id);
+		HttpSessionImpl session = sessions.get(id);
 
 		if ((session != null) && (session.isValid(true))) {
 			return (session); /* session is valid */
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import org.eclipse.equinox.socket.ServerSocketInterface;
+import org.eclipse.equinox.socket.SocketInterface;
+
+/**
+ * A server socket which accepts socket channels so that idle connections
+ * can be parked in an {@link HttpSelector}.
+ */
+public class HttpChannelServerSocket implements ServerSocketInterface {
+	private final ServerSocketChannel channel;
+	private String address = null;
+
+	public HttpChannelServerSocket(int port, int backlog, InetAddress bindAddr) throws IOException {
+		channel = ServerSocketChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(bindAddr, port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public SocketInterface acceptSock() throws IOException {
+		SocketChannel socketChannel = channel.accept();
+		return new HttpChannelSocket(socketChannel);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	public String getScheme() {
+		return ("http"); //$NON-NLS-1$
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public void setAddress(String address) {
+		this.address = address;
+	}
+}
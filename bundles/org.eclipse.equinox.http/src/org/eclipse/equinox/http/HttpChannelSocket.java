@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import org.eclipse.equinox.socket.SocketInterface;
+
+/**
+ * A socket accepted from a server socket channel. Requests are processed with
+ * the channel in blocking mode; between requests the channel may be parked in
+ * an {@link HttpSelector}.
+ */
+/* @ThreadSafe */
+public class HttpChannelSocket implements SocketInterface {
+	private final SocketChannel channel;
+	private final Socket socket;
+	private InputStream in = null; /* @GuardedBy("this") */
+	private boolean closed = false; /* @GuardedBy("this") */
+	private boolean active = false; /* @GuardedBy("this") */
+
+	public HttpChannelSocket(SocketChannel channel) {
+		this.channel = channel;
+		this.socket = channel.socket();
+	}
+
+	/**
+	 * Return the channel of this socket.
+	 *
+	 * @return the socket channel.
+	 */
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+		closed = true;
+	}
+
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Wrap the real socket input stream in a buffered input stream. The same
+	 * stream is returned for every request so that pipelined requests are not lost.
+	 *
+	 * @return a buffered InputStream which wraps the real input stream.
+	 * @throws IOException
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		if (in == null) {
+			in = new BufferedInputStream(socket.getInputStream());
+		}
+
+		return in;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	public void setSoTimeout(int timeout) throws SocketException {
+		socket.setSoTimeout(timeout);
+	}
+
+	public int getSoTimeout() throws SocketException {
+		return socket.getSoTimeout();
+	}
+
+	/**
+	 * Write the start of a file to the channel without copying it through the VM.
+	 * Output written to the socket output stream must be flushed first.
+	 *
+	 * @param file the file to write.
+	 * @param length the number of bytes to write.
+	 * @throws IOException if the file is shorter than length or cannot be written.
+	 */
+	public void transferFrom(File file, long length) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel source = in.getChannel();
+			long position = 0;
+			while (position < length) {
+				long count = source.transferTo(position, length - position, channel);
+				if (count <= 0) {
+					throw new EOFException(file.toString());
+				}
+				position += count;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Test to see if data has already been read into the input buffer.
+	 *
+	 * @return true if the next request can be read without waiting on the channel.
+	 */
+	public synchronized boolean hasBufferedInput() {
+		try {
+			return (in != null) && (in.available() > 0);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public String getScheme() {
+		return ("http"); //$NON-NLS-1$
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	public synchronized void markActive() {
+		active = true;
+	}
+
+	public synchronized void markInactive() {
+		active = false;
+	}
+
+	public String toString() {
+		return socket.toString();
+	}
+}
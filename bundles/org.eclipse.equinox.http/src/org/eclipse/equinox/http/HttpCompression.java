@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.*;
+import java.util.Vector;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The response compression policy. Responses with a compressible content type
+ * and at least the minimum size are compressed with the gzip or deflate
+ * content-coding, whichever the client prefers in its Accept-Encoding header.
+ * <p>
+ * This class uses java.util.zip and must only be loaded when it is available.
+ */
+/* @Immutable */
+public class HttpCompression {
+	public static final String GZIP = "gzip"; //$NON-NLS-1$
+	public static final String DEFLATE = "deflate"; //$NON-NLS-1$
+
+	/** compressible content types; an entry ending with '/' matches every subtype */
+	private final String[] mimeTypes;
+
+	/** minimum content length in bytes */
+	private final int minSize;
+
+	/**
+	 * @param mimeTypes comma separated list of compressible content types; an
+	 * entry ending with "/" or "/*" matches every subtype
+	 * @param minSize minimum content length in bytes of a compressed response
+	 */
+	public HttpCompression(String mimeTypes, int minSize) {
+		Vector types = new Vector();
+		Tokenizer tokenizer = new Tokenizer(mimeTypes);
+		while (true) {
+			String type = tokenizer.getToken(","); //$NON-NLS-1$
+			if (type != null) {
+				type = type.toLowerCase();
+				if (type.endsWith("/*")) { //$NON-NLS-1$
+					type = type.substring(0, type.length() - 1);
+				}
+				types.addElement(type);
+			}
+			if (tokenizer.getChar() == '\0') {
+				break;
+			}
+		}
+		this.mimeTypes = new String[types.size()];
+		types.copyInto(this.mimeTypes);
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Returns the minimum content length in bytes of a compressed response.
+	 */
+	public int getMinSize() {
+		return (minSize);
+	}
+
+	/**
+	 * Returns true if content of the given type should be compressed.
+	 *
+	 * @param contentType value of the Content-Type header; may be null
+	 */
+	public boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return (false);
+		}
+
+		int end = contentType.indexOf(';');
+		if (end < 0) {
+			end = contentType.length();
+		}
+		while ((end > 0) && (contentType.charAt(end - 1) == ' ')) {
+			end--;
+		}
+
+		for (int i = 0; i < mimeTypes.length; i++) {
+			String type = mimeTypes[i];
+			int length = type.length();
+			if (type.endsWith("/")) { //$NON-NLS-1$
+				if ((end > length) && contentType.regionMatches(true, 0, type, 0, length)) {
+					return (true);
+				}
+			} else if ((end == length) && contentType.regionMatches(true, 0, type, 0, length)) {
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	/**
+	 * Choose the content-coding of a response.
+	 *
+	 * @param acceptEncoding value of the Accept-Encoding request header; may be null
+	 * @return GZIP, DEFLATE or null if the client accepts neither.
+	 */
+	public String selectEncoding(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return (null);
+		}
+
+		float gzip = 0;
+		float deflate = 0;
+		float any = 0;
+		Tokenizer tokenizer = new Tokenizer(acceptEncoding);
+		while (true) {
+			String coding = tokenizer.getToken(",;"); //$NON-NLS-1$
+			char c = tokenizer.getChar();
+
+			float q = 1;
+			while (c == ';') {
+				String parameter = tokenizer.getToken(",;="); //$NON-NLS-1$
+				c = tokenizer.getChar();
+				if (c == '=') {
+					String value = tokenizer.getString(",;"); //$NON-NLS-1$
+					c = tokenizer.getChar();
+					if ("q".equalsIgnoreCase(parameter) && (value != null)) { //$NON-NLS-1$
+						try {
+							q = Float.valueOf(value).floatValue();
+						} catch (NumberFormatException e) {
+							q = 0;
+						}
+					}
+				}
+			}
+
+			if (coding != null) {
+				if (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) { //$NON-NLS-1$
+					gzip = q;
+				} else if (DEFLATE.equalsIgnoreCase(coding)) {
+					deflate = q;
+				} else if ("*".equals(coding)) { //$NON-NLS-1$
+					any = q;
+				}
+			}
+
+			if (c == '\0') {
+				break;
+			}
+		}
+
+		if ((gzip == 0) && (acceptEncoding.toLowerCase().indexOf(GZIP) < 0)) {
+			gzip = any; /* not listed; covered by "*" */
+		}
+		if ((deflate == 0) && (acceptEncoding.toLowerCase().indexOf(DEFLATE) < 0)) {
+			deflate = any;
+		}
+
+		if ((gzip > 0) && (gzip >= deflate)) {
+			return (GZIP);
+		}
+		if (deflate > 0) {
+			return (DEFLATE);
+		}
+		return (null);
+	}
+
+	/**
+	 * Create a stream which compresses its output. Closing the stream writes the
+	 * remaining compressed data and closes the output stream.
+	 *
+	 * @param out stream receiving the compressed data
+	 * @param encoding GZIP or DEFLATE
+	 * @param bufferSize size of the output buffer
+	 */
+	public static OutputStream createOutputStream(OutputStream out, String encoding, int bufferSize) throws IOException {
+		if (GZIP.equals(encoding)) {
+			return (new GZIPOutputStream(out, bufferSize));
+		}
+		final Deflater deflater = new Deflater();
+		return (new DeflaterOutputStream(out, deflater, bufferSize) {
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end(); /* release the native memory */
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compress content.
+	 *
+	 * @param content the content
+	 * @param length number of bytes of content
+	 * @param encoding GZIP or DEFLATE
+	 * @return the compressed content
+	 */
+	public static byte[] compress(byte[] content, int length, String encoding) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+		OutputStream out = createOutputStream(bytes, encoding, 4096);
+		out.write(content, 0, length);
+		out.close();
+		return (bytes.toByteArray());
+	}
+}
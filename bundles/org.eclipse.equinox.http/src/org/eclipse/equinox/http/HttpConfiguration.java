@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2009 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -46,6 +46,15 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 
 	protected HttpThreadPool pool;
 
+	/** Selector for idle Keep-Alive connections; null if threads wait on them */
+	protected HttpSelector selector;
+
+	/** Executor running connections on virtual threads; null if the thread pool runs them */
+	protected HttpVirtualThreadExecutor virtualThreads;
+
+	/** Response compression policy; null if responses are not compressed */
+	protected HttpCompression compression;
+
 	protected final static String enviroKeyHttpPort = "org.osgi.service.http.port"; //$NON-NLS-1$
 	protected final static String enviroKeyHttpsPort = "org.osgi.service.http.port.secure"; //$NON-NLS-1$
 	protected final static String enviroKeyHttpAddress = "org.eclipse.equinox.http.address"; //$NON-NLS-1$
@@ -57,6 +66,12 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 
 	protected final static String enviroKeyHttpMinThreads = "org.eclipse.equinox.http.minThreads"; //$NON-NLS-1$
 	protected final static String enviroKeyHttpMaxThreads = "org.eclipse.equinox.http.maxThreads"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpSelector = "org.eclipse.equinox.http.selector"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpVirtualThreads = "org.eclipse.equinox.http.virtualThreads"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpMaxConnections = "org.eclipse.equinox.http.maxConnections"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpCompression = "org.eclipse.equinox.http.compression"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpCompressionMimeTypes = "org.eclipse.equinox.http.compression.mimeTypes"; //$NON-NLS-1$
+	protected final static String enviroKeyHttpCompressionMinSize = "org.eclipse.equinox.http.compression.minSize"; //$NON-NLS-1$
 
 	protected final static String keyHttpMinThreads = "http.minThreads"; //$NON-NLS-1$
 	protected final static String keyHttpMaxThreads = "http.maxThreads"; //$NON-NLS-1$
@@ -73,6 +88,9 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 	protected static int DEFAULT_HTTP_PORT = 80;
 	protected static int DEFAULT_HTTPS_PORT = 443;
 	protected static final int DEFAULT_TIMEOUT = 30;
+	protected static final int DEFAULT_MAXCONNECTIONS = 1000;
+	protected static final String DEFAULT_COMPRESSION_MIMETYPES = "text/*,application/javascript,application/x-javascript,application/json,application/xml,image/svg+xml"; //$NON-NLS-1$
+	protected static final int DEFAULT_COMPRESSION_MINSIZE = 1024;
 
 	/** Current minimum number of threads in the thread pool */
 	private int minThreads = DEFAULT_MINTHREADS;
@@ -101,6 +119,9 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 		setDefaultPorts();
 		setThreadPoolSizes();
 		pool = new HttpThreadPool(http, minThreads, maxThreads, threadPriority);
+		createVirtualThreadExecutor();
+		createSelector();
+		createCompression();
 		configuredListeners = new Hashtable(7);
 		synchronized (configuredListeners) {
 			createDefaultListeners();
@@ -232,6 +253,110 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 
 	}
 
+	/**
+	 * Create the executor running connections on virtual threads if requested.
+	 * The thread pool is used if the VM does not support virtual threads.
+	 * <p>
+	 */
+	protected void createVirtualThreadExecutor() {
+		BundleContext context = http.context;
+
+		if (!"true".equalsIgnoreCase(context.getProperty(enviroKeyHttpVirtualThreads))) { //$NON-NLS-1$
+			return;
+		}
+
+		int maxConnections = DEFAULT_MAXCONNECTIONS;
+		String property = context.getProperty(enviroKeyHttpMaxConnections);
+		if (property != null) {
+			try {
+				int max = Integer.parseInt(property);
+
+				if (max < 1) {
+					// Don't set the property and throw the exception to get the nice logging below.
+					throw new NumberFormatException();
+				}
+
+				maxConnections = max;
+			} catch (NumberFormatException e) {
+				http.logWarning(enviroKeyHttpMaxConnections + " must be greater than 0", e); //$NON-NLS-1$
+			}
+		}
+
+		virtualThreads = HttpVirtualThreadExecutor.create(http, maxConnections);
+		if (virtualThreads == null) {
+			http.logInfo(enviroKeyHttpVirtualThreads + " is not supported by this VM; using the thread pool"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Create the selector for idle Keep-Alive connections if requested.
+	 * A selector is not needed when connections run on virtual threads.
+	 * <p>
+	 */
+	protected void createSelector() {
+		if (virtualThreads != null || !"true".equalsIgnoreCase(http.context.getProperty(enviroKeyHttpSelector))) { //$NON-NLS-1$
+			return;
+		}
+
+		try {
+			Class.forName("java.nio.channels.Selector"); //$NON-NLS-1$
+		} catch (ClassNotFoundException e) {
+			http.logWarning(enviroKeyHttpSelector + " requires java.nio", e); //$NON-NLS-1$
+			return;
+		}
+
+		try {
+			selector = new HttpSelector(http, pool);
+			selector.start();
+		} catch (IOException e) {
+			http.logError(HttpMsg.HTTP_UNEXPECTED_IOEXCEPTION, e);
+			selector = null;
+		}
+	}
+
+	/**
+	 * Create the response compression policy if requested.
+	 * <p>
+	 */
+	protected void createCompression() {
+		BundleContext context = http.context;
+
+		if (!"true".equalsIgnoreCase(context.getProperty(enviroKeyHttpCompression))) { //$NON-NLS-1$
+			return;
+		}
+
+		try {
+			Class.forName("java.util.zip.GZIPOutputStream"); //$NON-NLS-1$
+		} catch (ClassNotFoundException e) {
+			http.logWarning(enviroKeyHttpCompression + " requires java.util.zip", e); //$NON-NLS-1$
+			return;
+		}
+
+		String mimeTypes = context.getProperty(enviroKeyHttpCompressionMimeTypes);
+		if (mimeTypes == null) {
+			mimeTypes = DEFAULT_COMPRESSION_MIMETYPES;
+		}
+
+		int minSize = DEFAULT_COMPRESSION_MINSIZE;
+		String property = context.getProperty(enviroKeyHttpCompressionMinSize);
+		if (property != null) {
+			try {
+				int size = Integer.parseInt(property);
+
+				if (size < 0) {
+					// Don't set the property and throw the exception to get the nice logging below.
+					throw new NumberFormatException();
+				}
+
+				minSize = size;
+			} catch (NumberFormatException e) {
+				http.logWarning(enviroKeyHttpCompressionMinSize + " must not be negative", e); //$NON-NLS-1$
+			}
+		}
+
+		compression = new HttpCompression(mimeTypes, minSize);
+	}
+
 	protected Dictionary createProperties(String address, int port, String scheme, int socketTimeout) {
 		Hashtable properties = new Hashtable(31);
 
@@ -258,7 +383,12 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 		if ("http".equalsIgnoreCase(scheme)) //$NON-NLS-1$
 		{
 			try {
-				ServerSocketInterface ssi = new HttpServerSocket(port, 50, netAddress);
+				ServerSocketInterface ssi;
+				if (selector != null) {
+					ssi = selector.createServerSocket(port, 50, netAddress);
+				} else {
+					ssi = new HttpServerSocket(port, 50, netAddress);
+				}
 				ssi.setAddress(address);
 				return ssi;
 			} catch (IOException e) {
@@ -308,6 +438,14 @@ public class HttpConfiguration implements ManagedService, ManagedServiceFactory
 			listener.close();
 		}
 
+		if (selector != null) {
+			selector.close();
+		}
+
+		if (virtualThreads != null) {
+			virtualThreads.close();
+		}
+
 		pool.close();
 	}
 
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006 IBM Corporation and others.
+ * Copyright (c) 2006, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -14,7 +14,9 @@ package org.eclipse.equinox.http;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import javax.servlet.ServletException;
+import org.eclipse.equinox.http.servlet.HttpRequestHeaders;
 import org.eclipse.equinox.socket.SocketInterface;
 
 /* @ThreadSafe */
@@ -31,10 +33,32 @@ public class HttpConnection implements Runnable {
 	/** if true, we support Keep-Alive for the socket */
 	private volatile boolean supportKeepAlive;
 
+	/** Selector in which the connection waits between requests; null if a thread waits on the socket */
+	private final HttpSelector selector;
+
+	/** Keep-Alive timeout in milliseconds */
+	private final int socketTimeout;
+
+	/** buffer into which the headers of each request are read */
+	private final HttpRequestHeaders headers = new HttpRequestHeaders();
+
+	/** time the connection was parked in the selector */
+	private volatile long parkedTime;
+
+	/** true once a request has been processed on the connection; only accessed by the thread running the connection */
+	private boolean reused;
+
 	public HttpConnection(Http http, HttpListener listenerParam, SocketInterface socketParam, int socketTimeout) {
+		this(http, listenerParam, socketParam, socketTimeout, null);
+	}
+
+	public HttpConnection(Http http, HttpListener listenerParam, SocketInterface socketParam, int socketTimeout, HttpSelector selectorParam) {
 		this.http = http;
 		this.listener = listenerParam;
 		this.socket = socketParam;
+		this.socketTimeout = socketTimeout;
+		/* only plain sockets accepted from a channel can be selected */
+		this.selector = (selectorParam != null && socketParam instanceof HttpChannelSocket) ? selectorParam : null;
 		boolean keepAlive;
 		if (socketTimeout > 0) {
 			try {
@@ -49,6 +73,10 @@ public class HttpConnection implements Runnable {
 		}
 
 		setKeepAlive(keepAlive);
+
+		if (http.metrics != null) {
+			http.metrics.connectionAccepted();
+		}
 	}
 
 	public void run() {
@@ -61,7 +89,12 @@ public class HttpConnection implements Runnable {
 
 			socket.markInactive(); /* mark inactive: we are not actively processing a request */
 
-			listener.handleConnection(socket);
+			listener.handleConnection(socket, headers);
+
+			if (reused && (http.metrics != null)) {
+				http.metrics.keepAliveRequest();
+			}
+			reused = true;
 
 			keepAlive = supportKeepAlive && !socket.isClosed();
 		} catch (InterruptedIOException e) {
@@ -70,6 +103,10 @@ public class HttpConnection implements Runnable {
 			 */
 			keepAlive = false;
 
+			if (reused && (http.metrics != null)) {
+				http.metrics.keepAliveTimeout();
+			}
+
 			if (Http.DEBUG) {
 				http.logDebug(Thread.currentThread().getName() + ": Read Timeout while processing connection on socket: " + socket, e); //$NON-NLS-1$
 			}
@@ -126,6 +163,46 @@ public class HttpConnection implements Runnable {
 		}
 	}
 
+	/**
+	 * Returns true if the connection waits for its next request in a selector
+	 * instead of a thread.
+	 */
+	public boolean isSelectable() {
+		return selector != null;
+	}
+
+	/**
+	 * Returns true if the next request has already been read from the socket.
+	 */
+	public boolean hasBufferedInput() {
+		return selector != null && ((HttpChannelSocket) socket).hasBufferedInput();
+	}
+
+	/**
+	 * Hand the connection to the selector until its next request arrives. Must
+	 * only be called by the thread which processed the last request, after it
+	 * has released the connection.
+	 */
+	public void park() {
+		selector.park(this);
+	}
+
+	SocketChannel getChannel() {
+		return ((HttpChannelSocket) socket).getChannel();
+	}
+
+	int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	long getParkedTime() {
+		return parkedTime;
+	}
+
+	void setParkedTime(long time) {
+		parkedTime = time;
+	}
+
 	public void setKeepAlive(boolean keepAlive) {
 		supportKeepAlive = keepAlive;
 	}
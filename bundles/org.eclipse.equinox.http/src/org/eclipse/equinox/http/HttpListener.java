@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2006 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -38,6 +38,8 @@ public class HttpListener extends Thread implements ServiceFactory {
 	protected ServiceRegistration service;
 	private String httpsvcClass = "org.osgi.service.http.HttpService"; //$NON-NLS-1$
 	protected Hashtable registrations;
+	/** Trie of the aliases in registrations; replaced when registrations changes */
+	protected volatile AliasTrie aliases = AliasTrie.EMPTY;
 	/** Mapping of HttpContext => ServletContextImpl */
 	protected Hashtable servletContexts;
 	protected int socketTimeout;
@@ -54,9 +56,26 @@ public class HttpListener extends Thread implements ServiceFactory {
 		//initialize servletContext Hashtable
 		servletContexts = new Hashtable(15);
 		setProperties(properties);
+		if ((http.metrics != null) && (http.metricsAlias != null)) {
+			registerMetricsServlet(http.metricsAlias);
+		}
 		start();
 	}
 
+	/**
+	 * Register the HttpMetricsServlet. Access to the servlet is controlled by
+	 * an HttpMetricsContext, which only serves the local host unless remote
+	 * access is allowed.
+	 */
+	private void registerMetricsServlet(String alias) {
+		Bundle bundle = http.context.getBundle();
+		try {
+			registerServlet(bundle, alias, new HttpMetricsServlet(http.metrics), null, new HttpMetricsContext(bundle, http.securityTracker, http.metricsAllowRemote));
+		} catch (Exception e) {
+			http.logWarning(Http.enviroKeyHttpMetricsAlias + " is not a valid alias", e); //$NON-NLS-1$
+		}
+	}
+
 	/**
 	 * Returns true if this thread has been closed.
 	 * @return boolean
@@ -153,6 +172,12 @@ public class HttpListener extends Thread implements ServiceFactory {
 			}
 
 			configuration.pool.recallThreads();
+			if (configuration.selector != null) {
+				configuration.selector.recall();
+			}
+			if (configuration.virtualThreads != null) {
+				configuration.virtualThreads.recall();
+			}
 		}
 	}
 
@@ -199,11 +224,13 @@ public class HttpListener extends Thread implements ServiceFactory {
 				}
 			}
 
-			if (socket != null) {
+			if (socket != null && configuration.virtualThreads != null) {
+				configuration.virtualThreads.execute(new HttpConnection(http, this, socket, socketTimeout));
+			} else if (socket != null) {
 				HttpThread thread = configuration.pool.getThread();
 
 				if (thread != null) {
-					thread.handleConnection(new HttpConnection(http, this, socket, socketTimeout));
+					thread.handleConnection(new HttpConnection(http, this, socket, socketTimeout, configuration.selector));
 				} else {
 					try {
 						socket.close();
@@ -216,10 +243,24 @@ public class HttpListener extends Thread implements ServiceFactory {
 	}
 
 	protected void handleConnection(SocketInterface socket) throws IOException, ServletException {
+		handleConnection(socket, new HttpRequestHeaders());
+	}
+
+	/**
+	 * Process the next request of a connection.
+	 *
+	 * @param socket socket of the connection
+	 * @param headers header buffer of the connection
+	 */
+	protected void handleConnection(SocketInterface socket, HttpRequestHeaders headers) throws IOException, ServletException {
 		/* Create the servlet request and response objects */
 		HttpServletResponseImpl response = new HttpServletResponseImpl(socket, http);
 
-		HttpServletRequestImpl request = new HttpServletRequestImpl(socket, http, response);
+		HttpServletRequestImpl request = new HttpServletRequestImpl(socket, http, response, headers);
+
+		HttpMetrics metrics = http.metrics;
+		String alias = null; /* alias of the registration which served the request */
+		boolean served = false;
 
 		/* After the request and response objects are successfully created,
 		 * we enter a try/finally block to ensure that the response is
@@ -233,11 +274,13 @@ public class HttpListener extends Thread implements ServiceFactory {
 
 			while (registration != null) {
 				try {
+					alias = registration.getAlias();
 					if (registration.getHttpContext().handleSecurity(request, response)) {
 						//Service Request
 						registration.service(request, response);
 					}
 
+					served = true;
 					return;
 				} catch (ResourceUnavailableException e) {
 					uri = reduceURI(uri);
@@ -256,10 +299,25 @@ public class HttpListener extends Thread implements ServiceFactory {
 							" not found -- No Registration object"); //$NON-NLS-1$
 				}
 
+				alias = null;
 				response.sendError(HttpServletResponse.SC_NOT_FOUND);
 			}
+
+			served = true;
 		} finally {
-			response.close(); /* close (and flush) the response output */
+			boolean sent = false;
+			try {
+				response.close(); /* close (and flush) the response output */
+				sent = served;
+			} finally {
+				if (metrics != null) {
+					if (sent) {
+						metrics.requestServed(alias, response.getStatus(), headers.getStartTime(), request);
+					} else {
+						metrics.requestFailed();
+					}
+				}
+			}
 		}
 	}
 
@@ -288,6 +346,7 @@ public class HttpListener extends Thread implements ServiceFactory {
 			ResourceRegistration registration = new ResourceRegistration(bundle, alias, name, httpContext, http);
 
 			registrations.put(alias, registration);
+			aliases = new AliasTrie(registrations);
 
 			return (registration);
 		}
@@ -343,6 +402,7 @@ public class HttpListener extends Thread implements ServiceFactory {
 
 			http.servlets.addElement(servlet);
 			registrations.put(alias, registration);
+			aliases = new AliasTrie(registrations);
 			return (registration);
 		}
 	}
@@ -422,18 +482,18 @@ public class HttpListener extends Thread implements ServiceFactory {
 		}
 	}
 
+	/**
+	 * Return the registration whose alias is the longest match for the URI.
+	 * This method does not lock the registrations.
+	 *
+	 * @param uri request URI.
+	 * @return The registration or null if no alias matches.
+	 */
 	public Registration getRegistration(String uri) {
-		synchronized (registrations) {
-			while (uri != null) {
-				Registration reg = (Registration) registrations.get(uri);
-
-				if (reg != null) {
-					return (reg);
-				}
-				uri = reduceURI(uri);
-			}
+		if (uri == null) {
 			return (null);
 		}
+		return (aliases.match(uri));
 	}
 
 	/**
@@ -470,6 +530,7 @@ public class HttpListener extends Thread implements ServiceFactory {
 			throw new IllegalArgumentException(HttpMsg.HTTP_ALIAS_UNREGISTER_EXCEPTION);
 		}
 		registrations.remove(registration.getAlias());
+		aliases = new AliasTrie(registrations);
 		if (registration instanceof ServletRegistration) {
 			Servlet servlet = ((ServletRegistration) registration).getServlet();
 			http.servlets.removeElement(servlet);
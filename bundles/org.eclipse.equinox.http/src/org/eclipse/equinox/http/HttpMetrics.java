@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.util.*;
+import javax.servlet.http.HttpServletRequest;
+import org.eclipse.equinox.http.servlet.HttpSessionStore;
+
+/**
+ * Request metrics of the Http Service. The time of each request, from the
+ * reading of its request line until its response has been sent, is recorded
+ * in a LatencyHistogram for all requests and in one for each alias and status
+ * code. Requests which take longer than the slow request time are kept in a
+ * list of recent slow requests; the first slow request and then at most one
+ * every SLOW_LOG_INTERVAL are logged. Slow requests are recorded by their
+ * path; the query string is only included if enabled.
+ * <p>
+ * An instance is registered as a service under this class name while the
+ * Http Service is started.
+ */
+/* @ThreadSafe */
+public class HttpMetrics {
+	/** alias under which requests which match no registration are recorded */
+	public static final String NO_ALIAS = ""; //$NON-NLS-1$
+
+	/** minimum time in milliseconds between logged slow requests */
+	private static final long SLOW_LOG_INTERVAL = 10000;
+
+	/** number of recent slow requests which are kept */
+	private static final int SLOW_REQUESTS = 20;
+
+	/** lowest and highest recorded status codes */
+	private static final int MIN_STATUS = 100;
+	private static final int MAX_STATUS = 599;
+
+	/** Master HTTP object */
+	private final Http http;
+
+	/** time in milliseconds after which a request is slow; 0 if requests are not traced */
+	private final long slowRequestTime;
+
+	/** if true the query string of a slow request is recorded */
+	private final boolean logQuery;
+
+	private final long startTime = System.currentTimeMillis();
+
+	private final LatencyHistogram requests = new LatencyHistogram();
+
+	/** alias (String) => LatencyHistogram[] indexed by status code - MIN_STATUS */
+	private final Hashtable aliases = new Hashtable(51);
+
+	private long connectionCount; /* @GuardedBy("this") */
+	private long keepAliveRequestCount; /* @GuardedBy("this") */
+	private long keepAliveTimeoutCount; /* @GuardedBy("this") */
+	private long failedRequestCount; /* @GuardedBy("this") */
+
+	/** recent slow requests; the oldest is replaced first */
+	private final String[] slowRequests = new String[SLOW_REQUESTS]; /* @GuardedBy("this") */
+	private int slowRequestIndex; /* @GuardedBy("this") */
+	private long slowRequestCount; /* @GuardedBy("this") */
+	private long lastSlowLogTime; /* @GuardedBy("this") */
+	private int unloggedSlowRequests; /* @GuardedBy("this") */
+
+	/**
+	 * @param http Master HTTP object
+	 * @param slowRequestTime time in milliseconds after which a request is slow;
+	 * 0 if requests are not traced
+	 * @param logQuery if true the query string of a slow request is recorded
+	 */
+	public HttpMetrics(Http http, long slowRequestTime, boolean logQuery) {
+		this.http = http;
+		this.slowRequestTime = slowRequestTime;
+		this.logQuery = logQuery;
+	}
+
+	/**
+	 * Record a request which has been served.
+	 *
+	 * @param alias alias of the registration which served the request, or null
+	 * if no registration matched
+	 * @param status status code of the response
+	 * @param requestTime time the request line was read
+	 * @param request the request
+	 */
+	public void requestServed(String alias, int status, long requestTime, HttpServletRequest request) {
+		long now = System.currentTimeMillis();
+		long time = now - requestTime;
+
+		requests.record(time);
+		LatencyHistogram histogram = getHistogram((alias == null) ? NO_ALIAS : alias, status, true);
+		if (histogram != null) {
+			histogram.record(time);
+		}
+
+		if ((slowRequestTime > 0) && (time >= slowRequestTime)) {
+			slowRequest(now, time, status, request);
+		}
+	}
+
+	/**
+	 * Record a request which failed before its response was sent.
+	 */
+	public synchronized void requestFailed() {
+		failedRequestCount++;
+	}
+
+	public synchronized void connectionAccepted() {
+		connectionCount++;
+	}
+
+	/**
+	 * Record a request read from a connection which served a previous request.
+	 */
+	public synchronized void keepAliveRequest() {
+		keepAliveRequestCount++;
+	}
+
+	/**
+	 * Record a connection which was closed because no request arrived within its timeout.
+	 */
+	public synchronized void keepAliveTimeout() {
+		keepAliveTimeoutCount++;
+	}
+
+	private void slowRequest(long now, long time, int status, HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		String query = logQuery ? request.getQueryString() : null;
+		StringBuffer buffer = new StringBuffer(128);
+		buffer.append(new HttpDate(now).toString());
+		buffer.append(' ').append(time).append("ms "); //$NON-NLS-1$
+		buffer.append(status).append(' ');
+		buffer.append(request.getMethod()).append(' ').append(uri);
+		if (query != null) {
+			buffer.append('?').append(query);
+		}
+		String entry = buffer.toString();
+
+		String message = null;
+		synchronized (this) {
+			slowRequests[slowRequestIndex] = entry;
+			slowRequestIndex = (slowRequestIndex + 1) % SLOW_REQUESTS;
+			slowRequestCount++;
+
+			if (now - lastSlowLogTime >= SLOW_LOG_INTERVAL) {
+				message = "Slow request: " + entry; //$NON-NLS-1$
+				if (unloggedSlowRequests > 0) {
+					message += " (" + unloggedSlowRequests + " more since the last one logged)"; //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				lastSlowLogTime = now;
+				unloggedSlowRequests = 0;
+			} else {
+				unloggedSlowRequests++;
+			}
+		}
+
+		if (message != null) {
+			http.logInfo(message);
+		}
+	}
+
+	/**
+	 * Return the histogram of an alias and status code.
+	 *
+	 * @param create if true the histogram is created if it does not exist
+	 * @return the histogram, or null if it does not exist or the status code
+	 * is not recorded.
+	 */
+	private LatencyHistogram getHistogram(String alias, int status, boolean create) {
+		if ((status < MIN_STATUS) || (status > MAX_STATUS)) {
+			return (null);
+		}
+
+		LatencyHistogram[] statuses = (LatencyHistogram[]) aliases.get(alias);
+		if (statuses == null) {
+			if (!create) {
+				return (null);
+			}
+			synchronized (aliases) {
+				statuses = (LatencyHistogram[]) aliases.get(alias);
+				if (statuses == null) {
+					statuses = new LatencyHistogram[MAX_STATUS - MIN_STATUS + 1];
+					aliases.put(alias, statuses);
+				}
+			}
+		}
+
+		/* the array element is created under the lock of the array */
+		synchronized (statuses) {
+			LatencyHistogram histogram = statuses[status - MIN_STATUS];
+			if ((histogram == null) && create) {
+				histogram = new LatencyHistogram();
+				statuses[status - MIN_STATUS] = histogram;
+			}
+			return (histogram);
+		}
+	}
+
+	/**
+	 * Returns the histogram of all served requests.
+	 */
+	public LatencyHistogram getHistogram() {
+		return (requests);
+	}
+
+	/**
+	 * Returns the histogram of the requests served by an alias with a status code.
+	 *
+	 * @param alias the alias, or NO_ALIAS for requests which matched no registration
+	 * @return the histogram, or null if no such request has been served.
+	 */
+	public LatencyHistogram getHistogram(String alias, int status) {
+		return (getHistogram(alias, status, false));
+	}
+
+	/**
+	 * Returns the aliases which have served requests, sorted.
+	 */
+	public String[] getAliases() {
+		Vector keys = new Vector(aliases.size());
+		for (Enumeration e = aliases.keys(); e.hasMoreElements();) {
+			keys.addElement(e.nextElement());
+		}
+		String[] result = new String[keys.size()];
+		keys.copyInto(result);
+		Arrays.sort(result);
+		return (result);
+	}
+
+	/**
+	 * Returns the status codes of the responses an alias has sent, in ascending order.
+	 */
+	public int[] getStatusCodes(String alias) {
+		LatencyHistogram[] statuses = (LatencyHistogram[]) aliases.get(alias);
+		if (statuses == null) {
+			return (new int[0]);
+		}
+
+		synchronized (statuses) {
+			int count = 0;
+			for (int i = 0; i < statuses.length; i++) {
+				if (statuses[i] != null) {
+					count++;
+				}
+			}
+			int[] result = new int[count];
+			count = 0;
+			for (int i = 0; i < statuses.length; i++) {
+				if (statuses[i] != null) {
+					result[count++] = i + MIN_STATUS;
+				}
+			}
+			return (result);
+		}
+	}
+
+	/**
+	 * Returns the recent slow requests, most recent first.
+	 */
+	public synchronized String[] getSlowRequests() {
+		Vector result = new Vector(SLOW_REQUESTS);
+		for (int i = 1; i <= SLOW_REQUESTS; i++) {
+			String entry = slowRequests[(slowRequestIndex - i + SLOW_REQUESTS) % SLOW_REQUESTS];
+			if (entry == null) {
+				break;
+			}
+			result.addElement(entry);
+		}
+		String[] entries = new String[result.size()];
+		result.copyInto(entries);
+		return (entries);
+	}
+
+	/**
+	 * Returns the time in milliseconds after which a request is slow, or 0 if
+	 * requests are not traced.
+	 */
+	public long getSlowRequestTime() {
+		return (slowRequestTime);
+	}
+
+	public synchronized long getSlowRequestCount() {
+		return (slowRequestCount);
+	}
+
+	/**
+	 * Returns the time the metrics were started.
+	 */
+	public long getStartTime() {
+		return (startTime);
+	}
+
+	public synchronized long getConnectionCount() {
+		return (connectionCount);
+	}
+
+	public synchronized long getKeepAliveRequestCount() {
+		return (keepAliveRequestCount);
+	}
+
+	public synchronized long getKeepAliveTimeoutCount() {
+		return (keepAliveTimeoutCount);
+	}
+
+	public synchronized long getFailedRequestCount() {
+		return (failedRequestCount);
+	}
+
+	/**
+	 * Returns the session store of the Http Service.
+	 */
+	public HttpSessionStore getSessionStore() {
+		return (http.getSessionStore());
+	}
+
+	/**
+	 * Returns the resource cache of the Http Service.
+	 */
+	public ResourceCache getResourceCache() {
+		return (http.resourceCache);
+	}
+
+	/**
+	 * Returns the executor running connections on virtual threads.
+	 *
+	 * @return the executor, or null if connections run on the thread pool.
+	 */
+	public HttpVirtualThreadExecutor getVirtualThreadExecutor() {
+		HttpConfiguration configuration = http.configuration;
+		return ((configuration == null) ? null : configuration.virtualThreads);
+	}
+}
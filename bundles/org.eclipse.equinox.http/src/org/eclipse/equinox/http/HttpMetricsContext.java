@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.osgi.framework.Bundle;
+
+/**
+ * The HttpContext of the HttpMetricsServlet. Requests must pass the security
+ * handler of the default HttpContext and, unless remote access is allowed,
+ * come from the loopback address; other requests are refused with 403.
+ */
+public class HttpMetricsContext extends DefaultHttpContext {
+
+	/** if true requests from other hosts are served */
+	protected boolean allowRemote;
+
+	public HttpMetricsContext(Bundle bundle, HttpSecurityTracker securityTracker, boolean allowRemote) {
+		super(bundle, securityTracker);
+		this.allowRemote = allowRemote;
+	}
+
+	public boolean handleSecurity(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!allowRemote && !isLoopback(request.getRemoteAddr())) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return (false);
+		}
+
+		return (super.handleSecurity(request, response));
+	}
+
+	/**
+	 * Returns true if an address is a loopback address. The address is
+	 * compared textually so that no name is resolved.
+	 */
+	protected static boolean isLoopback(String address) {
+		if (address == null) {
+			return (false);
+		}
+
+		return (address.startsWith("127.") || address.equals("::1") || address.equals("0:0:0:0:0:0:0:1")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
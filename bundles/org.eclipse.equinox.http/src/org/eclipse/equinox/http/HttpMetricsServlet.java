@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.http.*;
+import org.eclipse.equinox.http.servlet.HttpSessionStore;
+
+/**
+ * A servlet which reports the HttpMetrics as plain text. Times are in milliseconds.
+ */
+public class HttpMetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 2583914711652064903L;
+
+	private final HttpMetrics metrics;
+
+	public HttpMetricsServlet(HttpMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType("text/plain; charset=UTF-8"); //$NON-NLS-1$
+		response.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		PrintWriter out = response.getWriter();
+
+		out.println("since: " + new HttpDate(metrics.getStartTime()).toString()); //$NON-NLS-1$
+		out.println("connections: " + metrics.getConnectionCount()); //$NON-NLS-1$
+		out.println("keepAliveRequests: " + metrics.getKeepAliveRequestCount()); //$NON-NLS-1$
+		out.println("keepAliveTimeouts: " + metrics.getKeepAliveTimeoutCount()); //$NON-NLS-1$
+		out.println("failedRequests: " + metrics.getFailedRequestCount()); //$NON-NLS-1$
+
+		HttpSessionStore sessions = metrics.getSessionStore();
+		out.println("sessions: " + sessions.getCount() + " expired " + sessions.getExpiredCount() + " evicted " + sessions.getEvictedCount()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		ResourceCache cache = metrics.getResourceCache();
+		out.println("resourceCache: " + cache.getCount() + " size " + cache.getSize() + " hits " + cache.getHitCount() + " misses " + cache.getMissCount()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+		HttpVirtualThreadExecutor virtualThreads = metrics.getVirtualThreadExecutor();
+		if (virtualThreads != null) {
+			out.println("virtualThreads: " + virtualThreads.getConnectionCount() + " active " + virtualThreads.getActiveCount() + " parked " + virtualThreads.getParkedCount() + " peak " + virtualThreads.getPeakConnectionCount() + " total " + virtualThreads.getTotalConnectionCount() + " limit " + virtualThreads.getLimit()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+		}
+
+		out.println();
+		out.println("alias status count mean p50 p90 p99 max"); //$NON-NLS-1$
+		print(out, "*", "*", metrics.getHistogram()); //$NON-NLS-1$ //$NON-NLS-2$
+		String[] aliases = metrics.getAliases();
+		for (int i = 0; i < aliases.length; i++) {
+			String alias = aliases[i];
+			int[] statusCodes = metrics.getStatusCodes(alias);
+			for (int j = 0; j < statusCodes.length; j++) {
+				LatencyHistogram histogram = metrics.getHistogram(alias, statusCodes[j]);
+				print(out, HttpMetrics.NO_ALIAS.equals(alias) ? "-" : alias, String.valueOf(statusCodes[j]), histogram); //$NON-NLS-1$
+			}
+		}
+
+		if (metrics.getSlowRequestTime() > 0) {
+			out.println();
+			out.println("slowRequests (>= " + metrics.getSlowRequestTime() + "ms): " + metrics.getSlowRequestCount()); //$NON-NLS-1$ //$NON-NLS-2$
+			String[] slowRequests = metrics.getSlowRequests();
+			for (int i = 0; i < slowRequests.length; i++) {
+				out.println(slowRequests[i]);
+			}
+		}
+
+		out.close();
+	}
+
+	private void print(PrintWriter out, String alias, String status, LatencyHistogram histogram) {
+		StringBuffer line = new StringBuffer(80);
+		line.append(alias).append(' ').append(status);
+		line.append(' ').append(histogram.getCount());
+		line.append(' ').append(histogram.getMean());
+		line.append(' ').append(histogram.getValueAtPercentile(50));
+		line.append(' ').append(histogram.getValueAtPercentile(90));
+		line.append(' ').append(histogram.getValueAtPercentile(99));
+		line.append(' ').append(histogram.getMax());
+		out.println(line.toString());
+	}
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.*;
+import java.util.*;
+import org.eclipse.equinox.socket.ServerSocketInterface;
+
+/**
+ * This class parks idle Keep-Alive connections in a Selector. A connection is
+ * handed to a thread from the thread pool only when its next request arrives,
+ * so the number of threads depends on the number of requests being processed
+ * rather than on the number of open connections.
+ * <p>
+ * This class uses java.nio and must only be loaded when it is available.
+ */
+/* @ThreadSafe */
+public class HttpSelector extends Thread {
+	/** time in milliseconds between checks for idle connections */
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
+	/** Master HTTP object */
+	private final Http http;
+
+	/** Pool which processes the requests */
+	private final HttpThreadPool pool;
+
+	private final Selector selector;
+
+	/** if true this thread must terminate */
+	private volatile boolean running;
+
+	/** connections waiting to be registered with the selector */
+	private final Vector pending = new Vector(); /* @GuardedBy("this") */
+
+	/** if true all parked connections must be closed */
+	private boolean recall; /* @GuardedBy("this") */
+
+	public HttpSelector(Http http, HttpThreadPool pool) throws IOException {
+		super("Http Service Selector"); //$NON-NLS-1$
+		this.http = http;
+		this.pool = pool;
+		this.selector = Selector.open();
+		running = true;
+
+		setDaemon(true); /* mark thread as daemon thread */
+	}
+
+	/**
+	 * Create a server socket whose connections can be parked in this selector.
+	 */
+	public ServerSocketInterface createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+		return new HttpChannelServerSocket(port, backlog, address);
+	}
+
+	/**
+	 * Park an idle connection until its next request arrives or it times out.
+	 * The caller must no longer use the connection.
+	 *
+	 * @param conn a connection whose socket is an HttpChannelSocket
+	 */
+	public void park(HttpConnection conn) {
+		synchronized (this) {
+			if (running) {
+				pending.addElement(conn);
+				conn = null;
+			}
+		}
+
+		if (conn == null) {
+			selector.wakeup();
+		} else {
+			closeConnection(conn);
+		}
+	}
+
+	/**
+	 * Close all parked connections.
+	 */
+	public void recall() {
+		synchronized (this) {
+			recall = true;
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Close the parked connections and terminate this thread.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_INTERVAL;
+
+			while (running) {
+				try {
+					selector.select(IDLE_CHECK_INTERVAL);
+				} catch (IOException e) {
+					http.logError(HttpMsg.HTTP_UNEXPECTED_IOEXCEPTION, e);
+					return;
+				}
+
+				registerPending();
+
+				Set selectedKeys = selector.selectedKeys();
+				if (!selectedKeys.isEmpty()) {
+					Vector ready = new Vector(selectedKeys.size());
+					for (Iterator keys = selectedKeys.iterator(); keys.hasNext();) {
+						SelectionKey key = (SelectionKey) keys.next();
+						keys.remove();
+						key.cancel();
+						ready.addElement(key.attachment());
+					}
+					dispatch(ready);
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextIdleCheck) {
+					closeIdleConnections(now);
+					nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+				}
+			}
+		} finally {
+			closeAll();
+		}
+	}
+
+	/**
+	 * Register the pending connections, or close all parked connections if they
+	 * have been recalled.
+	 */
+	private void registerPending() {
+		HttpConnection[] conns;
+		boolean recallParked;
+		synchronized (this) {
+			conns = new HttpConnection[pending.size()];
+			pending.copyInto(conns);
+			pending.removeAllElements();
+			recallParked = recall;
+			recall = false;
+		}
+
+		if (recallParked) {
+			closeRegistered();
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < conns.length; i++) {
+			HttpConnection conn = conns[i];
+
+			if (recallParked || conn.isClosed()) {
+				closeConnection(conn);
+				continue;
+			}
+
+			try {
+				SocketChannel channel = conn.getChannel();
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, conn);
+				conn.setParkedTime(now);
+			} catch (IOException e) {
+				closeConnection(conn);
+			}
+		}
+	}
+
+	/**
+	 * Hand connections with a request to threads of the pool.
+	 */
+	private void dispatch(Vector ready) {
+		/* the channels can only be put back in blocking mode once the cancelled keys are removed */
+		try {
+			selector.selectNow();
+		} catch (IOException e) {
+			// the keys are removed by the next select
+		}
+
+		int size = ready.size();
+		for (int i = 0; i < size; i++) {
+			HttpConnection conn = (HttpConnection) ready.elementAt(i);
+
+			try {
+				conn.getChannel().configureBlocking(true);
+			} catch (IOException e) {
+				closeConnection(conn);
+				continue;
+			} catch (IllegalBlockingModeException e) {
+				closeConnection(conn);
+				continue;
+			}
+
+			if (Http.DEBUG) {
+				http.logDebug(getName() + ": Request ready on socket: " + conn); //$NON-NLS-1$
+			}
+
+			HttpThread thread = pool.getThread();
+
+			if (thread != null) {
+				thread.handleConnection(conn);
+			} else {
+				closeConnection(conn);
+			}
+		}
+	}
+
+	/**
+	 * Close connections which have been idle longer than their socket timeout.
+	 */
+	private void closeIdleConnections(long now) {
+		for (Iterator keys = selector.keys().iterator(); keys.hasNext();) {
+			SelectionKey key = (SelectionKey) keys.next();
+			if (!key.isValid()) {
+				continue;
+			}
+			HttpConnection conn = (HttpConnection) key.attachment();
+
+			if (now - conn.getParkedTime() >= conn.getSocketTimeout()) {
+				if (Http.DEBUG) {
+					http.logDebug(getName() + ": Keep-Alive timeout on socket: " + conn); //$NON-NLS-1$
+				}
+
+				key.cancel();
+				closeConnection(conn);
+
+				if (http.metrics != null) {
+					http.metrics.keepAliveTimeout();
+				}
+			}
+		}
+	}
+
+	private void closeRegistered() {
+		for (Iterator keys = selector.keys().iterator(); keys.hasNext();) {
+			SelectionKey key = (SelectionKey) keys.next();
+			key.cancel();
+			closeConnection((HttpConnection) key.attachment());
+		}
+	}
+
+	private void closeAll() {
+		synchronized (this) {
+			running = false;
+		}
+
+		closeRegistered();
+
+		int size = pending.size();
+		for (int i = 0; i < size; i++) {
+			closeConnection((HttpConnection) pending.elementAt(i));
+		}
+		pending.removeAllElements();
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// TODO: consider logging
+		}
+	}
+
+	private void closeConnection(HttpConnection conn) {
+		try {
+			if (Http.DEBUG) {
+				http.logDebug(getName() + ": Closing socket: " + conn); //$NON-NLS-1$
+			}
+
+			conn.close();
+		} catch (IOException e) {
+			// TODO: consider logging
+		}
+	}
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2006 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -127,6 +127,10 @@ public class HttpThread extends Thread {
 
 				if (conn.isClosed()) {	/* if connection is closed */
 			    	conn = null;		/* go back to the pool and wait */
+			    } else if (conn.isSelectable() && !conn.hasBufferedInput()) {
+			    	HttpConnection idle = conn;
+			    	conn = null;		/* let the selector wait for the next request */
+			    	idle.park();
 			    }
 			}
 		}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Vector;
+
+/**
+ * This class runs each connection on its own virtual thread. A virtual thread
+ * waiting for the next Keep-Alive request is parked by the JVM without holding
+ * a platform thread, so idle connections are cheap. The number of open
+ * connections is limited; when the limit is reached the listener waits for a
+ * connection to close before it accepts another.
+ * <p>
+ * Virtual threads are created by reflection so that this class loads on any
+ * VM; {@link #create(Http, int)} returns null if the VM does not support them.
+ */
+/* @ThreadSafe */
+public class HttpVirtualThreadExecutor {
+	/** Master HTTP object */
+	private final Http http;
+
+	/** ThreadFactory creating virtual threads */
+	private final Object factory;
+
+	/** ThreadFactory.newThread(Runnable) */
+	private final Method newThread;
+
+	/** maximum number of open connections */
+	private final int limit;
+
+	/** open connections */
+	private final Vector connections = new Vector(); /* @GuardedBy("this") */
+
+	/** if false no more connections are accepted */
+	private boolean running = true; /* @GuardedBy("this") */
+
+	/** number of connections which have been opened */
+	private long totalCount; /* @GuardedBy("this") */
+
+	/** largest number of connections open at the same time */
+	private int peakCount; /* @GuardedBy("this") */
+
+	protected HttpVirtualThreadExecutor(Http http, Object factory, Method newThread, int limit) {
+		this.http = http;
+		this.factory = factory;
+		this.newThread = newThread;
+		this.limit = limit;
+	}
+
+	/**
+	 * Create an executor if the VM supports virtual threads.
+	 *
+	 * @param http Master HTTP object
+	 * @param limit maximum number of open connections
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	public static HttpVirtualThreadExecutor create(Http http, int limit) {
+		try {
+			Class builderClass = Class.forName("java.lang.Thread$Builder"); //$NON-NLS-1$
+			Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]); //$NON-NLS-1$
+			builder = builderClass.getMethod("name", new Class[] {String.class, long.class}).invoke(builder, new Object[] {"HttpVirtualThread_", new Long(1)}); //$NON-NLS-1$ //$NON-NLS-2$
+			Object factory = builderClass.getMethod("factory", new Class[0]).invoke(builder, new Object[0]); //$NON-NLS-1$
+			Method newThread = Class.forName("java.util.concurrent.ThreadFactory").getMethod("newThread", new Class[] {Runnable.class}); //$NON-NLS-1$ //$NON-NLS-2$
+			return new HttpVirtualThreadExecutor(http, factory, newThread, limit);
+		} catch (Exception e) {
+			/* ClassNotFoundException, NoSuchMethodException, etc: virtual threads are not supported */
+			return null;
+		}
+	}
+
+	/**
+	 * Process a connection on a new virtual thread. If the connection limit has
+	 * been reached, this method blocks until a connection closes.
+	 *
+	 * @param conn the connection to process
+	 */
+	public void execute(HttpConnection conn) {
+		synchronized (this) {
+			while (running && (connections.size() >= limit)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// ignore and check exit condition
+				}
+			}
+
+			if (running) {
+				connections.addElement(conn);
+				totalCount++;
+				if (connections.size() > peakCount) {
+					peakCount = connections.size();
+				}
+			}
+		}
+
+		if (!isRunning()) {
+			closeConnection(conn);
+			return;
+		}
+
+		try {
+			Thread thread = newThread(new Worker(conn));
+			thread.start();
+		} catch (Exception e) {
+			http.logError(HttpMsg.HTTP_CONNECTION_EXCEPTION, e);
+
+			closeConnection(conn);
+			removeConnection(conn);
+		}
+	}
+
+	/**
+	 * Create an unstarted thread.
+	 */
+	protected Thread newThread(Runnable runnable) throws Exception {
+		return (Thread) newThread.invoke(factory, new Object[] {runnable});
+	}
+
+	synchronized boolean isRunning() {
+		return running;
+	}
+
+	synchronized void removeConnection(HttpConnection conn) {
+		connections.removeElement(conn);
+		notifyAll();
+	}
+
+	/**
+	 * Close the connections which are waiting for a request and disable
+	 * Keep-Alive for the others. This is needed when the socket of a listener
+	 * changes.
+	 */
+	public void recall() {
+		HttpConnection[] conns = getConnections();
+		for (int i = 0; i < conns.length; i++) {
+			HttpConnection conn = conns[i];
+			conn.setKeepAlive(false); /* disable keep alive in case the connection is currently processing a request */
+			if (!conn.isActive()) { /* if the connection is not processing a request, close it */
+				closeConnection(conn);
+			}
+		}
+	}
+
+	/**
+	 * Close all connections and stop accepting new ones.
+	 */
+	public void close() {
+		synchronized (this) {
+			running = false;
+			/* Notify everyone waiting for a connection to close */
+			notifyAll();
+		}
+
+		HttpConnection[] conns = getConnections();
+		for (int i = 0; i < conns.length; i++) {
+			closeConnection(conns[i]);
+		}
+	}
+
+	private synchronized HttpConnection[] getConnections() {
+		HttpConnection[] conns = new HttpConnection[connections.size()];
+		connections.copyInto(conns);
+		return conns;
+	}
+
+	void closeConnection(HttpConnection conn) {
+		if (!conn.isClosed()) {
+			try {
+				if (Http.DEBUG) {
+					http.logDebug(Thread.currentThread().getName() + ": Closing socket: " + conn); //$NON-NLS-1$
+				}
+
+				conn.close();
+			} catch (IOException e) {
+				// TODO: consider logging
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum number of open connections.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 */
+	public synchronized int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Returns the number of connections processing a request.
+	 */
+	public synchronized int getActiveCount() {
+		int active = 0;
+		int size = connections.size();
+		for (int i = 0; i < size; i++) {
+			if (((HttpConnection) connections.elementAt(i)).isActive()) {
+				active++;
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Returns the number of connections whose thread is parked waiting for
+	 * the next request.
+	 */
+	public int getParkedCount() {
+		synchronized (this) {
+			return connections.size() - getActiveCount();
+		}
+	}
+
+	/**
+	 * Returns the largest number of connections which have been open at the same time.
+	 */
+	public synchronized int getPeakConnectionCount() {
+		return peakCount;
+	}
+
+	/**
+	 * Returns the number of connections which have been opened.
+	 */
+	public synchronized long getTotalConnectionCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Runs a connection until it is closed.
+	 */
+	private class Worker implements Runnable {
+		private final HttpConnection conn;
+
+		Worker(HttpConnection conn) {
+			this.conn = conn;
+		}
+
+		public void run() {
+			try {
+				while (!conn.isClosed() && isRunning()) {
+					conn.run(); /* execute the connection */
+				}
+			} finally {
+				closeConnection(conn);
+				removeConnection(conn);
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+/**
+ * A histogram of request times in milliseconds. Values below SUB_BUCKETS * 2
+ * are counted exactly; larger values are counted in buckets which split each
+ * power of two range into SUB_BUCKETS, so a value is reported with an error
+ * of at most 1/SUB_BUCKETS. Recording a value only increments a counter, and
+ * the histogram has a fixed size whatever values are recorded.
+ */
+/* @ThreadSafe */
+public class LatencyHistogram {
+	/** number of buckets into which each power of two range is split */
+	private static final int SUB_BUCKETS = 16;
+
+	/** log2(SUB_BUCKETS) */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** values below this limit are counted exactly */
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+	/** highest power of two of a recorded value; larger values are recorded as Integer.MAX_VALUE */
+	private static final int MAX_MAGNITUDE = 30;
+
+	private final long[] counts = new long[LINEAR_LIMIT + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS]; /* @GuardedBy("this") */
+
+	private long count; /* @GuardedBy("this") */
+	private long sum; /* @GuardedBy("this") */
+	private long max; /* @GuardedBy("this") */
+
+	/**
+	 * Record a value.
+	 *
+	 * @param value time in milliseconds; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		int index = indexOf(value);
+		synchronized (this) {
+			counts[index]++;
+			count++;
+			sum += value;
+			if (value > max) {
+				max = value;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 */
+	public synchronized long getCount() {
+		return (count);
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 */
+	public synchronized long getMax() {
+		return (max);
+	}
+
+	/**
+	 * Returns the mean of the recorded values, or 0 if no value has been recorded.
+	 */
+	public synchronized long getMean() {
+		return (count == 0) ? 0 : sum / count;
+	}
+
+	/**
+	 * Returns the value below or at which the given percentage of the recorded
+	 * values fall. The value is the upper bound of its bucket.
+	 *
+	 * @param percentile a percentage between 0 and 100
+	 * @return the value, or 0 if no value has been recorded.
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return (0);
+		}
+
+		long target = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+		if (target == 0) {
+			target = 1;
+		}
+
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += counts[i];
+			if (total >= target) {
+				return (Math.min(highestValueAt(i), max));
+			}
+		}
+		return (max);
+	}
+
+	/**
+	 * Discard the recorded values.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	private static int indexOf(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (value < 0) ? 0 : (int) value;
+		}
+
+		int v = (value > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) value;
+		int magnitude = 31;
+		while ((v & (1 << magnitude)) == 0) {
+			magnitude--;
+		}
+
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (LINEAR_LIMIT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + ((v >> shift) - SUB_BUCKETS));
+	}
+
+	private static long highestValueAt(int index) {
+		if (index < LINEAR_LIMIT) {
+			return (index);
+		}
+
+		int magnitude = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		int sub = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (((long) (SUB_BUCKETS + sub + 1) << shift) - 1);
+	}
+}
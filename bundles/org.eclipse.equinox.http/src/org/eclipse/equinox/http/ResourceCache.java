@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http;
+
+import java.util.Hashtable;
+
+/**
+ * A size bounded cache of registered resources. Each entry holds the content of
+ * a resource together with the response headers computed from it, so a request
+ * for a cached resource neither opens the resource nor formats its headers.
+ * An entry also holds the compressed variants of the content which have been
+ * requested, so a resource is compressed once rather than for each request.
+ * The least recently used entries are evicted when the total size of the
+ * cached content exceeds the limit.
+ */
+/* @ThreadSafe */
+public class ResourceCache {
+	/** Resource URL (String) => CachedResource */
+	private final Hashtable entries = new Hashtable(51); /* @GuardedBy("this") */
+
+	/** most recently used end of the list; head.next is the most recently used entry */
+	private final CachedResource head = new CachedResource();
+
+	/** maximum total size of the cached content in bytes */
+	private final long maxSize;
+
+	/** maximum size of a cached resource in bytes */
+	private final int maxEntrySize;
+
+	/** total size of the cached content and variants in bytes */
+	private long size; /* @GuardedBy("this") */
+
+	private long hitCount; /* @GuardedBy("this") */
+	private long missCount; /* @GuardedBy("this") */
+
+	/**
+	 * @param maxSize maximum total size of the cached content in bytes; 0 disables the cache
+	 * @param maxEntrySize maximum size of a cached resource in bytes
+	 */
+	public ResourceCache(long maxSize, int maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = (int) Math.min(maxEntrySize, maxSize);
+		head.next = head;
+		head.prev = head;
+	}
+
+	/**
+	 * Returns true if a resource of the given size may be cached.
+	 *
+	 * @param length content length of the resource, or -1 if unknown
+	 */
+	public boolean accepts(int length) {
+		return (maxSize > 0) && (length >= 0) && (length <= maxEntrySize);
+	}
+
+	/**
+	 * Return a cached resource.
+	 *
+	 * @param key the resource URL
+	 * @return the resource, or null if it is not cached.
+	 */
+	public synchronized CachedResource get(String key) {
+		CachedResource resource = (CachedResource) entries.get(key);
+		if (resource == null) {
+			missCount++;
+			return (null);
+		}
+
+		hitCount++;
+		unlink(resource);
+		linkFirst(resource);
+		return (resource);
+	}
+
+	/**
+	 * Add a resource, replacing any resource with the same key.
+	 */
+	public synchronized void put(CachedResource resource) {
+		if (!accepts(resource.content.length)) {
+			return;
+		}
+
+		remove(resource.key);
+		entries.put(resource.key, resource);
+		linkFirst(resource);
+		size += resource.size;
+
+		evict();
+	}
+
+	public synchronized void remove(String key) {
+		CachedResource resource = (CachedResource) entries.remove(key);
+		if (resource != null) {
+			unlink(resource);
+			size -= resource.size;
+		}
+	}
+
+	/**
+	 * Return a variant of a cached resource.
+	 *
+	 * @param resource the resource
+	 * @param encoding the content-coding of the variant
+	 * @return the variant, or null if it has not been added.
+	 */
+	public synchronized Variant getVariant(CachedResource resource, String encoding) {
+		if (resource.variants == null) {
+			return (null);
+		}
+		return ((Variant) resource.variants.get(encoding));
+	}
+
+	/**
+	 * Add a variant to a cached resource. The variant is dropped if the resource
+	 * is no longer cached.
+	 *
+	 * @param resource the resource
+	 * @param variant the variant
+	 */
+	public synchronized void putVariant(CachedResource resource, Variant variant) {
+		if (entries.get(resource.key) != resource) {
+			return;
+		}
+
+		if (resource.variants == null) {
+			resource.variants = new Hashtable(3);
+		}
+		Variant old = (Variant) resource.variants.put(variant.encoding, variant);
+		int delta = variant.getSize() - ((old != null) ? old.getSize() : 0);
+		resource.size += delta;
+		size += delta;
+
+		evict();
+	}
+
+	private void evict() {
+		while (size > maxSize) {
+			remove(head.prev.key);
+		}
+	}
+
+	/**
+	 * Remove the resources added by an owner.
+	 *
+	 * @param owner the owner given to the resources
+	 */
+	public synchronized void removeAll(Object owner) {
+		CachedResource resource = head.next;
+		while (resource != head) {
+			CachedResource next = resource.next;
+			if (resource.owner == owner) {
+				remove(resource.key);
+			}
+			resource = next;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		head.next = head;
+		head.prev = head;
+		size = 0;
+	}
+
+	private void linkFirst(CachedResource resource) {
+		resource.prev = head;
+		resource.next = head.next;
+		head.next.prev = resource;
+		head.next = resource;
+	}
+
+	private void unlink(CachedResource resource) {
+		resource.prev.next = resource.next;
+		resource.next.prev = resource.prev;
+		resource.prev = null;
+		resource.next = null;
+	}
+
+	/**
+	 * Returns the total size of the cached content in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of cached resources.
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * A cached resource and its precomputed response headers.
+	 */
+	public static class CachedResource {
+		final String key;
+		final byte[] content;
+		final String mimeType;
+		final long lastModified;
+		/** value of the Last-Modified header; null if the modification time is unknown */
+		final String lastModifiedHeader;
+		final String etag;
+		/** the registration which cached the resource; null if unknown */
+		final Object owner;
+		/** time the resource was last compared with its source */
+		volatile long checkTime;
+
+		/* size of the content and variants; content-coding (String) => Variant @GuardedBy("ResourceCache.this") */
+		int size;
+		Hashtable variants;
+
+		/* list links @GuardedBy("ResourceCache.this") */
+		CachedResource prev;
+		CachedResource next;
+
+		CachedResource() {
+			this(null, new byte[0], null, 0, null);
+		}
+
+		public CachedResource(String key, byte[] content, String mimeType, long lastModified) {
+			this(key, content, mimeType, lastModified, null);
+		}
+
+		/**
+		 * @param owner the registration which caches the resource; see {@link ResourceCache#removeAll(Object)}
+		 */
+		public CachedResource(String key, byte[] content, String mimeType, long lastModified, Object owner) {
+			this.key = key;
+			this.owner = owner;
+			this.content = content;
+			this.mimeType = mimeType;
+			this.lastModified = lastModified;
+			this.lastModifiedHeader = (lastModified > 0) ? new HttpDate(lastModified).toString() : null;
+			this.etag = computeETag(content.length, lastModified);
+			this.checkTime = System.currentTimeMillis();
+			this.size = content.length;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+	}
+
+	/**
+	 * The content of a cached resource with a content-coding applied.
+	 */
+	public static class Variant {
+		final String encoding;
+		final byte[] content;
+		final String etag;
+
+		/**
+		 * @param resource the resource
+		 * @param encoding the content-coding
+		 * @param content the coded content, or null if coding does not reduce
+		 * the size of the resource; the resource is then sent unchanged
+		 */
+		public Variant(CachedResource resource, String encoding, byte[] content) {
+			this.encoding = encoding;
+			this.content = content;
+			this.etag = (content != null) ? computeETag(resource.content.length, resource.lastModified, encoding) : null;
+		}
+
+		/**
+		 * Returns the coded content, or null if the resource must be sent unchanged.
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getEncoding() {
+			return encoding;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		int getSize() {
+			return (content != null) ? content.length : 0;
+		}
+	}
+
+	/**
+	 * Compute a weak entity tag from the length and modification time of a resource.
+	 *
+	 * @return the entity tag, or null if either value is unknown.
+	 */
+	public static String computeETag(int length, long lastModified) {
+		if ((length < 0) || (lastModified <= 0)) {
+			return (null);
+		}
+		return ("W/\"" + length + "-" + lastModified + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/**
+	 * Compute a weak entity tag for a resource sent with a content-coding.
+	 *
+	 * @return the entity tag, or null if the length or modification time is unknown.
+	 */
+	public static String computeETag(int length, long lastModified, String encoding) {
+		if ((length < 0) || (lastModified <= 0)) {
+			return (null);
+		}
+		return ("W/\"" + length + "-" + lastModified + "-" + encoding + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
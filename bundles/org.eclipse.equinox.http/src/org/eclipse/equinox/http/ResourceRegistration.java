@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2009 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -23,6 +23,10 @@ import org.osgi.service.http.HttpContext;
 
 /**
  This class contains methods used to send requested resources a client.
+ Resources up to a size limit are kept in the Http ResourceCache; larger
+ file resources are transferred directly to channel sockets.
+ If response compression is configured, the compressed variants of cached
+ resources are kept in the cache; other resources are compressed as they are sent.
  */
 public class ResourceRegistration extends HttpServlet implements Registration {
 
@@ -34,6 +38,9 @@ public class ResourceRegistration extends HttpServlet implements Registration {
 	protected Http http;
 	protected SecureAction secureAction;
 
+	/** time in milliseconds a cached resource is served before it is compared with the resource again */
+	protected static final long CACHE_CHECK_INTERVAL = 5000;
+
 	/**
 	 * The constructor
 	 */
@@ -76,6 +83,8 @@ public class ResourceRegistration extends HttpServlet implements Registration {
 	}
 
 	public void destroy() {
+		/* drop the resources this registration added to the cache */
+		http.resourceCache.removeAll(this);
 		alias = null;
 		path = null;
 	}
@@ -105,15 +114,39 @@ public class ResourceRegistration extends HttpServlet implements Registration {
 			throw new ResourceUnavailableException();
 		}
 
-		URLConnection conn = secureAction.openURL(url);
+		/* the content-coding of a resource is chosen here */
+		if (response instanceof HttpServletResponseImpl) {
+			((HttpServletResponseImpl) response).disableCompression();
+		}
 
-		long modifiedSince = request.getDateHeader("If-Modified-Since"); //$NON-NLS-1$
-		if (modifiedSince >= 0) {
-			long modified = conn.getLastModified();
-			if ((modified > 0) && (modifiedSince >= modified)) {
+		ResourceCache.CachedResource cached = getCachedResource(url);
+		if (cached != null) {
+			ResourceCache.Variant variant = getVariant(request, response, cached);
+			String etag = (variant != null) ? variant.getETag() : cached.getETag();
+			if (isNotModified(request, cached.getLastModified(), etag)) {
 				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
 				return;
 			}
+
+			if (variant != null) {
+				writeVariant(response, cached, variant);
+			} else {
+				writeCachedResource(response, cached);
+			}
+			return;
+		}
+
+		URLConnection conn = secureAction.openURL(url);
+
+		long modified = conn.getLastModified();
+		int contentlength = conn.getContentLength();
+		String mimeType = computeMimeType(filename, conn);
+		String encoding = selectEncoding(request, response, mimeType, contentlength);
+		String etag = (encoding != null) ? ResourceCache.computeETag(contentlength, modified, encoding) : ResourceCache.computeETag(contentlength, modified);
+		if (isNotModified(request, modified, etag)) {
+			closeConnection(conn);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
 		}
 
 		InputStream in;
@@ -125,39 +158,53 @@ public class ResourceRegistration extends HttpServlet implements Registration {
 		}
 
 		try {
-			int contentlength = conn.getContentLength();
-			if (contentlength >= 0) {
-				response.setContentLength(contentlength);
+			if (http.resourceCache.accepts(contentlength)) {
+				cached = new ResourceCache.CachedResource(url.toExternalForm(), readContent(in, contentlength), mimeType, modified, this);
+				http.resourceCache.put(cached);
+
+				ResourceCache.Variant variant = getVariant(request, response, cached);
+				if (variant != null) {
+					writeVariant(response, cached, variant);
+				} else {
+					writeCachedResource(response, cached);
+				}
+				return;
 			}
 
-			String mimeType = computeMimeType(filename, conn);
-			response.setContentType(mimeType);
-
-			// We want to use a writer if we are sending text
-			if (mimeType.startsWith("text/")) //$NON-NLS-1$
-			{
-				PrintWriter writer = response.getWriter();
-
-				writer.flush(); /* write the headers and unbuffer the output */
-
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-				char buffer[] = new char[4096];
-				int read;
-				while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
-					writer.write(buffer, 0, read);
-				}
-			} else {
-				ServletOutputStream out = response.getOutputStream();
+			String lastModified = (modified > 0) ? new HttpDate(modified).toString() : null;
 
-				out.flush(); /* write the headers and unbuffer the output */
+			if (encoding != null) {
+				/* compress the content as it is sent; its length is not known in advance */
+				response.setHeader("Content-Encoding", encoding); //$NON-NLS-1$
+				setHeaders(response, mimeType, lastModified, etag);
 
+				OutputStream out = HttpCompression.createOutputStream(response.getOutputStream(), encoding, 4096);
 				byte buffer[] = new byte[4096];
 				int read;
 				while ((read = in.read(buffer, 0, buffer.length)) != -1) {
 					out.write(buffer, 0, read);
 				}
+				out.close();
+				return;
+			}
+
+			if (contentlength >= 0) {
+				response.setContentLength(contentlength);
+			}
+
+			setHeaders(response, mimeType, lastModified, etag);
+
+			if ((contentlength >= 0) && !mimeType.startsWith("text/")) //$NON-NLS-1$
+			{
+				File file = getFile(url);
+				if ((file != null) && (response instanceof HttpServletResponseImpl)) {
+					if (((HttpServletResponseImpl) response).transferFile(file, contentlength)) {
+						return;
+					}
+				}
 			}
+
+			writeContent(response, mimeType, in, null);
 		} finally {
 			in.close();
 		}
@@ -173,6 +220,25 @@ public class ResourceRegistration extends HttpServlet implements Registration {
 			// In this case we want to keep looking to see if another alias matches
 			throw new ResourceUnavailableException();
 		}
+
+		if (response instanceof HttpServletResponseImpl) {
+			((HttpServletResponseImpl) response).disableCompression();
+		}
+
+		ResourceCache.CachedResource cached = getCachedResource(url);
+		if (cached != null) {
+			ResourceCache.Variant variant = getVariant(request, response, cached);
+			if (variant != null) {
+				response.setContentLength(variant.getContent().length);
+				response.setHeader("Content-Encoding", variant.getEncoding()); //$NON-NLS-1$
+				setHeaders(response, cached.getMimeType(), cached.getLastModifiedHeader(), variant.getETag());
+			} else {
+				response.setContentLength(cached.getContent().length);
+				setHeaders(response, cached.getMimeType(), cached.getLastModifiedHeader(), cached.getETag());
+			}
+			return;
+		}
+
 		URLConnection conn = secureAction.openURL(url);
 		int contentlength = conn.getContentLength();
 		if (contentlength >= 0) {
@@ -180,11 +246,227 @@ public class ResourceRegistration extends HttpServlet implements Registration {
 
 			String mimeType = computeMimeType(filename, conn);
 			response.setContentType(mimeType);
+			closeConnection(conn);
 		} else {
+			closeConnection(conn);
 			super.doHead(request, response);
 		}
 	}
 
+	/**
+	 * Choose the content-coding of a resource.
+	 *
+	 * @param contentlength length of the resource, or -1 if it is unknown
+	 * @return the content-coding, or null if the resource must be sent unchanged.
+	 */
+	private String selectEncoding(HttpServletRequest request, HttpServletResponse response, String mimeType, int contentlength) {
+		HttpCompression compression = http.getCompression();
+		if ((compression == null) || !compression.isCompressible(mimeType)) {
+			return (null);
+		}
+
+		/* caches must not send a compressed response to a client which did not accept it */
+		response.setHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		if ((contentlength != -1) && (contentlength < compression.getMinSize())) {
+			return (null);
+		}
+
+		return (compression.selectEncoding(request.getHeader("Accept-Encoding"))); //$NON-NLS-1$
+	}
+
+	/**
+	 * Return the compressed variant of a cached resource the client accepts. The
+	 * variant is created and cached on first use.
+	 *
+	 * @return the variant, or null if the resource must be sent unchanged.
+	 */
+	private ResourceCache.Variant getVariant(HttpServletRequest request, HttpServletResponse response, ResourceCache.CachedResource cached) throws IOException {
+		byte[] content = cached.getContent();
+		String encoding = selectEncoding(request, response, cached.getMimeType(), content.length);
+		if (encoding == null) {
+			return (null);
+		}
+
+		ResourceCache.Variant variant = http.resourceCache.getVariant(cached, encoding);
+		if (variant == null) {
+			byte[] coded = HttpCompression.compress(content, content.length, encoding);
+			/* keep a note of resources which do not compress, so they are not compressed again */
+			variant = new ResourceCache.Variant(cached, encoding, (coded.length < content.length) ? coded : null);
+			http.resourceCache.putVariant(cached, variant);
+		}
+
+		return (variant.getContent() != null) ? variant : null;
+	}
+
+	/**
+	 * Return the cached copy of a resource. A copy which has not been compared
+	 * with the resource for CACHE_CHECK_INTERVAL is removed if the resource has changed.
+	 *
+	 * @return the cached resource, or null if it is not cached.
+	 */
+	protected ResourceCache.CachedResource getCachedResource(URL url) throws IOException {
+		String key = url.toExternalForm();
+		ResourceCache.CachedResource cached = http.resourceCache.get(key);
+		if (cached == null) {
+			return (null);
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - cached.checkTime >= CACHE_CHECK_INTERVAL) {
+			if (isModified(url, cached)) {
+				http.resourceCache.remove(key);
+				return (null);
+			}
+			cached.checkTime = now;
+		}
+
+		return (cached);
+	}
+
+	/**
+	 * Returns true if a resource differs from its cached copy. A file is
+	 * compared without opening it; the connection to any other resource is
+	 * closed once its headers are read.
+	 */
+	private boolean isModified(URL url, ResourceCache.CachedResource cached) throws IOException {
+		if ("file".equals(url.getProtocol())) //$NON-NLS-1$
+		{
+			File file = new File(URI.decode(url.getFile(), "UTF-8")); //$NON-NLS-1$
+			return ((file.lastModified() != cached.getLastModified()) || (file.length() != cached.getContent().length));
+		}
+
+		URLConnection conn = secureAction.openURL(url);
+		try {
+			return ((conn.getLastModified() != cached.getLastModified()) || (conn.getContentLength() != cached.getContent().length));
+		} finally {
+			closeConnection(conn);
+		}
+	}
+
+	/**
+	 * Close a connection which was only opened to read its headers. Opening
+	 * the connection may have opened the resource.
+	 */
+	private static void closeConnection(URLConnection conn) {
+		try {
+			conn.getInputStream().close();
+		} catch (IOException e) {
+			/* the resource could not be opened; there is nothing to close */
+		}
+	}
+
+	private boolean isNotModified(HttpServletRequest request, long modified, String etag) {
+		// prefer ETag validation as its guarantees are stronger
+		String ifNoneMatch = request.getHeader("If-None-Match"); //$NON-NLS-1$
+		if (ifNoneMatch != null) {
+			return (etag != null) && (ifNoneMatch.indexOf(etag) != -1);
+		}
+
+		long modifiedSince = request.getDateHeader("If-Modified-Since"); //$NON-NLS-1$
+		// the If-Modified-Since header does not include milliseconds
+		return (modifiedSince >= 0) && (modified > 0) && (modifiedSince + 999 >= modified);
+	}
+
+	private void setHeaders(HttpServletResponse response, String mimeType, String lastModified, String etag) {
+		response.setContentType(mimeType);
+
+		if (lastModified != null) {
+			response.setHeader("Last-Modified", lastModified); //$NON-NLS-1$
+		}
+
+		if (etag != null) {
+			response.setHeader("ETag", etag); //$NON-NLS-1$
+		}
+	}
+
+	private void writeVariant(HttpServletResponse response, ResourceCache.CachedResource cached, ResourceCache.Variant variant) throws IOException {
+		byte[] content = variant.getContent();
+		response.setContentLength(content.length);
+		response.setHeader("Content-Encoding", variant.getEncoding()); //$NON-NLS-1$
+		setHeaders(response, cached.getMimeType(), cached.getLastModifiedHeader(), variant.getETag());
+
+		/* coded content is binary */
+		response.getOutputStream().write(content);
+	}
+
+	private void writeCachedResource(HttpServletResponse response, ResourceCache.CachedResource cached) throws IOException {
+		byte[] content = cached.getContent();
+		response.setContentLength(content.length);
+		setHeaders(response, cached.getMimeType(), cached.getLastModifiedHeader(), cached.getETag());
+		writeContent(response, cached.getMimeType(), new ByteArrayInputStream(content), content);
+	}
+
+	/**
+	 * Write the content of a resource.
+	 *
+	 * @param in the content
+	 * @param content the content as a byte array, or null if it must be read from in
+	 */
+	private void writeContent(HttpServletResponse response, String mimeType, InputStream in, byte[] content) throws IOException {
+		// We want to use a writer if we are sending text
+		if (mimeType.startsWith("text/")) //$NON-NLS-1$
+		{
+			PrintWriter writer = response.getWriter();
+
+			writer.flush(); /* write the headers and unbuffer the output */
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+			char buffer[] = new char[4096];
+			int read;
+			while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+				writer.write(buffer, 0, read);
+			}
+		} else {
+			ServletOutputStream out = response.getOutputStream();
+
+			out.flush(); /* write the headers and unbuffer the output */
+
+			if (content != null) {
+				out.write(content);
+				return;
+			}
+
+			byte buffer[] = new byte[4096];
+			int read;
+			while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	private static byte[] readContent(InputStream in, int length) throws IOException {
+		byte[] content = new byte[length];
+		int count = 0;
+		while (count < length) {
+			int read = in.read(content, count, length - count);
+			if (read == -1) {
+				byte[] shorter = new byte[count];
+				System.arraycopy(content, 0, shorter, 0, count);
+				return (shorter);
+			}
+			count += read;
+		}
+		return (content);
+	}
+
+	/**
+	 * Return the file of a file URL if its content can be transferred directly
+	 * to the socket, which requires the channel sockets of the selector mode.
+	 *
+	 * @return the file, or null.
+	 */
+	private File getFile(URL url) {
+		if (!"file".equals(url.getProtocol()) || (http.configuration == null) || (http.configuration.selector == null)) //$NON-NLS-1$
+		{
+			return (null);
+		}
+
+		File file = new File(URI.decode(url.getFile(), "UTF-8")); //$NON-NLS-1$
+		return file.isFile() ? file : null;
+	}
+
 	protected String getFilename(String filename) {
 		//If the requested URI is equal to the Registeration's alias, send the file
 		//corresponding to the alias.  Otherwise, we have request for a file in an
@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http.servlet;
+
+import java.io.*;
+import java.util.Enumeration;
+import java.util.Vector;
+import org.eclipse.equinox.http.HttpMsg;
+import org.eclipse.equinox.socket.SocketInterface;
+import org.eclipse.osgi.util.NLS;
+
+/**
+ * The request line and headers of a request. The header block is read into a
+ * byte buffer and only the offsets of the header names and values are recorded.
+ * Strings are created when a header is requested.
+ * <p>
+ * An instance belongs to a connection and is reused for each of its requests,
+ * so the values of a request must be requested before the next request is read.
+ * This class is not thread-safe.
+ */
+public class HttpRequestHeaders {
+	/** initial size of the header buffer */
+	private static final int INITIAL_SIZE = 4096;
+
+	/** maximum size of the request line and headers */
+	static final int MAX_SIZE = 65536;
+
+	/** number of offsets recorded for each header */
+	private static final int NAME_START = 0;
+	private static final int NAME_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+	private static final int FIELDS = 4;
+
+	/** request line and headers as read from the socket */
+	private byte[] buffer = new byte[INITIAL_SIZE];
+
+	/** start and end of the request line, excluding white space and the line terminator */
+	private int requestLineStart;
+	private int requestLineEnd;
+
+	/** time the request line was read */
+	private long startTime;
+
+	/** number of headers */
+	private int count;
+
+	/** name and value offsets of each header; FIELDS entries per header */
+	private int[] offsets = new int[FIELDS * 16];
+
+	/** header values which have been created; cleared for each request */
+	private String[] values = new String[16];
+
+	public HttpRequestHeaders() {
+		super();
+	}
+
+	/**
+	 * Read the request line and headers of the next request. If the stream
+	 * supports mark, the bytes following the headers which were read into the
+	 * buffer are returned to the stream.
+	 *
+	 * @param in Stream of the socket
+	 * @param socket the socket, marked active once the request line has been read
+	 * @return false if the headers are larger than the buffer may grow.
+	 * @throws InterruptedIOException if no request line was read
+	 * @throws IOException if the headers are invalid
+	 */
+	boolean read(InputStream in, SocketInterface socket) throws IOException {
+		for (int i = 0; i < count; i++) {
+			values[i] = null;
+		}
+		count = 0;
+		requestLineEnd = -1;
+
+		boolean marked = in.markSupported();
+		if (marked) {
+			in.mark(MAX_SIZE);
+		}
+
+		int length = 0; /* number of bytes in the buffer */
+		int lineStart = 0; /* start of the line being scanned */
+		int scan = 0; /* next byte to scan */
+		while (true) {
+			if (length == buffer.length) {
+				if (length >= MAX_SIZE) {
+					return (false);
+				}
+				byte[] newBuffer = new byte[Math.min(length * 2, MAX_SIZE)];
+				System.arraycopy(buffer, 0, newBuffer, 0, length);
+				buffer = newBuffer;
+			}
+
+			int read;
+			if (marked) {
+				read = in.read(buffer, length, buffer.length - length);
+			} else {
+				int b = in.read();
+				if (b >= 0) {
+					buffer[length] = (byte) b;
+					read = 1;
+				} else {
+					read = -1;
+				}
+			}
+			if (read <= 0) {
+				throw new InterruptedIOException(HttpMsg.HTTP_NO_HEADER_LINE_READ_EXCEPTION);
+			}
+			length += read;
+
+			for (; scan < length; scan++) {
+				if (buffer[scan] != '\n') {
+					continue;
+				}
+
+				int lineEnd = scan;
+				if ((lineEnd > lineStart) && (buffer[lineEnd - 1] == '\r')) {
+					lineEnd--;
+				}
+
+				if (requestLineEnd < 0) {
+					requestLineStart = trimStart(lineStart, lineEnd);
+					if (requestLineStart == lineEnd) {
+						throw new InterruptedIOException(HttpMsg.HTTP_NO_HEADER_LINE_READ_EXCEPTION);
+					}
+					requestLineEnd = trimEnd(requestLineStart, lineEnd);
+
+					socket.markActive(); /* indicate we are processing a request */
+					startTime = System.currentTimeMillis();
+				} else if (lineEnd == lineStart) { /* end of headers */
+					if (marked) {
+						returnUnread(in, scan + 1);
+					}
+					return (true);
+				} else {
+					addLine(lineStart, lineEnd);
+				}
+
+				lineStart = scan + 1;
+			}
+		}
+	}
+
+	/**
+	 * Return the bytes following the headers to the stream.
+	 *
+	 * @param in marked stream
+	 * @param end number of bytes read since the mark which belong to the headers
+	 */
+	private void returnUnread(InputStream in, int end) throws IOException {
+		in.reset();
+		long remaining = end;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				throw new InterruptedIOException(HttpMsg.HTTP_NO_HEADER_LINE_READ_EXCEPTION);
+			}
+			remaining -= skipped;
+		}
+		in.mark(0); /* release the mark */
+	}
+
+	private void addLine(int lineStart, int lineEnd) throws IOException {
+		byte c = buffer[lineStart];
+		if ((c == ' ') || (c == '\t')) /* continuation */
+		{
+			if (count == 0) /* if no previous line */
+			{
+				throw new IOException(NLS.bind(HttpMsg.HTTP_INVALID_HEADER_LINE_EXCEPTION, toString(lineStart, lineEnd)));
+			}
+			int end = trimEnd(lineStart, lineEnd);
+			if (end > lineStart) {
+				int index = (count - 1) * FIELDS;
+				if (offsets[index + VALUE_START] == offsets[index + VALUE_END]) {
+					offsets[index + VALUE_START] = trimStart(lineStart, end);
+				}
+				offsets[index + VALUE_END] = end;
+			}
+			return;
+		}
+
+		int colon = lineStart;
+		while ((colon < lineEnd) && (buffer[colon] != ':')) {
+			colon++;
+		}
+		if (colon == lineEnd) {
+			throw new IOException(NLS.bind(HttpMsg.HTTP_INVALID_HEADER_LINE_EXCEPTION, toString(lineStart, lineEnd)));
+		}
+
+		if (count == values.length) {
+			int[] newOffsets = new int[offsets.length * 2];
+			System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+			offsets = newOffsets;
+			String[] newValues = new String[values.length * 2];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			values = newValues;
+		}
+
+		int index = count * FIELDS;
+		offsets[index + NAME_START] = lineStart;
+		offsets[index + NAME_END] = trimEnd(lineStart, colon);
+		int valueEnd = trimEnd(colon + 1, lineEnd);
+		offsets[index + VALUE_START] = trimStart(colon + 1, valueEnd);
+		offsets[index + VALUE_END] = valueEnd;
+		count++;
+	}
+
+	private int trimStart(int start, int end) {
+		while ((start < end) && ((buffer[start] & 0xff) <= ' ')) {
+			start++;
+		}
+		return (start);
+	}
+
+	private int trimEnd(int start, int end) {
+		while ((end > start) && ((buffer[end - 1] & 0xff) <= ' ')) {
+			end--;
+		}
+		return (end);
+	}
+
+	/**
+	 * Returns the time in milliseconds the request line was read.
+	 */
+	public long getStartTime() {
+		return (startTime);
+	}
+
+	/**
+	 * Returns the request line.
+	 */
+	String getRequestLine() {
+		return (toString(requestLineStart, requestLineEnd));
+	}
+
+	/**
+	 * Returns the value of the first header with the given name.
+	 *
+	 * @param name the header name; the case is ignored
+	 * @return the value, or null if the request has no such header.
+	 */
+	String getValue(String name) {
+		int i = indexOf(name);
+		if (i < 0) {
+			return (null);
+		}
+
+		String value = values[i];
+		if (value == null) {
+			value = toString(offsets[i * FIELDS + VALUE_START], offsets[i * FIELDS + VALUE_END]);
+			values[i] = value;
+		}
+		return (value);
+	}
+
+	/**
+	 * Returns the value of the first header with the given name as an int.
+	 *
+	 * @param name the header name; the case is ignored
+	 * @return the value, or -1 if the request has no such header.
+	 * @throws NumberFormatException if the value is not an integer
+	 */
+	int getIntValue(String name) {
+		int i = indexOf(name);
+		if (i < 0) {
+			return (-1);
+		}
+
+		int start = offsets[i * FIELDS + VALUE_START];
+		int end = offsets[i * FIELDS + VALUE_END];
+		if ((end > start) && (end - start < 10)) { /* fits in an int */
+			int value = 0;
+			int pos = start;
+			for (; pos < end; pos++) {
+				int digit = buffer[pos] - '0';
+				if ((digit < 0) || (digit > 9)) {
+					break;
+				}
+				value = value * 10 + digit;
+			}
+			if (pos == end) {
+				return (value);
+			}
+		}
+
+		return (Integer.parseInt(getValue(name)));
+	}
+
+	/**
+	 * Returns true if the value of the first header with the given name contains
+	 * the given token.
+	 *
+	 * @param name the header name; the case is ignored
+	 * @param token lower case token; the case of the value is ignored
+	 */
+	boolean valueContains(String name, String token) {
+		int i = indexOf(name);
+		if (i < 0) {
+			return (false);
+		}
+
+		int length = token.length();
+		int last = offsets[i * FIELDS + VALUE_END] - length;
+		outer: for (int start = offsets[i * FIELDS + VALUE_START]; start <= last; start++) {
+			for (int j = 0; j < length; j++) {
+				if (toLowerCase(buffer[start + j]) != token.charAt(j)) {
+					continue outer;
+				}
+			}
+			return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * Returns the upper case names of the headers.
+	 */
+	Enumeration getNames() {
+		Vector names = new Vector(count);
+		for (int i = 0; i < count; i++) {
+			String name = toString(offsets[i * FIELDS + NAME_START], offsets[i * FIELDS + NAME_END]).toUpperCase();
+			if (!names.contains(name)) {
+				names.addElement(name);
+			}
+		}
+		return (names.elements());
+	}
+
+	private int indexOf(String name) {
+		int length = name.length();
+		for (int i = 0; i < count; i++) {
+			int start = offsets[i * FIELDS + NAME_START];
+			if (offsets[i * FIELDS + NAME_END] - start != length) {
+				continue;
+			}
+			int j = 0;
+			while ((j < length) && (toLowerCase(buffer[start + j]) == toLowerCase(name.charAt(j)))) {
+				j++;
+			}
+			if (j == length) {
+				return (i);
+			}
+		}
+		return (-1);
+	}
+
+	private static int toLowerCase(int c) {
+		if ((c >= 'A') && (c <= 'Z')) {
+			return (c + ('a' - 'A'));
+		}
+		return (c & 0xff);
+	}
+
+	/**
+	 * Create a String from the buffer using ISO-8859-1. Line terminators of
+	 * continuation lines are removed.
+	 */
+	private String toString(int start, int end) {
+		char[] chars = new char[end - start];
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			byte b = buffer[i];
+			if ((b != '\r') && (b != '\n')) {
+				chars[length++] = (char) (b & 0xff);
+			}
+		}
+		return (new String(chars, 0, length));
+	}
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2009 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -56,7 +56,7 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 	protected String queryString = null;
 	protected String charset = null;
 
-	protected Hashtable headers = null;
+	protected HttpRequestHeaders headers;
 	protected HttpSessionImpl session;
 	protected String requestedSessionId = null;
 	protected ServletContextImpl servletContext;
@@ -64,6 +64,15 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 	protected boolean parsedQueryData = false;
 
 	public HttpServletRequestImpl(SocketInterface socket, Http http, HttpServletResponseImpl response) throws IOException {
+		this(socket, http, response, new HttpRequestHeaders());
+	}
+
+	/**
+	 * Read a request from a socket.
+	 *
+	 * @param headers header buffer of the connection, reused for each of its requests
+	 */
+	public HttpServletRequestImpl(SocketInterface socket, Http http, HttpServletResponseImpl response, HttpRequestHeaders headers) throws IOException {
 		this.response = response;
 		this.socket = socket;
 		this.http = http;
@@ -73,7 +82,8 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
 		response.setRequest(this);
 
-		parseHeaders(); /* allocate headers Hashtable */
+		this.headers = headers;
+		parseHeaders();
 	}
 
 	/**
@@ -359,7 +369,7 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
 	//This should be case insensitive
 	public String getHeader(String name) {
-		return ((String) headers.get(name.toUpperCase()));
+		return (headers.getValue(name));
 	}
 
 	/**
@@ -371,11 +381,21 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 	 * will return null.
 	 */
 	public Enumeration getHeaderNames() {
-		return (headers.keys());
+		return (headers.getNames());
 	}
 
 	protected String getHeaderUpper(String name) {
-		return ((String) headers.get(name));
+		return (headers.getValue(name));
+	}
+
+	/**
+	 * Returns true if the value of the named header contains a token.
+	 *
+	 * @param name upper case header name
+	 * @param token lower case token; the case of the header value is ignored
+	 */
+	protected boolean headerContainsUpper(String name, String token) {
+		return (headers.valueContains(name, token));
 	}
 
 	/**
@@ -425,13 +445,7 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 	}
 
 	protected int getIntHeaderUpper(String name) {
-		String value = getHeaderUpper(name);
-
-		if (value != null) {
-			return (Integer.parseInt(value));
-		}
-
-		return (-1);
+		return (headers.getIntValue(name));
 	}
 
 	/**
@@ -889,7 +903,7 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 		return (false);
 	}
 
-	protected synchronized void parseCookies() {
+	protected void parseCookies() {
 		if (cookies == null) {
 			nocookies: {
 				String cookieHeader = getHeaderUpper("COOKIE"); //$NON-NLS-1$
@@ -1013,74 +1027,29 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 		}
 	}
 
+	/**
+	 * Read the request line and headers. Only the request line is converted to
+	 * a String; header values are converted when they are requested.
+	 */
 	protected void parseHeaders() throws IOException {
-		headers = new Hashtable(31);
-		byte[] buffer = new byte[4096];
-
-		/* The first line in an http request is always the request-line. */
-		String line = readHeaderLine(buffer);
-
-		if (line.length() == 0) {
-			throw new InterruptedIOException(HttpMsg.HTTP_NO_HEADER_LINE_READ_EXCEPTION);
-		}
-
-		socket.markActive(); /* indicate we are processing a request */
-
-		parseRequestLine(line);
-
-		/* Now we get to the headers. */
-		// BUGBUG Headers can be repeated! getHeader must return the first header
-		// in the request. The (2.2) getHeaders method can be used to get all
-		// the headers' values.
-		// Servlet 2.2 Section 5.3
-		boolean firstLine = true;
-		String header = null;
-		StringBuffer value = new StringBuffer(256);
-		while (true) {
-			line = readHeaderLine(buffer);
-
-			if (line.length() == 0) { //End of headers
-				if (!firstLine) /* flush last line */
-				{
-					headers.put(header, value.toString().trim());
-				}
-				break;
-			}
-
-			//          System.out.println(line);
-
-			char c = line.charAt(0);
-			if ((c == ' ') || (c == '\t')) /* continuation */
-			{
-				if (firstLine) /* if no previous line */
-				{
-					throw new IOException(NLS.bind(HttpMsg.HTTP_INVALID_HEADER_LINE_EXCEPTION, line));
-				}
-				value.append(line.substring(1));
-				continue;
-			}
-
-			if (!firstLine) {
-				headers.put(header, value.toString().trim());
-				value.setLength(0); /* clear StringBuffer */
+		if (!headers.read(socket.getInputStream(), socket)) {
+			try {
+				response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			} finally {
+				response.close();
 			}
 
-			//use ':' as a delimeter to separate the key and the value
-			int colon = line.indexOf(':', 0);
+			throw new IOException(NLS.bind(HttpMsg.HTTP_HEADER_LINE_TOO_LONG_EXCEPTION, new Integer(HttpRequestHeaders.MAX_SIZE)));
+		}
 
-			// Our keys are saved as upper case so we can do case-insensitive
-			// searches on them.
-			header = line.substring(0, colon).toUpperCase();
-			value.append(line.substring(colon + 1));
-			firstLine = false;
-		}//while
+		parseRequestLine(headers.getRequestLine());
 	}
 
 	/**
 	 * This methods MUST only be called by one of the getParameter methods
 	 * Servlet 2.2 Section 5.1
 	 */
-	protected synchronized void parseQueryData() {
+	protected void parseQueryData() {
 		if (!parsedQueryData) {
 			try {
 				/* Request parameters must come from BOTH the query string
@@ -1270,34 +1239,6 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 		}
 	}
 
-	/**
-	 * This method is only used by the constructor (albiet indirectly)
-	 * @return java.lang.String
-	 */
-	protected String readHeaderLine(byte[] buffer) throws IOException {
-		int read = servletInputStream.readLine(buffer, 0, buffer.length);
-		if (read <= 0) {
-			throw new InterruptedIOException(HttpMsg.HTTP_NO_HEADER_LINE_READ_EXCEPTION);
-		}
-
-		// BUGBUG should use 8859_1 encoding to make string
-		/* create String from byte array using 0 for high byte of chars */
-		String line = URI.convert(buffer, 0, read, null);
-
-		if (line.endsWith("\n")) //$NON-NLS-1$
-		{
-			return (line.trim()); /* trim removes trailing CRLF */
-		}
-
-		try {
-			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
-		} finally {
-			response.close();
-		}
-
-		throw new IOException(NLS.bind(HttpMsg.HTTP_HEADER_LINE_TOO_LONG_EXCEPTION, new Integer(buffer.length)));
-	}
-
 	/**
 	 * This method places an attribute into the request for later use by
 	 * other objects which will have access to this request object such as
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2009 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -44,10 +44,13 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 
 	private boolean keepAlive = false;
 
+	/** false if the content must not be compressed by the response */
+	private boolean compress = true;
+
 	public HttpServletResponseImpl(SocketInterface socket, Http http) throws IOException {
 		this.http = http;
 		this.socket = socket;
-		servletOutputStream = new ServletOutputStreamImpl(socket.getOutputStream(), this);
+		servletOutputStream = new ServletOutputStreamImpl(socket.getOutputStream(), this, http.getResponseBufferSize());
 	}
 
 	/**
@@ -408,6 +411,105 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 		return (writer);
 	}
 
+	/**
+	 * Write a file as the response body, transferring it from the file to the
+	 * socket channel without copying it through the VM. The content length must
+	 * have been set. The caller must only use this method when the socket may
+	 * be a channel socket, which requires java.nio.
+	 *
+	 * @param file the file to write.
+	 * @param length the number of bytes to write.
+	 * @return false if the socket has no channel; nothing has been written.
+	 * @exception IllegalStateException if getWriter has been called.
+	 * @exception IOException on other errors.
+	 */
+	public boolean transferFile(File file, long length) throws IOException {
+		if (!(socket instanceof HttpChannelSocket)) {
+			return (false);
+		}
+
+		compress = false; /* the file is sent as is */
+
+		getOutputStream().flush(); /* write the headers */
+		((HttpChannelSocket) socket).transferFrom(file, length);
+		return (true);
+	}
+
+	/**
+	 * Prevent the response from compressing the content. This is used by callers
+	 * which apply a content-coding themselves or have decided against one.
+	 */
+	public void disableCompression() {
+		compress = false;
+	}
+
+	/**
+	 * Choose the content-coding of the response, if any, and set the headers
+	 * which describe it. This is called when the response is committed.
+	 *
+	 * @param length length of the content, or -1 if it is not yet known
+	 * @return the content-coding to apply, or null to send the content unchanged.
+	 */
+	String selectContentEncoding(int length) {
+		if (!compress) {
+			return (null);
+		}
+
+		HttpCompression compression = http.getCompression();
+		if ((compression == null) || (status != SC_OK) || containsHeader("Content-Encoding") || !compression.isCompressible(contentType)) //$NON-NLS-1$
+		{
+			return (null);
+		}
+
+		/* caches must not send a compressed response to a client which did not accept it */
+		setHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		if ((length == -1) && containsHeader("Content-Length")) //$NON-NLS-1$
+		{
+			length = contentLength;
+		}
+
+		if ((length != -1) && (length < compression.getMinSize())) {
+			return (null);
+		}
+
+		String encoding = compression.selectEncoding(request.getHeaderUpper("ACCEPT-ENCODING")); //$NON-NLS-1$
+		if (encoding != null) {
+			removeHeader("Content-Length"); //$NON-NLS-1$
+			setHeader("Content-Encoding", encoding); //$NON-NLS-1$
+
+			/* the coded content is a different entity */
+			String etag = removeHeader("ETag"); //$NON-NLS-1$
+			if ((etag != null) && etag.endsWith("\"")) //$NON-NLS-1$
+			{
+				setHeader("ETag", etag.substring(0, etag.length() - 1) + '-' + encoding + '"'); //$NON-NLS-1$
+			}
+		}
+		return (encoding);
+	}
+
+	/**
+	 * Remove a header. The case of the name is ignored.
+	 *
+	 * @return the value of the removed header, or null.
+	 */
+	private String removeHeader(String name) {
+		if (headers == null) {
+			return (null);
+		}
+
+		Enumeration headerEnumeration = headers.keys();
+		while (headerEnumeration.hasMoreElements()) {
+			String key = (String) headerEnumeration.nextElement();
+
+			if (name.equalsIgnoreCase(key)) {
+				return ((String) headers.remove(key));
+			}
+		}
+
+		return (null);
+	}
+
 	boolean gotStreamOrWriter() {
 		return (writer != null || gotOutputStream);
 	}
@@ -684,6 +786,13 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 		statusString = http.getStatusPhrase(statusCode);
 	}
 
+	/**
+	 * Returns the status code of this response.
+	 */
+	public int getStatus() {
+		return (status);
+	}
+
 	/**
 	 * Sets the status code and message for this response.  If the
 	 * field had already been set, the new value overwrites the
@@ -707,8 +816,9 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 	 *
 	 * @param length Content length of the of the buffered content
 	 * or -1 if the length is unknown.
+	 * @return true if the content must be sent with the chunked transfer-coding.
 	 */
-	void writeHeaders(int length) throws IOException {
+	boolean writeHeaders(int length) throws IOException {
 		setCookies();
 
 		if ((length != -1) && !containsHeader("Content-Length")) //$NON-NLS-1$
@@ -716,17 +826,24 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 			setContentLength(length);
 		}
 
-		if (containsHeader("Content-Length")) //$NON-NLS-1$
-		{
-			String requestConnection = request.getHeaderUpper("CONNECTION"); //$NON-NLS-1$
+		/* An HTTP/1.1 client can receive content of unknown length in chunks
+		 * without the connection being closed to mark its end.
+		 * HTTP/1.1 RFC 2616 Section 3.6.1
+		 */
+		boolean chunked = !containsHeader("Content-Length") && "HTTP/1.1".equals(request.getProtocol()) && //$NON-NLS-1$ //$NON-NLS-2$
+				(status >= SC_OK) && (status != SC_NO_CONTENT) && (status != SC_NOT_MODIFIED);
 
-			if (requestConnection != null) {
-				if (requestConnection.toLowerCase().indexOf("keep-alive") >= 0) //$NON-NLS-1$
-				{
-					setHeader("Connection", "Keep-Alive"); //$NON-NLS-1$ //$NON-NLS-2$
+		if (chunked) {
+			setHeader("Transfer-Encoding", "chunked"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 
-					keepAlive = true;
-				}
+		if (chunked || containsHeader("Content-Length")) //$NON-NLS-1$
+		{
+			if (request.headerContainsUpper("CONNECTION", "keep-alive")) //$NON-NLS-1$ //$NON-NLS-2$
+			{
+				setHeader("Connection", "Keep-Alive"); //$NON-NLS-1$ //$NON-NLS-2$
+
+				keepAlive = true;
 			}
 		}
 
@@ -734,7 +851,8 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 			setHeader("Connection", "close"); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 
-		servletOutputStream.print("HTTP/1.0 "); //$NON-NLS-1$
+		/* chunked content must be sent in an HTTP/1.1 response */
+		servletOutputStream.print(chunked ? "HTTP/1.1 " : "HTTP/1.0 "); //$NON-NLS-1$ //$NON-NLS-2$
 		servletOutputStream.print(status);
 		servletOutputStream.print(" "); //$NON-NLS-1$
 		servletOutputStream.println(statusString);
@@ -763,6 +881,8 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 		servletOutputStream.println(); /* Terminate the headers */
 
 		//      System.out.println();
+
+		return (chunked);
 	}
 
 	/**
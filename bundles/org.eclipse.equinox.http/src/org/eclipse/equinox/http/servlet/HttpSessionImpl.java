@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2007 IBM Corporation and others.
+ * Copyright (c) 1999, 2011 IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -89,7 +89,7 @@ public class HttpSessionImpl implements HttpSession {
 	protected String sessionId;
 	protected Hashtable values;
 	protected long creationTime; /* milliseconds */
-	protected long lastAccess; /* milliseconds */
+	protected volatile long lastAccess; /* milliseconds */
 	protected boolean isValid;
 	protected boolean canExpire;
 	protected Cookie cookie;
@@ -98,6 +98,17 @@ public class HttpSessionImpl implements HttpSession {
 	// Servlet 2.2 Section 7.1.2
 	protected static final String sessionCookieName = "org.eclipse.equinox.http.session"; //$NON-NLS-1$
 
+	/** true if the session was invalidated because it expired */
+	boolean expired;
+
+	/* links of the HttpSessionStore @GuardedBy("the stripe of the session") */
+	boolean stored;
+	HttpSessionImpl lruPrev;
+	HttpSessionImpl lruNext;
+	int wheelSlot = -1;
+	HttpSessionImpl wheelPrev;
+	HttpSessionImpl wheelNext;
+
 	protected HttpSessionImpl(Http http) {
 		this.http = http;
 		lastAccess = -1;
@@ -207,6 +218,7 @@ public class HttpSessionImpl implements HttpSession {
 				maxInactive = interval * 1000L;
 				canExpire = true;
 			}
+			http.getSessionStore().schedule(this);
 		}
 	}
 
@@ -424,15 +436,7 @@ public class HttpSessionImpl implements HttpSession {
 	 * @return true if the session is valid.
 	 */
 	public boolean isValid(boolean access) {
-		if (canExpire) {
-			long currentTime = System.currentTimeMillis();
-
-			long compareTime = (lastAccess == -1) ? creationTime : lastAccess;
-
-			if ((currentTime - compareTime) > maxInactive) {
-				invalidate();
-			}
-		}
+		checkExpired();
 
 		if (access && isValid) {
 			lastAccess = System.currentTimeMillis();
@@ -441,6 +445,21 @@ public class HttpSessionImpl implements HttpSession {
 		return (isValid);
 	}
 
+	/**
+	 * If the session has expired, invalidate it.
+	 */
+	private void checkExpired() {
+		long expiryTime = HttpSessionStore.getExpiryTime(this);
+		if ((expiryTime != -1) && (System.currentTimeMillis() > expiryTime)) {
+			synchronized (this) {
+				if (isValid) {
+					expired = true;
+					invalidate();
+				}
+			}
+		}
+	}
+
 	/**
 	 * If the session has expired, invalidate it.
 	 * If the session is invalid, throw an IllegalStateException
@@ -448,15 +467,7 @@ public class HttpSessionImpl implements HttpSession {
 	 * @throws IllegalStateException
 	 */
 	private void checkValid() {
-		if (canExpire) {
-			long currentTime = System.currentTimeMillis();
-
-			long compareTime = (lastAccess == -1) ? creationTime : lastAccess;
-
-			if ((currentTime - compareTime) > maxInactive) {
-				invalidate();
-			}
-		}
+		checkExpired();
 
 		if (!isValid) {
 			throw new IllegalStateException("HttpSession has been invalidated"); //$NON-NLS-1$
@@ -0,0 +1,487 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.http.servlet;
+
+import java.util.Hashtable;
+import java.util.Vector;
+import org.eclipse.equinox.http.Http;
+
+/**
+ * The sessions of the Http Service. Sessions are spread over stripes by their
+ * ID and each stripe has its own lock, so requests for different sessions
+ * rarely contend.
+ * <p>
+ * Sessions which can expire are kept in a hashed timer wheel: each stripe has
+ * a ring of slots, one for each tick, and a session is placed in the slot of
+ * the tick following its expiry time. A sweeper thread visits the slots of the
+ * past ticks and invalidates the sessions which have expired. A session which
+ * has been accessed since it was placed is moved to the slot of its new expiry
+ * time, so accessing a session does not touch the wheel.
+ * <p>
+ * If the number of sessions is limited, a new session which exceeds the limit
+ * invalidates the least recently used session of its stripe, or of another
+ * stripe if it is the only session of its stripe. The number of sessions is
+ * counted over all stripes, so sessions are only invalidated at the limit,
+ * although not necessarily the least recently used one of all.
+ */
+/* @ThreadSafe */
+public class HttpSessionStore {
+	/** maximum number of stripes */
+	private static final int STRIPES = 16;
+
+	/** number of slots in the timer wheel of a stripe */
+	private static final int WHEEL_SIZE = 512;
+
+	/** time in milliseconds between sweeps of the timer wheel */
+	private static final long TICK = 1000;
+
+	/** Master HTTP object */
+	private final Http http;
+
+	private final Stripe[] stripes;
+
+	/** maximum number of sessions; 0 if the number is not limited */
+	private final int maxCount;
+
+	/** number of sessions in all stripes; taken after the lock of a stripe */
+	private final Object countLock = new Object();
+	private int count; /* @GuardedBy("countLock") */
+
+	private Sweeper sweeper; /* @GuardedBy("this") */
+
+	/**
+	 * @param http Master HTTP object
+	 * @param maxCount maximum number of sessions; 0 if the number is not limited
+	 */
+	public HttpSessionStore(Http http, int maxCount) {
+		this.http = http;
+
+		this.maxCount = (maxCount > 0) ? maxCount : 0;
+		stripes = new Stripe[STRIPES];
+		long tick = System.currentTimeMillis() / TICK;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(tick);
+		}
+	}
+
+	/**
+	 * Start the thread which invalidates expired sessions.
+	 */
+	public synchronized void start() {
+		if (sweeper == null) {
+			sweeper = new Sweeper();
+			sweeper.start();
+		}
+	}
+
+	/**
+	 * Stop the thread which invalidates expired sessions. Expired sessions are
+	 * still invalidated when they are requested.
+	 */
+	public synchronized void close() {
+		if (sweeper != null) {
+			sweeper.close();
+			sweeper = null;
+		}
+	}
+
+	private int stripeIndex(String id) {
+		return ((id.hashCode() & 0x7fffffff) % stripes.length);
+	}
+
+	private Stripe stripeFor(String id) {
+		return (stripes[stripeIndex(id)]);
+	}
+
+	/**
+	 * Change the number of sessions.
+	 *
+	 * @return the new number of sessions
+	 */
+	private int addCount(int delta) {
+		synchronized (countLock) {
+			count += delta;
+			return (count);
+		}
+	}
+
+	/**
+	 * Add a session, replacing any session with the same ID. If the number of
+	 * sessions exceeds the limit, the least recently used session of its stripe
+	 * is invalidated, or of another stripe if the stripe has no other session.
+	 */
+	public void add(HttpSessionImpl session) {
+		HttpSessionImpl evicted = null;
+		boolean full = false;
+
+		String id = session.getId();
+		int index = stripeIndex(id);
+		Stripe stripe = stripes[index];
+		synchronized (stripe) {
+			HttpSessionImpl old = (HttpSessionImpl) stripe.sessions.put(id, session);
+			if (old != null) {
+				stripe.unlink(old);
+			}
+			stripe.link(session);
+			stripe.schedule(session);
+
+			int newCount = addCount((old == null) ? 1 : 0);
+			if ((maxCount > 0) && (newCount > maxCount)) {
+				if (stripe.lruLast != session) {
+					evicted = evict(stripe);
+				} else {
+					full = true;
+				}
+			}
+		}
+
+		/* the locks of two stripes are never held at the same time */
+		for (int i = 1; full && (i < stripes.length); i++) {
+			stripe = stripes[(index + i) % stripes.length];
+			synchronized (stripe) {
+				if (addCount(0) <= maxCount) {
+					full = false;
+				} else if (stripe.lruLast != null) {
+					evicted = evict(stripe);
+					full = false;
+				}
+			}
+		}
+
+		if (evicted != null) {
+			evicted.invalidate();
+		}
+	}
+
+	/**
+	 * Remove the least recently used session of a stripe to make room for a new
+	 * session. The lock of the stripe must be held.
+	 *
+	 * @return the session, which must be invalidated
+	 */
+	private HttpSessionImpl evict(Stripe stripe) {
+		HttpSessionImpl evicted = stripe.lruLast;
+		stripe.remove(evicted);
+		stripe.evictedCount++;
+		addCount(-1);
+		return (evicted);
+	}
+
+	/**
+	 * Remove a session. A session which is removed because it expired is counted
+	 * as expired.
+	 */
+	public void remove(HttpSessionImpl session) {
+		Stripe stripe = stripeFor(session.getId());
+		synchronized (stripe) {
+			if (session.stored) {
+				stripe.remove(session);
+				addCount(-1);
+				if (session.expired) {
+					stripe.expiredCount++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return a session and mark it as the most recently used session of its stripe.
+	 *
+	 * @param id ID of the session
+	 * @return the session, or null if there is no session with this ID.
+	 */
+	public HttpSessionImpl get(String id) {
+		Stripe stripe = stripeFor(id);
+		synchronized (stripe) {
+			HttpSessionImpl session = (HttpSessionImpl) stripe.sessions.get(id);
+			if ((session != null) && (session != stripe.lruFirst)) {
+				stripe.unlinkLru(session);
+				stripe.linkLru(session);
+			}
+			return (session);
+		}
+	}
+
+	/**
+	 * Move a session to the slot of its expiry time. This must be called when the
+	 * maximum inactive interval of the session changes.
+	 */
+	public void schedule(HttpSessionImpl session) {
+		Stripe stripe = stripeFor(session.getId());
+		synchronized (stripe) {
+			if (session.stored) {
+				stripe.unschedule(session);
+				stripe.schedule(session);
+			}
+		}
+	}
+
+	/**
+	 * Invalidate the sessions which have expired by the given time.
+	 */
+	void sweep(long now) {
+		Vector expired = new Vector();
+
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[i];
+			synchronized (stripe) {
+				stripe.sweep(now, expired);
+				addCount(-expired.size());
+			}
+
+			int size = expired.size();
+			for (int j = 0; j < size; j++) {
+				HttpSessionImpl session = (HttpSessionImpl) expired.elementAt(j);
+				try {
+					session.invalidate();
+				} catch (Throwable t) {
+					http.logError("Error invalidating expired session", t); //$NON-NLS-1$
+				}
+			}
+			expired.removeAllElements();
+		}
+	}
+
+	/**
+	 * Returns the number of sessions.
+	 */
+	public int getCount() {
+		return (addCount(0));
+	}
+
+	/**
+	 * Returns the number of sessions which have been invalidated because they expired.
+	 */
+	public long getExpiredCount() {
+		long count = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[i];
+			synchronized (stripe) {
+				count += stripe.expiredCount;
+			}
+		}
+		return (count);
+	}
+
+	/**
+	 * Returns the number of sessions which have been invalidated to make room
+	 * for new sessions.
+	 */
+	public long getEvictedCount() {
+		long count = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[i];
+			synchronized (stripe) {
+				count += stripe.evictedCount;
+			}
+		}
+		return (count);
+	}
+
+	/**
+	 * Returns the time in milliseconds after which a session expires, or -1
+	 * if the session does not expire.
+	 */
+	static long getExpiryTime(HttpSessionImpl session) {
+		if (!session.canExpire) {
+			return (-1);
+		}
+		long lastAccess = session.lastAccess;
+		return (((lastAccess == -1) ? session.creationTime : lastAccess) + session.maxInactive);
+	}
+
+	/**
+	 * The sessions of a stripe. The fields of a stripe and the links of its
+	 * sessions are guarded by the stripe.
+	 */
+	private static class Stripe {
+		/** Session ID (String) => HttpSessionImpl */
+		final Hashtable sessions = new Hashtable(15);
+
+		/** most and least recently used sessions */
+		HttpSessionImpl lruFirst;
+		HttpSessionImpl lruLast;
+
+		/** first session of each slot of the timer wheel */
+		final HttpSessionImpl[] wheel = new HttpSessionImpl[WHEEL_SIZE];
+
+		/** next tick to be swept */
+		long nextTick;
+
+		long expiredCount;
+		long evictedCount;
+
+		Stripe(long tick) {
+			nextTick = tick;
+		}
+
+		void link(HttpSessionImpl session) {
+			session.stored = true;
+			linkLru(session);
+		}
+
+		void unlink(HttpSessionImpl session) {
+			session.stored = false;
+			unlinkLru(session);
+			unschedule(session);
+		}
+
+		void remove(HttpSessionImpl session) {
+			sessions.remove(session.getId());
+			unlink(session);
+		}
+
+		void linkLru(HttpSessionImpl session) {
+			session.lruPrev = null;
+			session.lruNext = lruFirst;
+			if (lruFirst != null) {
+				lruFirst.lruPrev = session;
+			} else {
+				lruLast = session;
+			}
+			lruFirst = session;
+		}
+
+		void unlinkLru(HttpSessionImpl session) {
+			if (session.lruPrev != null) {
+				session.lruPrev.lruNext = session.lruNext;
+			} else {
+				lruFirst = session.lruNext;
+			}
+			if (session.lruNext != null) {
+				session.lruNext.lruPrev = session.lruPrev;
+			} else {
+				lruLast = session.lruPrev;
+			}
+			session.lruPrev = null;
+			session.lruNext = null;
+		}
+
+		/**
+		 * Place a session in the slot of the tick following its expiry time.
+		 */
+		void schedule(HttpSessionImpl session) {
+			long expiryTime = getExpiryTime(session);
+			if (expiryTime == -1) {
+				return;
+			}
+
+			long tick = Math.max(expiryTime / TICK + 1, nextTick);
+			int slot = (int) (tick % WHEEL_SIZE);
+
+			session.wheelSlot = slot;
+			session.wheelPrev = null;
+			session.wheelNext = wheel[slot];
+			if (wheel[slot] != null) {
+				wheel[slot].wheelPrev = session;
+			}
+			wheel[slot] = session;
+		}
+
+		void unschedule(HttpSessionImpl session) {
+			int slot = session.wheelSlot;
+			if (slot == -1) {
+				return;
+			}
+
+			if (session.wheelPrev != null) {
+				session.wheelPrev.wheelNext = session.wheelNext;
+			} else {
+				wheel[slot] = session.wheelNext;
+			}
+			if (session.wheelNext != null) {
+				session.wheelNext.wheelPrev = session.wheelPrev;
+			}
+			session.wheelSlot = -1;
+			session.wheelPrev = null;
+			session.wheelNext = null;
+		}
+
+		/**
+		 * Remove the expired sessions in the slots of the past ticks and
+		 * reschedule the others.
+		 *
+		 * @param expired receives the sessions to be invalidated
+		 */
+		void sweep(long now, Vector expired) {
+			long lastTick = now / TICK;
+			/* after a full turn every slot has been visited */
+			long firstTick = Math.max(nextTick, lastTick - WHEEL_SIZE + 1);
+
+			for (long tick = firstTick; tick <= lastTick; tick++) {
+				int slot = (int) (tick % WHEEL_SIZE);
+				HttpSessionImpl session = wheel[slot];
+				wheel[slot] = null;
+
+				/* the slot is detached first since sessions may be placed in it again */
+				while (session != null) {
+					HttpSessionImpl next = session.wheelNext;
+					session.wheelSlot = -1;
+					session.wheelPrev = null;
+					session.wheelNext = null;
+
+					long expiryTime = getExpiryTime(session);
+					if ((expiryTime != -1) && (now > expiryTime)) {
+						sessions.remove(session.getId());
+						session.stored = false;
+						unlinkLru(session);
+						expiredCount++;
+						expired.addElement(session);
+					} else {
+						schedule(session);
+					}
+
+					session = next;
+				}
+			}
+
+			nextTick = Math.max(nextTick, lastTick + 1);
+		}
+	}
+
+	/**
+	 * The thread which sweeps the timer wheel.
+	 */
+	private class Sweeper extends Thread {
+		/** if true this thread must terminate */
+		private boolean running = true; /* @GuardedBy("this") */
+
+		Sweeper() {
+			super("Http Service Session Sweeper"); //$NON-NLS-1$
+			setDaemon(true); /* mark thread as daemon thread */
+		}
+
+		synchronized void close() {
+			running = false;
+			notify();
+		}
+
+		public void run() {
+			while (true) {
+				synchronized (this) {
+					if (!running) {
+						return;
+					}
+					try {
+						wait(TICK);
+					} catch (InterruptedException e) {
+						// ignore and check running
+					}
+					if (!running) {
+						return;
+					}
+				}
+
+				sweep(System.currentTimeMillis());
+			}
+		}
+	}
+}
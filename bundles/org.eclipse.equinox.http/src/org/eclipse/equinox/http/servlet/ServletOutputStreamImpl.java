@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 1999, 2007 IBM Corporation.
+ * Copyright (c) 1999, 2011 IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -12,6 +12,7 @@ package org.eclipse.equinox.http.servlet;
 
 import java.io.*;
 import javax.servlet.ServletOutputStream;
+import org.eclipse.equinox.http.HttpCompression;
 
 /**
  * The implementation of javax.servlet.ServletOutputStream.
@@ -20,12 +21,25 @@ import javax.servlet.ServletOutputStream;
  * data buffered by the servlet engine is sent to the client and the response is
  * considered to be "committed". Note that calling close on an object of this type
  * doesn't necessarily close the underlying socket stream.
+ *
+ * The output data is held in a fixed size buffer. If the response is closed before
+ * the buffer fills, the content length is sent. Otherwise the response is committed
+ * when the buffer fills and the data is sent in chunks of the buffer size, using
+ * the chunked transfer-coding if the client supports it.
+ *
+ * If the response chooses a content-coding, buffered content is compressed as a
+ * whole when the response is closed; otherwise the content is compressed as it is
+ * sent.
  */
 
 //BUGBUG - override print methods for better performance!!!!
 class ServletOutputStreamImpl extends ServletOutputStream {
 	private static final int mtuSize = 1460;
 
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+	private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
 	/** Actual output stream */
 	final private BufferedOutputStream realOut;
 
@@ -36,21 +50,35 @@ class ServletOutputStreamImpl extends ServletOutputStream {
 	private boolean open;
 
 	/** Place to buffer the output data */
-	private ByteArrayOutputStream buffer;
+	private final byte[] buffer;
 
-	/** Place to buffer the output data */
-	private OutputStream out;
+	/** number of bytes in the buffer */
+	private int count;
+
+	/** true if the response headers have been written */
+	private boolean committed;
 
-	/** true if we need to write the response headers */
-	private boolean writeHeaders;
+	/** true while the response headers are written; they bypass the buffer */
+	private boolean writingHeaders;
+
+	/** true if the content is sent with the chunked transfer-coding */
+	private boolean chunked;
 
 	/** true if the flush method should flush */
 	private boolean flush;
 
-	/** true if this ServletOutputStream is closing */
-	private boolean closing;
+	/** compresses the content sent after the response is committed; null if the content is not coded */
+	private OutputStream encoder;
+
+	/** chunk-size line: up to 8 hex digits and CRLF */
+	private final byte[] chunkHeader = new byte[10];
 
-	ServletOutputStreamImpl(OutputStream realOut, HttpServletResponseImpl response) {
+	/**
+	 * @param realOut Stream of the socket
+	 * @param response response object
+	 * @param bufferSize size of the output buffer
+	 */
+	ServletOutputStreamImpl(OutputStream realOut, HttpServletResponseImpl response, int bufferSize) {
 		if (realOut instanceof BufferedOutputStream)
 			this.realOut = (BufferedOutputStream) realOut;
 		else
@@ -58,12 +86,10 @@ class ServletOutputStreamImpl extends ServletOutputStream {
 			this.realOut = new BufferedOutputStream(realOut, mtuSize);
 		this.response = response;
 
-		// BUGBUG Make the default buffer size configurable.
-		buffer = new ByteArrayOutputStream(8192); /* start with a 8k buffer */
-		out = buffer; /* begin with buffer */
+		buffer = new byte[bufferSize];
+		count = 0;
 		open = true;
-		writeHeaders = true;
-		closing = false;
+		committed = false;
 		flush = true;
 	}
 
@@ -77,10 +103,31 @@ class ServletOutputStreamImpl extends ServletOutputStream {
 
 	public synchronized void close() throws IOException {
 		if (open) {
-			closing = true; /* allow content size to be calculated */
-			flush = true; /* enable normal flush function */
+			if (!committed) {
+				/* all content is buffered; send its size */
+				String encoding = response.selectContentEncoding(count);
+				if (encoding != null) {
+					byte[] coded = HttpCompression.compress(buffer, count, encoding);
+					count = 0;
+					writeHeaders(coded.length);
+					writeContent(coded, 0, coded.length);
+				} else {
+					writeHeaders(count);
+				}
+			}
+
+			writeBuffer();
+
+			if (encoder != null) {
+				encoder.close(); /* write the remaining coded content */
+				encoder = null;
+			}
+
+			if (chunked) {
+				realOut.write(LAST_CHUNK);
+			}
 
-			flush();
+			realOut.flush();
 
 			open = false; /* disable this ServletOutputStream */
 		}
@@ -88,25 +135,14 @@ class ServletOutputStreamImpl extends ServletOutputStream {
 
 	public synchronized void flush() throws IOException {
 		if (open) {
-			if (writeHeaders) {
-				if (flush) {
-					/* These must be set before calling writeHeaders */
-					writeHeaders = false;
-					out = realOut;
-
-					/* write the response headers */
-					response.writeHeaders(closing ? buffer.size() : -1);
-
-					/* copy the buffered output to the real OutputStream */
-					buffer.writeTo(out);
+			if (committed || flush) {
+				if (!committed) {
+					commit();
+				}
 
-					/* dereference buffer so it may be garbage collected */
-					buffer = null;
+				writeBuffer();
 
-					out.flush();
-				}
-			} else {
-				out.flush();
+				realOut.flush();
 			}
 		} else {
 			throw new IOException("closed"); //$NON-NLS-1$
@@ -114,16 +150,33 @@ class ServletOutputStreamImpl extends ServletOutputStream {
 	}
 
 	public synchronized void write(byte[] bytes) throws IOException {
-		if (open) {
-			out.write(bytes, 0, bytes.length);
-		} else {
-			throw new IOException("closed"); //$NON-NLS-1$
-		}
+		write(bytes, 0, bytes.length);
 	}
 
 	public synchronized void write(byte[] bytes, int off, int len) throws IOException {
 		if (open) {
-			out.write(bytes, off, len);
+			if (writingHeaders) {
+				realOut.write(bytes, off, len);
+				return;
+			}
+
+			while (len > 0) {
+				if (count == buffer.length) {
+					fullBuffer();
+				}
+
+				if ((count == 0) && (len >= buffer.length) && committed) {
+					/* write large blocks without copying them */
+					send(bytes, off, len);
+					return;
+				}
+
+				int copy = Math.min(len, buffer.length - count);
+				System.arraycopy(bytes, off, buffer, count, copy);
+				count += copy;
+				off += copy;
+				len -= copy;
+			}
 		} else {
 			throw new IOException("closed"); //$NON-NLS-1$
 		}
@@ -131,9 +184,118 @@ class ServletOutputStreamImpl extends ServletOutputStream {
 
 	public synchronized void write(int b) throws IOException {
 		if (open) {
-			out.write(b);
+			if (writingHeaders) {
+				realOut.write(b);
+				return;
+			}
+
+			if (count == buffer.length) {
+				fullBuffer();
+			}
+
+			buffer[count++] = (byte) b;
 		} else {
 			throw new IOException("closed"); //$NON-NLS-1$
 		}
 	}
+
+	/**
+	 * Send the full buffer, committing the response with an unknown content length
+	 * if necessary.
+	 */
+	private void fullBuffer() throws IOException {
+		if (!committed) {
+			commit();
+		}
+
+		writeBuffer();
+	}
+
+	/**
+	 * Commit the response before the length of the content is known.
+	 */
+	private void commit() throws IOException {
+		String encoding = response.selectContentEncoding(-1);
+
+		writeHeaders(-1);
+
+		if (encoding != null) {
+			encoder = HttpCompression.createOutputStream(new ContentStream(), encoding, buffer.length);
+		}
+	}
+
+	/**
+	 * Write the response headers.
+	 *
+	 * @param length content length or -1 if it is not yet known.
+	 */
+	private void writeHeaders(int length) throws IOException {
+		committed = true;
+		writingHeaders = true;
+		try {
+			chunked = response.writeHeaders(length);
+		} finally {
+			writingHeaders = false;
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			send(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Send content after the response has been committed.
+	 */
+	private void send(byte[] bytes, int off, int len) throws IOException {
+		if (encoder != null) {
+			encoder.write(bytes, off, len);
+		} else {
+			writeContent(bytes, off, len);
+		}
+	}
+
+	private void writeContent(byte[] bytes, int off, int len) throws IOException {
+		if (chunked) {
+			int pos = chunkHeader.length - 2;
+			chunkHeader[pos] = '\r';
+			chunkHeader[pos + 1] = '\n';
+			int size = len;
+			do {
+				chunkHeader[--pos] = HEX[size & 0xf];
+				size >>>= 4;
+			} while (size != 0);
+
+			realOut.write(chunkHeader, pos, chunkHeader.length - pos);
+			realOut.write(bytes, off, len);
+			realOut.write(CRLF);
+		} else {
+			realOut.write(bytes, off, len);
+		}
+	}
+
+	/**
+	 * Receives the coded content from the encoder.
+	 */
+	private class ContentStream extends OutputStream {
+		ContentStream() {
+			super();
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] bytes, int off, int len) throws IOException {
+			if (len > 0) {
+				writeContent(bytes, off, len);
+			}
+		}
+
+		public void close() {
+			/* the response is closed by its owner */
+		}
+	}
 }
@@ -8,6 +8,8 @@ public class AllExtendedLogServiceTests {
 		TestSuite suite = new TestSuite("Test extended log service"); //$NON-NLS-1$
 		suite.addTestSuite(ExtendedLogServiceTest.class);
 		suite.addTestSuite(ExtendedLogReaderServiceTest.class);
+		suite.addTestSuite(LogHistoryTest.class);
+		suite.addTestSuite(FileLogWriterTest.class);
 		return suite;
 	}
 }
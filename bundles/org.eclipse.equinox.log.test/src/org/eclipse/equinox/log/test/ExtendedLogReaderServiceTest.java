@@ -116,6 +116,36 @@ public class ExtendedLogReaderServiceTest extends TestCase {
 		assertTrue(called);
 	}
 
+	public void testAsynchronousLogListenerFilter() throws Exception {
+		final Thread loggerThread = Thread.currentThread();
+		final boolean[] filteredOnLoggerThread = {true};
+		TestListener listener = new TestListener();
+		TestListener rejected = new TestListener();
+		LogFilter filter = new LogFilter() {
+			public boolean isLoggable(Bundle b, String loggerName, int logLevel) {
+				if (Thread.currentThread() != loggerThread)
+					filteredOnLoggerThread[0] = false;
+				return "test.filter".equals(loggerName);
+			}
+		};
+		reader.addLogListener(listener, filter);
+		reader.addLogListener(rejected, new LogFilter() {
+			public boolean isLoggable(Bundle b, String loggerName, int logLevel) {
+				return false;
+			}
+		});
+		synchronized (listener) {
+			log.getLogger("test.other").log(LogService.LOG_INFO, "other");
+			log.getLogger("test.filter").log(LogService.LOG_INFO, "info");
+			listener.wait(5000);
+		}
+		// the filters of asynchronous listeners are evaluated before the entry is queued
+		assertTrue(filteredOnLoggerThread[0]);
+		assertNotNull(listener.getEntryX());
+		assertEquals("test.filter", listener.getEntryX().getLoggerName());
+		assertNull(rejected.getEntry());
+	}
+
 	public void testExtendedLogEntry() throws Exception {
 		TestListener listener = new TestListener();
 		reader.addLogListener(listener);
@@ -145,4 +175,42 @@ public class ExtendedLogReaderServiceTest extends TestCase {
 		assertTrue(listener.getEntryX().getContext() == logReference);
 		assertTrue(listener.getEntryX().getSequenceNumber() > sequenceNumberBefore);
 	}
+
+	public void testAsynchronousLogListenerOrder() throws Exception {
+		final int count = 10000;
+		final int[] next = new int[2];
+		final boolean[] outOfOrder = new boolean[2];
+		LogListener[] listeners = new LogListener[2];
+		for (int i = 0; i < listeners.length; i++) {
+			final int index = i;
+			listeners[i] = new LogListener() {
+				public void logged(LogEntry entry) {
+					if (!"test.order".equals(((ExtendedLogEntry) entry).getLoggerName()))
+						return;
+					synchronized (next) {
+						if (!entry.getMessage().equals(String.valueOf(next[index])))
+							outOfOrder[index] = true;
+						next[index]++;
+						next.notifyAll();
+					}
+				}
+			};
+			reader.addLogListener(listeners[i]);
+		}
+		Logger logger = log.getLogger("test.order");
+		for (int i = 0; i < count; i++)
+			logger.log(LogService.LOG_INFO, String.valueOf(i));
+
+		synchronized (next) {
+			long end = System.currentTimeMillis() + 10000;
+			while ((next[0] < count || next[1] < count) && System.currentTimeMillis() < end)
+				next.wait(1000);
+		}
+		for (int i = 0; i < listeners.length; i++)
+			reader.removeLogListener(listeners[i]);
+		assertEquals(count, next[0]);
+		assertEquals(count, next[1]);
+		assertFalse(outOfOrder[0]);
+		assertFalse(outOfOrder[1]);
+	}
 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2007, 2009 IBM Corporation and others All rights reserved. This
+ * Copyright (c) 2007, 2011 IBM Corporation and others All rights reserved. This
  * program and the accompanying materials are made available under the terms of
  * the Eclipse Public License v1.0 which accompanies this distribution, and is
  * available at http://www.eclipse.org/legal/epl-v10.html
@@ -10,12 +10,10 @@ package org.eclipse.equinox.log.test;
 
 import junit.framework.TestCase;
 
-import org.eclipse.equinox.log.ExtendedLogReaderService;
-import org.eclipse.equinox.log.ExtendedLogService;
-import org.eclipse.equinox.log.LogFilter;
+import org.eclipse.equinox.log.*;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
-import org.osgi.service.log.LogService;
+import org.osgi.service.log.*;
 
 public class ExtendedLogServiceTest extends TestCase {
 
@@ -192,4 +190,60 @@ public class ExtendedLogServiceTest extends TestCase {
 		if (log.getLogger("test").isLoggable(LogService.LOG_INFO))
 			fail();
 	}
+
+	/*
+	 * A logger caches its isLoggable decisions; a new filter must take effect
+	 * once it is added.
+	 */
+	public void testLoggerCacheFilterChanged() throws Exception {
+		LogFilter rejectTest = new LogFilter() {
+			public boolean isLoggable(Bundle b, String loggerName, int logLevel) {
+				return !"test.cache".equals(loggerName);
+			}
+		};
+		reader.addLogListener(listener, rejectTest);
+		Logger logger = log.getLogger("test.cache");
+		assertFalse(logger.isLoggable(LogService.LOG_INFO));
+		// now the decision is cached
+		assertFalse(logger.isLoggable(LogService.LOG_INFO));
+
+		reader.addLogListener(listener, new LogFilter() {
+			public boolean isLoggable(Bundle b, String loggerName, int logLevel) {
+				return true;
+			}
+		});
+		assertTrue("The new filter was not used", logger.isLoggable(LogService.LOG_INFO));
+		synchronized (listener) {
+			logger.log(LogService.LOG_INFO, "cached");
+			listener.wait(5000);
+		}
+		assertNotNull(listener.getEntryX());
+		assertEquals("test.cache", listener.getEntryX().getLoggerName());
+
+		reader.addLogListener(listener, rejectTest);
+		assertFalse("The new filter was not used", logger.isLoggable(LogService.LOG_INFO));
+	}
+
+	public void testLoggerCacheListenerRemovedAndAdded() throws Exception {
+		Logger logger = log.getLogger("test.cache");
+		assertTrue(logger.isLoggable(LogService.LOG_INFO));
+
+		reader.removeLogListener(listener);
+		assertFalse("The removed listener was still used", logger.isLoggable(LogService.LOG_INFO));
+
+		final boolean[] called = new boolean[1];
+		LogListener synchronousListener = new SynchronousLogListener() {
+			public void logged(LogEntry entry) {
+				called[0] = true;
+			}
+		};
+		reader.addLogListener(synchronousListener);
+		try {
+			assertTrue("The added listener was not used", logger.isLoggable(LogService.LOG_INFO));
+			logger.log(LogService.LOG_INFO, "cached");
+			assertTrue(called[0]);
+		} finally {
+			reader.removeLogListener(synchronousListener);
+		}
+	}
 }
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.log.test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+import org.eclipse.equinox.log.internal.ExtendedLogEntryImpl;
+import org.eclipse.equinox.log.internal.FileLogWriter;
+import org.osgi.service.log.LogService;
+
+public class FileLogWriterTest extends TestCase {
+
+	private static final int MAX_SIZE = 100;
+	private static final int MAX_FILES = 3;
+	private static final int ENTRIES = 5;
+
+	private File dir;
+	private File file;
+
+	public FileLogWriterTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("filelogwriter", ".test");
+		dir.delete();
+		dir.mkdirs();
+		file = new File(dir, "test.log");
+	}
+
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		dir.delete();
+	}
+
+	private static String message(int index) {
+		StringBuffer message = new StringBuffer("entry " + index + " ");
+		// every entry fills a file on its own
+		while (message.length() <= MAX_SIZE)
+			message.append('x');
+		return message.toString();
+	}
+
+	/*
+	 * Each entry is written in a batch of its own and rolls the file over.
+	 */
+	private void writeEntries(FileLogWriter writer) throws Exception {
+		writer.start();
+		try {
+			for (int i = 0; i < ENTRIES; i++) {
+				writer.logged(new ExtendedLogEntryImpl(null, null, null, LogService.LOG_INFO, message(i), null));
+				long end = System.currentTimeMillis() + 5000;
+				while (writer.getWriteCount() <= i) {
+					if (System.currentTimeMillis() > end)
+						fail("Entry " + i + " was not written");
+					Thread.sleep(10);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			StringBuffer content = new StringBuffer();
+			String line;
+			while ((line = reader.readLine()) != null)
+				content.append(line).append('\n');
+			return content.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void assertRolledFiles(String extension) throws IOException {
+		assertTrue("Log file is missing", file.exists());
+		assertEquals("Log file was not rolled over", 0, file.length());
+		// the newest rolled file has the lowest number
+		for (int i = 1; i <= MAX_FILES; i++) {
+			File rolled = new File(file.getPath() + '.' + i + extension);
+			assertTrue(rolled.getName() + " is missing", rolled.exists());
+			InputStream in = new FileInputStream(rolled);
+			if (extension.length() > 0)
+				in = new GZIPInputStream(in);
+			String content = read(in);
+			assertTrue(rolled.getName() + " has the wrong entry: " + content, content.indexOf(message(ENTRIES - i)) >= 0);
+		}
+		assertFalse("Too many rolled files", new File(file.getPath() + '.' + (MAX_FILES + 1) + extension).exists());
+		assertEquals("Unexpected files " + Arrays.asList(dir.list()), MAX_FILES + 1, dir.list().length);
+	}
+
+	public void testSizeRotation() throws Exception {
+		writeEntries(new FileLogWriter(file, LogService.LOG_INFO, 64 * 1024, 10, MAX_SIZE, 0, MAX_FILES, false, 0));
+		assertRolledFiles("");
+	}
+
+	public void testCompressedRotation() throws Exception {
+		writeEntries(new FileLogWriter(file, LogService.LOG_INFO, 64 * 1024, 10, MAX_SIZE, 0, MAX_FILES, true, 0));
+		// no uncompressed files are left behind
+		assertRolledFiles(".gz");
+	}
+
+	public void testNoRolledFiles() throws Exception {
+		writeEntries(new FileLogWriter(file, LogService.LOG_INFO, 64 * 1024, 10, MAX_SIZE, 0, 0, true, 0));
+		assertTrue("Log file is missing", file.exists());
+		assertEquals(1, dir.list().length);
+	}
+}
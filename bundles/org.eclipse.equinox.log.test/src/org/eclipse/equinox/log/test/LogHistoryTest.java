@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.equinox.log.test;
+
+import junit.framework.TestCase;
+import org.eclipse.equinox.log.ExtendedLogEntry;
+import org.eclipse.equinox.log.ExtendedLogService;
+import org.eclipse.equinox.log.internal.ExtendedLogEntryImpl;
+import org.eclipse.equinox.log.internal.LogHistory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+public class LogHistoryTest extends TestCase {
+
+	private Bundle bundle;
+	private Bundle otherBundle;
+
+	public LogHistoryTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		bundle = Activator.getBundleContext().getBundle();
+		otherBundle = Activator.getBundle("org.eclipse.equinox.log");
+	}
+
+	private static void log(LogHistory history, Bundle bundle, String loggerName, int level, String message) {
+		history.logged(new ExtendedLogEntryImpl(bundle, loggerName, null, level, message, null));
+	}
+
+	private static void assertMessages(String[] expected, ExtendedLogEntry[] entries) {
+		assertEquals("Wrong number of entries", expected.length, entries.length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], entries[i].getMessage());
+	}
+
+	public void testMaxEntries() throws Exception {
+		LogHistory history = new LogHistory(5, 0, LogService.LOG_DEBUG);
+		assertMessages(new String[0], history.getEntries(0));
+		for (int i = 0; i < 8; i++)
+			log(history, bundle, null, LogService.LOG_INFO, "message " + i);
+
+		assertEquals(5, history.size());
+		assertMessages(new String[] {"message 7", "message 6", "message 5", "message 4", "message 3"}, history.getEntries(0));
+	}
+
+	public void testMaxBytes() throws Exception {
+		LogHistory sizer = new LogHistory(1, 0, LogService.LOG_DEBUG);
+		log(sizer, bundle, null, LogService.LOG_INFO, "message 0");
+		long entryBytes = sizer.getEstimatedBytes();
+		assertTrue(entryBytes > 0);
+
+		LogHistory history = new LogHistory(100, entryBytes * 3, LogService.LOG_DEBUG);
+		for (int i = 0; i < 6; i++)
+			log(history, bundle, null, LogService.LOG_INFO, "message " + i);
+
+		assertEquals(3, history.size());
+		assertEquals(entryBytes * 3, history.getEstimatedBytes());
+		assertMessages(new String[] {"message 5", "message 4", "message 3"}, history.getEntries(0));
+
+		// an entry larger than the limit replaces all others
+		log(history, bundle, null, LogService.LOG_INFO, new String(new char[(int) entryBytes * 3]));
+		assertEquals(1, history.size());
+	}
+
+	public void testLevelFilter() throws Exception {
+		LogHistory history = new LogHistory(10, 0, LogService.LOG_WARNING);
+		assertTrue(history.isLoggable(bundle, null, LogService.LOG_ERROR));
+		assertTrue(history.isLoggable(bundle, null, LogService.LOG_WARNING));
+		assertFalse(history.isLoggable(bundle, null, LogService.LOG_INFO));
+	}
+
+	public void testSince() throws Exception {
+		LogHistory history = new LogHistory(10, 0, LogService.LOG_DEBUG);
+		log(history, bundle, "a", LogService.LOG_INFO, "message 0");
+		ExtendedLogEntry first = history.getEntries(0)[0];
+		log(history, bundle, "a", LogService.LOG_INFO, "message 1");
+
+		assertMessages(new String[] {"message 1", "message 0"}, history.getEntries(first.getTime()));
+		assertMessages(new String[0], history.getEntries(Long.MAX_VALUE));
+		assertMessages(new String[0], history.getEntriesByBundle(bundle, Long.MAX_VALUE));
+		assertMessages(new String[0], history.getEntriesByLoggerName("a", Long.MAX_VALUE));
+		assertMessages(new String[0], history.getEntriesByLevel(LogService.LOG_INFO, Long.MAX_VALUE));
+	}
+
+	public void testEntriesByBundle() throws Exception {
+		LogHistory history = new LogHistory(4, 0, LogService.LOG_DEBUG);
+		log(history, otherBundle, null, LogService.LOG_INFO, "other 0");
+		log(history, bundle, null, LogService.LOG_INFO, "message 0");
+		log(history, otherBundle, null, LogService.LOG_INFO, "other 1");
+		log(history, bundle, null, LogService.LOG_INFO, "message 1");
+
+		assertMessages(new String[] {"message 1", "message 0"}, history.getEntriesByBundle(bundle, 0));
+		assertMessages(new String[] {"other 1", "other 0"}, history.getEntriesByBundle(otherBundle, 0));
+
+		// evict both entries of the other bundle
+		log(history, bundle, null, LogService.LOG_INFO, "message 2");
+		log(history, bundle, null, LogService.LOG_INFO, "message 3");
+		log(history, bundle, null, LogService.LOG_INFO, "message 4");
+		assertMessages(new String[] {"message 4", "message 3", "message 2", "message 1"}, history.getEntriesByBundle(bundle, 0));
+		assertMessages(new String[0], history.getEntriesByBundle(otherBundle, 0));
+	}
+
+	public void testEntriesByLoggerName() throws Exception {
+		LogHistory history = new LogHistory(4, 0, LogService.LOG_DEBUG);
+		log(history, bundle, "a", LogService.LOG_INFO, "a 0");
+		log(history, bundle, null, LogService.LOG_INFO, "unnamed 0");
+		log(history, bundle, "b", LogService.LOG_INFO, "b 0");
+		log(history, bundle, "a", LogService.LOG_INFO, "a 1");
+
+		assertMessages(new String[] {"a 1", "a 0"}, history.getEntriesByLoggerName("a", 0));
+		assertMessages(new String[] {"b 0"}, history.getEntriesByLoggerName("b", 0));
+		assertMessages(new String[] {"unnamed 0"}, history.getEntriesByLoggerName(null, 0));
+		assertMessages(new String[0], history.getEntriesByLoggerName("c", 0));
+
+		// evict the oldest entry of a and the unnamed entry
+		log(history, bundle, "b", LogService.LOG_INFO, "b 1");
+		log(history, bundle, "a", LogService.LOG_INFO, "a 2");
+		assertMessages(new String[] {"a 2", "a 1"}, history.getEntriesByLoggerName("a", 0));
+		assertMessages(new String[] {"b 1", "b 0"}, history.getEntriesByLoggerName("b", 0));
+		assertMessages(new String[0], history.getEntriesByLoggerName(null, 0));
+	}
+
+	public void testEntriesByLevel() throws Exception {
+		LogHistory history = new LogHistory(4, 0, 100);
+		log(history, bundle, null, LogService.LOG_ERROR, "error 0");
+		log(history, bundle, null, LogService.LOG_INFO, "info 0");
+		log(history, bundle, null, 100, "custom 0");
+		log(history, bundle, null, LogService.LOG_ERROR, "error 1");
+
+		assertMessages(new String[] {"error 1", "error 0"}, history.getEntriesByLevel(LogService.LOG_ERROR, 0));
+		assertMessages(new String[] {"info 0"}, history.getEntriesByLevel(LogService.LOG_INFO, 0));
+		assertMessages(new String[0], history.getEntriesByLevel(LogService.LOG_DEBUG, 0));
+		// levels outside the index are found as well
+		assertMessages(new String[] {"custom 0"}, history.getEntriesByLevel(100, 0));
+
+		// evict the oldest error and the info entry
+		log(history, bundle, null, LogService.LOG_ERROR, "error 2");
+		log(history, bundle, null, 100, "custom 1");
+		assertMessages(new String[] {"error 2", "error 1"}, history.getEntriesByLevel(LogService.LOG_ERROR, 0));
+		assertMessages(new String[0], history.getEntriesByLevel(LogService.LOG_INFO, 0));
+		assertMessages(new String[] {"custom 1", "custom 0"}, history.getEntriesByLevel(100, 0));
+	}
+
+	public void testHistoryService() throws Exception {
+		Bundle logBundle = Activator.getBundle("org.eclipse.equinox.log");
+		System.setProperty("equinox.log.history.max", "10");
+		try {
+			logBundle.start();
+			ServiceReference historyReference = Activator.getBundleContext().getServiceReference(LogHistory.class.getName());
+			assertNotNull("LogHistory is not registered", historyReference);
+			ServiceReference logReference = Activator.getBundleContext().getServiceReference(ExtendedLogService.class.getName());
+			ExtendedLogService log = (ExtendedLogService) Activator.getBundleContext().getService(logReference);
+			LogHistory history = (LogHistory) Activator.getBundleContext().getService(historyReference);
+			try {
+				log.getLogger("history.test").log(LogService.LOG_INFO, "info");
+				assertMessages(new String[] {"info"}, history.getEntriesByLoggerName("history.test", 0));
+			} finally {
+				Activator.getBundleContext().ungetService(historyReference);
+				Activator.getBundleContext().ungetService(logReference);
+			}
+		} finally {
+			logBundle.stop();
+			System.getProperties().remove("equinox.log.history.max");
+		}
+		assertNull("LogHistory is still registered", Activator.getBundleContext().getServiceReference(LogHistory.class.getName()));
+	}
+}
@@ -7,6 +7,7 @@
  ******************************************************************************/
 package org.eclipse.equinox.log.internal;
 
+import java.io.File;
 import org.eclipse.equinox.log.ExtendedLogReaderService;
 import org.eclipse.equinox.log.ExtendedLogService;
 import org.osgi.framework.*;
@@ -16,12 +17,30 @@ import org.osgi.service.log.LogService;
 public class Activator implements BundleActivator, BundleListener, FrameworkListener, ServiceListener {
 
 	private static final String EVENT_ADMIN_CLASS = "org.osgi.service.event.EventAdmin"; //$NON-NLS-1$
+	private static final String PROP_QUEUE_CAPACITY = "equinox.log.queue.capacity"; //$NON-NLS-1$
+	private static final String PROP_QUEUE_POLICY = "equinox.log.queue.policy"; //$NON-NLS-1$
+	private static final String PROP_HISTORY_MAX = "equinox.log.history.max"; //$NON-NLS-1$
+	private static final String PROP_HISTORY_BYTES = "equinox.log.history.bytes"; //$NON-NLS-1$
+	private static final String PROP_HISTORY_LEVEL = "equinox.log.history.level"; //$NON-NLS-1$
+	private static final String PROP_FILE = "equinox.log.file"; //$NON-NLS-1$
+	private static final String PROP_FILE_LEVEL = "equinox.log.file.level"; //$NON-NLS-1$
+	private static final String PROP_FILE_BUFFER = "equinox.log.file.buffer"; //$NON-NLS-1$
+	private static final String PROP_FILE_FLUSH_INTERVAL = "equinox.log.file.flush.interval"; //$NON-NLS-1$
+	private static final String PROP_FILE_MAX_SIZE = "equinox.log.file.max.size"; //$NON-NLS-1$
+	private static final String PROP_FILE_ROTATION_INTERVAL = "equinox.log.file.rotation.interval"; //$NON-NLS-1$
+	private static final String PROP_FILE_MAX_FILES = "equinox.log.file.max.files"; //$NON-NLS-1$
+	private static final String PROP_FILE_COMPRESS = "equinox.log.file.compress"; //$NON-NLS-1$
+	private static final String PROP_FILE_QUEUE_MAX = "equinox.log.file.queue.max"; //$NON-NLS-1$
+	private static final String FILE_CHANNEL_CLASS = "java.nio.channels.FileChannel"; //$NON-NLS-1$
 	private static final String[] LOGSERVICE_CLASSES = {LogService.class.getName(), ExtendedLogService.class.getName()};
 	private static final String[] LOGREADERSERVICE_CLASSES = {LogReaderService.class.getName(), ExtendedLogReaderService.class.getName()};
 
 	private ServiceRegistration logReaderServiceRegistration;
 	private ServiceRegistration logServiceRegistration;
 	private EventAdminAdapter eventAdminAdapter;
+	private FileLogWriter fileLogWriter;
+	private ServiceRegistration fileLogWriterRegistration;
+	private ServiceRegistration historyRegistration;
 	private volatile ExtendedLogReaderServiceFactory logReaderServiceFactory;
 	private ExtendedLogServiceFactory logServiceFactory;
 
@@ -33,7 +52,12 @@ public class Activator implements BundleActivator, BundleListener, FrameworkList
 				if (provider != null && provider.getBundleId() == 0)
 					return;
 			}
-		logReaderServiceFactory = new ExtendedLogReaderServiceFactory();
+		int policy = LogRingBuffer.parsePolicy(context.getProperty(PROP_QUEUE_POLICY), LogRingBuffer.POLICY_BLOCK);
+		LogHistory history = null;
+		int historyMax = getIntProperty(context, PROP_HISTORY_MAX, 0);
+		if (historyMax > 0)
+			history = new LogHistory(historyMax, getIntProperty(context, PROP_HISTORY_BYTES, 0), getIntProperty(context, PROP_HISTORY_LEVEL, LogService.LOG_INFO));
+		logReaderServiceFactory = new ExtendedLogReaderServiceFactory(getIntProperty(context, PROP_QUEUE_CAPACITY, 0), policy, history);
 		context.addBundleListener(this);
 		context.addServiceListener(this);
 		context.addFrameworkListener(this);
@@ -42,6 +66,16 @@ public class Activator implements BundleActivator, BundleListener, FrameworkList
 			eventAdminAdapter = new EventAdminAdapter(context, logReaderServiceFactory);
 			eventAdminAdapter.start();
 		}
+		String file = context.getProperty(PROP_FILE);
+		if (file != null && checkFileChannel()) {
+			String compress = context.getProperty(PROP_FILE_COMPRESS);
+			fileLogWriter = new FileLogWriter(new File(file), getIntProperty(context, PROP_FILE_LEVEL, LogService.LOG_INFO), getIntProperty(context, PROP_FILE_BUFFER, 64 * 1024), getLongProperty(context, PROP_FILE_FLUSH_INTERVAL, 1000), getLongProperty(context, PROP_FILE_MAX_SIZE, 0), getLongProperty(context, PROP_FILE_ROTATION_INTERVAL, 0), getIntProperty(context, PROP_FILE_MAX_FILES, 5), compress == null || Boolean.valueOf(compress.trim()).booleanValue(), getIntProperty(context, PROP_FILE_QUEUE_MAX, 0));
+			fileLogWriter.start();
+			logReaderServiceFactory.addLogListener(fileLogWriter, fileLogWriter);
+			fileLogWriterRegistration = context.registerService(FileLogWriter.class.getName(), fileLogWriter, null);
+		}
+		if (history != null)
+			historyRegistration = context.registerService(LogHistory.class.getName(), history, null);
 		logServiceFactory = new ExtendedLogServiceFactory(logReaderServiceFactory);
 		context.addBundleListener(logServiceFactory);
 		logReaderServiceRegistration = context.registerService(LOGREADERSERVICE_CLASSES, logReaderServiceFactory, null);
@@ -57,15 +91,60 @@ public class Activator implements BundleActivator, BundleListener, FrameworkList
 		logReaderServiceRegistration = null;
 		logServiceFactory.shutdown();
 		logServiceFactory = null;
+		if (historyRegistration != null) {
+			historyRegistration.unregister();
+			historyRegistration = null;
+		}
 		if (eventAdminAdapter != null) {
 			eventAdminAdapter.stop();
 			eventAdminAdapter = null;
 		}
+		if (fileLogWriter != null) {
+			fileLogWriterRegistration.unregister();
+			fileLogWriterRegistration = null;
+			logReaderServiceFactory.removeLogListener(fileLogWriter);
+			fileLogWriter.close();
+			fileLogWriter = null;
+		}
 		context.removeFrameworkListener(this);
 		context.removeServiceListener(this);
 		context.removeBundleListener(this);
 	}
 
+	private static int getIntProperty(BundleContext context, String key, int defaultValue) {
+		String prop = context.getProperty(key);
+		if (prop != null) {
+			try {
+				return Math.max(0, Integer.parseInt(prop.trim()));
+			} catch (NumberFormatException e) {
+				// ignore and use the default
+			}
+		}
+		return defaultValue;
+	}
+
+	private static long getLongProperty(BundleContext context, String key, long defaultValue) {
+		String prop = context.getProperty(key);
+		if (prop != null) {
+			try {
+				return Math.max(0, Long.parseLong(prop.trim()));
+			} catch (NumberFormatException e) {
+				// ignore and use the default
+			}
+		}
+		return defaultValue;
+	}
+
+	private static boolean checkFileChannel() {
+		// the file log writer needs java.nio which some execution environments do not have
+		try {
+			Class.forName(FILE_CHANNEL_CLASS);
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
 	private static boolean checkEventAdmin() {
 		// cannot support scheduling without the event admin package
 		try {
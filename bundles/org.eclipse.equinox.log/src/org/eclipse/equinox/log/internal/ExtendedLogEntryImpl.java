@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2009 Cognos Incorporated, IBM Corporation and others
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -63,10 +63,14 @@ public class ExtendedLogEntryImpl implements ExtendedLogEntry {
 		Thread currentThread = Thread.currentThread();
 		this.threadName = currentThread.getName();
 
+		// only the sequence number needs the lock when Thread.getId is available
+		long id = (threadIds == null) ? currentThread.getId() : 0;
 		synchronized (ExtendedLogEntryImpl.class) {
-			this.threadId = getId(currentThread);
+			if (threadIds != null)
+				id = getId(currentThread);
 			this.sequenceNumber = nextSequenceNumber++;
 		}
+		this.threadId = id;
 	}
 
 	public String getLoggerName() {
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2009 Cognos Incorporated, IBM Corporation and others
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -18,20 +18,6 @@ import org.osgi.service.log.LogListener;
 
 public class ExtendedLogReaderServiceFactory implements ServiceFactory {
 
-	static final class LogTask implements Runnable {
-		private final LogEntry logEntry;
-		private final LogListener listener;
-
-		LogTask(LogEntry logEntry, LogListener listener) {
-			this.logEntry = logEntry;
-			this.listener = listener;
-		}
-
-		public void run() {
-			safeLogged(listener, logEntry);
-		}
-	}
-
 	private static final Enumeration EMPTY_ENUMERATION = new Enumeration() {
 		public boolean hasMoreElements() {
 			return false;
@@ -52,10 +38,39 @@ public class ExtendedLogReaderServiceFactory implements ServiceFactory {
 
 	private static PrintStream errorStream;
 
+	private static final Object[] NO_LISTENERS = new Object[0];
+
+	// Map of LogListener -> Object[] {LogFilter, LogRingBuffer.Reader or null for a SynchronousLogListener}
+	/* @GuardedBy this */
 	private Map listeners = new HashMap();
-	private LogFilter[] filters = null;
+	// the listeners and filters are replaced when a listener is added or removed so logging does not need a lock
+	private volatile LogFilter[] filters = null;
+	// pairs of SynchronousLogListener and LogFilter
+	private volatile Object[] synchronousListeners = NO_LISTENERS;
+	private final LogRingBuffer ringBuffer;
+	// incremented each time the filters change
+	private volatile int filtersGeneration;
+	// the loggers which cache isLoggable decisions; a WeakHashMap used as a set
+	/* @GuardedBy this */
+	private final Map loggers = new WeakHashMap();
+
+	private final LogHistory history;
+
+	public ExtendedLogReaderServiceFactory() {
+		this(0, LogRingBuffer.POLICY_BLOCK, null);
+	}
 
-	private BasicReadWriteLock listenersLock = new BasicReadWriteLock();
+	/**
+	 * @param capacity the maximum number of entries queued for asynchronous listeners; 0 for no limit
+	 * @param policy the {@link LogRingBuffer} policy which applies when the queue is full
+	 * @param history the history of recent entries returned by getLog; null to keep no history
+	 */
+	public ExtendedLogReaderServiceFactory(int capacity, int policy, LogHistory history) {
+		ringBuffer = new LogRingBuffer(capacity, policy);
+		this.history = history;
+		if (history != null)
+			addLogListener(history, history);
+	}
 
 	static boolean safeIsLoggable(LogFilter filter, Bundle bundle, String name, int level) {
 		try {
@@ -73,7 +88,7 @@ public class ExtendedLogReaderServiceFactory implements ServiceFactory {
 		return false;
 	}
 
-	private static synchronized PrintStream getErrorStream() {
+	static synchronized PrintStream getErrorStream() {
 		if (errorStream == null)
 			return System.err;
 
@@ -109,99 +124,121 @@ public class ExtendedLogReaderServiceFactory implements ServiceFactory {
 	}
 
 	boolean isLoggable(Bundle bundle, String name, int level) {
-		listenersLock.readLock();
-		try {
-			if (filters == null)
-				return false;
+		LogFilter[] currentFilters = filters;
+		if (currentFilters == null)
+			return false;
 
-			if (filters == ALWAYS_LOG)
-				return true;
+		if (currentFilters == ALWAYS_LOG)
+			return true;
 
-			int filtersLength = filters.length;
-			for (int i = 0; i < filtersLength; i++) {
-				LogFilter filter = filters[i];
-				if (safeIsLoggable(filter, bundle, name, level))
-					return true;
-			}
-		} finally {
-			listenersLock.readUnlock();
+		int filtersLength = currentFilters.length;
+		for (int i = 0; i < filtersLength; i++) {
+			LogFilter filter = currentFilters[i];
+			if (safeIsLoggable(filter, bundle, name, level))
+				return true;
 		}
 		return false;
 	}
 
 	void log(Bundle bundle, String name, Object context, int level, String message, Throwable exception) {
-		LogEntry logEntry = new ExtendedLogEntryImpl(bundle, name, context, level, message, exception);
-		listenersLock.readLock();
-		try {
-			for (Iterator it = listeners.entrySet().iterator(); it.hasNext();) {
-				Entry entry = (Entry) it.next();
-				Object[] listenerObjects = (Object[]) entry.getValue();
-				LogFilter filter = (LogFilter) listenerObjects[0];
-				if (safeIsLoggable(filter, bundle, name, level)) {
-					LogListener listener = (LogListener) entry.getKey();
-					SerializedTaskQueue taskQueue = (SerializedTaskQueue) listenerObjects[1];
-					if (taskQueue != null) {
-						taskQueue.put(new LogTask(logEntry, listener));
-					} else {
-						// log synchronously
-						safeLogged(listener, logEntry);
-
-					}
-				}
-			}
-		} finally {
-			listenersLock.readUnlock();
+		ExtendedLogEntryImpl logEntry = new ExtendedLogEntryImpl(bundle, name, context, level, message, exception);
+		Object[] currentListeners = synchronousListeners;
+		for (int i = 0; i < currentListeners.length; i += 2) {
+			LogFilter filter = (LogFilter) currentListeners[i + 1];
+			if (safeIsLoggable(filter, bundle, name, level))
+				safeLogged((LogListener) currentListeners[i], logEntry);
 		}
+		// the filters of the asynchronous listeners are evaluated here; only the delivery is asynchronous
+		ringBuffer.publish(logEntry);
 	}
 
-	void addLogListener(LogListener listener, LogFilter filter) {
-		listenersLock.writeLock();
-		try {
-			Object[] listenerObjects = (Object[]) listeners.get(listener);
-			if (listenerObjects == null) {
-				// Only create a task queue for non-SynchronousLogListeners
-				SerializedTaskQueue taskQueue = (listener instanceof SynchronousLogListener) ? null : new SerializedTaskQueue(listener.toString());
-				listenerObjects = new Object[] {filter, taskQueue};
-			} else if (filter != listenerObjects[0]) {
-				// update the filter
-				listenerObjects[0] = filter;
-			}
-			listeners.put(listener, listenerObjects);
-			recalculateFilters();
-		} finally {
-			listenersLock.writeUnlock();
+	synchronized void addLogListener(LogListener listener, LogFilter filter) {
+		Object[] listenerObjects = (Object[]) listeners.get(listener);
+		if (listenerObjects == null) {
+			// Only create a ring buffer reader for non-SynchronousLogListeners
+			LogRingBuffer.Reader reader = (listener instanceof SynchronousLogListener) ? null : ringBuffer.addReader(listener, filter);
+			listenerObjects = new Object[] {filter, reader};
+		} else if (filter != listenerObjects[0]) {
+			// update the filter
+			listenerObjects[0] = filter;
+			if (listenerObjects[1] != null)
+				((LogRingBuffer.Reader) listenerObjects[1]).setFilter(filter);
 		}
+		listeners.put(listener, listenerObjects);
+		recalculateFilters();
 	}
 
+	/*
+	 * @GuardedBy this
+	 */
 	private void recalculateFilters() {
 		List filtersList = new ArrayList();
-		for (Iterator it = listeners.values().iterator(); it.hasNext();) {
-			Object[] listenerObjects = (Object[]) it.next();
+		List synchronousList = new ArrayList();
+		boolean alwaysLog = false;
+		for (Iterator it = listeners.entrySet().iterator(); it.hasNext();) {
+			Entry entry = (Entry) it.next();
+			Object[] listenerObjects = (Object[]) entry.getValue();
 			LogFilter filter = (LogFilter) listenerObjects[0];
-			if (filter == NULL_LOGGER_FILTER) {
-				filters = ALWAYS_LOG;
-				return;
+			if (listenerObjects[1] == null) {
+				synchronousList.add(entry.getKey());
+				synchronousList.add(filter);
 			}
+			if (filter == NULL_LOGGER_FILTER)
+				alwaysLog = true;
 			filtersList.add(filter);
 		}
 
-		if (filtersList.isEmpty())
+		synchronousListeners = synchronousList.isEmpty() ? NO_LISTENERS : synchronousList.toArray();
+		if (alwaysLog)
+			filters = ALWAYS_LOG;
+		else if (filtersList.isEmpty())
 			filters = null;
+		else
+			filters = (LogFilter[]) filtersList.toArray(new LogFilter[filtersList.size()]);
 
-		filters = (LogFilter[]) filtersList.toArray(new LogFilter[filtersList.size()]);
+		// the new filters must be visible before the generation changes
+		filtersGeneration++;
+		for (Iterator it = loggers.keySet().iterator(); it.hasNext();)
+			((LoggerImpl) it.next()).clearLoggableCache();
 	}
 
-	void removeLogListener(LogListener listener) {
-		listenersLock.writeLock();
-		try {
-			listeners.remove(listener);
-			recalculateFilters();
-		} finally {
-			listenersLock.writeUnlock();
+	int getFiltersGeneration() {
+		return filtersGeneration;
+	}
+
+	/**
+	 * Register a logger whose cached isLoggable decisions are cleared when
+	 * the filters change. The decisions of a LogFilter are assumed not to
+	 * change while it is registered; adding the listener again clears them.
+	 */
+	synchronized void addLogger(LoggerImpl logger) {
+		loggers.put(logger, null);
+	}
+
+	synchronized void removeLogListener(LogListener listener) {
+		Object[] listenerObjects = (Object[]) listeners.remove(listener);
+		if (listenerObjects != null && listenerObjects[1] != null)
+			ringBuffer.removeReader((LogRingBuffer.Reader) listenerObjects[1]);
+		recalculateFilters();
+	}
+
+	/**
+	 * @return the number of entries which asynchronous listeners did not receive because the queue was full
+	 */
+	public synchronized long getDropCount() {
+		long count = ringBuffer.getDropCount();
+		for (Iterator it = listeners.values().iterator(); it.hasNext();) {
+			LogRingBuffer.Reader reader = (LogRingBuffer.Reader) ((Object[]) it.next())[1];
+			if (reader != null)
+				count += reader.getDropCount();
 		}
+		return count;
 	}
 
 	Enumeration getLog() {
-		return EMPTY_ENUMERATION;
+		if (history == null)
+			return EMPTY_ENUMERATION;
+
+		return Collections.enumeration(Arrays.asList(history.getEntries(0)));
 	}
 }
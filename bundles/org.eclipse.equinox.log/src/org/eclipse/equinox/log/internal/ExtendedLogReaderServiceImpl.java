@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2009 Cognos Incorporated, IBM Corporation and others
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -45,6 +45,14 @@ public class ExtendedLogReaderServiceImpl implements ExtendedLogReaderService {
 		return factory.getLog();
 	}
 
+	/**
+	 * @return the number of entries which asynchronous listeners did not receive because the queue was full
+	 */
+	public long getDropCount() {
+		checkShutdown();
+		return factory.getDropCount();
+	}
+
 	public synchronized void removeLogListener(LogListener listener) {
 		checkShutdown();
 		if (listener == null)
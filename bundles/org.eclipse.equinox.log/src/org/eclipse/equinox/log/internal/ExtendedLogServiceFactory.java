@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2009 Cognos Incorporated, IBM Corporation and others
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -65,6 +65,14 @@ public class ExtendedLogServiceFactory implements ServiceFactory, BundleListener
 		return logReaderServiceFactory.isLoggable(bundle, name, level);
 	}
 
+	int getFiltersGeneration() {
+		return logReaderServiceFactory.getFiltersGeneration();
+	}
+
+	void addLogger(LoggerImpl logger) {
+		logReaderServiceFactory.addLogger(logger);
+	}
+
 	protected void log(Bundle bundle, String name, Object context, int level, String message, Throwable exception) {
 		logReaderServiceFactory.log(bundle, name, context, level, message, exception);
 	}
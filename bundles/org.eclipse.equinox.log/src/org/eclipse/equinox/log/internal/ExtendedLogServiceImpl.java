@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2009 Cognos Incorporated, IBM Corporation and others
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -17,11 +17,16 @@ public class ExtendedLogServiceImpl implements ExtendedLogService {
 
 	private final ExtendedLogServiceFactory factory;
 	private final Bundle bundle;
+	private final LoggerImpl rootLogger;
 	private HashMap loggerCache = new HashMap();
 
 	public ExtendedLogServiceImpl(ExtendedLogServiceFactory factory, Bundle bundle) {
 		this.factory = factory;
 		this.bundle = bundle;
+		// the unnamed logger is used for every LogService call; keep it without a lock
+		rootLogger = new LoggerImpl(this, null);
+		loggerCache.put(null, rootLogger);
+		factory.addLogger(rootLogger);
 	}
 
 	public void log(int level, String message) {
@@ -37,7 +42,7 @@ public class ExtendedLogServiceImpl implements ExtendedLogService {
 	}
 
 	public void log(ServiceReference sr, int level, String message, Throwable exception) {
-		getLogger(null).log(sr, level, message, exception);
+		rootLogger.log(sr, level, message, exception);
 	}
 
 	public void log(Object context, int level, String message) {
@@ -45,14 +50,16 @@ public class ExtendedLogServiceImpl implements ExtendedLogService {
 	}
 
 	public void log(Object context, int level, String message, Throwable exception) {
-		getLogger(null).log(context, level, message, exception);
+		rootLogger.log(context, level, message, exception);
 	}
 
 	public synchronized Logger getLogger(String name) {
 		Logger logger = (Logger) loggerCache.get(name);
 		if (logger == null) {
-			logger = new LoggerImpl(this, name);
-			loggerCache.put(name, logger);
+			LoggerImpl loggerImpl = new LoggerImpl(this, name);
+			factory.addLogger(loggerImpl);
+			loggerCache.put(name, loggerImpl);
+			logger = loggerImpl;
 		}
 		return logger;
 	}
@@ -67,11 +74,11 @@ public class ExtendedLogServiceImpl implements ExtendedLogService {
 	}
 
 	public String getName() {
-		return getLogger(null).getName();
+		return rootLogger.getName();
 	}
 
 	public boolean isLoggable(int level) {
-		return getLogger(null).isLoggable(level);
+		return rootLogger.isLoggable(level);
 	}
 
 	// package private methods called from Logger
@@ -79,6 +86,11 @@ public class ExtendedLogServiceImpl implements ExtendedLogService {
 		return factory.isLoggable(bundle, name, level);
 	}
 
+	// package private methods called from Logger
+	int getFiltersGeneration() {
+		return factory.getFiltersGeneration();
+	}
+
 	// package private methods called from Logger
 	void log(String name, Object context, int level, String message, Throwable exception) {
 		factory.log(bundle, name, context, level, message, exception);
@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.eclipse.equinox.log.internal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+import org.eclipse.equinox.log.*;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+/**
+ * FileLogWriter writes log entries to a file.
+ * <p>
+ * The logging thread only adds the entry to a pending list. A writer thread
+ * takes the pending entries once per flush interval, or sooner if many are
+ * pending, formats them into a direct buffer and writes the buffer with a
+ * single channel write unless it fills up. The file is rolled over when it
+ * reaches a maximum size or after a rotation interval; rolled files are
+ * numbered, newest first, and optionally compressed with gzip. The writer
+ * thread only renames a file which is to be compressed; a thread of a
+ * {@link WorkerPool} compresses the renamed files one at a time, in order.
+ * <p>
+ * Entries which arrive while the pending list is full are dropped; the
+ * number dropped is written to the file with the next batch. While file
+ * logging is enabled the writer is registered as a service under this class
+ * name so its statistics can be read.
+ * <p>
+ * This class uses java.nio and must only be loaded when it is available.
+ */
+public class FileLogWriter implements SynchronousLogListener, LogFilter, Runnable {
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator"); //$NON-NLS-1$
+	private static final String GZIP_EXTENSION = ".gz"; //$NON-NLS-1$
+	private static final String ROLLED_EXTENSION = ".rolled"; //$NON-NLS-1$
+	private static final WorkerPool compressorPool = new WorkerPool("Equinox Log File Compressor"); //$NON-NLS-1$
+	private static final int COPY_BUFFER_SIZE = 8192;
+	private static final long CLOSE_WAIT = 5000;
+	private static final int MIN_BUFFER_SIZE = 1024;
+
+	private final File file;
+	private final int maxLevel;
+	private final long flushInterval;
+	private final long maxSize;
+	private final long rotationInterval;
+	private final int maxFiles;
+	private final boolean compress;
+	private final int maxPending;
+	private final Thread thread;
+
+	/* @GuardedBy this */
+	private ArrayList pending = new ArrayList();
+	/* @GuardedBy this */
+	private boolean closed;
+	/* @GuardedBy this */
+	private long dropCount;
+	/* @GuardedBy this */
+	private long reportedDropCount;
+	// the renamed files waiting to be compressed, oldest first
+	/* @GuardedBy compressQueue */
+	private final LinkedList compressQueue = new LinkedList();
+	/* @GuardedBy compressQueue */
+	private boolean compressing;
+
+	// used by the writer thread only
+	private ArrayList batch = new ArrayList();
+	private final ByteBuffer buffer;
+	private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder(); //$NON-NLS-1$
+	private final StringBuffer line = new StringBuffer(256);
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS"); //$NON-NLS-1$
+	private FileChannel channel;
+	private long fileSize;
+	private long nextRotation;
+	private int rolledSequence;
+
+	// statistics written by the writer thread
+	private volatile long writeCount;
+	private volatile long writeMillis;
+	private volatile long maxWriteMillis;
+	private volatile long bytesWritten;
+
+	/**
+	 * @param file the log file
+	 * @param maxLevel the highest level to write, for example LogService.LOG_INFO
+	 * @param bufferSize the size of the write buffer in bytes
+	 * @param flushInterval the time in milliseconds between writes
+	 * @param maxSize the size in bytes at which the file is rolled over; 0 for no limit
+	 * @param rotationInterval the time in milliseconds after which the file is rolled over; 0 for no limit
+	 * @param maxFiles the number of rolled files to keep
+	 * @param compress true if rolled files are compressed with gzip
+	 * @param maxPending the number of entries which may wait to be written before entries are dropped; 0 for a default based on the buffer size
+	 */
+	public FileLogWriter(File file, int maxLevel, int bufferSize, long flushInterval, long maxSize, long rotationInterval, int maxFiles, boolean compress, int maxPending) {
+		this.file = file;
+		this.maxLevel = maxLevel;
+		// wait(0) would never time out
+		this.flushInterval = Math.max(1, flushInterval);
+		this.maxSize = maxSize;
+		this.rotationInterval = rotationInterval;
+		this.maxFiles = maxFiles;
+		this.compress = compress;
+		this.buffer = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER_SIZE, bufferSize));
+		// a slow disk must not make the pending entries grow without bound
+		this.maxPending = (maxPending > 0) ? maxPending : Math.max(1024, bufferSize / 8);
+		this.thread = new Thread(this, "Equinox Log File Writer"); //$NON-NLS-1$
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Write the pending entries, stop the writer thread and wait for the rolled
+	 * files to be compressed.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notify();
+		}
+		try {
+			thread.join(CLOSE_WAIT);
+			synchronized (compressQueue) {
+				long end = System.currentTimeMillis() + CLOSE_WAIT;
+				long remaining = CLOSE_WAIT;
+				while (compressing && remaining > 0) {
+					compressQueue.wait(remaining);
+					remaining = end - System.currentTimeMillis();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isLoggable(Bundle bundle, String loggerName, int logLevel) {
+		return logLevel <= maxLevel;
+	}
+
+	public void logged(LogEntry entry) {
+		synchronized (this) {
+			if (closed)
+				return;
+
+			if (pending.size() >= maxPending) {
+				dropCount++;
+				return;
+			}
+			pending.add(entry);
+			// write early rather than drop entries
+			if (pending.size() == maxPending >> 1)
+				notify();
+		}
+	}
+
+	public void run() {
+		try {
+			open();
+			while (true) {
+				boolean done;
+				long dropped;
+				synchronized (this) {
+					if (!closed && pending.size() < maxPending >> 1) {
+						try {
+							wait(flushInterval);
+						} catch (InterruptedException e) {
+							// ignore -- we control the stack here and do not need to propagate it.
+						}
+					}
+					ArrayList entries = pending;
+					pending = batch;
+					batch = entries;
+					done = closed;
+					dropped = dropCount - reportedDropCount;
+					reportedDropCount = dropCount;
+				}
+				write(dropped);
+				if (done)
+					return;
+			}
+		} catch (IOException e) {
+			ExtendedLogReaderServiceFactory.getErrorStream().println("Unable to write log file " + file); //$NON-NLS-1$
+			e.printStackTrace(ExtendedLogReaderServiceFactory.getErrorStream());
+			synchronized (this) {
+				// stop collecting entries which will never be written
+				closed = true;
+				pending.clear();
+			}
+		} finally {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * @param dropped the number of entries dropped since the last batch
+	 */
+	private void write(long dropped) throws IOException {
+		if (rotationInterval > 0 && System.currentTimeMillis() >= nextRotation)
+			rotate();
+
+		if (dropped > 0) {
+			line.setLength(0);
+			line.append(dateFormat.format(new Date())).append(' ').append(getLevelName(LogService.LOG_WARNING));
+			line.append(" [").append(Thread.currentThread().getName()).append("] - "); //$NON-NLS-1$
+			line.append(dropped).append(" log entries were dropped because too many were waiting to be written").append(LINE_SEPARATOR); //$NON-NLS-1$
+			encode();
+		}
+
+		int size = batch.size();
+		for (int i = 0; i < size; i++) {
+			format((ExtendedLogEntry) batch.get(i));
+			encode();
+		}
+		batch.clear();
+		flush();
+
+		if (maxSize > 0 && fileSize >= maxSize)
+			rotate();
+	}
+
+	private void format(ExtendedLogEntry entry) {
+		line.setLength(0);
+		line.append(dateFormat.format(new Date(entry.getTime())));
+		line.append(' ').append(getLevelName(entry.getLevel()));
+		line.append(" [").append(entry.getThreadName()).append(']');
+		Bundle bundle = entry.getBundle();
+		if (bundle != null) {
+			String symbolicName = bundle.getSymbolicName();
+			line.append(' ');
+			if (symbolicName != null)
+				line.append(symbolicName);
+			else
+				line.append(bundle.getBundleId());
+		}
+		if (entry.getLoggerName() != null)
+			line.append(' ').append(entry.getLoggerName());
+		line.append(" - ").append(entry.getMessage()).append(LINE_SEPARATOR); //$NON-NLS-1$
+		Throwable exception = entry.getException();
+		if (exception != null) {
+			StringWriter stackTrace = new StringWriter();
+			exception.printStackTrace(new PrintWriter(stackTrace));
+			line.append(stackTrace.getBuffer());
+		}
+	}
+
+	private static String getLevelName(int level) {
+		switch (level) {
+			case LogService.LOG_ERROR :
+				return "ERROR"; //$NON-NLS-1$
+			case LogService.LOG_WARNING :
+				return "WARNING"; //$NON-NLS-1$
+			case LogService.LOG_INFO :
+				return "INFO"; //$NON-NLS-1$
+			case LogService.LOG_DEBUG :
+				return "DEBUG"; //$NON-NLS-1$
+			default :
+				return String.valueOf(level);
+		}
+	}
+
+	private void encode() throws IOException {
+		CharBuffer chars = CharBuffer.wrap(line);
+		while (encoder.encode(chars, buffer, true).isOverflow())
+			flush();
+		encoder.reset();
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		int length = buffer.remaining();
+		if (length > 0) {
+			long start = System.currentTimeMillis();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			long time = System.currentTimeMillis() - start;
+			writeCount++;
+			writeMillis += time;
+			if (time > maxWriteMillis)
+				maxWriteMillis = time;
+			bytesWritten += length;
+			fileSize += length;
+		}
+		buffer.clear();
+	}
+
+	private void open() throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		channel = new FileOutputStream(file, true).getChannel();
+		fileSize = channel.size();
+		nextRotation = System.currentTimeMillis() + rotationInterval;
+	}
+
+	private void closeChannel() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		channel = null;
+	}
+
+	private void rotate() throws IOException {
+		flush();
+		closeChannel();
+		if (maxFiles > 0) {
+			if (compress) {
+				File rolled = getUncompressedFile();
+				if (file.renameTo(rolled))
+					queueCompression(rolled);
+			} else {
+				shiftRolledFiles(""); //$NON-NLS-1$
+				file.renameTo(getRolledFile(1, "")); //$NON-NLS-1$
+			}
+		}
+		file.delete();
+		open();
+	}
+
+	private void shiftRolledFiles(String extension) {
+		getRolledFile(maxFiles, extension).delete();
+		for (int i = maxFiles - 1; i > 0; i--) {
+			File rolled = getRolledFile(i, extension);
+			if (rolled.exists())
+				rolled.renameTo(getRolledFile(i + 1, extension));
+		}
+	}
+
+	private File getRolledFile(int index, String extension) {
+		return new File(file.getPath() + '.' + index + extension);
+	}
+
+	private File getUncompressedFile() {
+		File rolled;
+		do {
+			rolled = new File(file.getPath() + ROLLED_EXTENSION + '.' + rolledSequence++);
+		} while (rolled.exists());
+		return rolled;
+	}
+
+	private void queueCompression(File rolled) {
+		synchronized (compressQueue) {
+			compressQueue.add(rolled);
+			if (compressing)
+				return;
+			compressing = true;
+		}
+		compressorPool.execute(new Runnable() {
+			public void run() {
+				compressRolledFiles();
+			}
+		});
+	}
+
+	void compressRolledFiles() {
+		Thread.currentThread().setName("Equinox Log File Compressor - " + file.getName()); //$NON-NLS-1$
+		while (true) {
+			File rolled;
+			synchronized (compressQueue) {
+				if (compressQueue.isEmpty()) {
+					compressing = false;
+					compressQueue.notifyAll();
+					return;
+				}
+				rolled = (File) compressQueue.removeFirst();
+			}
+			shiftRolledFiles(GZIP_EXTENSION);
+			File target = getRolledFile(1, GZIP_EXTENSION);
+			try {
+				compress(rolled, target);
+				rolled.delete();
+			} catch (IOException e) {
+				// keep the uncompressed file
+				ExtendedLogReaderServiceFactory.getErrorStream().println("Unable to compress log file " + rolled); //$NON-NLS-1$
+				e.printStackTrace(ExtendedLogReaderServiceFactory.getErrorStream());
+				target.delete();
+			}
+		}
+	}
+
+	private static void compress(File source, File target) throws IOException {
+		InputStream in = new FileInputStream(source);
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(target));
+			try {
+				byte[] bytes = new byte[COPY_BUFFER_SIZE];
+				int read;
+				while ((read = in.read(bytes)) > 0)
+					out.write(bytes, 0, read);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of entries waiting to be written
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of entries dropped because too many were waiting to be written
+	 */
+	public synchronized long getDropCount() {
+		return dropCount;
+	}
+
+	/**
+	 * @return the number of writes to the file
+	 */
+	public long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * @return the mean time in milliseconds taken by a write
+	 */
+	public long getMeanWriteLatency() {
+		long count = writeCount;
+		return count == 0 ? 0 : writeMillis / count;
+	}
+
+	/**
+	 * @return the longest time in milliseconds taken by a write
+	 */
+	public long getMaxWriteLatency() {
+		return maxWriteMillis;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+}
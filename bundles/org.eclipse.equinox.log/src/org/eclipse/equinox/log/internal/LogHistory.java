@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.eclipse.equinox.log.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.equinox.log.*;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogEntry;
+
+/**
+ * LogHistory keeps the most recent log entries in memory so they can be
+ * queried after the fact.
+ * <p>
+ * The entries are held in a circular array of fixed size and the oldest
+ * entries are evicted when either the maximum number of entries or the
+ * estimated memory used by the entries is exceeded. Every entry is also
+ * linked into a chain of the entries of its bundle, of its logger name and
+ * of its level. The chains are kept in int arrays parallel to the entries, so
+ * recording an entry only allocates when a bundle or logger name is seen for
+ * the first time, and a query walks only the entries it returns.
+ * <p>
+ * The history is registered as a synchronous log listener whose filter
+ * accepts the levels up to the history level, and as a service under its
+ * class name so that it can be queried.
+ */
+public class LogHistory implements SynchronousLogListener, LogFilter {
+	private static final ExtendedLogEntry[] NO_ENTRIES = new ExtendedLogEntry[0];
+	// levels below this have a level chain
+	private static final int INDEXED_LEVELS = 16;
+	// rough estimate of the memory used by an entry and its fields, excluding strings
+	private static final int ENTRY_OVERHEAD = 96;
+	// rough estimate of the memory used by an exception and its stack trace
+	private static final int EXCEPTION_OVERHEAD = 1024;
+	private static final int NONE = -1;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final int maxLevel;
+
+	/* @GuardedBy this */
+	private final ExtendedLogEntry[] entries;
+	/* @GuardedBy this */
+	private final int[] sizes;
+	// the next and previous entries with the same bundle, logger name and level
+	/* @GuardedBy this */
+	private final int[] nextByBundle, previousByBundle;
+	/* @GuardedBy this */
+	private final int[] nextByName, previousByName;
+	/* @GuardedBy this */
+	private final int[] nextByLevel, previousByLevel;
+	// Map of Bundle -> Chain
+	/* @GuardedBy this */
+	private final Map bundleChains = new HashMap();
+	// Map of String -> Chain
+	/* @GuardedBy this */
+	private final Map nameChains = new HashMap();
+	/* @GuardedBy this */
+	private final Chain[] levelChains = new Chain[INDEXED_LEVELS];
+	// the index of the oldest entry
+	/* @GuardedBy this */
+	private int oldest;
+	/* @GuardedBy this */
+	private int count;
+	/* @GuardedBy this */
+	private long bytes;
+
+	/**
+	 * @param maxEntries the maximum number of entries to keep
+	 * @param maxBytes the maximum estimated memory used by the entries; 0 for no limit
+	 * @param maxLevel the highest level to keep, for example LogService.LOG_INFO
+	 */
+	public LogHistory(int maxEntries, long maxBytes, int maxLevel) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.maxLevel = maxLevel;
+		entries = new ExtendedLogEntry[maxEntries];
+		sizes = new int[maxEntries];
+		nextByBundle = new int[maxEntries];
+		previousByBundle = new int[maxEntries];
+		nextByName = new int[maxEntries];
+		previousByName = new int[maxEntries];
+		nextByLevel = new int[maxEntries];
+		previousByLevel = new int[maxEntries];
+		for (int i = 0; i < INDEXED_LEVELS; i++)
+			levelChains[i] = new Chain();
+	}
+
+	public boolean isLoggable(Bundle bundle, String loggerName, int logLevel) {
+		return logLevel <= maxLevel;
+	}
+
+	public void logged(LogEntry entry) {
+		add((ExtendedLogEntry) entry);
+	}
+
+	synchronized void add(ExtendedLogEntry entry) {
+		int size = estimateSize(entry);
+		while (count == maxEntries || (maxBytes > 0 && count > 0 && bytes + size > maxBytes))
+			removeOldest();
+
+		int index = (oldest + count) % maxEntries;
+		entries[index] = entry;
+		sizes[index] = size;
+		bytes += size;
+		count++;
+
+		Bundle bundle = entry.getBundle();
+		Chain chain = (Chain) bundleChains.get(bundle);
+		if (chain == null) {
+			chain = new Chain();
+			bundleChains.put(bundle, chain);
+		}
+		chain.append(index, nextByBundle, previousByBundle);
+
+		String name = entry.getLoggerName();
+		chain = (Chain) nameChains.get(name);
+		if (chain == null) {
+			chain = new Chain();
+			nameChains.put(name, chain);
+		}
+		chain.append(index, nextByName, previousByName);
+
+		int level = entry.getLevel();
+		if (level >= 0 && level < INDEXED_LEVELS)
+			levelChains[level].append(index, nextByLevel, previousByLevel);
+	}
+
+	/*
+	 * @GuardedBy this
+	 */
+	private void removeOldest() {
+		int index = oldest;
+		ExtendedLogEntry entry = entries[index];
+
+		Bundle bundle = entry.getBundle();
+		Chain chain = (Chain) bundleChains.get(bundle);
+		if (chain.removeOldest(nextByBundle, previousByBundle))
+			bundleChains.remove(bundle);
+
+		String name = entry.getLoggerName();
+		chain = (Chain) nameChains.get(name);
+		if (chain.removeOldest(nextByName, previousByName))
+			nameChains.remove(name);
+
+		int level = entry.getLevel();
+		if (level >= 0 && level < INDEXED_LEVELS)
+			levelChains[level].removeOldest(nextByLevel, previousByLevel);
+
+		entries[index] = null;
+		bytes -= sizes[index];
+		oldest = (oldest + 1) % maxEntries;
+		count--;
+	}
+
+	private static int estimateSize(ExtendedLogEntry entry) {
+		int size = ENTRY_OVERHEAD;
+		String message = entry.getMessage();
+		if (message != null)
+			size += message.length() << 1;
+		String name = entry.getLoggerName();
+		if (name != null)
+			size += name.length() << 1;
+		if (entry.getException() != null)
+			size += EXCEPTION_OVERHEAD;
+		return size;
+	}
+
+	/**
+	 * Return the entries logged at or after a time, most recent first.
+	 *
+	 * @param since the time in milliseconds; 0 for all entries
+	 * @return the entries
+	 */
+	public synchronized ExtendedLogEntry[] getEntries(long since) {
+		int result = 0;
+		while (result < count && entries[(oldest + count - 1 - result) % maxEntries].getTime() >= since)
+			result++;
+
+		if (result == 0)
+			return NO_ENTRIES;
+
+		ExtendedLogEntry[] copy = new ExtendedLogEntry[result];
+		for (int i = 0; i < result; i++)
+			copy[i] = entries[(oldest + count - 1 - i) % maxEntries];
+		return copy;
+	}
+
+	/**
+	 * Return the entries of a bundle logged at or after a time, most recent first.
+	 *
+	 * @param bundle the bundle
+	 * @param since the time in milliseconds; 0 for all entries
+	 * @return the entries
+	 */
+	public synchronized ExtendedLogEntry[] getEntriesByBundle(Bundle bundle, long since) {
+		return collect((Chain) bundleChains.get(bundle), previousByBundle, since);
+	}
+
+	/**
+	 * Return the entries of a logger logged at or after a time, most recent first.
+	 *
+	 * @param loggerName the logger name; null for the unnamed logger
+	 * @param since the time in milliseconds; 0 for all entries
+	 * @return the entries
+	 */
+	public synchronized ExtendedLogEntry[] getEntriesByLoggerName(String loggerName, long since) {
+		return collect((Chain) nameChains.get(loggerName), previousByName, since);
+	}
+
+	/**
+	 * Return the entries of a level logged at or after a time, most recent first.
+	 *
+	 * @param level the level
+	 * @param since the time in milliseconds; 0 for all entries
+	 * @return the entries
+	 */
+	public synchronized ExtendedLogEntry[] getEntriesByLevel(int level, long since) {
+		if (level >= 0 && level < INDEXED_LEVELS)
+			return collect(levelChains[level], previousByLevel, since);
+
+		// levels outside the index are rare; scan
+		ExtendedLogEntry[] all = getEntries(since);
+		int result = 0;
+		for (int i = 0; i < all.length; i++) {
+			if (all[i].getLevel() == level)
+				all[result++] = all[i];
+		}
+		ExtendedLogEntry[] copy = new ExtendedLogEntry[result];
+		System.arraycopy(all, 0, copy, 0, result);
+		return copy;
+	}
+
+	/*
+	 * @GuardedBy this
+	 */
+	private ExtendedLogEntry[] collect(Chain chain, int[] previous, long since) {
+		if (chain == null)
+			return NO_ENTRIES;
+
+		int result = 0;
+		for (int index = chain.newest; index != NONE && entries[index].getTime() >= since; index = previous[index])
+			result++;
+
+		if (result == 0)
+			return NO_ENTRIES;
+
+		ExtendedLogEntry[] copy = new ExtendedLogEntry[result];
+		int index = chain.newest;
+		for (int i = 0; i < result; i++) {
+			copy[i] = entries[index];
+			index = previous[index];
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the number of entries kept
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the estimated memory used by the entries kept
+	 */
+	public synchronized long getEstimatedBytes() {
+		return bytes;
+	}
+
+	/**
+	 * A chain of entries linked through a pair of index arrays, oldest to newest.
+	 */
+	private static class Chain {
+		int oldest = NONE;
+		int newest = NONE;
+
+		void append(int index, int[] next, int[] previous) {
+			next[index] = NONE;
+			previous[index] = newest;
+			if (newest == NONE)
+				oldest = index;
+			else
+				next[newest] = index;
+			newest = index;
+		}
+
+		/**
+		 * @return true if the chain is now empty
+		 */
+		boolean removeOldest(int[] next, int[] previous) {
+			int index = oldest;
+			oldest = next[index];
+			if (oldest == NONE) {
+				newest = NONE;
+				return true;
+			}
+			previous[oldest] = NONE;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.eclipse.equinox.log.internal;
+
+import org.eclipse.equinox.log.ExtendedLogEntry;
+import org.eclipse.equinox.log.LogFilter;
+import org.osgi.service.log.LogListener;
+
+/**
+ * LogRingBuffer delivers log entries to asynchronous log listeners.
+ * <p>
+ * Entries are published into a circular array and each listener has a
+ * {@link Reader} which follows the published entries with its own sequence.
+ * The filters of the listeners are evaluated by the logging thread before
+ * the entry is published, and each slot holds the entry together with the
+ * readers which accept it. An entry no reader accepts is not published.
+ * Publishing an entry stores it in the next slot and advances the cursor
+ * under a short lock; unless some readers reject the entry it does not
+ * allocate, and it only touches a reader's monitor when the reader is idle.
+ * Readers deliver on the threads of a shared {@link WorkerPool}.
+ * <p>
+ * A slot is reused only once every reader has consumed it. When the slowest
+ * reader falls a whole buffer behind, the buffer is doubled up to its
+ * capacity. A full buffer at capacity is handled according to the policy:
+ * <ul>
+ * <li>{@link #POLICY_BLOCK} - the logging thread waits for the slowest reader.
+ * A listener logging from its own delivery thread cannot wait for itself, so
+ * in that case the buffer grows beyond its capacity.</li>
+ * <li>{@link #POLICY_DROP_OLDEST} - the oldest entry is overwritten. Readers
+ * which have not consumed it skip it.</li>
+ * <li>{@link #POLICY_DROP_NEWEST} - the new entry is not published.</li>
+ * </ul>
+ */
+public class LogRingBuffer {
+	public static final int POLICY_BLOCK = 0;
+	public static final int POLICY_DROP_OLDEST = 1;
+	public static final int POLICY_DROP_NEWEST = 2;
+
+	private static final String[] POLICY_NAMES = {"block", "drop-oldest", "drop-newest"}; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	private static final int INITIAL_CAPACITY = 256;
+	private static final Reader[] NO_READERS = new Reader[0];
+	private static final WorkerPool workerPool = new WorkerPool("Equinox Log Thread"); //$NON-NLS-1$
+
+	// the maximum length of the buffer; 0 for no limit
+	private final int capacity;
+	private final int policy;
+	// pairs of an entry and the readers which accept it; the number of slots is a power of two
+	private volatile Object[] entries;
+	// the sequence of the last published entry
+	private volatile long cursor = -1;
+	private volatile Reader[] readers = NO_READERS;
+	// cached minimum of the reader sequences; only recalculated when the buffer looks full
+	/* @GuardedBy this */
+	private long gatingSequence = -1;
+	/* @GuardedBy this */
+	private long dropCount;
+	// number of logging threads waiting for a reader; written while holding this
+	private volatile int blockedWriters;
+
+	public LogRingBuffer() {
+		this(0, POLICY_BLOCK);
+	}
+
+	/**
+	 * @param capacity the maximum number of entries which have not been consumed by every reader; 0 for no limit
+	 * @param policy the policy which applies when the buffer is full
+	 */
+	public LogRingBuffer(int capacity, int policy) {
+		int length = 1;
+		while (length < capacity)
+			length <<= 1;
+		this.capacity = (capacity > 0) ? length : 0;
+		this.policy = policy;
+		this.entries = new Object[((capacity > 0) ? Math.min(length, INITIAL_CAPACITY) : INITIAL_CAPACITY) << 1];
+	}
+
+	/**
+	 * Return the policy with the given name.
+	 *
+	 * @param name one of block, drop-oldest or drop-newest
+	 * @param defaultPolicy the policy to return if the name is null or unknown
+	 * @return the policy
+	 */
+	public static int parsePolicy(String name, int defaultPolicy) {
+		if (name != null) {
+			name = name.trim();
+			for (int i = 0; i < POLICY_NAMES.length; i++) {
+				if (POLICY_NAMES[i].equalsIgnoreCase(name))
+					return i;
+			}
+		}
+		return defaultPolicy;
+	}
+
+	/**
+	 * Publish the entry to the readers whose filter accepts it. The filters
+	 * are evaluated by the calling thread.
+	 *
+	 * @param entry the log entry
+	 */
+	public void publish(ExtendedLogEntry entry) {
+		Reader[] recipients = selectReaders(readers, entry);
+		if (recipients.length == 0)
+			return;
+
+		Reader[] current;
+		boolean interrupted = false;
+		synchronized (this) {
+			while (true) {
+				current = readers;
+				if (current.length == 0)
+					return;
+
+				long sequence = cursor + 1;
+				Object[] buffer = entries;
+				int slots = buffer.length >> 1;
+				if (sequence - gatingSequence > slots) {
+					gatingSequence = minimumSequence(current, cursor);
+					if (sequence - gatingSequence > slots) {
+						if (capacity == 0 || slots < capacity) {
+							buffer = grow(buffer, sequence);
+						} else if (policy == POLICY_DROP_NEWEST) {
+							dropCount++;
+							return;
+						} else if (policy == POLICY_BLOCK) {
+							if (!isReaderThread(current)) {
+								blockedWriters++;
+								try {
+									wait();
+								} catch (InterruptedException e) {
+									interrupted = true;
+								} finally {
+									blockedWriters--;
+								}
+								continue;
+							}
+							buffer = grow(buffer, sequence);
+						}
+						// POLICY_DROP_OLDEST overwrites the oldest entry
+					}
+				}
+				// the buffer may have grown
+				int index = (int) (sequence & ((buffer.length >> 1) - 1)) << 1;
+				buffer[index] = entry;
+				buffer[index + 1] = recipients;
+				cursor = sequence;
+				break;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		// the other readers must move past the entry as well
+		for (int i = 0; i < current.length; i++)
+			current[i].wakeUp();
+	}
+
+	/**
+	 * @return the readers which accept the entry; the given array if all of them do
+	 */
+	private static Reader[] selectReaders(Reader[] current, ExtendedLogEntry entry) {
+		Reader[] selected = null;
+		int count = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (ExtendedLogReaderServiceFactory.safeIsLoggable(current[i].filter, entry.getBundle(), entry.getLoggerName(), entry.getLevel())) {
+				if (selected != null)
+					selected[count] = current[i];
+				count++;
+			} else if (selected == null) {
+				selected = new Reader[current.length - 1];
+				System.arraycopy(current, 0, selected, 0, count);
+			}
+		}
+		if (selected == null)
+			return current;
+		if (count == selected.length)
+			return selected;
+
+		Reader[] trimmed = new Reader[count];
+		System.arraycopy(selected, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	private static long minimumSequence(Reader[] current, long minimum) {
+		for (int i = 0; i < current.length; i++) {
+			long sequence = current[i].sequence;
+			if (sequence < minimum)
+				minimum = sequence;
+		}
+		return minimum;
+	}
+
+	private static boolean isReaderThread(Reader[] current) {
+		Thread thread = Thread.currentThread();
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].thread == thread)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Grow the buffer so the unconsumed entries and the next entry fit. The
+	 * old buffer is not modified so readers still using it see the same entries.
+	 *
+	 * @GuardedBy this
+	 */
+	private Object[] grow(Object[] buffer, long sequence) {
+		int slots = buffer.length >> 1;
+		int length = slots << 1;
+		while (sequence - gatingSequence > length)
+			length <<= 1;
+
+		Object[] newBuffer = new Object[length << 1];
+		for (long s = gatingSequence + 1; s < sequence; s++) {
+			int from = (int) (s & (slots - 1)) << 1;
+			int to = (int) (s & (length - 1)) << 1;
+			newBuffer[to] = buffer[from];
+			newBuffer[to + 1] = buffer[from + 1];
+		}
+		entries = newBuffer;
+		return newBuffer;
+	}
+
+	synchronized void readerAdvanced() {
+		notifyAll();
+	}
+
+	/**
+	 * Add a reader for a listener. The reader receives the entries published
+	 * from now on.
+	 *
+	 * @param listener the log listener
+	 * @param filter the filter of the listener
+	 * @return the reader
+	 */
+	public synchronized Reader addReader(LogListener listener, LogFilter filter) {
+		Reader reader = new Reader(this, listener, filter, cursor);
+		Reader[] newReaders = new Reader[readers.length + 1];
+		System.arraycopy(readers, 0, newReaders, 0, readers.length);
+		newReaders[readers.length] = reader;
+		readers = newReaders;
+		return reader;
+	}
+
+	/**
+	 * Remove a reader. Entries the reader has not delivered yet are discarded.
+	 *
+	 * @param reader the reader to remove
+	 */
+	public void removeReader(Reader reader) {
+		// stop the reader first as its slots may be reused once it is removed
+		reader.close();
+		synchronized (this) {
+			int index = -1;
+			for (int i = 0; i < readers.length; i++) {
+				if (readers[i] == reader) {
+					index = i;
+					break;
+				}
+			}
+			if (index < 0)
+				return;
+
+			if (readers.length == 1) {
+				readers = NO_READERS;
+				// nothing refers to the entries anymore
+				entries = new Object[entries.length];
+			} else {
+				Reader[] newReaders = new Reader[readers.length - 1];
+				System.arraycopy(readers, 0, newReaders, 0, index);
+				System.arraycopy(readers, index + 1, newReaders, index, newReaders.length - index);
+				readers = newReaders;
+			}
+			// a blocked logging thread may have been waiting for this reader
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the number of entries which were not published because the buffer was full
+	 */
+	public synchronized long getDropCount() {
+		return dropCount;
+	}
+
+	/**
+	 * Reader follows the entries of the ring buffer and delivers them to a
+	 * log listener. Delivery runs on a worker thread which is requested when
+	 * an entry is published and released when the reader has caught up.
+	 */
+	public static class Reader implements Runnable {
+		private static final int IDLE = 0;
+		private static final int RUNNING = 1;
+
+		private final LogRingBuffer ring;
+		private final LogListener listener;
+		private final String name;
+		// evaluated by the logging threads
+		volatile LogFilter filter;
+		// the sequence of the last consumed entry
+		volatile long sequence;
+		// the thread delivering entries; null when idle
+		volatile Thread thread;
+		private volatile int state = IDLE;
+		private volatile boolean closed;
+		// written by the delivering thread only
+		private volatile long dropCount;
+
+		Reader(LogRingBuffer ring, LogListener listener, LogFilter filter, long sequence) {
+			this.ring = ring;
+			this.listener = listener;
+			this.name = listener.toString();
+			this.filter = filter;
+			this.sequence = sequence;
+		}
+
+		public void setFilter(LogFilter filter) {
+			this.filter = filter;
+		}
+
+		/**
+		 * @return the number of entries which were overwritten before this reader consumed them
+		 */
+		public long getDropCount() {
+			return dropCount;
+		}
+
+		void wakeUp() {
+			if (state == RUNNING)
+				return;
+
+			synchronized (this) {
+				if (closed || state == RUNNING)
+					return;
+
+				state = RUNNING;
+				workerPool.execute(this);
+			}
+		}
+
+		void close() {
+			closed = true;
+		}
+
+		public void run() {
+			Thread current = Thread.currentThread();
+			current.setName(name);
+			thread = current;
+			try {
+				long next = sequence + 1;
+				while (true) {
+					long available = ring.cursor;
+					if (next <= available) {
+						next = deliver(next, available);
+						if (next < 0)
+							return;
+						continue;
+					}
+
+					// release the thread before another run can be requested
+					thread = null;
+					state = IDLE;
+					// check again now the state is visible to publishers
+					if (next > ring.cursor)
+						return;
+
+					synchronized (this) {
+						// a publisher may already have requested another run
+						if (state != IDLE || closed)
+							return;
+						state = RUNNING;
+					}
+					thread = current;
+				}
+			} finally {
+				if (thread == current) {
+					// a listener threw an error; let the next published entry request a new run
+					thread = null;
+					state = IDLE;
+				}
+			}
+		}
+
+		/**
+		 * Deliver the entries up to the available sequence.
+		 *
+		 * @return the next sequence to deliver or -1 if the reader is closed
+		 */
+		private long deliver(long next, long available) {
+			Object[] buffer = ring.entries;
+			int slots = buffer.length >> 1;
+			int mask = slots - 1;
+			boolean lossy = ring.policy == POLICY_DROP_OLDEST;
+			for (; next <= available; next++) {
+				if (closed) {
+					thread = null;
+					state = IDLE;
+					return -1;
+				}
+				int index = (int) (next & mask) << 1;
+				ExtendedLogEntry entry = (ExtendedLogEntry) buffer[index];
+				Reader[] recipients = (Reader[]) buffer[index + 1];
+				if (lossy) {
+					// entries up to lapped may have been overwritten by newer entries
+					long lapped = ring.cursor - slots;
+					if (next <= lapped && ring.entries == buffer) {
+						dropCount += lapped + 1 - next;
+						next = lapped;
+						sequence = next;
+						continue;
+					}
+				}
+				if (isRecipient(recipients))
+					ExtendedLogReaderServiceFactory.safeLogged(listener, entry);
+				sequence = next;
+				if (ring.blockedWriters > 0)
+					ring.readerAdvanced();
+			}
+			return next;
+		}
+
+		private boolean isRecipient(Reader[] recipients) {
+			for (int i = 0; i < recipients.length; i++) {
+				if (recipients[i] == this)
+					return true;
+			}
+			return false;
+		}
+	}
+}
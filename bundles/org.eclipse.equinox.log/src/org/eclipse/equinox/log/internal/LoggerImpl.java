@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2006, 2009 Cognos Incorporated, IBM Corporation and others
+ * Copyright (c) 2006, 2011 Cognos Incorporated, IBM Corporation and others
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -12,8 +12,15 @@ import org.osgi.framework.ServiceReference;
 
 public class LoggerImpl implements Logger {
 
+	// levels below this have their isLoggable decision cached
+	private static final int CACHED_LEVELS = 16;
+
 	private final ExtendedLogServiceImpl logServiceImpl;
 	private final String name;
+	// Bit 2 * level is set if the decision for a level is cached and bit 2 * level + 1 if the level is loggable.
+	// The upper 32 bits hold the filters generation the decisions were made for.
+	// The factory clears the cache whenever the log filters change.
+	private volatile long loggableCache;
 
 	public LoggerImpl(ExtendedLogServiceImpl logServiceImpl, String name) {
 		this.logServiceImpl = logServiceImpl;
@@ -25,7 +32,28 @@ public class LoggerImpl implements Logger {
 	}
 
 	public boolean isLoggable(int level) {
-		return logServiceImpl.isLoggable(name, level);
+		if (level < 0 || level >= CACHED_LEVELS)
+			return logServiceImpl.isLoggable(name, level);
+
+		int shift = level << 1;
+		long cache = loggableCache;
+		if ((cache & (1L << shift)) != 0)
+			return (cache & (2L << shift)) != 0;
+
+		int generation = logServiceImpl.getFiltersGeneration();
+		boolean loggable = logServiceImpl.isLoggable(name, level);
+		cache = loggableCache;
+		if ((int) (cache >>> 32) != generation)
+			cache = ((long) generation) << 32;
+		loggableCache = cache | (1L << shift) | (loggable ? 2L << shift : 0);
+		// the filters may have changed while deciding; do not keep a stale decision
+		if (logServiceImpl.getFiltersGeneration() != generation)
+			loggableCache = 0;
+		return loggable;
+	}
+
+	void clearLoggableCache() {
+		loggableCache = 0;
 	}
 
 	public void log(int level, String message) {
@@ -41,7 +69,7 @@ public class LoggerImpl implements Logger {
 	}
 
 	public void log(ServiceReference sr, int level, String message, Throwable exception) {
-		logServiceImpl.log(name, sr, level, message, exception);
+		log((Object) sr, level, message, exception);
 	}
 
 	public void log(Object context, int level, String message) {
@@ -49,6 +77,8 @@ public class LoggerImpl implements Logger {
 	}
 
 	public void log(Object context, int level, String message, Throwable exception) {
-		logServiceImpl.log(name, context, level, message, exception);
+		// no entry is created if no listener wants it
+		if (isLoggable(level))
+			logServiceImpl.log(name, context, level, message, exception);
 	}
 }
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2011 IBM Corporation and others
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.eclipse.equinox.log.internal;
+
+import java.util.LinkedList;
+
+/**
+ * WorkerPool runs jobs on a set of reusable threads. A job is handed to an idle
+ * thread if there is one, otherwise a new thread is started for it, so a job
+ * never waits for another job to finish. Threads which have been idle for a
+ * while stop.
+ */
+public class WorkerPool {
+	private static final int MAX_WAIT = 5000;
+
+	private final String poolName;
+	/* @GuardedBy this */
+	private final LinkedList jobs = new LinkedList();
+	// number of waiting workers which have not been handed a job yet
+	/* @GuardedBy this */
+	private int idleWorkers;
+
+	public WorkerPool(String poolName) {
+		this.poolName = poolName;
+	}
+
+	public synchronized void execute(Runnable job) {
+		if (idleWorkers > 0) {
+			jobs.add(job);
+			idleWorkers--;
+			notify();
+		} else {
+			new Worker(job).start();
+		}
+	}
+
+	synchronized Runnable nextJob() {
+		if (jobs.isEmpty()) {
+			idleWorkers++;
+			long end = System.currentTimeMillis() + MAX_WAIT;
+			long remaining = MAX_WAIT;
+			while (jobs.isEmpty() && remaining > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					// ignore -- we control the stack here and do not need to propagate it.
+				}
+				remaining = end - System.currentTimeMillis();
+			}
+			if (jobs.isEmpty()) {
+				idleWorkers--;
+				return null;
+			}
+			// execute already took this worker off the idle count
+		} else {
+			// the job was handed to a waiting worker which now stays idle
+			idleWorkers++;
+		}
+		return (Runnable) jobs.removeFirst();
+	}
+
+	private class Worker extends Thread {
+		private Runnable job;
+
+		Worker(Runnable job) {
+			super(poolName);
+			this.job = job;
+		}
+
+		public void run() {
+			while (job != null) {
+				try {
+					job.run();
+				} catch (RuntimeException e) {
+					// the jobs handle their own errors; keep the worker alive
+				} finally {
+					setName(poolName);
+				}
+				job = nextJob();
+			}
+		}
+	}
+}